@@ -0,0 +1,222 @@
+package com.cast.pc.capture;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * 本机共享内存输出：把编码后的帧写入内存映射的环形文件，供同一台电脑上的录制、分析工具或 OBS 读取
+ *
+ * 单写者（采集线程）、任意多个读者（可以在其他进程中，用 {@link EgressRingReader} 读取），写入不加锁，
+ * 也不等待读者：读得慢的读者会被覆盖，由读者自己发现并跳到最近的关键帧。
+ *
+ * <pre>
+ * 文件 = [头部 4096 字节][数据区 capacity 字节]，所有整数为小端序
+ *
+ * 头部:
+ *   0  int  魔数 0x46524353（"SCRF"）
+ *   4  int  版本 1
+ *   8  long 数据区大小 capacity（8 的倍数）
+ *  16  long 代号：写者每次打开时更新，读者发现变化后从头同步
+ *  24  long 已发布位置：最后一条已写完的记录的结束位置
+ *  32  long 预留位置：正在写的记录的结束位置，写数据之前更新
+ *  40  long 最近一个关键帧记录的起始位置，-1 表示还没有
+ *  48  long 下一帧的序号
+ *  56  int  写者状态：1 正在写，0 已关闭
+ *  64  long 最后一次写入的时间（System.currentTimeMillis()）
+ *
+ * 数据区中的记录（起点 8 字节对齐）:
+ *   0  int  负载长度
+ *   4  int  标志：bit0 关键帧，bit1 填充（跳到数据区开头）
+ *   8  long 帧序号（从 0 开始连续递增）
+ *  16  long 采集时刻（System.nanoTime()，同一台电脑上各进程一致）
+ *  24  int  宽度
+ *  28  int  高度
+ *  32  ...  负载：Annex B 格式的 H.264 帧，关键帧带 SPS/PPS
+ * </pre>
+ *
+ * 位置是单调递增的字节数，在数据区中的偏移为 位置 % capacity。记录不跨越数据区末尾：
+ * 放不下时写一条填充记录（剩余不足 32 字节时不写，读者直接跳到开头），从开头继续。
+ *
+ * 写入顺序：先更新预留位置，再写记录，最后发布已发布位置和关键帧位置。
+ * 读者读已发布位置之前的记录，复制完负载后再读预留位置，若预留位置已超过 读取位置 + capacity，
+ * 说明复制期间记录被覆盖，丢弃这一帧（类似顺序锁）。
+ */
+public final class EgressRing implements AutoCloseable {
+
+    static final int MAGIC = 0x46524353;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4096;
+    static final int RECORD_HEADER_SIZE = 32;
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_CAPACITY = 8;
+    static final int OFFSET_GENERATION = 16;
+    static final int OFFSET_WRITE_POSITION = 24;
+    static final int OFFSET_RESERVE_POSITION = 32;
+    static final int OFFSET_KEY_POSITION = 40;
+    static final int OFFSET_NEXT_SEQUENCE = 48;
+    static final int OFFSET_WRITER_STATE = 56;
+    static final int OFFSET_HEARTBEAT = 64;
+
+    static final int FLAG_KEY_FRAME = 1;
+    static final int FLAG_PADDING = 2;
+
+    // 对映射区中头部字段的有序访问（字段按大小对齐）
+    static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final long capacity;
+    private final MappedByteBuffer buffer;
+
+    // 以下除 closed 外仅写线程使用
+    private long writePosition;
+    private long nextSequence;
+    private long framesDropped;
+    private volatile boolean closed;
+
+    private EgressRing(Path path, long capacity, MappedByteBuffer buffer) {
+        this.path = path;
+        this.capacity = capacity;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 创建（或覆盖）环形文件
+     *
+     * 文件已存在时重新初始化头部并更新代号，正在读的读者会从新的数据开始
+     *
+     * @param capacity 数据区大小（字节），向下取整到 8 的倍数；单帧超过一半时丢弃该帧
+     */
+    public static EgressRing create(Path path, long capacity) throws IOException {
+        capacity &= ~7L;
+        if (capacity < 64 * 1024 || HEADER_SIZE + capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("环形缓冲区大小无效: " + capacity);
+        }
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() != HEADER_SIZE + capacity) {
+                file.setLength(HEADER_SIZE + capacity);
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        // 先标记为无效，再改写头部，读者在魔数恢复之前不会读取
+        INT.setVolatile(buffer, OFFSET_MAGIC, 0);
+        INT.setVolatile(buffer, OFFSET_WRITER_STATE, 0);
+        buffer.putInt(OFFSET_VERSION, VERSION);
+        buffer.putLong(OFFSET_CAPACITY, capacity);
+        LONG.setVolatile(buffer, OFFSET_WRITE_POSITION, 0L);
+        LONG.setVolatile(buffer, OFFSET_RESERVE_POSITION, 0L);
+        LONG.setVolatile(buffer, OFFSET_KEY_POSITION, -1L);
+        LONG.setVolatile(buffer, OFFSET_NEXT_SEQUENCE, 0L);
+        LONG.setVolatile(buffer, OFFSET_HEARTBEAT, System.currentTimeMillis());
+        LONG.setVolatile(buffer, OFFSET_GENERATION, System.nanoTime());
+        INT.setVolatile(buffer, OFFSET_WRITER_STATE, 1);
+        INT.setVolatile(buffer, OFFSET_MAGIC, MAGIC);
+
+        System.out.println("共享内存输出已打开: " + path + "（" + capacity / (1024 * 1024) + "MB）");
+        return new EgressRing(path, capacity, buffer);
+    }
+
+    /**
+     * 写入一帧（仅采集线程调用）
+     *
+     * @return 是否写入；帧超过数据区一半或已关闭时返回 false
+     */
+    public boolean publish(EncodedFrame frame, int width, int height) {
+        if (closed) {
+            return false;
+        }
+        byte[] data = frame.getData();
+        long recordSize = align(RECORD_HEADER_SIZE + (long) data.length);
+        if (recordSize > capacity / 2) {
+            framesDropped++;
+            return false;
+        }
+
+        long position = writePosition;
+        int offset = (int) (position % capacity);
+        long remaining = capacity - offset;
+        boolean padding = remaining < recordSize;
+        long start = padding ? position + remaining : position;
+        long end = start + recordSize;
+
+        // 先声明要覆盖的范围，读者复制完成后据此判断数据是否仍然有效
+        LONG.setVolatile(buffer, OFFSET_RESERVE_POSITION, end);
+        VarHandle.storeStoreFence();
+
+        if (padding && remaining >= RECORD_HEADER_SIZE) {
+            int at = HEADER_SIZE + offset;
+            buffer.putInt(at, (int) (remaining - RECORD_HEADER_SIZE));
+            buffer.putInt(at + 4, FLAG_PADDING);
+            buffer.putLong(at + 8, -1L);
+        }
+
+        long sequence = nextSequence++;
+        int at = HEADER_SIZE + (int) (start % capacity);
+        buffer.putInt(at, data.length);
+        buffer.putInt(at + 4, frame.isKeyFrame() ? FLAG_KEY_FRAME : 0);
+        buffer.putLong(at + 8, sequence);
+        buffer.putLong(at + 16, frame.getCaptureNanos());
+        buffer.putInt(at + 24, width);
+        buffer.putInt(at + 28, height);
+        buffer.put(at + RECORD_HEADER_SIZE, data);
+
+        writePosition = end;
+        LONG.setRelease(buffer, OFFSET_WRITE_POSITION, end);
+        if (frame.isKeyFrame()) {
+            LONG.setRelease(buffer, OFFSET_KEY_POSITION, start);
+        }
+        LONG.setRelease(buffer, OFFSET_NEXT_SEQUENCE, nextSequence);
+        LONG.setOpaque(buffer, OFFSET_HEARTBEAT, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * 文件路径
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * 已写入的帧数
+     */
+    public long getFramesWritten() {
+        return nextSequence;
+    }
+
+    /**
+     * 因超过数据区一半而丢弃的帧数
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * 标记写者已关闭；文件保留，读者读完剩余的帧后可据此退出
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        INT.setVolatile(buffer, OFFSET_WRITER_STATE, 0);
+        System.out.println("共享内存输出已关闭: " + path + "，共写入 " + nextSequence + " 帧"
+                + (framesDropped > 0 ? "，丢弃 " + framesDropped + " 帧（超过缓冲区一半）" : ""));
+    }
+
+    static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
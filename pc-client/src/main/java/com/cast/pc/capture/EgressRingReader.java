@@ -0,0 +1,310 @@
+package com.cast.pc.capture;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.cast.pc.capture.EgressRing.FLAG_KEY_FRAME;
+import static com.cast.pc.capture.EgressRing.FLAG_PADDING;
+import static com.cast.pc.capture.EgressRing.HEADER_SIZE;
+import static com.cast.pc.capture.EgressRing.INT;
+import static com.cast.pc.capture.EgressRing.LONG;
+import static com.cast.pc.capture.EgressRing.RECORD_HEADER_SIZE;
+
+/**
+ * 读取 {@link EgressRing} 写出的共享内存环形文件（可以在其他进程中）
+ *
+ * 只读映射，不改写文件，读者之间互不影响。打开后从最近的关键帧开始读；
+ * 读得比写慢、被写者覆盖时丢弃被覆盖的帧（计入 {@link #getFramesLost()}），跳到最近的关键帧继续，
+ * 因此交付的帧总是从关键帧开始、可以直接解码。写者重新打开文件时同样从新的关键帧开始。
+ *
+ * 不跨进程通知：{@link #poll()} 不阻塞，{@link #take} 轮询等待。每个读者只在一个线程上使用。
+ */
+public final class EgressRingReader implements AutoCloseable {
+
+    /**
+     * 读出的一帧
+     */
+    public static final class Frame {
+        private final long sequence;
+        private final long captureNanos;
+        private final int width;
+        private final int height;
+        private final boolean keyFrame;
+        private final byte[] data;
+
+        Frame(long sequence, long captureNanos, int width, int height, boolean keyFrame, byte[] data) {
+            this.sequence = sequence;
+            this.captureNanos = captureNanos;
+            this.width = width;
+            this.height = height;
+            this.keyFrame = keyFrame;
+            this.data = data;
+        }
+
+        /**
+         * 帧序号（写者打开后从 0 连续递增，不连续表示中间有帧丢失）
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * 采集时刻（写者进程的 System.nanoTime()）
+         */
+        public long getCaptureNanos() {
+            return captureNanos;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public boolean isKeyFrame() {
+            return keyFrame;
+        }
+
+        /**
+         * Annex B 格式的 H.264 数据，关键帧带 SPS/PPS
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * 解析 NAL 单元，转换为编码帧
+         */
+        public EncodedFrame toEncodedFrame() {
+            return EncodedFrame.fromAnnexB(data, captureNanos);
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long capacity;
+
+    private long generation;
+    private long readPosition;
+    // 被覆盖或写者重新打开后，跳过非关键帧直到下一个关键帧
+    private boolean waitingForKeyFrame;
+    private long framesRead;
+    private long framesLost;
+    private long lastSequence = -1;
+
+    private EgressRingReader(Path path, FileChannel channel, MappedByteBuffer buffer, long capacity) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 打开环形文件，从最近的关键帧开始读
+     *
+     * @throws IOException 文件不存在、格式不对或写者尚未完成初始化
+     */
+    public static EgressRingReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("不是投屏共享内存文件: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if ((int) INT.getVolatile(buffer, EgressRing.OFFSET_MAGIC) != EgressRing.MAGIC) {
+                throw new IOException("不是投屏共享内存文件，或写者尚未初始化完成: " + path);
+            }
+            int version = buffer.getInt(EgressRing.OFFSET_VERSION);
+            if (version != EgressRing.VERSION) {
+                throw new IOException("不支持的共享内存文件版本: " + version);
+            }
+            long capacity = buffer.getLong(EgressRing.OFFSET_CAPACITY);
+            if (capacity <= 0 || HEADER_SIZE + capacity != size) {
+                throw new IOException("共享内存文件大小与头部不一致: " + path);
+            }
+            EgressRingReader reader = new EgressRingReader(path, channel, buffer, capacity);
+            reader.resync();
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 读取下一帧，没有新帧时立即返回 null
+     *
+     * @throws IllegalStateException 写者以不同的大小重新创建了文件，需要重新打开
+     */
+    public Frame poll() {
+        while (true) {
+            long currentGeneration = (long) LONG.getAcquire(buffer, EgressRing.OFFSET_GENERATION);
+            if (currentGeneration != generation) {
+                if (buffer.getLong(EgressRing.OFFSET_CAPACITY) != capacity) {
+                    throw new IllegalStateException("共享内存文件已按不同大小重新创建，请重新打开: " + path);
+                }
+                resync();
+                lastSequence = -1;
+                continue;
+            }
+
+            long published = (long) LONG.getAcquire(buffer, EgressRing.OFFSET_WRITE_POSITION);
+            if (published == readPosition) {
+                return null;
+            }
+            if (published - readPosition > capacity || published < readPosition) {
+                overrun();
+                continue;
+            }
+
+            int offset = (int) (readPosition % capacity);
+            long remaining = capacity - offset;
+            if (remaining < RECORD_HEADER_SIZE) {
+                readPosition += remaining;
+                continue;
+            }
+            int at = HEADER_SIZE + offset;
+            int length = buffer.getInt(at);
+            int flags = buffer.getInt(at + 4);
+            if ((flags & FLAG_PADDING) != 0) {
+                readPosition += remaining;
+                continue;
+            }
+            long recordSize = EgressRing.align(RECORD_HEADER_SIZE + (long) length);
+            if (length < 0 || recordSize > remaining) {
+                // 读头部时已被覆盖
+                overrun();
+                continue;
+            }
+            boolean keyFrame = (flags & FLAG_KEY_FRAME) != 0;
+            if (waitingForKeyFrame && !keyFrame) {
+                readPosition += recordSize;
+                continue;
+            }
+
+            long sequence = buffer.getLong(at + 8);
+            long captureNanos = buffer.getLong(at + 16);
+            int width = buffer.getInt(at + 24);
+            int height = buffer.getInt(at + 28);
+            byte[] data = new byte[length];
+            buffer.get(at + RECORD_HEADER_SIZE, data);
+
+            // 复制完成后确认写者没有进入这条记录
+            VarHandle.loadLoadFence();
+            long reserved = (long) LONG.getVolatile(buffer, EgressRing.OFFSET_RESERVE_POSITION);
+            if (reserved - readPosition > capacity) {
+                overrun();
+                continue;
+            }
+
+            readPosition += recordSize;
+            waitingForKeyFrame = false;
+            if (lastSequence >= 0 && sequence > lastSequence + 1) {
+                framesLost += sequence - lastSequence - 1;
+            }
+            lastSequence = sequence;
+            framesRead++;
+            return new Frame(sequence, captureNanos, width, height, keyFrame, data);
+        }
+    }
+
+    /**
+     * 等待下一帧
+     *
+     * @return 超时或写者已关闭且没有剩余帧时返回 null
+     */
+    public Frame take(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long backoff = 20_000;
+        while (true) {
+            Frame frame = poll();
+            if (frame != null) {
+                return frame;
+            }
+            if (!isWriterOpen() || System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            LockSupport.parkNanos(backoff);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            // 帧间隔为几十毫秒，空闲时逐步放慢轮询
+            backoff = Math.min(backoff * 2, 1_000_000);
+        }
+    }
+
+    /**
+     * 写者是否仍然打开
+     */
+    public boolean isWriterOpen() {
+        return (int) INT.getVolatile(buffer, EgressRing.OFFSET_WRITER_STATE) == 1;
+    }
+
+    /**
+     * 写者最后一次写入的时间（System.currentTimeMillis()），可用于判断写者进程是否还在运行
+     */
+    public long getLastWriteMillis() {
+        return (long) LONG.getOpaque(buffer, EgressRing.OFFSET_HEARTBEAT);
+    }
+
+    /**
+     * 已读出的帧数
+     */
+    public long getFramesRead() {
+        return framesRead;
+    }
+
+    /**
+     * 因读得太慢被覆盖而丢失的帧数（包括跳到关键帧时跳过的帧）
+     */
+    public long getFramesLost() {
+        return framesLost;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 被写者覆盖：跳到最近的关键帧，丢失的帧数由下一帧的序号算出
+     */
+    private void overrun() {
+        long before = readPosition;
+        resync();
+        if (readPosition < before) {
+            // 最近的关键帧已经读过（写者正在重新初始化）：从写者当前位置等下一个关键帧
+            readPosition = (long) LONG.getAcquire(buffer, EgressRing.OFFSET_WRITE_POSITION);
+            waitingForKeyFrame = true;
+        }
+    }
+
+    /**
+     * 定位到最近的关键帧；没有关键帧或它已被覆盖时，从写者当前位置等待下一个关键帧
+     */
+    private void resync() {
+        generation = (long) LONG.getAcquire(buffer, EgressRing.OFFSET_GENERATION);
+        long published = (long) LONG.getAcquire(buffer, EgressRing.OFFSET_WRITE_POSITION);
+        long key = (long) LONG.getAcquire(buffer, EgressRing.OFFSET_KEY_POSITION);
+        long reserved = (long) LONG.getVolatile(buffer, EgressRing.OFFSET_RESERVE_POSITION);
+        if (key >= 0 && key <= published && reserved - key <= capacity) {
+            readPosition = key;
+            waitingForKeyFrame = false;
+        } else {
+            readPosition = published;
+            waitingForKeyFrame = true;
+        }
+    }
+}
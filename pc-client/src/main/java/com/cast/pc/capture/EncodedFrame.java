@@ -0,0 +1,184 @@
+package com.cast.pc.capture;
+
+import java.util.Arrays;
+
+/**
+ * 一帧编码后的视频
+ *
+ * 保存 Annex B 格式的数据和采集时间，并在创建时解析出各 NAL 单元的位置和帧类型，
+ * 发送端据此生成 NAL 长度分帧的数据包，不必再猜测关键帧。
+ * 采集时间即显示时间；含 B 帧的码流（直接投放的文件）按解码顺序送来，另带解码时间，
+ * 封装成文件或 fMP4 的输出据此写出解码时间和显示时间偏移。
+ */
+public final class EncodedFrame {
+
+    private static final int NAL_SLICE_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    private final byte[] data;
+    private final long captureNanos;
+    private final long decodeNanos;
+    // 各 NAL 单元在 data 中的起止位置（不含起始码）：[起点0, 终点0, 起点1, 终点1, ...]
+    private final int[] nalBounds;
+    private final boolean keyFrame;
+    private final boolean droppable;
+    private final boolean config;
+
+    private EncodedFrame(byte[] data, long captureNanos, long decodeNanos, int[] nalBounds,
+                         boolean keyFrame, boolean droppable, boolean config) {
+        this.data = data;
+        this.captureNanos = captureNanos;
+        this.decodeNanos = decodeNanos;
+        this.nalBounds = nalBounds;
+        this.keyFrame = keyFrame;
+        this.droppable = droppable;
+        this.config = config;
+    }
+
+    /**
+     * 解析 Annex B 数据（支持 3 字节和 4 字节起始码）
+     *
+     * @param data         编码器输出
+     * @param captureNanos 采集时刻（System.nanoTime()）
+     */
+    public static EncodedFrame fromAnnexB(byte[] data, long captureNanos) {
+        return fromAnnexB(data, captureNanos, captureNanos);
+    }
+
+    /**
+     * 解析含 B 帧码流中的一帧（显示顺序与解码顺序不同）
+     *
+     * @param data         Annex B 数据
+     * @param captureNanos 显示时刻（System.nanoTime() 时基）
+     * @param decodeNanos  解码时刻（同一时基，按解码顺序递增，不晚于显示时刻）
+     */
+    public static EncodedFrame fromAnnexB(byte[] data, long captureNanos, long decodeNanos) {
+        int[] bounds = new int[16];
+        int count = 0;
+        int start = -1;
+        for (int i = 0; i + 2 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                if (start >= 0) {
+                    // 4 字节起始码的前导 0 不属于上一个 NAL
+                    int end = i;
+                    while (end > start && data[end - 1] == 0) {
+                        end--;
+                    }
+                    if (count + 2 > bounds.length) {
+                        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                    }
+                    bounds[count++] = start;
+                    bounds[count++] = end;
+                }
+                start = i + 3;
+                i += 2;
+            }
+        }
+        if (start >= 0 && start < data.length) {
+            if (count + 2 > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length + 2);
+            }
+            bounds[count++] = start;
+            bounds[count++] = data.length;
+        }
+        bounds = Arrays.copyOf(bounds, count);
+
+        boolean keyFrame = false;
+        boolean config = false;
+        // 所有切片 nal_ref_idc 都为 0 时，没有帧参考这一帧，可以丢弃
+        boolean hasSlice = false;
+        boolean referenced = false;
+        for (int n = 0; n < count; n += 2) {
+            if (bounds[n] >= bounds[n + 1]) {
+                continue;
+            }
+            int header = data[bounds[n]] & 0xFF;
+            int type = header & 0x1F;
+            if (type == NAL_SLICE_IDR) {
+                keyFrame = true;
+            } else if (type == NAL_SPS || type == NAL_PPS) {
+                config = true;
+            }
+            if (type == 1 || type == NAL_SLICE_IDR) {
+                hasSlice = true;
+                referenced |= (header & 0x60) != 0;
+            }
+        }
+        return new EncodedFrame(data, captureNanos, decodeNanos, bounds, keyFrame, hasSlice && !referenced, config);
+    }
+
+    /**
+     * Annex B 格式的数据
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * 采集时刻（System.nanoTime()，单调递增）
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+
+    /**
+     * 解码时刻（与 {@link #getCaptureNanos()} 同一时基）：没有 B 帧时等于采集时刻
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * NAL 单元个数
+     */
+    public int nalCount() {
+        return nalBounds.length / 2;
+    }
+
+    /**
+     * 第 index 个 NAL 单元在 {@link #getData()} 中的起点（不含起始码）
+     */
+    public int nalOffset(int index) {
+        return nalBounds[index * 2];
+    }
+
+    /**
+     * 第 index 个 NAL 单元的长度
+     */
+    public int nalLength(int index) {
+        return nalBounds[index * 2 + 1] - nalBounds[index * 2];
+    }
+
+    /**
+     * NAL 长度分帧后的总长度（每个 NAL 前加 4 字节长度）
+     */
+    public int lengthPrefixedSize() {
+        int size = 0;
+        for (int i = 0; i < nalCount(); i++) {
+            size += 4 + nalLength(i);
+        }
+        return size;
+    }
+
+    /**
+     * 是否包含 IDR 切片
+     */
+    public boolean isKeyFrame() {
+        return keyFrame;
+    }
+
+    /**
+     * 是否可以丢弃（不被后续帧参考）
+     */
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    /**
+     * 是否携带 SPS/PPS
+     */
+    public boolean hasConfig() {
+        return config;
+    }
+}
@@ -0,0 +1,50 @@
+package com.cast.pc.capture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 接收端关键帧请求的合并与限频
+ *
+ * 请求可在任意线程登记；采集线程每帧取一次，短时间内的多次请求合并为一次IDR，
+ * 两次IDR之间至少间隔 minIntervalMs，避免连续的大尺寸 IDR 反过来造成拥塞。
+ * 间隔未到时请求保留，间隔一到立即响应。
+ */
+class KeyFrameRequestLimiter {
+
+    private final long minIntervalMs;
+    private final AtomicInteger pending = new AtomicInteger();
+    // 上次响应的时间（仅采集线程使用）
+    private long lastAcceptedAt = Long.MIN_VALUE / 2;
+
+    KeyFrameRequestLimiter(long minIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * 登记一次请求（任意线程）
+     */
+    void request() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * 采集线程：间隔允许时取出全部待处理请求
+     *
+     * @param nowMs 当前时间（毫秒）
+     * @return 本次合并的请求数，0 表示没有请求或间隔未到
+     */
+    int poll(long nowMs) {
+        if (pending.get() == 0 || nowMs - lastAcceptedAt < minIntervalMs) {
+            return 0;
+        }
+        lastAcceptedAt = nowMs;
+        return pending.getAndSet(0);
+    }
+
+    /**
+     * 丢弃待处理的请求（重新开始采集时调用）
+     */
+    void reset() {
+        pending.set(0);
+    }
+}
@@ -0,0 +1,372 @@
+package com.cast.pc.capture;
+
+import org.bytedeco.ffmpeg.avcodec.AVBSFContext;
+import org.bytedeco.ffmpeg.avcodec.AVBitStreamFilter;
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.PointerPointer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * 投放本地视频文件：直接发送文件中已压缩的 H.264 数据，不解码、不重新编码
+ *
+ * 用 FFmpeg 解封装（MP4、MKV、MOV、TS、裸 H.264 等），经 h264_mp4toannexb 转换为 Annex B
+ * （关键帧前带 SPS/PPS），按解码时间戳的节奏输出 {@link EncodedFrame}，与屏幕捕获的输出完全一样，
+ * 交给 {@link com.cast.pc.network.CastHub} 发送，TV端协议不变。CPU 开销只有解封装和复制，画质即源文件画质。
+ *
+ * 帧的采集时刻取 开始时刻 + 显示时间戳，解码时刻取 开始时刻 + 解码时间戳：含 B 帧的文件由TV端解码器按显示顺序输出，
+ * 录制和浏览器观看按解码时刻和显示时间偏移封装。
+ * 文件中的关键帧是固定的，无法按需产生：接收端加入时依赖 GOP 缓存补发，解码失步时等到下一个关键帧恢复。
+ * TV端解码器只支持 H.264，HEVC 等其他编码的文件在 {@link #open} 时拒绝。
+ */
+public class MediaFileSource {
+
+    // 时间戳跳变（拼接的 TS 文件等）超过该值时重新对齐节奏，避免长时间等待或连续突发（纳秒）
+    private static final long MAX_TIMESTAMP_JUMP_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final AVRational NANOS = av_make_q(1, 1_000_000_000);
+
+    private final Path file;
+    private final AVFormatContext formatContext;
+    private final int streamIndex;
+    private final AVRational timeBase;
+    private final int width;
+    private final int height;
+    private final int fps;
+    private final long durationMillis;
+    private final byte[] codecConfig;
+
+    private Thread thread;
+    private volatile boolean running;
+    // 未开始就停止时已释放文件
+    private boolean released;
+    private volatile long framesSent;
+
+    private Consumer<EncodedFrame> onFrame;
+    private Runnable onFinished;
+    private Consumer<Exception> onError;
+
+    private MediaFileSource(Path file, AVFormatContext formatContext, AVStream stream) {
+        this.file = file;
+        this.formatContext = formatContext;
+        this.streamIndex = stream.index();
+        this.timeBase = stream.time_base();
+        AVCodecParameters par = stream.codecpar();
+        this.width = par.width();
+        this.height = par.height();
+        AVRational rate = stream.avg_frame_rate().num() > 0 ? stream.avg_frame_rate() : stream.r_frame_rate();
+        this.fps = rate.num() > 0 && rate.den() > 0 ? Math.max(1, (int) Math.round(av_q2d(rate))) : 30;
+        this.durationMillis = formatContext.duration() > 0 ? formatContext.duration() / 1000 : -1;
+        this.codecConfig = annexBConfig(par);
+    }
+
+    /**
+     * 打开并探测文件
+     *
+     * @throws IOException 文件无法打开、没有视频流或不是 H.264
+     */
+    public static MediaFileSource open(Path file) throws IOException {
+        AVFormatContext context = new AVFormatContext(null);
+        int ret = avformat_open_input(context, file.toString(), null, (AVDictionary) null);
+        if (ret < 0) {
+            throw new IOException("无法打开文件 " + file.getFileName() + "（" + errorString(ret) + "）");
+        }
+        try {
+            ret = avformat_find_stream_info(context, (PointerPointer<?>) null);
+            if (ret < 0) {
+                throw new IOException("无法读取文件信息（" + errorString(ret) + "）");
+            }
+            int index = av_find_best_stream(context, AVMEDIA_TYPE_VIDEO, -1, -1, (AVCodec) null, 0);
+            if (index < 0) {
+                throw new IOException("文件中没有视频流");
+            }
+            AVStream stream = context.streams(index);
+            int codecId = stream.codecpar().codec_id();
+            if (codecId == AV_CODEC_ID_HEVC) {
+                throw new IOException("TV端目前只能解码 H.264，不支持直接投放 HEVC（H.265）文件");
+            }
+            if (codecId != AV_CODEC_ID_H264) {
+                throw new IOException("视频编码为 " + avcodec_get_name(codecId).getString() + "，只支持直接投放 H.264 文件");
+            }
+            return new MediaFileSource(file, context, stream);
+        } catch (IOException | RuntimeException e) {
+            avformat_close_input(context);
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 平均帧率（取整），文件未标明时为 30
+     */
+    public int getFps() {
+        return fps;
+    }
+
+    /**
+     * 时长（毫秒），未知时为 -1
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * SPS/PPS（Annex B 格式），文件头中没有时为 null（关键帧前仍带有）
+     */
+    public byte[] getCodecConfig() {
+        return codecConfig;
+    }
+
+    /**
+     * 平均码率（bit/s），未知时为 0
+     */
+    public long getBitrate() {
+        return formatContext.bit_rate();
+    }
+
+    /**
+     * 已发出的帧数
+     */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * 设置帧回调（在投放线程上按时间戳节奏调用）
+     */
+    public void setOnFrame(Consumer<EncodedFrame> callback) {
+        this.onFrame = callback;
+    }
+
+    /**
+     * 设置播放结束回调（文件读完，在投放线程上调用；调用 {@link #stop()} 停止时不回调）
+     */
+    public void setOnFinished(Runnable callback) {
+        this.onFinished = callback;
+    }
+
+    /**
+     * 设置错误回调
+     */
+    public void setOnError(Consumer<Exception> callback) {
+        this.onError = callback;
+    }
+
+    /**
+     * 开始投放；只能调用一次，结束后释放文件
+     */
+    public synchronized void start() {
+        if (thread != null || released) {
+            throw new IllegalStateException("已经开始投放或已停止");
+        }
+        running = true;
+        thread = new Thread(this::playLoop, "media-file");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("开始投放文件: " + file.getFileName() + "（" + width + "x" + height + " @ " + fps + "fps"
+                + (durationMillis > 0 ? "，" + durationMillis / 1000 + "s" : "") + "）");
+    }
+
+    /**
+     * 停止投放（等待投放线程退出，最多 1 秒）；未开始时直接释放文件
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            if (!released) {
+                released = true;
+                avformat_close_input(formatContext);
+            }
+            return;
+        }
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 投放线程：读包 → 转换为 Annex B → 按解码时间戳等待 → 输出
+     */
+    private void playLoop() {
+        AVBSFContext bsf = null;
+        AVPacket packet = av_packet_alloc();
+        boolean finished = false;
+        try {
+            bsf = openAnnexBFilter();
+            long startNanos = System.nanoTime();
+            long originNanos = Long.MIN_VALUE;
+            long lastDtsNanos = 0;
+            boolean eof = false;
+            while (running) {
+                if (!eof) {
+                    int ret = av_read_frame(formatContext, packet);
+                    if (ret == AVERROR_EOF()) {
+                        eof = true;
+                        av_bsf_send_packet(bsf, null);
+                    } else if (ret < 0) {
+                        throw new IOException("读取文件失败（" + errorString(ret) + "）");
+                    } else if (packet.stream_index() != streamIndex) {
+                        av_packet_unref(packet);
+                        continue;
+                    } else if (av_bsf_send_packet(bsf, packet) < 0) {
+                        av_packet_unref(packet);
+                        continue;
+                    }
+                }
+
+                int ret;
+                while (running && (ret = av_bsf_receive_packet(bsf, packet)) >= 0) {
+                    long dts = packet.dts() != AV_NOPTS_VALUE ? packet.dts() : packet.pts();
+                    long pts = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : dts;
+                    // 裸码流没有时间戳：按帧率推算
+                    long dtsNanos = dts != AV_NOPTS_VALUE ? av_rescale_q(dts, timeBase, NANOS)
+                            : originNanos == Long.MIN_VALUE ? 0 : lastDtsNanos + 1_000_000_000L / fps;
+                    long ptsNanos = pts != AV_NOPTS_VALUE ? av_rescale_q(pts, timeBase, NANOS) : dtsNanos;
+                    long now = System.nanoTime();
+                    if (originNanos == Long.MIN_VALUE || dtsNanos < lastDtsNanos
+                            || dtsNanos - lastDtsNanos > MAX_TIMESTAMP_JUMP_NANOS) {
+                        // 第一帧或时间戳跳变：以当前时刻重新对齐
+                        startNanos = now;
+                        originNanos = dtsNanos;
+                    }
+                    lastDtsNanos = dtsNanos;
+
+                    long due = startNanos + (dtsNanos - originNanos);
+                    while (running && due - System.nanoTime() > 0) {
+                        LockSupport.parkNanos(due - System.nanoTime());
+                    }
+                    if (!running) {
+                        av_packet_unref(packet);
+                        break;
+                    }
+
+                    byte[] data = new byte[packet.size()];
+                    packet.data().get(data);
+                    av_packet_unref(packet);
+                    Consumer<EncodedFrame> callback = onFrame;
+                    if (callback != null && data.length > 0) {
+                        callback.accept(EncodedFrame.fromAnnexB(data, startNanos + (ptsNanos - originNanos),
+                                startNanos + (Math.min(dtsNanos, ptsNanos) - originNanos)));
+                    }
+                    framesSent++;
+                }
+                if (eof && running) {
+                    finished = true;
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("投放文件出错: " + e.getMessage());
+            if (running && onError != null) {
+                onError.accept(e);
+            }
+        } finally {
+            running = false;
+            if (bsf != null) {
+                av_bsf_free(bsf);
+            }
+            av_packet_free(packet);
+            avformat_close_input(formatContext);
+            System.out.println("文件投放结束: " + file.getFileName() + "，共发送 " + framesSent + " 帧");
+        }
+        if (finished && onFinished != null) {
+            onFinished.run();
+        }
+    }
+
+    /**
+     * MP4/MKV 中的长度前缀格式转为 Annex B，并在关键帧前插入 SPS/PPS；已是 Annex B 的码流原样通过
+     */
+    private AVBSFContext openAnnexBFilter() throws IOException {
+        AVBitStreamFilter filter = av_bsf_get_by_name("h264_mp4toannexb");
+        if (filter == null) {
+            throw new IOException("找不到 h264_mp4toannexb 过滤器");
+        }
+        AVBSFContext bsf = new AVBSFContext(null);
+        int ret = av_bsf_alloc(filter, bsf);
+        if (ret < 0) {
+            throw new IOException("无法创建码流过滤器（" + errorString(ret) + "）");
+        }
+        avcodec_parameters_copy(bsf.par_in(), formatContext.streams(streamIndex).codecpar());
+        bsf.time_base_in(timeBase);
+        ret = av_bsf_init(bsf);
+        if (ret < 0) {
+            av_bsf_free(bsf);
+            throw new IOException("无法初始化码流过滤器（" + errorString(ret) + "）");
+        }
+        return bsf;
+    }
+
+    /**
+     * 文件头中的 SPS/PPS 转为 Annex B：MP4/MKV 中是 avcC 结构，TS 和裸码流中已是 Annex B
+     */
+    private static byte[] annexBConfig(AVCodecParameters par) {
+        int size = par.extradata_size();
+        if (par.extradata() == null || size <= 0) {
+            return null;
+        }
+        byte[] extradata = new byte[size];
+        par.extradata().get(extradata);
+        if (extradata[0] != 1) {
+            return extradata;
+        }
+        // avcC: [版本][profile][兼容性][level][0xFC|长度字节数-1][0xE0|SPS 数]{[2字节长度][SPS]}[PPS 数]{[2字节长度][PPS]}
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int pos = 5;
+        for (int set = 0; set < 2 && pos < size; set++) {
+            int count = set == 0 ? extradata[pos++] & 0x1F : extradata[pos++] & 0xFF;
+            for (int i = 0; i < count && pos + 2 <= size; i++) {
+                int length = ((extradata[pos] & 0xFF) << 8) | (extradata[pos + 1] & 0xFF);
+                pos += 2;
+                if (pos + length > size) {
+                    return null;
+                }
+                out.write(0);
+                out.write(0);
+                out.write(0);
+                out.write(1);
+                out.write(extradata, pos, length);
+                pos += length;
+            }
+        }
+        return out.size() > 0 ? out.toByteArray() : null;
+    }
+
+    private static String errorString(int code) {
+        BytePointer buf = new BytePointer(AV_ERROR_MAX_STRING_SIZE);
+        av_strerror(code, buf, buf.capacity());
+        return buf.getString();
+    }
+}
@@ -0,0 +1,211 @@
+package com.cast.pc.capture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 性能档位阶梯
+ *
+ * 电脑性能不足（如 4K/8K 使用 Robot 采集）时，按档位逐级降低编码分辨率和帧率；
+ * 有余量时再带迟滞地逐级恢复，避免在两个档位之间来回抖动。
+ *
+ * 负载 = 平均每帧处理耗时 / 帧预算（1000ms / 帧率），每秒采样一次。
+ *
+ * 网络带宽不足时（投屏前的带宽探测）可以按码率限制档位（{@link #limitToBitrate}）：
+ * 码率撑不起的档位不会仅因电脑有余量而升上去，码率回升后限制随之放宽。
+ */
+public class QualityLadder {
+
+    // 负载超过该值视为过载
+    private static final double OVERLOAD = 0.9;
+    // 负载低于该值视为有余量
+    private static final double HEADROOM = 0.6;
+    // 升档后预计负载不超过该值才允许升档
+    private static final double UPGRADE_LIMIT = 0.8;
+    // 连续过载多少秒降档
+    private static final int DOWNGRADE_AFTER_SECONDS = 2;
+    // 连续有余量多少秒升档
+    private static final int UPGRADE_AFTER_SECONDS = 5;
+    // 切换后多少秒内不再切换（等新档位负载稳定）
+    private static final int COOLDOWN_SECONDS = 3;
+    // 每像素每帧至少需要的码率（bit），低于此画面明显模糊，不如降分辨率（1080p30 约 2.5Mbps）
+    private static final double MIN_BITS_PER_PIXEL = 0.04;
+
+    /**
+     * 一个档位
+     */
+    public static final class Rung {
+        private final int index;
+        private final String name;
+        private final int width;
+        private final int height;
+        private final int fps;
+
+        Rung(int index, String name, int width, int height, int fps) {
+            this.index = index;
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getFps() {
+            return fps;
+        }
+
+        /**
+         * 每秒处理的像素数，用于估算切换档位后的负载
+         */
+        long pixelRate() {
+            return (long) width * height * fps;
+        }
+
+        /**
+         * 该档位画面可接受所需的最低码率（bit/s）
+         */
+        long minBitrate() {
+            return (long) (pixelRate() * MIN_BITS_PER_PIXEL);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + width + "x" + height + "@" + fps + "fps";
+        }
+    }
+
+    private final List<Rung> rungs;
+    private int current = 0;
+    private int overloadedSeconds = 0;
+    private int headroomSeconds = 0;
+    private int cooldownSeconds = 0;
+    // 码率限制（bit/s），未限制时为 Long.MAX_VALUE
+    private long bitrateLimit = Long.MAX_VALUE;
+
+    /**
+     * @param width  用户选择的编码宽度
+     * @param height 用户选择的编码高度
+     * @param fps    用户选择的帧率
+     */
+    public QualityLadder(int width, int height, int fps) {
+        List<Rung> list = new ArrayList<>();
+        list.add(new Rung(0, "原画", width, height, fps));
+        list.add(new Rung(1, "流畅", even(width * 3 / 4), even(height * 3 / 4), fps));
+        list.add(new Rung(2, "省电", even(width / 2), even(height / 2), fps));
+        list.add(new Rung(3, "极简", even(width / 2), even(height / 2), Math.max(15, fps / 2)));
+        this.rungs = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 阶梯是否按该编码尺寸和帧率建立（即原画档位与之相同）
+     */
+    public boolean isBuiltFor(int width, int height, int fps) {
+        Rung top = rungs.get(0);
+        return top.width == width && top.height == height && top.fps == fps;
+    }
+
+    /**
+     * 当前的码率限制（bit/s），未限制时为 Long.MAX_VALUE
+     */
+    public synchronized long getBitrateLimit() {
+        return bitrateLimit;
+    }
+
+    /**
+     * 当前档位
+     */
+    public synchronized Rung current() {
+        return rungs.get(current);
+    }
+
+    /**
+     * 按可用码率限制档位：降到码率撑得起的最高档位，之后升档也不超过该档位
+     *
+     * @param bitrate 可用码率（bit/s）
+     * @return 需要切换到的档位，当前档位已满足时返回 null
+     */
+    public synchronized Rung limitToBitrate(int bitrate) {
+        bitrateLimit = bitrate;
+        int index = 0;
+        while (index < rungs.size() - 1 && rungs.get(index).minBitrate() > bitrate) {
+            index++;
+        }
+        return index > current ? switchTo(index) : null;
+    }
+
+    /**
+     * 码率调整通知：码率回升时放宽 {@link #limitToBitrate} 设置的限制（只放宽，不会因此降档）
+     */
+    public synchronized void onBitrateChanged(int bitrate) {
+        if (bitrateLimit != Long.MAX_VALUE && bitrate > bitrateLimit) {
+            bitrateLimit = bitrate;
+        }
+    }
+
+    /**
+     * 报告最近一秒的负载
+     *
+     * @param load 平均每帧处理耗时 / 帧预算
+     * @return 需要切换到的档位，不需要切换时返回 null
+     */
+    public synchronized Rung onLoadSample(double load) {
+        if (cooldownSeconds > 0) {
+            cooldownSeconds--;
+            return null;
+        }
+
+        if (load > OVERLOAD) {
+            overloadedSeconds++;
+            headroomSeconds = 0;
+        } else if (load < HEADROOM) {
+            headroomSeconds++;
+            overloadedSeconds = 0;
+        } else {
+            overloadedSeconds = 0;
+            headroomSeconds = 0;
+        }
+
+        if (overloadedSeconds >= DOWNGRADE_AFTER_SECONDS && current < rungs.size() - 1) {
+            return switchTo(current + 1);
+        }
+
+        if (headroomSeconds >= UPGRADE_AFTER_SECONDS && current > 0) {
+            // 按像素吞吐量估算升档后的负载，超过上限则继续保持当前档位
+            // 码率撑不起的档位也不升
+            Rung up = rungs.get(current - 1);
+            double predicted = load * up.pixelRate() / current().pixelRate();
+            if (predicted <= UPGRADE_LIMIT && up.minBitrate() <= bitrateLimit) {
+                return switchTo(current - 1);
+            }
+        }
+        return null;
+    }
+
+    private Rung switchTo(int index) {
+        current = index;
+        overloadedSeconds = 0;
+        headroomSeconds = 0;
+        cooldownSeconds = COOLDOWN_SECONDS;
+        return rungs.get(index);
+    }
+
+    private static int even(int value) {
+        return Math.max(2, value & ~1);
+    }
+}
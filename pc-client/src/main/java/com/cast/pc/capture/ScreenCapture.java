@@ -1,58 +1,137 @@
 package com.cast.pc.capture;
 
 import com.cast.pc.config.AppConfig;
-import org.bytedeco.ffmpeg.avcodec.AVCodec;
-import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
-import org.bytedeco.ffmpeg.avcodec.AVPacket;
-import org.bytedeco.ffmpeg.avutil.AVFrame;
-import org.bytedeco.ffmpeg.global.avcodec;
-import org.bytedeco.ffmpeg.global.avutil;
-import org.bytedeco.ffmpeg.global.swscale;
-import org.bytedeco.ffmpeg.swscale.SwsContext;
 
 import java.awt.Dimension;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
 import java.awt.Rectangle;
 import java.awt.Robot;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
-import static org.bytedeco.ffmpeg.global.avcodec.*;
-import static org.bytedeco.ffmpeg.global.avutil.*;
-import static org.bytedeco.ffmpeg.global.swscale.*;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_LANCZOS;
 
 /**
  * 屏幕捕获器
  * 
  * 使用Java Robot捕获屏幕，FFmpeg编码为H.264
  * 支持自定义分辨率或自动获取屏幕原生分辨率
+ *
+ * 运行中可通过 {@link #reconfigure} 修改参数而不中断采集：
+ * 码率和帧率直接作用于当前编码器；分辨率变化时在后台准备备用编码器，
+ * 下一帧切换（新编码器第一帧就是关键帧），并通过 {@link FormatListener} 通知新格式。
+ *
+ * 为缩短点击投屏到出画面的时间，FFmpeg 本地库可在启动时通过 {@link #preloadNatives()} 预加载，
+ * 选择设备时通过 {@link #prepare()} 预先创建 Robot 和编码器；{@link #start()} 返回的 Future
+ * 在编码器就绪时完成，取代固定等待。
+ *
+ * 通过 {@link #addSimulcastLayer} 可以同时输出多路不同分辨率、码率的码流（如 4K 和 1080p）：
+ * 采集和色彩转换只做一次，主编码器与各路附加编码在各自线程上并行缩放、编码。
+ *
+ * 可以指定采集区域（{@link #setCaptureRegion}），多个实例分别采集不同的显示器，
+ * 各自拥有采集线程、Robot 和编码器，除本地库预加载外不共享状态。
+ *
+ * 设置 {@link #setEgressRing} 后，主编码的帧同时写入共享内存环形文件，本机的录制、分析工具
+ * 用 {@link EgressRingReader} 读取，不经过网络。
  */
 public class ScreenCapture {
     
+    /**
+     * 编码格式变化监听器，在切换后第一帧发出之前于采集线程上回调
+     */
+    public interface FormatListener {
+        /**
+         * @param codecConfig 新编码器的 SPS/PPS（Annex B 格式），编码器未提供时为 null
+         */
+        void onFormatChanged(int width, int height, int fps, byte[] codecConfig);
+    }
+
     // 视频参数 - 可配置
-    private int frameRate = 30;                         // 帧率
-    private int videoBitrate = 16000000;                // 视频码率 16Mbps（超高清）
+    private volatile int frameRate = 30;                // 帧率
+    private volatile int videoBitrate = 16000000;       // 视频码率 16Mbps（超高清）
+    private volatile boolean bitrateChanged = false;    // 码率已修改，待作用到编码器
     
     private ExecutorService executor;
     private AtomicBoolean isRunning = new AtomicBoolean(false);
-    private Robot robot;
+    // Robot 创建较慢，预热后在多次投屏间复用
+    private volatile Robot robot;
     private AppConfig config;
     
-    // FFmpeg编码器
-    private AVCodecContext codecContext;
-    private SwsContext swsContext;
-    private AVFrame frame;
-    private AVFrame yuvFrame;
+    // FFmpeg 本地库预加载（进程内只做一次）
+    private static CompletableFuture<Void> nativesLoaded;
+    // 预热线程：创建 Robot 和预热编码器，不占用采集线程
+    private static final ExecutorService warmupExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "encoder-warmup");
+        t.setDaemon(true);
+        return t;
+    });
+    // 预热好的编码器，启动时参数一致则直接使用
+    private final AtomicReference<VideoEncoder> warmEncoder = new AtomicReference<>();
+    private volatile CompletableFuture<Void> warmup;
+    // 编码器就绪时完成，结果为编码分辨率
+    private volatile CompletableFuture<Dimension> ready;
+    // 下一帧立即采集并编码为IDR
+    private volatile boolean keyFrameRequested = false;
+    // 接收端请求的IDR：突发请求合并为一次，两次之间至少间隔 RECEIVER_KEY_FRAME_INTERVAL_MS
+    static final long RECEIVER_KEY_FRAME_INTERVAL_MS = 500;
+    private final KeyFrameRequestLimiter receiverKeyFrameRequests =
+            new KeyFrameRequestLimiter(RECEIVER_KEY_FRAME_INTERVAL_MS);
+    // 编码器不支持在线调整码率时靠重建编码器改码率，每次重建都会产生 IDR 和格式变化：
+    // 只在码率变化超过 BITRATE_REBUILD_MIN_STEP 时重建，两次重建至少间隔 BITRATE_REBUILD_INTERVAL_MS
+    private static final double BITRATE_REBUILD_MIN_STEP = 0.2;
+    private static final long BITRATE_REBUILD_INTERVAL_MS = 10_000;
+    // 上次为调整码率重建编码器的时间（仅采集线程使用）
+    private long lastBitrateRebuildAt;
+
+    // FFmpeg编码器（仅采集线程使用）
+    private VideoEncoder encoder;
+    // 编码器能否在线调整码率（编码器打开后由采集线程写入，供其他线程读取）
+    private volatile boolean onlineBitrate;
+    // 后台准备好的备用编码器，采集线程在下一帧取走
+    private final AtomicReference<VideoEncoder> standbyEncoder = new AtomicReference<>();
+    // 其他线程（重新配置、按带宽限制）选定的档位，采集线程在下一帧应用
+    private final AtomicReference<QualityLadder.Rung> pendingRung = new AtomicReference<>();
+    // 准备备用编码器、释放旧编码器的后台线程
+    private ExecutorService standbyExecutor;
+    // 已提交但尚未完成的备用编码器准备任务数
+    private final AtomicInteger standbyPreparing = new AtomicInteger();
+    // 当前编码器的 SPS/PPS
+    private volatile byte[] codecConfig;
+
+    // 多路编码的附加编码路
+    private final List<SimulcastLayer> simulcastLayers = new CopyOnWriteArrayList<>();
+    // 多路编码时整屏的色彩转换（仅采集线程使用）
+    private YuvConverter sourceConverter;
     
     // 实际使用的分辨率
     private int captureWidth;
     private int captureHeight;
-    private int encodeWidth;
-    private int encodeHeight;
+    private volatile int encodeWidth;
+    private volatile int encodeHeight;
+    // 当前采集帧率（可能被性能档位降低）
+    private volatile int activeFrameRate;
+
+    // 采集区域（虚拟桌面坐标，如某台显示器的范围），为 null 时采集主屏幕
+    private volatile Rectangle captureRegion;
+
+    // 本机共享内存输出，为 null 时不输出
+    private volatile EgressRing egressRing;
     
     // 是否使用屏幕原生分辨率
     private boolean useNativeResolution = true;
@@ -61,13 +140,25 @@ public class ScreenCapture {
     private int targetWidth = 0;
     private int targetHeight = 0;
 
-    private Consumer<byte[]> onFrameCaptured;
+    // 性能档位：帧处理超出预算时自动降低分辨率/帧率
+    private volatile QualityLadder qualityLadder;
+
+    // 各阶段耗时统计（纳秒，一秒窗口内累计）
+    private long captureNanos;
+    private long scaleNanos;
+    private long convertNanos;
+    private long encodeNanos;
+    private long simulcastWaitNanos;
+
+    private Consumer<EncodedFrame> onFrameCaptured;
     private Consumer<Exception> onError;
+    private Consumer<QualityLadder.Rung> onQualityChanged;
+    private FormatListener onFormatChanged;
     
     /**
      * 设置帧捕获回调
      */
-    public void setOnFrameCaptured(Consumer<byte[]> callback) {
+    public void setOnFrameCaptured(Consumer<EncodedFrame> callback) {
         this.onFrameCaptured = callback;
     }
     
@@ -78,6 +169,20 @@ public class ScreenCapture {
         this.onError = callback;
     }
     
+    /**
+     * 设置性能档位变化回调
+     */
+    public void setOnQualityChanged(Consumer<QualityLadder.Rung> callback) {
+        this.onQualityChanged = callback;
+    }
+
+    /**
+     * 设置编码格式变化回调（分辨率或帧率在运行中发生变化）
+     */
+    public void setOnFormatChanged(FormatListener listener) {
+        this.onFormatChanged = listener;
+    }
+
     /**
      * 设置是否使用屏幕原生分辨率
      */
@@ -85,6 +190,40 @@ public class ScreenCapture {
         this.useNativeResolution = useNative;
     }
 
+    /**
+     * 设置采集区域（虚拟桌面坐标，通常取自 {@link #getDisplayBounds()}），下次启动时生效
+     *
+     * @param region 采集区域，为 null 时采集主屏幕
+     */
+    public void setCaptureRegion(Rectangle region) {
+        this.captureRegion = region != null ? new Rectangle(region) : null;
+    }
+
+    /**
+     * 设置本机共享内存输出：主编码的每一帧在回调之后写入环形文件，供本机其他进程读取
+     *
+     * @param ring 环形文件，为 null 时停止输出（不关闭原来的文件）
+     */
+    public void setEgressRing(EgressRing ring) {
+        this.egressRing = ring;
+    }
+
+    /**
+     * 各显示器在虚拟桌面中的范围，主显示器在前
+     */
+    public static List<Rectangle> getDisplayBounds() {
+        GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
+        GraphicsDevice primary = env.getDefaultScreenDevice();
+        List<Rectangle> bounds = new ArrayList<>();
+        bounds.add(primary.getDefaultConfiguration().getBounds());
+        for (GraphicsDevice device : env.getScreenDevices()) {
+            if (device != primary) {
+                bounds.add(device.getDefaultConfiguration().getBounds());
+            }
+        }
+        return bounds;
+    }
+
     /**
      * 设置目标分辨率（当不使用原生分辨率时）
      */
@@ -95,9 +234,23 @@ public class ScreenCapture {
 
     /**
      * 设置视频码率
+     *
+     * 运行中调用时在下一帧前直接作用于编码器（x264 支持在线重配置码率），无需重启
      */
     public void setBitrate(int bitrate) {
         this.videoBitrate = bitrate;
+        this.bitrateChanged = true;
+        QualityLadder ladder = qualityLadder;
+        if (ladder != null) {
+            ladder.onBitrateChanged(bitrate);
+        }
+    }
+
+    /**
+     * 当前编码器能否在线调整码率（编码器就绪后有效），不能时每次调整码率都要重建编码器
+     */
+    public boolean supportsOnlineBitrate() {
+        return onlineBitrate;
     }
 
     /**
@@ -115,15 +268,190 @@ public class ScreenCapture {
     }
     
     /**
-     * 开始捕获屏幕
+     * 增加一路附加编码，与主编码共用采集和色彩转换
+     *
+     * 运行中增加时从下一帧开始编码；编码器按当前采集帧率创建
+     *
+     * @param name    名称，接收端按名称订阅
+     * @param bitrate 码率（bit/s）
+     */
+    public synchronized SimulcastLayer addSimulcastLayer(String name, int width, int height, int bitrate) {
+        SimulcastLayer layer = new SimulcastLayer(name, width, height, bitrate);
+        simulcastLayers.add(layer);
+        if (isRunning.get()) {
+            layer.start();
+        }
+        System.out.println("已添加多路编码: " + layer);
+        return layer;
+    }
+
+    /**
+     * 移除一路附加编码并释放其编码器
+     */
+    public synchronized void removeSimulcastLayer(SimulcastLayer layer) {
+        if (simulcastLayers.remove(layer)) {
+            layer.stop();
+        }
+    }
+
+    /**
+     * 当前的附加编码路
+     */
+    public List<SimulcastLayer> getSimulcastLayers() {
+        return new ArrayList<>(simulcastLayers);
+    }
+
+    /**
+     * 在后台线程预加载 FFmpeg 本地库（加载 .dll/.so 并初始化编码器注册表）
+     *
+     * 可以在应用启动时调用，多次调用返回同一个 Future
      */
-    public void start() {
+    public static synchronized CompletableFuture<Void> preloadNatives() {
+        if (nativesLoaded == null) {
+            nativesLoaded = CompletableFuture.runAsync(() -> {
+                long t0 = System.nanoTime();
+                if (avcodec_find_encoder(AV_CODEC_ID_H264) == null) {
+                    System.err.println("⚠️ 预加载完成，但找不到H.264编码器");
+                }
+                System.out.println("FFmpeg 本地库已预加载，耗时 " + (System.nanoTime() - t0) / 1_000_000 + "ms");
+            }, warmupExecutor);
+        }
+        return nativesLoaded;
+    }
+
+    /**
+     * 按当前设置预热：创建 Robot 并准备好编码器，下次 {@link #start()} 时直接使用
+     *
+     * 预热失败不影响启动，启动时会重新创建
+     *
+     * @return 预热完成时完成（失败时也正常完成）
+     */
+    public synchronized CompletableFuture<Void> prepare() {
         if (isRunning.get()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Rectangle bounds = captureBounds();
+        captureWidth = bounds.width;
+        captureHeight = bounds.height;
+        Dimension size = resolveEncodeSize();
+        int fps = frameRate;
+        int bitrate = currentBitrate(size.width, size.height);
+
+        CompletableFuture<Void> task = preloadNatives().thenRunAsync(() -> {
+            try {
+                long t0 = System.nanoTime();
+                if (robot == null) {
+                    robot = new Robot();
+                }
+                VideoEncoder warm = warmEncoder.get();
+                if (warm != null && warm.getWidth() == size.width && warm.getHeight() == size.height
+                        && warm.getFps() == fps && warm.getBitrate() == bitrate) {
+                    return;
+                }
+                VideoEncoder replaced = warmEncoder.getAndSet(new VideoEncoder(size.width, size.height, fps, bitrate));
+                if (replaced != null) {
+                    replaced.close();
+                }
+                System.out.println("编码器已预热: " + size.width + "x" + size.height + "@" + fps + "fps，耗时 "
+                        + (System.nanoTime() - t0) / 1_000_000 + "ms");
+            } catch (Exception e) {
+                System.err.println("⚠️ 预热编码器失败: " + e.getMessage());
+            }
+        }, warmupExecutor);
+        warmup = task;
+        return task;
+    }
+
+    /**
+     * 请求立即采集一帧并编码为IDR关键帧（如TV端刚完成握手）
+     */
+    public void requestKeyFrame() {
+        keyFrameRequested = true;
+    }
+
+    /**
+     * 接收端请求关键帧（解码器丢帧或失步）
+     *
+     * 与 {@link #requestKeyFrame()} 不同，短时间内的多次请求会合并，
+     * 且两次之间至少间隔 {@value #RECEIVER_KEY_FRAME_INTERVAL_MS}ms，避免连续的大尺寸 IDR 反过来造成拥塞
+     */
+    public void requestKeyFrameFromReceiver() {
+        receiverKeyFrameRequests.request();
+    }
+
+    /**
+     * 运行中重新配置编码参数，不中断采集
+     *
+     * 码率和帧率在下一帧作用于当前编码器；分辨率变化时在后台准备备用编码器，
+     * 准备完成后的下一帧切换。格式变化均由采集线程通知。未运行时只保存参数，下次启动生效。
+     * 编码尺寸和帧率不变时（如只改码率）保留性能档位阶梯：过载降下来的档位和带宽探测的码率限制都不丢；
+     * 变化时按新参数重建阶梯，再套用原来的码率限制。
+     *
+     * @param useNative 是否使用屏幕原生分辨率
+     * @param width     目标宽度（useNative 为 false 时有效）
+     * @param height    目标高度（useNative 为 false 时有效）
+     * @param fps       帧率
+     * @param bitrate   码率
+     */
+    public synchronized void reconfigure(boolean useNative, int width, int height, int fps, int bitrate) {
+        this.useNativeResolution = useNative;
+        this.targetWidth = width;
+        this.targetHeight = height;
+        this.frameRate = fps;
+        setBitrate(bitrate);
+
+        if (!isRunning.get()) {
             return;
         }
         
+        Dimension size = resolveEncodeSize();
+        QualityLadder previous = qualityLadder;
+        if (previous != null && previous.isBuiltFor(size.width, size.height, fps)) {
+            return;
+        }
+        QualityLadder ladder = new QualityLadder(size.width, size.height, fps);
+        long limit = previous != null ? previous.getBitrateLimit() : Long.MAX_VALUE;
+        if (limit != Long.MAX_VALUE) {
+            ladder.limitToBitrate((int) limit);
+        }
+        qualityLadder = ladder;
+        pendingRung.set(ladder.current());
+        if (limit != Long.MAX_VALUE && ladder.current().getIndex() > 0) {
+            System.out.println("⚙️ 性能档位按带宽限制为: " + ladder.current());
+            if (onQualityChanged != null) {
+                onQualityChanged.accept(ladder.current());
+            }
+        }
+    }
+
+    /**
+     * 开始捕获屏幕
+     *
+     * @return 编码器就绪（即将采集第一帧）时完成，结果为实际编码分辨率；初始化失败或被停止时异常完成
+     */
+    public synchronized CompletableFuture<Dimension> start() {
+        if (isRunning.get()) {
+            CompletableFuture<Dimension> current = ready;
+            return current != null ? current : CompletableFuture.completedFuture(new Dimension(encodeWidth, encodeHeight));
+        }
+
+        ready = new CompletableFuture<>();
+        CompletableFuture<Dimension> result = ready;
+        keyFrameRequested = false;
+        receiverKeyFrameRequests.reset();
+        pendingRung.set(null);
+        isRunning.set(true);
+        standbyExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "encoder-standby");
+            t.setDaemon(true);
+            return t;
+        });
+        for (SimulcastLayer layer : simulcastLayers) {
+            layer.start();
+        }
         executor = Executors.newSingleThreadExecutor();
-        executor.submit(this::captureLoop);
+        executor.submit(() -> captureLoop(result));
+        return result;
     }
     
     /**
@@ -138,141 +466,220 @@ public class ScreenCapture {
         System.out.println("🛑 正在停止屏幕捕获...");
         isRunning.set(false);
         
-        // 等待线程完全退出（最多等待 3 秒）
-        int waitCount = 0;
-        while (executor != null && waitCount < 30) {
-            try {
-                Thread.sleep(100);
-                waitCount++;
-            } catch (InterruptedException e) {
-                System.err.println("⚠️ 等待线程退出时被中断");
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
-        
-        // 强制关闭线程池
+        // 等待采集线程退出当前帧（最多等待 3 秒），超时再强制关闭线程池
         if (executor != null) {
-            executor.shutdownNow();
+            executor.shutdown();
             try {
-                if (!executor.awaitTermination(1, java.util.concurrent.TimeUnit.SECONDS)) {
-                    System.err.println("⚠️ 线程池未能在 1 秒内关闭");
+                if (!executor.awaitTermination(3, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                    if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                        System.err.println("⚠️ 线程池未能在 1 秒内关闭");
+                    }
                 }
             } catch (InterruptedException e) {
                 System.err.println("⚠️ 等待线程池关闭时被中断");
+                executor.shutdownNow();
                 Thread.currentThread().interrupt();
             }
             executor = null;
             System.out.println("✅ 线程池已关闭");
         }
         
-        // 释放 FFmpeg 资源（确保线程已退出）
-        try {
-            if (frame != null) {
-                av_frame_free(frame);
-                frame = null;
-            }
-            if (yuvFrame != null) {
-                av_frame_free(yuvFrame);
-                yuvFrame = null;
-            }
-            if (swsContext != null) {
-                sws_freeContext(swsContext);
-                swsContext = null;
-            }
-            if (codecContext != null) {
-                avcodec_free_context(codecContext);
-                codecContext = null;
+        // 等待后台编码器准备/释放任务结束
+        if (standbyExecutor != null) {
+            standbyExecutor.shutdown();
+            try {
+                standbyExecutor.awaitTermination(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            System.out.println("✅ FFmpeg 资源已释放");
-        } catch (Exception e) {
-            System.err.println("⚠️ 释放 FFmpeg 资源时出错：" + e.getMessage());
+            standbyExecutor = null;
         }
         
-        // 释放 Robot 资源
-        robot = null;
+        // 停止附加编码路
+        for (SimulcastLayer layer : simulcastLayers) {
+            layer.stop();
+        }
+
+        // 释放 FFmpeg 资源（确保线程已退出）
+        if (sourceConverter != null) {
+            sourceConverter.close();
+            sourceConverter = null;
+        }
+        if (encoder != null) {
+            encoder.close();
+            encoder = null;
+        }
+        VideoEncoder standby = standbyEncoder.getAndSet(null);
+        if (standby != null) {
+            standby.close();
+        }
+        System.out.println("✅ FFmpeg 资源已释放");
         System.out.println("✅ 屏幕捕获已完全停止");
     }
     
+    /**
+     * 采集范围：指定的区域，未指定时为主屏幕
+     */
+    private Rectangle captureBounds() {
+        Rectangle region = captureRegion;
+        if (region != null) {
+            return new Rectangle(region);
+        }
+        Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+        return new Rectangle(screenSize.width, screenSize.height);
+    }
+
+    /**
+     * 根据当前设置确定编码分辨率
+     */
+    private Dimension resolveEncodeSize() {
+        if (useNativeResolution) {
+            // 使用屏幕原生分辨率
+            return new Dimension(captureWidth, captureHeight);
+        } else if (targetWidth > 0 && targetHeight > 0) {
+            // 使用指定的目标分辨率
+            return new Dimension(targetWidth, targetHeight);
+        } else if (config != null) {
+            // 使用配置的分辨率
+            return new Dimension(config.getVideoWidth(), config.getVideoHeight());
+        }
+        // 默认使用屏幕分辨率
+        return new Dimension(captureWidth, captureHeight);
+    }
+
     /**
      * 捕获循环
+     *
+     * @param ready 编码器就绪时完成
      */
-    private void captureLoop() {
+    private void captureLoop(CompletableFuture<Dimension> ready) {
         try {
-            // 获取屏幕尺寸
-            Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-            captureWidth = (int) screenSize.getWidth();
-            captureHeight = (int) screenSize.getHeight();
+            // 获取采集区域（指定的显示器或主屏幕）
+            Rectangle screenRect = captureBounds();
+            captureWidth = screenRect.width;
+            captureHeight = screenRect.height;
             
             // 确定编码分辨率
-            if (useNativeResolution) {
-                // 使用屏幕原生分辨率
-                encodeWidth = captureWidth;
-                encodeHeight = captureHeight;
-            } else if (targetWidth > 0 && targetHeight > 0) {
-                // 使用指定的目标分辨率
-                encodeWidth = targetWidth;
-                encodeHeight = targetHeight;
-            } else if (config != null) {
-                // 使用配置的分辨率
-                encodeWidth = config.getVideoWidth();
-                encodeHeight = config.getVideoHeight();
-            } else {
-                // 默认使用屏幕分辨率
-                encodeWidth = captureWidth;
-                encodeHeight = captureHeight;
-            }
-            
-            System.out.println("屏幕分辨率: " + captureWidth + "x" + captureHeight);
+            Dimension encodeSize = resolveEncodeSize();
+            encodeWidth = encodeSize.width;
+            encodeHeight = encodeSize.height;
+
+            System.out.println("屏幕分辨率: " + captureWidth + "x" + captureHeight
+                    + (captureRegion != null ? "（区域 " + screenRect.x + "," + screenRect.y + "）" : ""));
             System.out.println("编码分辨率: " + encodeWidth + "x" + encodeHeight);
+
+            // 正在预热时等它完成，比重新创建更快
+            CompletableFuture<Void> pendingWarmup = warmup;
+            if (pendingWarmup != null) {
+                try {
+                    pendingWarmup.get(2, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    System.err.println("⚠️ 等待预热完成超时，重新初始化");
+                }
+            }
             
-            // 初始化Robot
-            robot = new Robot();
-            Rectangle screenRect = new Rectangle(captureWidth, captureHeight);
+            // 初始化Robot（预热过则直接复用）
+            if (robot == null) {
+                robot = new Robot();
+            }
             
-            // 初始化FFmpeg编码器
-            initializeEncoder(encodeWidth, encodeHeight);
+            // 初始化FFmpeg编码器：参数一致时使用预热好的编码器
+            activeFrameRate = frameRate;
+            qualityLadder = new QualityLadder(encodeWidth, encodeHeight, frameRate);
+            VideoEncoder warm = warmEncoder.getAndSet(null);
+            if (warm != null && warm.getWidth() == encodeWidth && warm.getHeight() == encodeHeight
+                    && warm.getFps() == activeFrameRate
+                    && (warm.supportsBitrateReconfig() || warm.getBitrate() == currentBitrate())) {
+                encoder = warm;
+                bitrateChanged = true;
+                System.out.println("使用预热的编码器");
+            } else {
+                if (warm != null) {
+                    warm.close();
+                }
+                encoder = new VideoEncoder(encodeWidth, encodeHeight, activeFrameRate, currentBitrate());
+            }
+            codecConfig = encoder.getCodecConfig();
+            onlineBitrate = encoder.supportsBitrateReconfig();
+            lastBitrateRebuildAt = Long.MIN_VALUE / 2;
             
-            isRunning.set(true);
             System.out.println("屏幕捕获已启动");
+            ready.complete(new Dimension(encodeWidth, encodeHeight));
             
             long startTime = System.currentTimeMillis();
             int frameCount = 0;
-            long frameInterval = 1000 / frameRate;
             long nextFrameTime = System.currentTimeMillis();
             
             while (isRunning.get()) {
                 long currentTime = System.currentTimeMillis();
+                acceptReceiverKeyFrameRequest(currentTime);
                 
-                if (currentTime >= nextFrameTime) {
+                if (currentTime >= nextFrameTime || keyFrameRequested) {
+                    // 切换到已准备好的备用编码器，应用其他线程选定的档位
+                    swapStandbyEncoder();
+                    QualityLadder.Rung requested = pendingRung.getAndSet(null);
+                    if (requested != null) {
+                        applyRung(requested);
+                    }
+
                     // 捕获屏幕
+                    long t0 = System.nanoTime();
                     BufferedImage screenshot = robot.createScreenCapture(screenRect);
+                    long t1 = System.nanoTime();
+                    captureNanos += t1 - t0;
                     
-                    // 如果需要缩放，进行缩放处理
-                    BufferedImage processedImage = screenshot;
-                    if (captureWidth != encodeWidth || captureHeight != encodeHeight) {
-                        processedImage = resizeImage(screenshot, encodeWidth, encodeHeight);
+                    // 应用运行中修改的码率
+                    applyPendingBitrate();
+                    if (keyFrameRequested) {
+                        keyFrameRequested = false;
+                        encoder.requestKeyFrame();
                     }
                     
                     // 编码并发送
-                    byte[] encodedData = encodeFrame(processedImage);
+                    byte[] encodedData;
+                    if (simulcastLayers.isEmpty()) {
+                        // 如果需要缩放，进行缩放处理
+                        BufferedImage processedImage = screenshot;
+                        if (captureWidth != encoder.getWidth() || captureHeight != encoder.getHeight()) {
+                            processedImage = resizeImage(screenshot, encoder.getWidth(), encoder.getHeight());
+                        }
+                        scaleNanos += System.nanoTime() - t1;
+                        encodedData = encoder.encode(processedImage);
+                    } else {
+                        encodedData = encodeSimulcast(screenshot, t0);
+                    }
+                    convertNanos += encoder.getLastConvertNanos();
+                    encodeNanos += encoder.getLastEncodeNanos();
                     if (encodedData != null && encodedData.length > 0) {
+                        EncodedFrame frame = EncodedFrame.fromAnnexB(encodedData, t0);
                         if (onFrameCaptured != null) {
-                            onFrameCaptured.accept(encodedData);
+                            onFrameCaptured.accept(frame);
+                        }
+                        EgressRing ring = egressRing;
+                        if (ring != null) {
+                            ring.publish(frame, encoder.getWidth(), encoder.getHeight());
                         }
                     }
                     
                     frameCount++;
                     
-                    // 计算帧率
+                    // 计算帧率，并根据负载调整性能档位
                     long elapsed = currentTime - startTime;
                     if (elapsed >= 1000) {
-                        System.out.println("捕获帧率: " + frameCount + " fps");
+                        QualityLadder.Rung next = reportStageTimes(frameCount);
                         frameCount = 0;
                         startTime = currentTime;
+                        if (next != null) {
+                            System.out.println("⚙️ 性能档位切换: " + next);
+                            applyRung(next);
+                            if (onQualityChanged != null) {
+                                onQualityChanged.accept(next);
+                            }
+                        }
                     }
                     
-                    nextFrameTime = currentTime + frameInterval;
+                    nextFrameTime = currentTime + 1000 / activeFrameRate;
                 } else {
                     // 等待下一帧
                     Thread.sleep(1);
@@ -282,11 +689,134 @@ public class ScreenCapture {
         } catch (Exception e) {
             System.err.println("捕获出错: " + e.getMessage());
             e.printStackTrace();
+            ready.completeExceptionally(e);
             if (onError != null) {
                 onError.accept(e);
             }
         } finally {
             isRunning.set(false);
+            ready.completeExceptionally(new IllegalStateException("屏幕捕获已停止"));
+        }
+    }
+
+    /**
+     * 多路编码：整屏只做一次色彩转换，主编码器和各路附加编码从同一帧并行缩放、编码
+     *
+     * 主编码器使用高质量缩放（LANCZOS，与色彩转换一致），附加编码路使用双线性以节省 CPU。
+     * 各路都完成后才返回，下一帧转换时共享的 YUV 帧已不再被读取；等待时间计入负载
+     *
+     * @return 主编码器的输出
+     */
+    private byte[] encodeSimulcast(BufferedImage screenshot, long captureTime) {
+        long t0 = System.nanoTime();
+        if (sourceConverter == null || sourceConverter.getWidth() != screenshot.getWidth()
+                || sourceConverter.getHeight() != screenshot.getHeight()) {
+            if (sourceConverter != null) {
+                sourceConverter.close();
+            }
+            sourceConverter = new YuvConverter(screenshot.getWidth(), screenshot.getHeight());
+        }
+        AVFrame source = sourceConverter.convert(screenshot);
+        convertNanos += System.nanoTime() - t0;
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (SimulcastLayer layer : simulcastLayers) {
+            pending.add(layer.submit(source, captureTime, activeFrameRate));
+        }
+        byte[] encodedData = encoder.encode(source, SWS_LANCZOS);
+        long t1 = System.nanoTime();
+        for (CompletableFuture<Void> layerDone : pending) {
+            layerDone.join();
+        }
+        simulcastWaitNanos += System.nanoTime() - t1;
+        return encodedData;
+    }
+
+    /**
+     * 采集线程：间隔允许时把接收端的关键帧请求（可能已合并多次）转成一次IDR
+     */
+    private void acceptReceiverKeyFrameRequest(long now) {
+        int merged = receiverKeyFrameRequests.poll(now);
+        if (merged == 0) {
+            return;
+        }
+        keyFrameRequested = true;
+        System.out.println("响应接收端关键帧请求" + (merged > 1 ? "（合并 " + merged + " 次）" : ""));
+    }
+
+    /**
+     * 采集线程：应用一个档位，分辨率不变时只改采集帧率，分辨率变化时准备备用编码器
+     */
+    private void applyRung(QualityLadder.Rung rung) {
+        if (rung.getWidth() == encodeWidth && rung.getHeight() == encodeHeight) {
+            if (rung.getFps() != activeFrameRate) {
+                activeFrameRate = rung.getFps();
+                bitrateChanged = true;
+                System.out.println("采集帧率已调整: " + activeFrameRate + "fps");
+                notifyFormatChanged();
+            }
+            return;
+        }
+        prepareStandbyEncoder(rung.getWidth(), rung.getHeight(), rung.getFps(),
+                currentBitrate(rung.getWidth(), rung.getHeight()));
+    }
+
+    /**
+     * 在后台线程准备备用编码器，准备好后由采集线程在下一帧切换
+     */
+    private void prepareStandbyEncoder(int width, int height, int fps, int bitrate) {
+        ExecutorService background = standbyExecutor;
+        if (background == null) {
+            return;
+        }
+        standbyPreparing.incrementAndGet();
+        background.submit(() -> {
+            try {
+                long t0 = System.nanoTime();
+                VideoEncoder prepared = new VideoEncoder(width, height, fps, bitrate);
+                VideoEncoder replaced = standbyEncoder.getAndSet(prepared);
+                if (replaced != null) {
+                    replaced.close();
+                }
+                System.out.println("备用编码器已就绪: " + width + "x" + height + "@" + fps + "fps，耗时 "
+                        + (System.nanoTime() - t0) / 1_000_000 + "ms");
+            } catch (Exception e) {
+                System.err.println("准备备用编码器失败: " + e.getMessage());
+            } finally {
+                standbyPreparing.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * 采集线程：把备用编码器换成当前编码器，旧编码器交给后台线程释放
+     */
+    private void swapStandbyEncoder() {
+        VideoEncoder next = standbyEncoder.getAndSet(null);
+        if (next == null) {
+            return;
+        }
+        VideoEncoder previous = encoder;
+        encoder = next;
+        encodeWidth = next.getWidth();
+        encodeHeight = next.getHeight();
+        activeFrameRate = next.getFps();
+        codecConfig = next.getCodecConfig();
+        bitrateChanged = true;
+        System.out.println("已切换到新编码器: " + encodeWidth + "x" + encodeHeight + "@" + activeFrameRate + "fps");
+        notifyFormatChanged();
+
+        ExecutorService background = standbyExecutor;
+        if (background != null) {
+            background.submit(previous::close);
+        } else {
+            previous.close();
+        }
+    }
+
+    private void notifyFormatChanged() {
+        if (onFormatChanged != null) {
+            onFormatChanged.onFormatChanged(encodeWidth, encodeHeight, activeFrameRate, codecConfig);
         }
     }
     
@@ -304,66 +834,78 @@ public class ScreenCapture {
     }
     
     /**
-     * 初始化H.264编码器
+     * 输出最近一秒的帧率和各阶段耗时，并把负载报告给性能档位
+     *
+     * @return 需要切换到的档位，不需要切换时返回 null
+     */
+    private QualityLadder.Rung reportStageTimes(int frames) {
+        int n = Math.max(1, frames);
+        double captureMs = captureNanos / 1e6 / n;
+        double scaleMs = scaleNanos / 1e6 / n;
+        double convertMs = convertNanos / 1e6 / n;
+        double encodeMs = encodeNanos / 1e6 / n;
+        double simulcastMs = simulcastWaitNanos / 1e6 / n;
+        captureNanos = scaleNanos = convertNanos = encodeNanos = simulcastWaitNanos = 0;
+
+        double budgetMs = 1000.0 / activeFrameRate;
+        double load = (captureMs + scaleMs + convertMs + encodeMs + simulcastMs) / budgetMs;
+        System.out.println(String.format(
+            "捕获帧率: %d fps | 采集 %.1fms 缩放 %.1fms 转换 %.1fms 编码 %.1fms%s | 负载 %.0f%% | 档位 %s",
+            frames, captureMs, scaleMs, convertMs, encodeMs,
+            simulcastLayers.isEmpty() ? "" : String.format(" 等待多路 %.1fms", simulcastMs),
+            load * 100, qualityLadder.current()));
+        return qualityLadder.onLoadSample(load);
+    }
+
+    /**
+     * 将运行中修改的码率/帧率应用到编码器
+     *
+     * x264 不支持在线修改帧率；采集帧率低于编码器标称帧率时，
+     * 按比例换算码率，保持实际输出码率不变。
+     * 编码器不支持在线修改码率（如 libopenh264）时，以新码率准备同尺寸的备用编码器切换。
+     * 重建会强制 IDR，拥塞时反而加重排队，因此只响应较大的变化并限制重建频率，间隔未到时保留待处理的码率
      */
-    private void initializeEncoder(int width, int height) throws Exception {
-        // 查找H.264编码器
-        AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_H264);
-        if (codec == null) {
-            throw new RuntimeException("找不到H.264编码器");
+    private void applyPendingBitrate() {
+        if (!bitrateChanged || encoder == null) {
+            return;
         }
-        
-        // 创建编码器上下文
-        codecContext = avcodec_alloc_context3(codec);
-        if (codecContext == null) {
-            throw new RuntimeException("无法创建编码器上下文");
+        int bitrate = (int) Math.min(Integer.MAX_VALUE, (long) currentBitrate() * encoder.getFps() / activeFrameRate);
+        if (encoder.supportsBitrateReconfig()) {
+            bitrateChanged = false;
+            if (encoder.setBitrate(bitrate)) {
+                System.out.println("编码码率已调整: " + String.format("%.1f", bitrate / 1000000.0) + "Mbps");
+            }
+            return;
         }
         
-        // 使用设置的码率，如果没有设置则根据分辨率自适应
-        int bitrate = videoBitrate > 0 ? videoBitrate : calculateBitrate(width, height);
-
-        // 设置编码参数
-        codecContext.width(width);
-        codecContext.height(height);
-        codecContext.time_base(av_make_q(1, frameRate));
-        codecContext.framerate(av_make_q(frameRate, 1));
-        codecContext.pix_fmt(AV_PIX_FMT_YUV420P);
-        codecContext.bit_rate(bitrate);
-        codecContext.gop_size(frameRate * 1);  // 0.5秒一个关键帧，进一步减少延迟
-        codecContext.max_b_frames(0);  // 不使用B帧，降低延迟
-        
-        // 设置编码器选项 - 优先低延迟
-        av_opt_set(codecContext.priv_data(), "preset", "ultrafast", 0);  // 快速编码，降低延迟
-        av_opt_set(codecContext.priv_data(), "tune", "zerolatency", 0);  // 零延迟优化
-        av_opt_set(codecContext.priv_data(), "profile", "baseline", 0);  // Baseline Profile 降低延迟
-        
-        // 打开编码器
-        int ret = avcodec_open2(codecContext, codec, (org.bytedeco.ffmpeg.avutil.AVDictionary) null);
-        if (ret < 0) {
-            throw new RuntimeException("无法打开编码器: " + ret);
+        // 已有备用编码器在准备或等待切换，切换后再比较
+        if (standbyPreparing.get() > 0 || standbyEncoder.get() != null) {
+            return;
         }
+        if (Math.abs(bitrate - encoder.getBitrate()) < encoder.getBitrate() * BITRATE_REBUILD_MIN_STEP) {
+            bitrateChanged = false;
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastBitrateRebuildAt < BITRATE_REBUILD_INTERVAL_MS) {
+            return;
+        }
+        bitrateChanged = false;
+        lastBitrateRebuildAt = now;
+        System.out.println("编码器不支持在线调整码率，重建编码器: "
+                + String.format("%.1f", bitrate / 1000000.0) + "Mbps");
+        prepareStandbyEncoder(encoder.getWidth(), encoder.getHeight(), encoder.getFps(), bitrate);
+    }
         
-        // 创建转换上下文 (RGB -> YUV420P) - 使用高质量缩放
-        swsContext = sws_getContext(
-            width, height, AV_PIX_FMT_RGB24,
-            width, height, AV_PIX_FMT_YUV420P,
-            SWS_LANCZOS, null, null, (double[]) null
-        );
-        
-        // 创建帧
-        frame = av_frame_alloc();
-        frame.width(width);
-        frame.height(height);
-        frame.format(AV_PIX_FMT_RGB24);
-        av_frame_get_buffer(frame, 0);
-        
-        yuvFrame = av_frame_alloc();
-        yuvFrame.width(width);
-        yuvFrame.height(height);
-        yuvFrame.format(AV_PIX_FMT_YUV420P);
-        av_frame_get_buffer(yuvFrame, 0);
-        
-        System.out.println("H.264编码器已初始化: " + width + "x" + height + " @ " + (bitrate / 1000000) + "Mbps");
+    private int currentBitrate() {
+        return currentBitrate(encodeWidth, encodeHeight);
+    }
+
+    /**
+     * 使用设置的码率，如果没有设置则根据分辨率自适应
+     */
+    private int currentBitrate(int width, int height) {
+        return videoBitrate > 0 ? videoBitrate : calculateBitrate(width, height);
     }
     
     /**
@@ -391,79 +933,47 @@ public class ScreenCapture {
     }
     
     /**
-     * 编码帧
+     * 检查是否正在运行
      */
-    private byte[] encodeFrame(BufferedImage image) {
-        try {
-            int width = image.getWidth();
-            int height = image.getHeight();
-            
-            // 获取RGB数据
-            int[] rgbData = image.getRGB(0, 0, width, height, null, 0, width);
-            
-            // 填充RGB帧
-            byte[] rgbBytes = new byte[width * height * 3];
-            for (int i = 0; i < rgbData.length; i++) {
-                int pixel = rgbData[i];
-                rgbBytes[i * 3] = (byte) ((pixel >> 16) & 0xFF);     // R
-                rgbBytes[i * 3 + 1] = (byte) ((pixel >> 8) & 0xFF);  // G
-                rgbBytes[i * 3 + 2] = (byte) (pixel & 0xFF);         // B
-            }
-            
-            // 将RGB数据复制到AVFrame
-            org.bytedeco.javacpp.BytePointer frameData = new org.bytedeco.javacpp.BytePointer(rgbBytes);
-            av_image_fill_arrays(frame.data(), frame.linesize(), frameData, AV_PIX_FMT_RGB24, width, height, 1);
-            
-            // 转换到YUV420P
-            sws_scale(swsContext, frame.data(), frame.linesize(), 0, height, yuvFrame.data(), yuvFrame.linesize());
-            
-            // 设置帧时间戳
-            yuvFrame.pts(av_rescale_q(codecContext.frame_number(), codecContext.time_base(), codecContext.time_base()));
-            
-            // 发送帧到编码器
-            int ret = avcodec_send_frame(codecContext, yuvFrame);
-            if (ret < 0) {
-                System.err.println("发送帧到编码器失败: " + ret);
-                return null;
-            }
-            
-            // 接收编码后的数据
-            AVPacket packet = av_packet_alloc();
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            
-            while (ret >= 0) {
-                ret = avcodec_receive_packet(codecContext, packet);
-                if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF()) {
-                    break;
-                } else if (ret < 0) {
-                    System.err.println("编码失败: " + ret);
-                    break;
-                }
-                
-                // 复制编码数据
-                byte[] data = new byte[packet.size()];
-                packet.data().get(data);
-                outputStream.write(data);
-                
-                av_packet_unref(packet);
-            }
-            
-            av_packet_free(packet);
-            
-            return outputStream.toByteArray();
-            
-        } catch (Exception e) {
-            System.err.println("编码帧失败: " + e.getMessage());
-            e.printStackTrace();
+    public boolean isRunning() {
+        return isRunning.get();
+    }
+
+    /**
+     * 获取当前编码器的 SPS/PPS（Annex B 格式），未启动或编码器未提供时返回 null
+     */
+    public byte[] getCodecConfig() {
+        return codecConfig;
+    }
+
+    /**
+     * 按可用码率限制性能档位（投屏前带宽探测后调用），需要降分辨率时在后台准备备用编码器
+     *
+     * @param bitrate 可用码率（bit/s）
+     * @return 限制后的档位，未运行时返回 null
+     */
+    public synchronized QualityLadder.Rung limitQualityToBitrate(int bitrate) {
+        QualityLadder ladder = qualityLadder;
+        if (ladder == null || !isRunning.get()) {
             return null;
         }
+        QualityLadder.Rung next = ladder.limitToBitrate(bitrate);
+        if (next != null) {
+            System.out.println("⚙️ 性能档位按带宽限制为: " + next);
+            pendingRung.set(next);
+            if (onQualityChanged != null) {
+                onQualityChanged.accept(next);
+            }
+        }
+        return ladder.current();
     }
-    
+
     /**
-     * 检查是否正在运行
+     * 获取当前性能档位
      */
-    public boolean isRunning() {
-        return isRunning.get();
+    public QualityLadder.Rung getQualityRung() {
+        QualityLadder ladder = qualityLadder;
+        return ladder != null ? ladder.current() : null;
     }
     
     /**
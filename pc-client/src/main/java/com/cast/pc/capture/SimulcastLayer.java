@@ -0,0 +1,221 @@
+package com.cast.pc.capture;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 多路编码（simulcast）中的一路附加编码：与主编码器共用采集和色彩转换，以自己的分辨率和码率编码
+ *
+ * 通过 {@link ScreenCapture#addSimulcastLayer} 创建。采集线程把整屏转换成 YUV420P 后，
+ * 主编码器和各路附加编码并行地从同一帧缩放、编码，每路在自己的线程上运行，占用不同的 CPU 核。
+ * 各路有独立的关键帧请求和格式通知，输出帧在该路线程上回调，接收端按能力订阅其中一路。
+ * 编码器在开始采集后的第一帧时创建，停止采集时释放；性能档位改变采集帧率时随之调整。
+ */
+public class SimulcastLayer {
+
+    // 接收端请求的IDR 两次之间的最小间隔，与主编码一致
+    private static final long RECEIVER_KEY_FRAME_INTERVAL_MS = 500;
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int bitrate;
+
+    // 编码线程，开始采集时创建
+    private ExecutorService executor;
+    // 编码器及其当前跟随的采集帧率（仅编码线程使用）
+    private VideoEncoder encoder;
+    private int activeFps;
+    private volatile byte[] codecConfig;
+    private volatile boolean keyFrameRequested = false;
+    private final AtomicInteger receiverKeyFrameRequests = new AtomicInteger();
+    private long lastReceiverKeyFrameAt;
+
+    private Consumer<EncodedFrame> onFrameCaptured;
+    private ScreenCapture.FormatListener onFormatChanged;
+
+    SimulcastLayer(String name, int width, int height, int bitrate) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * 设置帧编码完成回调（在该路编码线程上调用）
+     */
+    public void setOnFrameCaptured(Consumer<EncodedFrame> callback) {
+        this.onFrameCaptured = callback;
+    }
+
+    /**
+     * 设置格式通知回调：编码器创建后、第一帧发出之前调用
+     */
+    public void setOnFormatChanged(ScreenCapture.FormatListener listener) {
+        this.onFormatChanged = listener;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * 编码器的 SPS/PPS，编码器未创建时为 null
+     */
+    public byte[] getCodecConfig() {
+        return codecConfig;
+    }
+
+    /**
+     * 下一帧编码为IDR（如接收端刚加入而 GOP 缓存不可用）
+     */
+    public void requestKeyFrame() {
+        keyFrameRequested = true;
+    }
+
+    /**
+     * 接收端请求关键帧：合并短时间内的多次请求，两次之间至少间隔 {@value #RECEIVER_KEY_FRAME_INTERVAL_MS}ms
+     */
+    public void requestKeyFrameFromReceiver() {
+        receiverKeyFrameRequests.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return name + "（" + width + "x" + height + " " + String.format("%.1f", bitrate / 1000000.0) + "Mbps）";
+    }
+
+    /**
+     * 采集线程：开始采集时创建编码线程
+     */
+    synchronized void start() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "simulcast-" + name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 在该路线程上缩放并编码一帧
+     *
+     * @param source       整屏 YUV420P 帧，返回的 Future 完成前调用方不得修改或释放
+     * @param captureNanos 采集时间
+     * @param fps          当前采集帧率（变化时编码器随之调整）
+     * @return 编码完成（或失败）时完成
+     */
+    synchronized CompletableFuture<Void> submit(AVFrame source, long captureNanos, int fps) {
+        if (executor == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> encode(source, captureNanos, fps), executor);
+    }
+
+    private void encode(AVFrame source, long captureNanos, int fps) {
+        try {
+            if (encoder == null) {
+                encoder = new VideoEncoder(width, height, fps, bitrate);
+                activeFps = fps;
+                codecConfig = encoder.getCodecConfig();
+                notifyFormatChanged();
+            } else if (fps != activeFps) {
+                applyFrameRate(fps);
+            }
+            acceptReceiverKeyFrameRequest(System.currentTimeMillis());
+            if (keyFrameRequested) {
+                keyFrameRequested = false;
+                encoder.requestKeyFrame();
+            }
+            byte[] encodedData = encoder.encode(source);
+            if (encodedData != null && encodedData.length > 0 && onFrameCaptured != null) {
+                onFrameCaptured.accept(EncodedFrame.fromAnnexB(encodedData, captureNanos));
+            }
+        } catch (Exception e) {
+            System.err.println("多路编码 " + name + " 出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 编码线程：跟随采集帧率的变化
+     *
+     * 与主编码器一致，x264 保留编码器、按比例换算码率使实际输出码率不变；
+     * 不支持在线调整码率的编码器以新帧率重建
+     */
+    private void applyFrameRate(int fps) {
+        activeFps = fps;
+        if (encoder.supportsBitrateReconfig()) {
+            encoder.setBitrate((int) Math.min(Integer.MAX_VALUE, (long) bitrate * encoder.getFps() / fps));
+        } else {
+            VideoEncoder previous = encoder;
+            encoder = null;
+            previous.close();
+            encoder = new VideoEncoder(width, height, fps, bitrate);
+            codecConfig = encoder.getCodecConfig();
+        }
+        System.out.println("多路编码 " + name + " 帧率已调整: " + fps + "fps");
+        notifyFormatChanged();
+    }
+
+    private void notifyFormatChanged() {
+        if (onFormatChanged != null) {
+            onFormatChanged.onFormatChanged(width, height, activeFps, codecConfig);
+        }
+    }
+
+    private void acceptReceiverKeyFrameRequest(long now) {
+        if (receiverKeyFrameRequests.get() == 0 || now - lastReceiverKeyFrameAt < RECEIVER_KEY_FRAME_INTERVAL_MS) {
+            return;
+        }
+        receiverKeyFrameRequests.set(0);
+        lastReceiverKeyFrameAt = now;
+        keyFrameRequested = true;
+    }
+
+    /**
+     * 停止采集时调用：等待编码线程结束并释放编码器
+     */
+    synchronized void stop() {
+        ExecutorService background = executor;
+        executor = null;
+        if (background == null) {
+            return;
+        }
+        background.submit(() -> {
+            if (encoder != null) {
+                encoder.close();
+                encoder = null;
+            }
+            codecConfig = null;
+        });
+        background.shutdown();
+        try {
+            if (!background.awaitTermination(2, TimeUnit.SECONDS)) {
+                System.err.println("⚠️ 多路编码 " + name + " 未能在 2 秒内停止");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        keyFrameRequested = false;
+        receiverKeyFrameRequests.set(0);
+    }
+}
@@ -0,0 +1,362 @@
+package com.cast.pc.capture;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * H.264 编码器（FFmpeg libx264）
+ *
+ * 封装一组编码资源：编码器上下文、色彩转换上下文和输入帧。
+ * 同一时刻只能被一个线程使用；可以在后台线程创建好后交给采集线程使用（备用编码器）。
+ * 输入可以是与编码器同尺寸的 RGB 图像（{@link #encode(BufferedImage)}），
+ * 也可以是任意尺寸的 YUV420P 帧（{@link #encode(AVFrame)}，多路编码共用一次色彩转换）。
+ *
+ * 编码器以全局头方式打开，SPS/PPS 在 avcodec_open2 之后从 extradata 取出缓存（{@link #getCodecConfig()}），
+ * 用于握手时提前配置TV端解码器；同时补到每个关键帧前，保证流内也能独立解码。
+ */
+class VideoEncoder {
+
+    private final int width;
+    private final int height;
+    private final int fps;
+    private int bitrate;
+    // 编码器名称（libx264 / libopenh264 等，取决于 FFmpeg 构建）
+    private String codecName;
+    // SPS/PPS（Annex B 格式），编码器未提供时为 null
+    private byte[] codecConfig;
+
+    private AVCodecContext codecContext;
+    // RGB 输入的色彩转换（首次使用时创建）
+    private YuvConverter converter;
+    // YUV 输入的缩放上下文及其源尺寸、算法（首次使用时创建，源尺寸或算法变化时重建）
+    private SwsContext scaleContext;
+    private int scaleSourceWidth;
+    private int scaleSourceHeight;
+    private int scaleFlags;
+    // YUV 输入缩放后的帧
+    private AVFrame yuvFrame;
+    private long frameIndex = 0;
+    // 下一帧强制编码为IDR
+    private boolean keyFrameRequested = false;
+
+    // 最近一次编码的各阶段耗时（纳秒）
+    private long lastConvertNanos;
+    private long lastEncodeNanos;
+
+    /**
+     * 创建并打开编码器
+     *
+     * @param bitrate 码率（bit/s）
+     */
+    VideoEncoder(int width, int height, int fps, int bitrate) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.bitrate = bitrate;
+        try {
+            open(bitrate);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 初始化H.264编码器
+     */
+    private void open(int bitrate) {
+        // 查找H.264编码器
+        AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_H264);
+        if (codec == null) {
+            throw new RuntimeException("找不到H.264编码器");
+        }
+        codecName = codec.name().getString();
+
+        // 创建编码器上下文
+        codecContext = avcodec_alloc_context3(codec);
+        if (codecContext == null) {
+            throw new RuntimeException("无法创建编码器上下文");
+        }
+
+        // 设置编码参数
+        codecContext.width(width);
+        codecContext.height(height);
+        codecContext.time_base(av_make_q(1, fps));
+        codecContext.framerate(av_make_q(fps, 1));
+        codecContext.pix_fmt(AV_PIX_FMT_YUV420P);
+        codecContext.bit_rate(bitrate);
+        codecContext.rc_max_rate(bitrate);       // 开启VBV，码率可在线调整
+        codecContext.rc_buffer_size(bitrate / 2);
+        codecContext.gop_size(fps * 1);  // 0.5秒一个关键帧，进一步减少延迟
+        codecContext.max_b_frames(0);  // 不使用B帧，降低延迟
+        codecContext.flags(codecContext.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);  // SPS/PPS 输出到 extradata
+
+        // 设置编码器选项 - 优先低延迟
+        av_opt_set(codecContext.priv_data(), "preset", "ultrafast", 0);  // 快速编码，降低延迟
+        av_opt_set(codecContext.priv_data(), "tune", "zerolatency", 0);  // 零延迟优化
+        av_opt_set(codecContext.priv_data(), "profile", "baseline", 0);  // Baseline Profile 降低延迟
+        av_opt_set(codecContext.priv_data(), "forced-idr", "1", 0);      // 强制关键帧编码为IDR
+
+        // 打开编码器
+        int ret = avcodec_open2(codecContext, codec, (org.bytedeco.ffmpeg.avutil.AVDictionary) null);
+        if (ret < 0) {
+            throw new RuntimeException("无法打开编码器: " + ret);
+        }
+
+        // 缓存编码器配置（SPS/PPS）
+        int extradataSize = codecContext.extradata_size();
+        if (codecContext.extradata() != null && extradataSize > 0) {
+            codecConfig = new byte[extradataSize];
+            codecContext.extradata().get(codecConfig);
+        }
+
+        // 创建帧
+        yuvFrame = av_frame_alloc();
+        yuvFrame.width(width);
+        yuvFrame.height(height);
+        yuvFrame.format(AV_PIX_FMT_YUV420P);
+        av_frame_get_buffer(yuvFrame, 0);
+
+        System.out.println("H.264编码器已初始化（" + codecName + "）: " + width + "x" + height + " @ " + fps + "fps, "
+                + (bitrate / 1000000) + "Mbps");
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getFps() {
+        return fps;
+    }
+
+    int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * 编码器配置（SPS/PPS，Annex B 格式），编码器未提供时返回 null
+     */
+    byte[] getCodecConfig() {
+        return codecConfig;
+    }
+
+    /**
+     * 是否支持在线修改码率
+     *
+     * 只有 libx264 会在送帧时检测码率变化并重配置；libopenh264 等只在打开时读取码率，
+     * 需要重建编码器才能生效
+     */
+    boolean supportsBitrateReconfig() {
+        return "libx264".equals(codecName);
+    }
+
+    long getLastConvertNanos() {
+        return lastConvertNanos;
+    }
+
+    long getLastEncodeNanos() {
+        return lastEncodeNanos;
+    }
+
+    /**
+     * 在线修改码率
+     *
+     * libx264 在每次送帧时比较 bit_rate / rc_max_rate / rc_buffer_size，
+     * 发现变化会调用 x264_encoder_reconfig，因此只需修改上下文参数
+     *
+     * @return 码率是否发生变化
+     */
+    boolean setBitrate(int bitrate) {
+        if (codecContext == null || codecContext.bit_rate() == bitrate) {
+            return false;
+        }
+        this.bitrate = bitrate;
+        codecContext.bit_rate(bitrate);
+        codecContext.rc_max_rate(bitrate);
+        codecContext.rc_buffer_size(bitrate / 2);
+        return true;
+    }
+
+    /**
+     * 请求下一帧编码为IDR关键帧
+     */
+    void requestKeyFrame() {
+        keyFrameRequested = true;
+    }
+
+    /**
+     * 编码帧
+     *
+     * @param image 与编码器同尺寸的图像
+     * @return Annex B 格式的 H.264 数据，失败返回 null
+     */
+    byte[] encode(BufferedImage image) {
+        try {
+            long t0 = System.nanoTime();
+            if (converter == null) {
+                converter = new YuvConverter(width, height);
+            }
+            AVFrame converted = converter.convert(image);
+            lastConvertNanos = System.nanoTime() - t0;
+            return encodeFrame(converted);
+        } catch (Exception e) {
+            System.err.println("编码帧失败: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 编码一帧已转换好的 YUV420P 图像，以双线性缩放到编码器尺寸后编码
+     *
+     * @see #encode(AVFrame, int)
+     */
+    byte[] encode(AVFrame source) {
+        return encode(source, SWS_BILINEAR);
+    }
+
+    /**
+     * 编码一帧已转换好的 YUV420P 图像，缩放到编码器尺寸后编码
+     *
+     * 源帧只读，可以同时交给多个编码器（各自在自己的线程上）
+     *
+     * @param source 任意尺寸的 YUV420P 帧
+     * @param flags  缩放算法（SWS_BILINEAR、SWS_LANCZOS 等）
+     * @return Annex B 格式的 H.264 数据，失败返回 null
+     */
+    byte[] encode(AVFrame source, int flags) {
+        try {
+            long t0 = System.nanoTime();
+            if (scaleContext == null || scaleSourceWidth != source.width() || scaleSourceHeight != source.height()
+                    || scaleFlags != flags) {
+                if (scaleContext != null) {
+                    sws_freeContext(scaleContext);
+                }
+                scaleSourceWidth = source.width();
+                scaleSourceHeight = source.height();
+                scaleFlags = flags;
+                scaleContext = sws_getContext(
+                    scaleSourceWidth, scaleSourceHeight, AV_PIX_FMT_YUV420P,
+                    width, height, AV_PIX_FMT_YUV420P,
+                    flags, null, null, (double[]) null
+                );
+                if (scaleContext == null) {
+                    throw new RuntimeException("无法创建缩放上下文");
+                }
+            }
+            sws_scale(scaleContext, source.data(), source.linesize(), 0, scaleSourceHeight,
+                    yuvFrame.data(), yuvFrame.linesize());
+            lastConvertNanos = System.nanoTime() - t0;
+            return encodeFrame(yuvFrame);
+        } catch (Exception e) {
+            System.err.println("编码帧失败: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 把一帧编码器尺寸的 YUV420P 图像送入编码器并取出编码数据
+     */
+    private byte[] encodeFrame(AVFrame input) throws IOException {
+        long t1 = System.nanoTime();
+
+        // 设置帧时间戳
+        input.pts(frameIndex++);
+        input.pict_type(keyFrameRequested ? AV_PICTURE_TYPE_I : AV_PICTURE_TYPE_NONE);
+        keyFrameRequested = false;
+
+        // 发送帧到编码器
+        int ret = avcodec_send_frame(codecContext, input);
+        if (ret < 0) {
+            System.err.println("发送帧到编码器失败: " + ret);
+            return null;
+        }
+
+        // 接收编码后的数据
+        AVPacket packet = av_packet_alloc();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        while (ret >= 0) {
+            ret = avcodec_receive_packet(codecContext, packet);
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF()) {
+                break;
+            } else if (ret < 0) {
+                System.err.println("编码失败: " + ret);
+                break;
+            }
+
+            // 复制编码数据
+            byte[] data = new byte[packet.size()];
+            packet.data().get(data);
+            // 全局头模式下关键帧不一定自带 SPS/PPS，补上缓存的配置
+            if ((packet.flags() & AV_PKT_FLAG_KEY) != 0 && codecConfig != null && !containsNal(data, 7)) {
+                outputStream.write(codecConfig);
+            }
+            outputStream.write(data);
+
+            av_packet_unref(packet);
+        }
+
+        av_packet_free(packet);
+        lastEncodeNanos = System.nanoTime() - t1;
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * 检查 Annex B 数据中是否包含指定类型的 NAL 单元
+     */
+    private static boolean containsNal(byte[] data, int nalType) {
+        for (int i = 0; i + 3 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                if ((data[i + 3] & 0x1F) == nalType) {
+                    return true;
+                }
+                i += 2;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 释放编码器相关的 FFmpeg 资源
+     */
+    void close() {
+        try {
+            if (converter != null) {
+                converter.close();
+                converter = null;
+            }
+            if (yuvFrame != null) {
+                av_frame_free(yuvFrame);
+                yuvFrame = null;
+            }
+            if (scaleContext != null) {
+                sws_freeContext(scaleContext);
+                scaleContext = null;
+            }
+            if (codecContext != null) {
+                avcodec_free_context(codecContext);
+                codecContext = null;
+            }
+        } catch (Exception e) {
+            System.err.println("⚠️ 释放 FFmpeg 资源时出错：" + e.getMessage());
+        }
+    }
+}
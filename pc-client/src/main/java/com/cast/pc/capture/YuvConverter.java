@@ -0,0 +1,112 @@
+package com.cast.pc.capture;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.BytePointer;
+
+import java.awt.image.BufferedImage;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * 色彩转换：把采集到的 RGB 图像转换为同尺寸的 YUV420P 帧
+ *
+ * 编码器用它转换自己尺寸的图像；多路编码（{@link SimulcastLayer}）时采集线程用它把整屏只转换一次，
+ * 各路编码器再从这一帧缩放到各自的分辨率（{@link VideoEncoder#encode(AVFrame)}）。
+ * 同一时刻只能被一个线程使用。
+ */
+class YuvConverter {
+
+    private final int width;
+    private final int height;
+
+    private SwsContext swsContext;
+    private AVFrame rgbFrame;
+    private AVFrame yuvFrame;
+
+    YuvConverter(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        // 创建转换上下文 (RGB -> YUV420P) - 使用高质量缩放
+        swsContext = sws_getContext(
+            width, height, AV_PIX_FMT_RGB24,
+            width, height, AV_PIX_FMT_YUV420P,
+            SWS_LANCZOS, null, null, (double[]) null
+        );
+        if (swsContext == null) {
+            throw new RuntimeException("无法创建色彩转换上下文");
+        }
+
+        rgbFrame = av_frame_alloc();
+        rgbFrame.width(width);
+        rgbFrame.height(height);
+        rgbFrame.format(AV_PIX_FMT_RGB24);
+        av_frame_get_buffer(rgbFrame, 0);
+
+        yuvFrame = av_frame_alloc();
+        yuvFrame.width(width);
+        yuvFrame.height(height);
+        yuvFrame.format(AV_PIX_FMT_YUV420P);
+        av_frame_get_buffer(yuvFrame, 0);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * 转换一帧
+     *
+     * @param image 与转换器同尺寸的图像
+     * @return YUV420P 帧，内容在下一次转换前有效，调用方不得释放
+     */
+    AVFrame convert(BufferedImage image) {
+        // 获取RGB数据
+        int[] rgbData = image.getRGB(0, 0, width, height, null, 0, width);
+
+        // 填充RGB帧
+        byte[] rgbBytes = new byte[width * height * 3];
+        for (int i = 0; i < rgbData.length; i++) {
+            int pixel = rgbData[i];
+            rgbBytes[i * 3] = (byte) ((pixel >> 16) & 0xFF);     // R
+            rgbBytes[i * 3 + 1] = (byte) ((pixel >> 8) & 0xFF);  // G
+            rgbBytes[i * 3 + 2] = (byte) (pixel & 0xFF);         // B
+        }
+
+        // 将RGB数据复制到AVFrame
+        BytePointer frameData = new BytePointer(rgbBytes);
+        try {
+            av_image_fill_arrays(rgbFrame.data(), rgbFrame.linesize(), frameData, AV_PIX_FMT_RGB24, width, height, 1);
+
+            // 转换到YUV420P
+            sws_scale(swsContext, rgbFrame.data(), rgbFrame.linesize(), 0, height, yuvFrame.data(), yuvFrame.linesize());
+        } finally {
+            frameData.close();
+        }
+        return yuvFrame;
+    }
+
+    /**
+     * 释放 FFmpeg 资源
+     */
+    void close() {
+        if (rgbFrame != null) {
+            av_frame_free(rgbFrame);
+            rgbFrame = null;
+        }
+        if (yuvFrame != null) {
+            av_frame_free(yuvFrame);
+            yuvFrame = null;
+        }
+        if (swsContext != null) {
+            sws_freeContext(swsContext);
+            swsContext = null;
+        }
+    }
+}
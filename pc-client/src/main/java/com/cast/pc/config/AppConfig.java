@@ -2,6 +2,8 @@ package com.cast.pc.config;
 
 import java.io.*;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -24,6 +26,17 @@ public class AppConfig {
     private static final String DEFAULT_HEIGHT = "1080";
     private static final String DEFAULT_SERVER_PORT = "8888";
     private static final String DEFAULT_NETWORK_SEGMENT = "";  // 空表示广播模式
+    private static final String DEFAULT_PACING = "true";
+    private static final String DEFAULT_TRANSPORT = "tcp";
+    private static final String DEFAULT_FEC_PERCENT = "10";
+    private static final String DEFAULT_WEB_VIEWER = "false";
+    private static final String DEFAULT_WEB_VIEWER_PORT = "8080";
+    private static final String DEFAULT_EGRESS_RING_FILE = "";  // 空表示不输出
+    private static final String DEFAULT_EGRESS_RING_SIZE_MB = "32";
+    private static final String DEFAULT_RECORD_DIR = "";  // 空表示不录制
+    private static final String DEFAULT_RECORD_FORMAT = "mp4";
+    // 记住的最近投屏设备数
+    private static final int MAX_RECENT_DEVICES = 3;
     
     public AppConfig() {
         properties = new Properties();
@@ -83,6 +96,15 @@ public class AppConfig {
         properties.setProperty("server.port", DEFAULT_SERVER_PORT);
         properties.setProperty("network.segment", DEFAULT_NETWORK_SEGMENT);
         properties.setProperty("network.use_broadcast", "true");
+        properties.setProperty("network.pacing", DEFAULT_PACING);
+        properties.setProperty("network.transport", DEFAULT_TRANSPORT);
+        properties.setProperty("network.fec_percent", DEFAULT_FEC_PERCENT);
+        properties.setProperty("web.viewer_enabled", DEFAULT_WEB_VIEWER);
+        properties.setProperty("web.viewer_port", DEFAULT_WEB_VIEWER_PORT);
+        properties.setProperty("egress.ring_file", DEFAULT_EGRESS_RING_FILE);
+        properties.setProperty("egress.ring_size_mb", DEFAULT_EGRESS_RING_SIZE_MB);
+        properties.setProperty("record.dir", DEFAULT_RECORD_DIR);
+        properties.setProperty("record.format", DEFAULT_RECORD_FORMAT);
     }
     
     // ==================== 视频配置 ====================
@@ -168,6 +190,178 @@ public class AppConfig {
         }
     }
     
+    /**
+     * 是否启用发送节奏控制（把大帧分散在帧间隔内发送）
+     */
+    public boolean isPacingEnabled() {
+        return "true".equalsIgnoreCase(properties.getProperty("network.pacing", DEFAULT_PACING));
+    }
+    
+    /**
+     * 设置是否启用发送节奏控制
+     */
+    public void setPacingEnabled(boolean enabled) {
+        properties.setProperty("network.pacing", String.valueOf(enabled));
+    }
+
+    /**
+     * 视频是否优先走 UDP（network.transport = udp），TV端不支持时仍用 TCP
+     */
+    public boolean isUdpTransport() {
+        return "udp".equalsIgnoreCase(properties.getProperty("network.transport", DEFAULT_TRANSPORT).trim());
+    }
+
+    /**
+     * 设置视频传输方式
+     */
+    public void setUdpTransport(boolean udp) {
+        properties.setProperty("network.transport", udp ? "udp" : "tcp");
+    }
+
+    /**
+     * UDP 传输时校验包占数据包的百分比（0-100，0 表示只靠重传）
+     */
+    public int getFecPercent() {
+        int percent = Integer.parseInt(properties.getProperty("network.fec_percent", DEFAULT_FEC_PERCENT).trim());
+        return Math.max(0, Math.min(100, percent));
+    }
+    
+    // ==================== 浏览器观看 ====================
+
+    /**
+     * 是否启用浏览器观看（局域网内的浏览器打开 http://本机IP:端口/ 观看投屏画面）
+     */
+    public boolean isWebViewerEnabled() {
+        return "true".equalsIgnoreCase(properties.getProperty("web.viewer_enabled", DEFAULT_WEB_VIEWER).trim());
+    }
+
+    /**
+     * 浏览器观看的 HTTP 端口
+     */
+    public int getWebViewerPort() {
+        return Integer.parseInt(properties.getProperty("web.viewer_port", DEFAULT_WEB_VIEWER_PORT).trim());
+    }
+
+    // ==================== 本机共享内存输出 ====================
+
+    /**
+     * 共享内存环形文件路径，本机的录制、分析工具从中读取编码后的帧；为空时不输出
+     */
+    public String getEgressRingFile() {
+        return properties.getProperty("egress.ring_file", DEFAULT_EGRESS_RING_FILE).trim();
+    }
+
+    /**
+     * 共享内存环形文件的数据区大小（MB），单帧不能超过一半
+     */
+    public int getEgressRingSizeMb() {
+        return Integer.parseInt(properties.getProperty("egress.ring_size_mb", DEFAULT_EGRESS_RING_SIZE_MB).trim());
+    }
+
+    // ==================== 录制 ====================
+
+    /**
+     * 录制文件目录，设置后每次投屏自动录制主画面；为空时不录制
+     */
+    public String getRecordDir() {
+        return properties.getProperty("record.dir", DEFAULT_RECORD_DIR).trim();
+    }
+
+    /**
+     * 录制格式：mp4 或 mkv
+     */
+    public String getRecordFormat() {
+        return properties.getProperty("record.format", DEFAULT_RECORD_FORMAT).trim();
+    }
+
+    // ==================== 备用连接 ====================
+
+    /**
+     * 常用设备 IP（配置文件中以逗号分隔），投屏期间与其保持备用连接
+     */
+    public List<String> getFavoriteDevices() {
+        return splitList(properties.getProperty("cast.favorite_devices", ""));
+    }
+
+    /**
+     * 最近投屏过的设备 IP，最近的在前
+     */
+    public List<String> getRecentDevices() {
+        return splitList(properties.getProperty("cast.recent_devices", ""));
+    }
+
+    /**
+     * 记录一次投屏的设备，只保留最近 {@link #MAX_RECENT_DEVICES} 个
+     */
+    public void addRecentDevice(String ip) {
+        List<String> recent = getRecentDevices();
+        recent.remove(ip);
+        recent.add(0, ip);
+        while (recent.size() > MAX_RECENT_DEVICES) {
+            recent.remove(recent.size() - 1);
+        }
+        properties.setProperty("cast.recent_devices", String.join(",", recent));
+    }
+
+    /**
+     * 设备上次握手时接受的协议版本，从未投屏过时返回 0
+     */
+    public int getDeviceVersion(String ip) {
+        try {
+            return Integer.parseInt(properties.getProperty("cast.device_version." + ip, "0").trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 记录设备握手时接受的协议版本（决定下次能否与其保持备用连接）
+     */
+    public void setDeviceVersion(String ip, int version) {
+        if (version > 0) {
+            properties.setProperty("cast.device_version." + ip, String.valueOf(version));
+        }
+    }
+
+    /**
+     * 需要保持备用连接的设备：常用设备 + 最近投屏过的设备
+     */
+    public List<String> getStandbyDevices() {
+        List<String> devices = getFavoriteDevices();
+        for (String ip : getRecentDevices()) {
+            if (!devices.contains(ip)) {
+                devices.add(ip);
+            }
+        }
+        return devices;
+    }
+
+    // ==================== 多路编码 ====================
+
+    /**
+     * 附加编码路（配置文件中以逗号分隔，每项为 宽x高@码率Mbps，如 1920x1080@6），为空时只编码一路
+     */
+    public List<String> getSimulcastLayers() {
+        return splitList(properties.getProperty("video.simulcast_layers", ""));
+    }
+
+    /**
+     * 设备订阅的附加编码路（宽x高，如 1920x1080），未配置时返回空字符串，订阅主编码
+     */
+    public String getDeviceLayer(String ip) {
+        return properties.getProperty("cast.device_layer." + ip, "").trim();
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
     /**
      * 获取配置文件的完整路径
      */
@@ -0,0 +1,295 @@
+package com.cast.pc.network;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * 自适应码率控制器
+ *
+ * 周期性采集网络反馈（Channel 可写性、待发送字节数、心跳 RTT、接收端丢帧和解码积压），
+ * 闭环调整编码码率：无拥塞时小步上调，发现拥塞时快速下调（AIMD）。
+ * 码率通过回调直接作用于正在运行的编码器，不需要重启。
+ *
+ * 编码器不支持在线调整码率时（如 libopenh264，每次调整都要重建编码器并插入关键帧），
+ * 通过 {@link #setCoarseAdjustment(boolean)} 改为大步长、低频率调整。
+ *
+ * 发送节奏（{@link CastClient#setEstimatedBandwidth(long)}）随每次决策一起更新：以测得的链路带宽为准，
+ * 并限制在当前码率的 1.5～3 倍之间；没有测得带宽时取码率的 3 倍。
+ */
+public class AdaptiveBitrateController {
+
+    // 控制周期（毫秒）
+    private static final long TICK_MS = 500;
+    // 上调步长（当前码率的比例）
+    private static final double INCREASE_STEP = 0.05;
+    // 拥塞时下调到当前码率的比例
+    private static final double DECREASE_FACTOR = 0.7;
+    // 两次下调之间的最短间隔（毫秒），给网络留出排空时间
+    private static final long DECREASE_COOLDOWN_MS = 1000;
+    // 下调后多久才允许上调（毫秒）
+    private static final long HOLD_AFTER_DECREASE_MS = 3000;
+    // 连续稳定多久才允许上调（毫秒）
+    private static final long STABLE_BEFORE_INCREASE_MS = 2000;
+    // 待发送数据超过多少毫秒的码率视为拥塞
+    private static final long QUEUE_DELAY_THRESHOLD_MS = 200;
+    // 最低码率
+    private static final int MIN_BITRATE = 500_000;
+    // TV端解码队列达到多少帧视为解码跟不上
+    private static final int RECEIVER_BACKLOG_FRAMES = 3;
+    // 粗调模式（每次调整需重建编码器）：上调步长、两次下调的最短间隔、连续稳定多久才上调
+    private static final double COARSE_INCREASE_STEP = 0.25;
+    private static final long COARSE_DECREASE_COOLDOWN_MS = 5000;
+    private static final long COARSE_STABLE_BEFORE_INCREASE_MS = 10000;
+    // 发送节奏相对当前码率的上下限：低于下限关键帧排队太久，高于上限起不到平滑作用
+    private static final double MIN_PACING_HEADROOM = 1.5;
+    private static final int MAX_PACING_HEADROOM = 3;
+
+    private final CastClient castClient;
+    private final IntConsumer onBitrateChange;
+    private Consumer<String> onDecision;
+
+    private volatile int maxBitrate;
+    private volatile int minBitrate;
+    private volatile int currentBitrate;
+    private volatile boolean coarse;
+    // 估计的链路带宽（bit/s），尚未测得为 Long.MAX_VALUE
+    private volatile long linkBandwidth = Long.MAX_VALUE;
+
+    // 网络反馈（由其他线程写入）
+    private volatile long lastRttNanos = -1;
+    private volatile long minRttNanos = Long.MAX_VALUE;
+    private final AtomicInteger receiverDrops = new AtomicInteger();
+    private final AtomicInteger receiverBacklog = new AtomicInteger();
+
+    private long lastDecreaseAt;
+    private long stableSince;
+    private ScheduledFuture<?> tickTask;
+
+    /**
+     * @param castClient      采集网络状态的连接
+     * @param initialBitrate  初始码率，同时也是上限
+     * @param onBitrateChange 码率变化回调（作用到编码器）
+     */
+    public AdaptiveBitrateController(CastClient castClient, int initialBitrate, IntConsumer onBitrateChange) {
+        this.castClient = castClient;
+        this.onBitrateChange = onBitrateChange;
+        this.maxBitrate = Math.max(MIN_BITRATE, initialBitrate);
+        this.minBitrate = Math.max(MIN_BITRATE, maxBitrate / 10);
+        this.currentBitrate = maxBitrate;
+    }
+
+    /**
+     * 设置决策日志回调（用于界面显示）
+     */
+    public void setOnDecision(Consumer<String> callback) {
+        this.onDecision = callback;
+    }
+
+    /**
+     * 设置码率上限（用户重新选择码率时调用），并从新的上限重新开始调整
+     */
+    public void setMaxBitrate(int bitrate) {
+        this.maxBitrate = Math.max(MIN_BITRATE, bitrate);
+        this.minBitrate = Math.max(MIN_BITRATE, maxBitrate / 10);
+        this.stableSince = System.currentTimeMillis();
+        apply(maxBitrate, "码率上限调整");
+    }
+
+    /**
+     * 设置起始码率（投屏前带宽探测后、{@link #start()} 之前调用），上限不变，网络稳定后照常上调
+     *
+     * @param reason 原因，用于日志
+     */
+    public void setStartBitrate(int bitrate, String reason) {
+        int start = Math.max(MIN_BITRATE, Math.min(maxBitrate, bitrate));
+        // 测得的带宽低于默认下限时，下限随之放低，否则拥塞时降不到网络能承受的码率
+        this.minBitrate = Math.max(MIN_BITRATE, Math.min(minBitrate, start));
+        apply(start, reason);
+    }
+
+    /**
+     * 设置测得的链路带宽（bit/s，投屏前带宽探测的吞吐量），并据此更新发送节奏
+     */
+    public synchronized void setLinkBandwidth(long bitsPerSec) {
+        if (bitsPerSec <= 0) {
+            return;
+        }
+        this.linkBandwidth = bitsPerSec;
+        updatePacing();
+    }
+
+    /**
+     * 当前发送节奏（bit/s）
+     */
+    public long getPacingBandwidth() {
+        long floor = (long) (currentBitrate * MIN_PACING_HEADROOM);
+        long ceiling = (long) currentBitrate * MAX_PACING_HEADROOM;
+        return Math.min(ceiling, Math.max(floor, linkBandwidth));
+    }
+
+    /**
+     * 设置是否粗调：编码器不能在线调整码率、每次调整都要重建时开启，减少重建次数
+     */
+    public void setCoarseAdjustment(boolean coarse) {
+        if (coarse && !this.coarse) {
+            System.out.println("[码率自适应] 编码器不支持在线调整码率，每次调整需重建编码器，改为大步长低频率调整");
+        }
+        this.coarse = coarse;
+    }
+
+    /**
+     * 当前目标码率
+     */
+    public int getCurrentBitrate() {
+        return currentBitrate;
+    }
+
+    /**
+     * 记录一次 RTT 采样（纳秒）
+     */
+    public void onRttSample(long rttNanos) {
+        lastRttNanos = rttNanos;
+        if (rttNanos < minRttNanos) {
+            minRttNanos = rttNanos;
+        }
+    }
+
+    /**
+     * 记录接收端报告的丢帧数
+     */
+    public void onReceiverDrops(int dropped) {
+        if (dropped > 0) {
+            receiverDrops.addAndGet(dropped);
+        }
+    }
+
+    /**
+     * 记录TV端回报的接收统计：丢帧计入拥塞，解码队列峰值用于判断TV端解码积压
+     */
+    public void onReceiverStats(ReceiverStats stats) {
+        onReceiverDrops(stats.getDropped());
+        receiverBacklog.accumulateAndGet(stats.getMaxQueueDepth(), Math::max);
+    }
+
+    /**
+     * 开始周期性调整
+     */
+    public synchronized void start() {
+        if (tickTask != null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        stableSince = now;
+        lastDecreaseAt = 0;
+        tickTask = castClient.eventLoop().scheduleAtFixedRate(
+                this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        System.out.println("[码率自适应] 已启动，初始码率 " + formatMbps(currentBitrate));
+    }
+
+    /**
+     * 停止调整
+     */
+    public synchronized void stop() {
+        if (tickTask != null) {
+            tickTask.cancel(false);
+            tickTask = null;
+            System.out.println("[码率自适应] 已停止");
+        }
+    }
+
+    /**
+     * 一个控制周期：判断拥塞并调整码率
+     */
+    private void tick() {
+        if (!castClient.isConnected()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        String congestion = detectCongestion();
+
+        if (congestion != null) {
+            stableSince = now;
+            long cooldown = coarse ? COARSE_DECREASE_COOLDOWN_MS : DECREASE_COOLDOWN_MS;
+            if (now - lastDecreaseAt >= cooldown && currentBitrate > minBitrate) {
+                lastDecreaseAt = now;
+                // 当前码率已经造成拥塞，链路带宽不会高于它
+                linkBandwidth = Math.min(linkBandwidth, currentBitrate);
+                int target = Math.max(minBitrate, (int) (currentBitrate * DECREASE_FACTOR));
+                apply(target, "检测到拥塞（" + congestion + "），下调");
+            }
+            return;
+        }
+
+        long stableBefore = coarse ? COARSE_STABLE_BEFORE_INCREASE_MS : STABLE_BEFORE_INCREASE_MS;
+        if (currentBitrate < maxBitrate
+                && now - stableSince >= stableBefore
+                && now - lastDecreaseAt >= HOLD_AFTER_DECREASE_MS) {
+            int step = Math.max(100_000, (int) (currentBitrate * (coarse ? COARSE_INCREASE_STEP : INCREASE_STEP)));
+            int target = Math.min(maxBitrate, currentBitrate + step);
+            stableSince = now;
+            apply(target, "网络稳定，上调");
+        }
+    }
+
+    /**
+     * 检测拥塞，返回原因描述，无拥塞返回 null
+     */
+    private String detectCongestion() {
+        int drops = receiverDrops.getAndSet(0);
+        if (drops > 0) {
+            return "接收端丢帧 " + drops;
+        }
+
+        // 帧在TV端排队说明解码跟不上，降低码率可以减轻解码负担
+        int backlog = receiverBacklog.getAndSet(0);
+        if (backlog >= RECEIVER_BACKLOG_FRAMES) {
+            return "TV端解码积压 " + backlog + " 帧";
+        }
+
+        if (!castClient.isWritable()) {
+            return "发送缓冲区已满";
+        }
+
+        long pending = castClient.getPendingBytes();
+        long queueDelayMs = pending * 8 * 1000 / Math.max(1, currentBitrate);
+        if (queueDelayMs > QUEUE_DELAY_THRESHOLD_MS) {
+            return "待发送 " + (pending / 1024) + "KB ≈ " + queueDelayMs + "ms";
+        }
+
+        long rtt = lastRttNanos;
+        long baseRtt = minRttNanos;
+        if (rtt > 0 && baseRtt != Long.MAX_VALUE) {
+            long threshold = Math.max(baseRtt * 2, baseRtt + TimeUnit.MILLISECONDS.toNanos(30));
+            if (rtt > threshold) {
+                return "RTT " + TimeUnit.NANOSECONDS.toMillis(rtt) + "ms（基线 "
+                        + TimeUnit.NANOSECONDS.toMillis(baseRtt) + "ms）";
+            }
+        }
+        return null;
+    }
+
+    private synchronized void apply(int bitrate, String reason) {
+        if (bitrate == currentBitrate) {
+            return;
+        }
+        String message = reason + "：" + formatMbps(currentBitrate) + " → " + formatMbps(bitrate);
+        currentBitrate = bitrate;
+        System.out.println("[码率自适应] " + message);
+        onBitrateChange.accept(bitrate);
+        updatePacing();
+        if (onDecision != null) {
+            onDecision.accept(message);
+        }
+    }
+
+    private void updatePacing() {
+        castClient.setEstimatedBandwidth(getPacingBandwidth());
+    }
+
+    private static String formatMbps(int bitrate) {
+        return String.format("%.1fMbps", bitrate / 1_000_000.0);
+    }
+}
@@ -0,0 +1,72 @@
+package com.cast.pc.network;
+
+/**
+ * 投屏前带宽探测的结果
+ *
+ * 握手后、第一帧之前发送一串填充包，按TV端记录的第一个包到最后一个包的到达间隔计算吞吐量
+ * （不受本机发送缓冲区影响）；探测前发送的心跳给出空载 RTT。
+ * 新连接仍处于 TCP 慢启动，测得的吞吐量偏保守，只用于选择初始码率，之后由码率自适应上调。
+ */
+public final class BandwidthProbe {
+
+    // 初始码率占测得吞吐量的比例，给关键帧突发和无线抖动留出余量
+    private static final double HEADROOM = 0.6;
+    // 按探测结果选择的最低初始码率
+    private static final int MIN_START_BITRATE = 1_000_000;
+
+    private final long throughputBps;
+    private final long rttNanos;
+    private final long bytes;
+    private final boolean complete;
+
+    BandwidthProbe(long throughputBps, long rttNanos, long bytes, boolean complete) {
+        this.throughputBps = throughputBps;
+        this.rttNanos = rttNanos;
+        this.bytes = bytes;
+        this.complete = complete;
+    }
+
+    /**
+     * 测得的吞吐量（bit/s）；探测超时时按超时前收到的部分计算
+     */
+    public long getThroughputBps() {
+        return throughputBps;
+    }
+
+    /**
+     * 空载 RTT（纳秒），没有测到时为 -1
+     */
+    public long getRttNanos() {
+        return rttNanos;
+    }
+
+    /**
+     * 用于计算吞吐量的字节数（TV端收到的第一个探测包之后的部分）
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * TV端是否在超时前收完全部探测包
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * 按探测结果选择的初始码率：不超过用户设置的码率
+     *
+     * @param configured 用户设置的码率（bit/s）
+     */
+    public int recommendedBitrate(int configured) {
+        long affordable = Math.max(MIN_START_BITRATE, (long) (throughputBps * HEADROOM));
+        return (int) Math.min(configured, affordable);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("吞吐 %.1fMbps%s，RTT %s", throughputBps / 1e6,
+                complete ? "" : "（超时，按已收到部分估计）", rttNanos >= 0 ? String.format("%.1fms", rttNanos / 1e6) : "-");
+    }
+}
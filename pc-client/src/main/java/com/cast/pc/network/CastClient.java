@@ -1,5 +1,6 @@
 package com.cast.pc.network;
 
+import com.cast.pc.capture.EncodedFrame;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -8,43 +9,284 @@ import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 
 /**
  * 投屏网络客户端
  *
  * 使用Netty实现TCP连接，传输视频流数据
+ *
+ * 默认所有连接共用一个进程级的单线程事件循环（见 {@link #sharedEventLoop()}），
+ * 断开连接只关闭 Channel，不销毁线程，因此反复连接/断开不会泄漏线程。
+ * 同时运行多个投屏会话时，每个会话可以用自己的事件循环（{@link #CastClient(EventLoopGroup)}），
+ * 各会话的网络处理分布在不同线程上，互不排队。
+ * 连接生命周期由 {@link State} 状态机描述：
+ * IDLE → CONNECTING → CONNECTED → STREAMING → CLOSING → IDLE
+ *
+ * TCP 连接（{@link #connect}）和握手（{@link #handshake}）分开进行，
+ * 调用方可以在 TCP 连接的同时准备编码器，拿到实际分辨率后再握手。
+ * 握手完成后只从第一个 IDR 帧开始发送视频，保证TV端第一帧就能解码。
+ *
+ * 连接期间由 IdleStateHandler 驱动心跳：一段时间没有收到TV端数据就发送带纳秒时间戳的心跳，
+ * TV端原样回传，据此统计 RTT（{@link #getRttStats()}）；超过 {@link #PEER_TIMEOUT_MS} 没有任何响应视为对端失联。
+ * 心跳响应还带回TV端的收发时间，用于估计两端时钟偏差（{@link #getClockSync()}），
+ * 进而把TV端按帧回报的接收、解码、上屏时间换算为端到端延迟（{@link #getLatencyStats()}）。
+ *
+ * 推流开始后连接意外中断（Wi-Fi 抖动、心跳超时）时，开启自动重连的客户端进入 RECONNECTING 状态，
+ * 按带随机抖动的指数退避重新连接，成功后重新握手并从下一个 IDR 帧继续推流，期间的帧直接丢弃；
+ * 超过 {@link #RECONNECT_DEADLINE_MS} 仍未恢复才真正断开。
+ *
+ * 可以与最近使用或常用的TV端保持已握手的备用连接（{@link #addStandbyTarget}），
+ * 推流中用 {@link #switchTo} 把视频流直接切到备用连接上并从下一个 IDR 帧继续，
+ * 编码器不重建，也不需要新的 TCP 连接和握手；被切走的连接降级为备用连接。
+ * 备用握手只对已知支持备用标志的TV端发起（{@link #rememberPeerVersion}，或本进程内握手过），
+ * 旧版TV端会把备用握手当成投屏而切走画面。
+ *
+ * 首次握手收到响应后、发送第一帧之前先做一次带宽探测（{@link #getBandwidthProbe()}），
+ * 调用方据此选择初始码率和分辨率档位，避免弱网下以过高的码率开播、先缓冲好几秒。
  */
 public class CastClient {
 
-    private EventLoopGroup workerGroup;
-    private Channel channel;
-    private AtomicBoolean connected = new AtomicBoolean(false);
-    private AtomicBoolean connecting = new AtomicBoolean(false); // 连接中状态
+    /**
+     * 连接生命周期状态
+     */
+    public enum State {
+        IDLE,        // 空闲，可发起连接
+        CONNECTING,  // TCP 连接中
+        CONNECTED,   // TCP 已连接，尚未握手
+        STREAMING,   // 握手完成，正在推流
+        RECONNECTING, // 推流中连接中断，正在自动重连
+        CLOSING      // 正在关闭
+    }
+
+    // 进程级共享事件循环（单线程，守护线程），整个应用生命周期内复用
+    private static EventLoopGroup sharedGroup;
+
+    // 本客户端使用的事件循环，为 null 时使用共享事件循环
+    private final EventLoopGroup ownEventLoop;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.IDLE);
+    private volatile Channel channel;
 
     private Runnable onConnected;
     private Runnable onDisconnected;
     private Consumer<String> onError;
+    private Runnable onKeyFrameRequest;
+    private LongConsumer onRttSample;
+    private Consumer<ReceiverStats> onReceiverStats;
+    private Consumer<String> onReconnecting;
+    private Runnable onResumeHandshake;
+    private LongConsumer onResumed;
 
     // 视频参数
     private int videoWidth = 1920;
     private int videoHeight = 1080;
     private int frameRate = 30;
+    // 编码器配置（SPS/PPS，Annex B），随握手和格式变更发送，TV端据此提前配置解码器
+    private volatile byte[] codecConfig;
+
+    // 视频传输：UDP（RTP 风格分包 + 校验包 + NACK 重传）或 TCP，下次握手生效
+    private volatile boolean udpTransport;
+    private volatile int fecPercent = 10;
+    // UDP 会话标识，TV端据此把数据报对应到这条连接
+    private final int udpSessionId = ThreadLocalRandom.current().nextInt();
+    // 当前的 UDP 发送端，视频走 TCP 时为 null（发送线程持 sendLock 读取）
+    private volatile RtpSender rtpSender;
+    // 当前连接的TV端 UDP 端口，TV端不支持时为 0（切换目标后原连接降级为备用连接时保留）
+    private volatile int udpPort;
+
+    // 发送节奏控制
+    private boolean pacingEnabled = true;
+    private long estimatedBandwidth = 100_000_000L;  // 估计带宽 100Mbps
+    private volatile FramePacer pacer;
 
     // 连接超时时间（秒）
     private static final int CONNECT_TIMEOUT = 5;
-    // 连接超时任务
-    private java.util.concurrent.ScheduledFuture<?> connectTimeoutTask;
-    private static final java.util.concurrent.ScheduledExecutorService timeoutExecutor =
-            java.util.concurrent.Executors.newSingleThreadScheduledExecutor();
+    // 整体连接超时（秒），包含TCP连接和握手前的准备
+    private static final int CONNECT_DEADLINE = 10;
+    // 协议版本：1 = 初始版本；2 = 握手和格式变更携带编码器配置；
+    // 3 = v2 视频帧（64 位采集时间、序号、帧标志、NAL 长度分帧）；4 = 大帧分片发送；
+    // 5 = TV端回报每帧的接收、解码、上屏时间；6 = TV端定期回报接收统计；
+    // 7 = 备用连接（握手带标志，激活/停用消息）；
+    // 8 = UDP 视频传输（握手带 UDP 标志和会话标识，TV端响应附带 UDP 端口）；
+    // 9 = 握手后的带宽探测（探测包和TV端的到达间隔回报）；
+    // 10 = 补发帧标志（TV端只解码不上屏，不占解码队列）
+    private static final int PROTOCOL_VERSION = 10;
+    // 使用 v2 视频帧所需的最低协商版本
+    private static final int VERSION_FRAME_V2 = 3;
+    // 使用帧分片所需的最低协商版本
+    private static final int VERSION_FRAGMENTS = 4;
+    // 保持备用连接所需的TV端版本
+    static final int VERSION_STANDBY = 7;
+    // 视频走 UDP 所需的TV端版本
+    static final int VERSION_UDP = 8;
+    // 带宽探测所需的TV端版本
+    static final int VERSION_PROBE = 9;
+    // 补发帧标志所需的TV端版本
+    static final int VERSION_PRIMED = 10;
+    // TV端回报帧时间所需的版本
+    private static final int VERSION_FRAME_TIMING = 5;
+    // 可靠处理格式变更消息所需的TV端版本，更早的TV端在格式变化时重新握手
+    static final int VERSION_FORMAT_CHANGE = 2;
+    // 分片负载大小：控制消息最多在一个分片后面等待
+    static final int FRAGMENT_SIZE = 64 * 1024;
+
+    // 消息类型（出站调度器据此区分控制消息和视频数据）
+    static final int MSG_HANDSHAKE = 0x00;
+    static final int MSG_VIDEO_FRAME = 0x01;
+    static final int MSG_HEARTBEAT = 0x02;
+    static final int MSG_FORMAT_CHANGE = 0x03;
+    static final int MSG_VIDEO_FRAME_V2 = 0x05;
+    static final int MSG_VIDEO_FRAGMENT = 0x06;
+    static final int MSG_FRAME_TIMING = 0x07;
+    static final int MSG_RECEIVER_STATS = 0x08;
+    static final int MSG_ACTIVATE = 0x09;
+    static final int MSG_DEACTIVATE = 0x0A;
+    static final int MSG_PROBE = 0x0B;
+
+    // 握手标志位（版本 7 起附在编码器配置之后）
+    static final int HANDSHAKE_FLAG_STANDBY = 0x01;  // 备用连接，TV端不切换到投屏画面
+    static final int HANDSHAKE_FLAG_UDP = 0x02;      // 视频希望走 UDP，标志后附 4 字节会话标识
+    // 最多保持的备用连接数，超出时关闭最久未使用的
+    private static final int MAX_STANDBY_CONNECTIONS = 4;
+    // 丢帧策略：出站队列积压这么多帧时丢弃可丢弃帧、丢弃至下一个关键帧
+    private static final int DROP_DROPPABLE_QUEUE = 2;
+    private static final int SKIP_TO_KEY_FRAME_QUEUE = 8;
+    // Socket 发送缓冲区大小：系统自动调节时可达数 MB，会在内核里积压数秒的视频
+    private static final int SOCKET_SEND_BUFFER = 512 * 1024;
+
+    // v2 视频帧标志位
+    static final int FLAG_KEY_FRAME = 0x01;   // 含 IDR 切片
+    static final int FLAG_DROPPABLE = 0x02;   // 不被参考，可丢弃
+    static final int FLAG_CONFIG = 0x04;      // 携带 SPS/PPS
+    static final int FLAG_PRIMED = 0x08;      // 加入时从 GOP 缓存补发，只解码不上屏
+    // 心跳间隔（毫秒）：这么久没收到TV端数据就发送一次心跳
+    static final int HEARTBEAT_INTERVAL_MS = 250;
+    // 超过这么久没有收到TV端任何数据，视为对端失联（毫秒）
+    static final int PEER_TIMEOUT_MS = 1200;
+    // 自动重连：首次退避、最大退避、放弃前的总时长（毫秒）
+    private static final int RECONNECT_BASE_DELAY_MS = 100;
+    private static final int RECONNECT_MAX_DELAY_MS = 2000;
+    private static final int RECONNECT_DEADLINE_MS = 30_000;
+    // 重连时单次 TCP 连接超时（毫秒），局域网内连不上通常说明对端还没恢复
+    private static final int RECONNECT_CONNECT_TIMEOUT_MS = 1000;
+    // 握手超时（毫秒）
+    private static final int HANDSHAKE_TIMEOUT_MS = 3000;
+    // 带宽探测：包大小、包数（共 256KB，5Mbps 的弱网约 0.4 秒收完）、等待收完的超时（毫秒）
+    private static final int PROBE_PACKET_SIZE = 16 * 1024;
+    private static final int PROBE_PACKETS = 16;
+    private static final int PROBE_TIMEOUT_MS = 1000;
+    // 连接超时任务（在共享事件循环上调度）
+    private ScheduledFuture<?> connectTimeoutTask;
+    private ScheduledFuture<?> handshakeTimeoutTask;
+
+    // 启动过程的各阶段结果：TCP 连接、握手响应、首个关键帧写入 Socket、首帧在TV端上屏
+    private volatile CompletableFuture<Void> connectFuture;
+    private volatile CompletableFuture<Void> handshakeFuture;
+    private volatile CompletableFuture<Long> firstFrameFuture;
+    private volatile CompletableFuture<Long> firstRenderFuture;
+    // 首帧上屏时刻（TV端时钟），收到时还没有时钟偏差估计，等下一次心跳响应后再换算（仅事件循环线程使用）
+    private long pendingFirstRender = -1;
+    // 握手后等待第一个 IDR 帧，之前的帧丢弃
+    private volatile boolean awaitingKeyFrame;
+    // 与TV端协商出的协议版本（握手响应中给出，旧版TV端不带版本号时为 1）
+    private volatile int negotiatedVersion = 1;
+    // 自动重连
+    private boolean autoReconnect = true;
+    private volatile String remoteHost;
+    private volatile int remotePort;
+    // 本次投屏是否已完成过握手（只有推流开始后的中断才自动重连）
+    private volatile boolean sessionEstablished;
+    private int reconnectAttempt;
+    private long reconnectStartedAt;
+    private ScheduledFuture<?> reconnectTask;
+    // 本次连接已发送的视频帧序号（发送线程持 sendLock 使用）
+    private int frameSequence;
+    // 已发送、按丢帧策略丢弃的帧数（只有发送线程写入）
+    private volatile long framesSent;
+    private volatile long framesDropped;
+    // 补发 GOP 后允许多积压的帧数，队列排空后归零（仅发送线程使用）
+    private int primeAllowance;
+    private final Object sendLock = new Object();
+    // 最近一次收到TV端数据的时间（System.nanoTime()，仅事件循环线程使用）
+    private long lastReadNanos;
+    private final RttStats rttStats = new RttStats();
+    private final ClockSync clockSync = new ClockSync();
+    private final LatencyStats latencyStats = new LatencyStats();
+    // TV端最近一次回报的接收统计
+    private volatile ReceiverStats receiverStats;
+    // 本次投屏的带宽探测结果，TV端不支持时为 null
+    private volatile BandwidthProbe bandwidthProbe;
+    // 进行中的带宽探测（仅事件循环线程使用）
+    private PendingProbe pendingProbe;
+    // 备用连接，按最近使用排序（仅事件循环线程修改）
+    private final Map<String, StandbyConnection> standby = new LinkedHashMap<>(8, 0.75f, true);
+    // TV端（host:port）握手时接受的协议版本：本进程内握手得到，或由调用方从上次会话恢复
+    private final Map<String, Integer> peerVersions = new ConcurrentHashMap<>();
     
     /**
-     * 设置连接成功回调
+     * 使用进程级共享事件循环
+     */
+    public CastClient() {
+        this(null);
+    }
+
+    /**
+     * 使用指定的事件循环（如一个投屏会话专用的单线程事件循环），由调用方负责关闭
+     *
+     * @param eventLoop 事件循环，为 null 时使用共享事件循环
+     */
+    public CastClient(EventLoopGroup eventLoop) {
+        this.ownEventLoop = eventLoop;
+    }
+
+    /**
+     * 本客户端的连接、定时任务所在的事件循环
+     */
+    EventLoopGroup eventLoop() {
+        return ownEventLoop != null ? ownEventLoop : sharedEventLoop();
+    }
+
+    /**
+     * 获取共享事件循环，首次调用时创建
+     */
+    static synchronized EventLoopGroup sharedEventLoop() {
+        if (sharedGroup == null || sharedGroup.isShuttingDown()) {
+            sharedGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("cast-client", true));
+        }
+        return sharedGroup;
+    }
+
+    /**
+     * 关闭共享事件循环 - 仅在应用退出时调用
+     */
+    public static synchronized void shutdownSharedEventLoop() {
+        if (sharedGroup != null) {
+            sharedGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            sharedGroup = null;
+        }
+    }
+
+    /**
+     * 设置连接成功回调（握手完成、可以推流时触发）
      */
     public void setOnConnected(Runnable callback) {
         this.onConnected = callback;
@@ -57,266 +299,1415 @@ public class CastClient {
         this.onDisconnected = callback;
     }
     /**
-     * 设置错误回调
+     * 设置错误回调
+     */
+    public void setOnError(Consumer<String> callback) {
+        this.onError = callback;
+    }
+    
+    /**
+     * 设置关键帧请求回调（TV端解码器丢帧或失步时请求立即发送IDR）
+     */
+    public void setOnKeyFrameRequest(Runnable callback) {
+        this.onKeyFrameRequest = callback;
+    }
+
+    /**
+     * 设置 RTT 采样回调（每收到一次心跳响应触发，参数为纳秒，在事件循环线程上调用）
+     */
+    public void setOnRttSample(LongConsumer callback) {
+        this.onRttSample = callback;
+    }
+
+    /**
+     * 设置是否在推流中断后自动重连（默认开启）
+     */
+    public void setAutoReconnect(boolean enabled) {
+        this.autoReconnect = enabled;
+    }
+
+    /**
+     * 设置开始自动重连回调（参数为中断原因，在事件循环线程上调用）
+     */
+    public void setOnReconnecting(Consumer<String> callback) {
+        this.onReconnecting = callback;
+    }
+
+    /**
+     * 设置重连握手完成回调：此后从第一个 IDR 帧开始发送，调用方应立即编码关键帧
+     */
+    public void setOnResumeHandshake(Runnable callback) {
+        this.onResumeHandshake = callback;
+    }
+
+    /**
+     * 设置重连恢复回调（参数为从中断到恢复后第一帧写入 Socket 的耗时，毫秒）
+     */
+    public void setOnResumed(LongConsumer callback) {
+        this.onResumed = callback;
+    }
+
+    /**
+     * 设置接收统计回调（TV端每秒回报一次，在事件循环线程上调用）
+     */
+    public void setOnReceiverStats(Consumer<ReceiverStats> callback) {
+        this.onReceiverStats = callback;
+    }
+
+    /**
+     * TV端最近一次回报的接收统计，尚未收到时返回 null
+     */
+    public ReceiverStats getReceiverStats() {
+        return receiverStats;
+    }
+
+    /**
+     * 本次投屏握手时的带宽探测结果，TV端不支持探测时返回 null（握手完成后调用）
+     */
+    public BandwidthProbe getBandwidthProbe() {
+        return bandwidthProbe;
+    }
+
+    /**
+     * 当前连接的 RTT 统计
+     */
+    public RttStats getRttStats() {
+        return rttStats;
+    }
+
+    /**
+     * 当前连接的时钟偏差估计（TV端时钟 - 本机时钟）
+     */
+    public ClockSync getClockSync() {
+        return clockSync;
+    }
+
+    /**
+     * 当前连接的端到端延迟统计
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * 本次投屏已发送的视频帧数
+     */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * 本次投屏因该接收端积压而丢弃的视频帧数
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * 当前（或最近一次）投屏目标地址，尚未连接过时为 null
+     */
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    /**
+     * 当前（或最近一次）投屏目标端口
+     */
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    /**
+     * 把视频参数、编码器配置和发送节奏设置复制给另一个客户端（多接收端时新加入的接收端沿用当前格式）
+     */
+    void copySettingsTo(CastClient other) {
+        other.setVideoParams(videoWidth, videoHeight, frameRate);
+        other.setCodecConfig(codecConfig);
+        other.setPacingEnabled(pacingEnabled);
+        other.setEstimatedBandwidth(estimatedBandwidth);
+        other.setUdpTransport(udpTransport, fecPercent);
+    }
+
+    /**
+     * 设置视频参数
+     */
+    public void setVideoParams(int width, int height, int fps) {
+        this.videoWidth = width;
+        this.videoHeight = height;
+        this.frameRate = fps;
+        FramePacer p = pacer;
+        if (p != null) {
+            p.setFrameRate(fps);
+        }
+    }
+    
+    /**
+     * 设置编码器配置（SPS/PPS，Annex B 格式），握手时发送
+     */
+    public void setCodecConfig(byte[] config) {
+        this.codecConfig = config;
+    }
+
+    /**
+     * 运行中更新视频格式，已连接时通过格式变更消息在视频流内通知TV端
+     *
+     * 应在新格式的第一帧发送之前调用，保证TV端先收到格式再收到新格式的帧。
+     * 版本低于 {@link #VERSION_FORMAT_CHANGE} 的TV端不认识格式变更消息（会当作未知消息丢弃），
+     * 改为在同一连接上重新发送握手，TV端按新格式重建解码器；重发握手的响应在推流状态下忽略
+     *
+     * @param config 新编码器的 SPS/PPS，可为 null
+     */
+    public void updateVideoFormat(int width, int height, int fps, byte[] config) {
+        setVideoParams(width, height, fps);
+        setCodecConfig(config);
+        Channel ch = channel;
+        if (!isStreaming()) {
+            return;
+        }
+
+        if (negotiatedVersion < VERSION_FORMAT_CHANGE) {
+            sendHandshake(ch, false);
+            System.out.println("TV端不支持格式变更消息，以新格式重新握手: " + width + "x" + height + " @ " + fps + "fps");
+            return;
+        }
+        ch.writeAndFlush(encodeFormat(MSG_FORMAT_CHANGE));
+        System.out.println("发送格式变更: " + width + "x" + height + " @ " + fps + "fps");
+    }
+
+    /**
+     * 格式消息（格式变更、激活）: [1字节类型][宽][高][帧率][配置长度][SPS/PPS]，使用当前视频参数
+     */
+    private ByteBuf encodeFormat(int type) {
+        byte[] csd = codecConfig != null ? codecConfig : new byte[0];
+        ByteBuf buffer = Unpooled.buffer(17 + csd.length);
+        buffer.writeByte(type);
+        buffer.writeInt(videoWidth);
+        buffer.writeInt(videoHeight);
+        buffer.writeInt(frameRate);
+        buffer.writeInt(csd.length);
+        buffer.writeBytes(csd);
+        return buffer;
+    }
+
+    /**
+     * 设置是否启用发送节奏控制（下次连接生效）
+     *
+     * 关闭后出站调度器仍负责长度前缀和控制消息优先，只是不再限速
+     */
+    public void setPacingEnabled(boolean enabled) {
+        this.pacingEnabled = enabled;
+    }
+
+    /**
+     * 设置视频传输方式（下次握手生效）
+     *
+     * 启用后视频帧经 UDP 分包发送（见 {@link RtpSender}），握手、心跳、格式变更等控制消息仍走 TCP；
+     * TV端不支持时自动使用 TCP
+     *
+     * @param udp        是否优先使用 UDP
+     * @param fecPercent 校验包占数据包的百分比，0 表示只靠 NACK 重传
+     */
+    public void setUdpTransport(boolean udp, int fecPercent) {
+        this.udpTransport = udp;
+        this.fecPercent = Math.max(0, Math.min(100, fecPercent));
+    }
+
+    /**
+     * 当前视频是否经 UDP 发送
+     */
+    public boolean isUdpActive() {
+        return rtpSender != null;
+    }
+
+    /**
+     * 设置估计带宽（bit/s），发送节奏控制据此限速
+     */
+    public void setEstimatedBandwidth(long bitsPerSec) {
+        this.estimatedBandwidth = bitsPerSec;
+        FramePacer p = pacer;
+        if (p != null) {
+            p.setBandwidth(bitsPerSec);
+        }
+    }
+
+    /**
+     * 当前估计带宽（bit/s）
+     */
+    public long getEstimatedBandwidth() {
+        return estimatedBandwidth;
+    }
+
+    /**
+     * 获取尚未写入 Socket 的字节数（节奏控制队列 + Netty 出站缓冲区）
+     */
+    public long getPendingBytes() {
+        Channel ch = channel;
+        if (ch == null) {
+            return 0;
+        }
+        FramePacer p = pacer;
+        ChannelOutboundBuffer outbound = ch.unsafe().outboundBuffer();
+        return (p != null ? p.pendingBytes() : 0)
+                + (outbound != null ? outbound.totalPendingWriteBytes() : 0);
+    }
+
+    /**
+     * 检查连接当前是否可写（出站缓冲区未超过高水位）
+     */
+    public boolean isWritable() {
+        Channel ch = channel;
+        return ch != null && ch.isWritable();
+    }
+
+    /**
+     * 连接到服务器（只建立 TCP 连接，握手由 {@link #handshake()} 发起）
+     *
+     * @param host 服务器地址
+     * @param port 服务器端口
+     * @return TCP 连接建立后完成；连接失败、超时或被取消时异常完成
+     */
+    public CompletableFuture<Void> connect(String host, int port) {
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        if (!state.compareAndSet(State.IDLE, State.CONNECTING)) {
+            System.out.println("已有连接或正在连接中，跳过本次连接请求（状态: " + state.get() + "）");
+            connected.completeExceptionally(new IllegalStateException("已有连接或正在连接中"));
+            return connected;
+        }
+        connectFuture = connected;
+        remoteHost = host;
+        remotePort = port;
+        sessionEstablished = false;
+        rttStats.reset();
+        clockSync.reset();
+        latencyStats.reset();
+        receiverStats = null;
+        bandwidthProbe = null;
+        framesSent = 0;
+        framesDropped = 0;
+
+        System.out.println("正在连接到 " + host + ":" + port + "...");
+        EventLoopGroup group = eventLoop();
+
+        // 启动连接超时定时器
+        connectTimeoutTask = group.schedule(() -> {
+            if (state.get() == State.CONNECTING) {
+                System.err.println("连接超时（" + CONNECT_DEADLINE + "秒），自动断开");
+                if (onError != null) {
+                    onError.accept("连接超时（" + CONNECT_DEADLINE + "秒），请检查TV端是否正常运行");
+                }
+                // 强制断开连接
+                forceDisconnect();
+            }
+        }, CONNECT_DEADLINE, TimeUnit.SECONDS);
+
+        // 连接服务器 - 使用异步连接
+        ChannelFuture future = bootstrap(CONNECT_TIMEOUT * 1000, CastClientHandler::new).connect(host, port);
+        channel = future.channel();
+        future.addListener((ChannelFutureListener) f -> {
+            cancelConnectTimeout();
+            if (f.isSuccess()) {
+                if (f.channel() != channel || !state.compareAndSet(State.CONNECTING, State.CONNECTED)) {
+                    // 连接过程中已被取消
+                    f.channel().close();
+                    return;
+                }
+                pacer = f.channel().pipeline().get(FramePacer.class);
+                System.out.println("已连接到服务器: " + host + ":" + port);
+                connected.complete(null);
+            } else {
+                if (f.channel() != channel) {
+                    return;
+                }
+                System.err.println("连接失败: " + f.cause().getMessage());
+                // 连接失败时触发错误回调
+                if (onError != null) {
+                    onError.accept("连接失败: " + f.cause().getMessage());
+                }
+                connected.completeExceptionally(f.cause());
+                forceDisconnect();
+            }
+        });
+        return connected;
+    }
+
+    /**
+     * 创建连接用的 Bootstrap（首次连接、自动重连和备用连接共用同一套编解码和出站调度，只有业务处理器不同）
+     *
+     * @param handlerFactory 业务处理器
+     */
+    Bootstrap bootstrap(int connectTimeoutMs, Supplier<ChannelHandler> handlerFactory) {
+        Bootstrap bootstrap = new Bootstrap();
+        return bootstrap.group(eventLoop())
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true)
+                // 固定发送缓冲区：积压留在出站队列里，丢帧策略才能及时发现跟不上的接收端
+                .option(ChannelOption.SO_SNDBUF, SOCKET_SEND_BUFFER)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ChannelPipeline pipeline = ch.pipeline();
+
+                        // 读空闲检测：驱动心跳和失联判断
+                        pipeline.addLast(new IdleStateHandler(
+                                HEARTBEAT_INTERVAL_MS, 0, 0, TimeUnit.MILLISECONDS));
+                        // 添加长度字段编解码器（解决粘包问题）
+                        // 格式: [4字节长度][数据体]
+                        pipeline.addLast(new LengthFieldBasedFrameDecoder(
+                                10 * 1024 * 1024,  // 最大帧大小 10MB
+                                0, 4, 0, 4));
+                        // 出站调度：写长度前缀，控制消息优先于排队的视频数据，按需控制发送节奏
+                        pipeline.addLast(new FramePacer(estimatedBandwidth, frameRate, pacingEnabled));
+
+                        // 添加业务处理器
+                        pipeline.addLast(handlerFactory.get());
+                    }
+                });
+    }
+
+    /**
+     * 发送握手（使用当前视频参数），需在 TCP 连接建立后调用
+     *
+     * @return 收到TV端握手响应后完成；超时或连接断开时异常完成
+     */
+    public CompletableFuture<Void> handshake() {
+        CompletableFuture<Void> acked = new CompletableFuture<>();
+        Channel ch = channel;
+        if (state.get() != State.CONNECTED || ch == null || !ch.isActive()) {
+            acked.completeExceptionally(new IllegalStateException("尚未连接（状态: " + state.get() + "）"));
+            return acked;
+        }
+        handshakeFuture = acked;
+        firstFrameFuture = new CompletableFuture<>();
+        firstRenderFuture = new CompletableFuture<>();
+        pendingFirstRender = -1;
+
+        handshakeTimeoutTask = ch.eventLoop().schedule(() -> {
+            if (!acked.isDone() && ch == channel) {
+                System.err.println("握手超时（" + HANDSHAKE_TIMEOUT_MS + "ms），自动断开");
+                connectionLost(ch, "握手超时，请检查TV端是否正常运行");
+            }
+        }, HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        sendHandshake(ch, false);
+        return acked;
+    }
+
+    /**
+     * 握手完成后第一个关键帧写入 Socket 时完成，结果为写入完成时的 System.nanoTime()
+     */
+    public CompletableFuture<Long> firstFrameSent() {
+        CompletableFuture<Long> first = firstFrameFuture;
+        return first != null ? first : new CompletableFuture<>();
+    }
+
+    /**
+     * 握手完成后第一帧在TV端上屏时完成，结果为上屏时刻换算到本机的 System.nanoTime()
+     *
+     * 依据TV端的帧时间回报（见 {@link #getLatencyStats()}）；TV端版本过低、不回报帧时间时异常完成
+     */
+    public CompletableFuture<Long> firstFrameRendered() {
+        CompletableFuture<Long> first = firstRenderFuture;
+        return first != null ? first : new CompletableFuture<>();
+    }
+
+    /**
+     * 收到握手响应：首次握手先做带宽探测，视频走 UDP 时再打开 UDP 发送端，然后进入推流状态
+     *
+     * @param acceptedVersion TV端接受的协议版本
+     * @param udpPort         TV端接收视频的 UDP 端口，不支持或未请求 UDP 时为 0
+     */
+    private void onHandshakeAck(Channel ch, int acceptedVersion, int udpPort) {
+        ScheduledFuture<?> task = handshakeTimeoutTask;
+        handshakeTimeoutTask = null;
+        if (task != null) {
+            task.cancel(false);
+        }
+        if (ch != channel || state.get() != State.CONNECTED) {
+            return;
+        }
+        this.udpPort = udpPort;
+        if (!sessionEstablished && acceptedVersion >= VERSION_PROBE) {
+            // 探测完成（或超时）后再继续，探测期间仍处于 CONNECTED 状态，视频帧直接丢弃
+            probeBandwidth(ch).thenAccept(probe -> {
+                bandwidthProbe = probe;
+                openTransport(ch, acceptedVersion, udpPort);
+            });
+            return;
+        }
+        openTransport(ch, acceptedVersion, udpPort);
+    }
+
+    /**
+     * 选择视频传输方式后完成握手
+     */
+    private void openTransport(Channel ch, int acceptedVersion, int udpPort) {
+        if (ch != channel || state.get() != State.CONNECTED) {
+            return;
+        }
+        if (!useUdp(acceptedVersion, udpPort)) {
+            completeHandshake(ch, acceptedVersion, null);
+            return;
+        }
+        openRtpSender(ch, udpPort).whenComplete((rtp, e) -> eventLoop().execute(() -> {
+            if (e != null) {
+                System.err.println("UDP 视频通道打开失败，改用 TCP: " + e.getMessage());
+            }
+            completeHandshake(ch, acceptedVersion, rtp);
+        }));
+    }
+
+    /**
+     * 带宽探测：先发一个心跳测空载 RTT，紧接着发送一串填充包，TV端每收到一个包回报一次累计的到达间隔
+     *
+     * 探测包: [类型][4字节探测标识][2字节序号][2字节总数][填充]；
+     * 探测包和心跳都是控制消息，不受发送节奏控制。弱网上探测数据会挡住心跳响应，
+     * 逐包回报让连接不会因此被判定失联；超时仍没收完时按最近一次回报计算吞吐量
+     *
+     * @return 收到TV端回报或超时后完成（事件循环线程），不会异常完成
+     */
+    private CompletableFuture<BandwidthProbe> probeBandwidth(Channel ch) {
+        PendingProbe probe = new PendingProbe(ThreadLocalRandom.current().nextInt(), sendHeartbeat(ch));
+        pendingProbe = probe;
+        for (int i = 0; i < PROBE_PACKETS; i++) {
+            ByteBuf packet = ch.alloc().buffer(PROBE_PACKET_SIZE);
+            packet.writeByte(MSG_PROBE);
+            packet.writeInt(probe.id);
+            packet.writeShort(i);
+            packet.writeShort(PROBE_PACKETS);
+            packet.writeZero(PROBE_PACKET_SIZE - packet.writerIndex());
+            ch.write(packet);
+        }
+        ch.flush();
+        probe.timeoutTask = ch.eventLoop().schedule(() -> {
+            // 超时：按最近一次回报计算；一次回报都没有时，吞吐量至多为一个探测包 / 超时时间
+            long throughput = probe.reportedNanos > 0
+                    ? probe.reportedBytes * 8 * 1_000_000_000L / probe.reportedNanos
+                    : (long) PROBE_PACKET_SIZE * 8 * 1000 / PROBE_TIMEOUT_MS;
+            finishProbe(probe, new BandwidthProbe(throughput, probe.rttNanos, probe.reportedBytes, false));
+        }, PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return probe.result;
+    }
+
+    /**
+     * 收到探测回报: [4字节探测标识][4字节已收到的包数][8字节第一个包之后的字节数][8字节第一个包到当前包的间隔（纳秒）]
+     */
+    private void onProbeReport(ByteBuf msg) {
+        PendingProbe probe = pendingProbe;
+        if (probe == null || msg.readableBytes() < 24 || msg.readInt() != probe.id) {
+            return;
+        }
+        int received = msg.readInt();
+        probe.reportedBytes = msg.readLong();
+        probe.reportedNanos = msg.readLong();
+        if (received < PROBE_PACKETS) {
+            return;
+        }
+        long dispersionNanos = Math.max(1000, probe.reportedNanos);
+        finishProbe(probe, new BandwidthProbe(probe.reportedBytes * 8 * 1_000_000_000L / dispersionNanos,
+                probe.rttNanos, probe.reportedBytes, true));
+    }
+
+    private void finishProbe(PendingProbe probe, BandwidthProbe result) {
+        if (pendingProbe != probe) {
+            return;
+        }
+        pendingProbe = null;
+        probe.timeoutTask.cancel(false);
+        System.out.println("带宽探测: " + result);
+        probe.result.complete(result);
+    }
+
+    /**
+     * 进行中的带宽探测
+     */
+    private static final class PendingProbe {
+        final int id;
+        // 探测前心跳的发送时间，据此认出它的响应
+        final long heartbeatSentAt;
+        final CompletableFuture<BandwidthProbe> result = new CompletableFuture<>();
+        long rttNanos = -1;
+        // 最近一次回报：第一个包之后收到的字节数、经过的时间
+        long reportedBytes;
+        long reportedNanos;
+        ScheduledFuture<?> timeoutTask;
+
+        PendingProbe(int id, long heartbeatSentAt) {
+            this.id = id;
+            this.heartbeatSentAt = heartbeatSentAt;
+        }
+    }
+
+    /**
+     * 是否与该TV端使用 UDP 传输视频
+     */
+    private boolean useUdp(int acceptedVersion, int udpPort) {
+        return udpTransport && acceptedVersion >= VERSION_UDP && udpPort > 0;
+    }
+
+    /**
+     * 打开到连接对端指定 UDP 端口的发送端（在本客户端的事件循环上）
+     */
+    private CompletableFuture<RtpSender> openRtpSender(Channel ch, int udpPort) {
+        InetSocketAddress remote = (InetSocketAddress) ch.remoteAddress();
+        return RtpSender.open(eventLoop(), new InetSocketAddress(remote.getAddress(), udpPort), udpSessionId,
+                fecPercent);
+    }
+
+    /**
+     * 进入推流状态，从下一个 IDR 帧开始发送
+     *
+     * @param rtp UDP 发送端，视频走 TCP 时为 null
+     */
+    private void completeHandshake(Channel ch, int acceptedVersion, RtpSender rtp) {
+        if (ch != channel || !state.compareAndSet(State.CONNECTED, State.STREAMING)) {
+            if (rtp != null) {
+                rtp.close();
+            }
+            return;
+        }
+        peerVersions.put(remoteHost + ":" + remotePort, acceptedVersion);
+        synchronized (sendLock) {
+            negotiatedVersion = Math.min(PROTOCOL_VERSION, acceptedVersion);
+            frameSequence = 0;
+            awaitingKeyFrame = true;
+            rtpSender = rtp;
+        }
+        System.out.println("协议版本: " + negotiatedVersion
+                + (negotiatedVersion >= VERSION_FRAME_V2 ? "（v2 视频帧）" : "（v1 视频帧）")
+                + (rtp != null ? "，视频经 UDP 发送" : ""));
+        CompletableFuture<Long> firstRender = firstRenderFuture;
+        if (firstRender != null && negotiatedVersion < VERSION_FRAME_TIMING) {
+            firstRender.completeExceptionally(new UnsupportedOperationException("TV端不回报帧时间"));
+        }
+
+        if (!sessionEstablished) {
+            sessionEstablished = true;
+            if (onConnected != null) {
+                onConnected.run();
+            }
+        } else if (onResumeHandshake != null) {
+            // 重连恢复：TV端解码器要从 IDR 重新开始
+            onResumeHandshake.run();
+        }
+        CompletableFuture<Void> acked = handshakeFuture;
+        if (acked != null) {
+            acked.complete(null);
+        }
+    }
+    
+    /**
+     * 断开连接 - 无论连接状态如何都可以调用，不会报错
+     */
+    public void disconnect() {
+        System.out.println("[DEBUG] disconnect() 被调用");
+        sessionEstablished = false;
+        forceDisconnect();
+    }
+
+    /**
+     * 强制断开连接（内部使用）
+     *
+     * 仅当之前处于连接中或已连接状态时才触发 onDisconnected 回调
+     */
+    private void forceDisconnect() {
+        State previous = state.get();
+        if (previous == State.IDLE || previous == State.CLOSING
+                || !state.compareAndSet(previous, State.CLOSING)) {
+            System.out.println("[DEBUG] forceDisconnect: 当前状态 " + state.get() + "，无需断开");
+            return;
+        }
+
+        System.out.println("[DEBUG] forceDisconnect: " + previous + " -> CLOSING");
+        cleanupResources();
+        state.set(State.IDLE);
+
+        if (onDisconnected != null) {
+            System.out.println("[DEBUG] 触发 onDisconnected 回调");
+            onDisconnected.run();
+        }
+    }
+
+    /**
+     * 连接意外中断（事件循环线程）：推流开始后且允许自动重连时转入重连，否则报错并断开
+     *
+     * @param reason 中断原因（用于日志和错误提示），为 null 时表示对端正常关闭，不触发错误回调
+     */
+    private void connectionLost(Channel ch, String reason) {
+        if (ch != channel) {
+            return;
+        }
+        State current = state.get();
+        boolean resumable = autoReconnect && sessionEstablished
+                && (current == State.STREAMING || current == State.CONNECTED);
+        if (!resumable || !state.compareAndSet(current, State.RECONNECTING)) {
+            if (reason != null && onError != null) {
+                onError.accept(reason);
+            }
+            forceDisconnect();
+            return;
+        }
+        if (reason == null) {
+            reason = "连接已关闭";
+        }
+
+        // 只关闭当前连接，采集和编码器保持运行，期间的帧由 sendFrame 丢弃
+        cleanupResources();
+        if (current == State.STREAMING) {
+            reconnectAttempt = 0;
+            reconnectStartedAt = System.nanoTime();
+            System.err.println("连接中断（" + reason + "），开始自动重连");
+            if (onReconnecting != null) {
+                onReconnecting.accept(reason);
+            }
+        } else {
+            // 重连后握手失败：继续退避，不重新计时
+            System.err.println("重连后握手失败（" + reason + "），继续重连");
+        }
+        scheduleReconnect();
+    }
+
+    /**
+     * 按带抖动的指数退避安排下一次重连：第一次立即尝试，之后等待 [退避/2, 退避) 的随机时间
+     */
+    private void scheduleReconnect() {
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reconnectStartedAt);
+        long delayMs = 0;
+        if (reconnectAttempt > 0) {
+            long backoff = Math.min(RECONNECT_MAX_DELAY_MS,
+                    (long) RECONNECT_BASE_DELAY_MS << Math.min(reconnectAttempt - 1, 16));
+            delayMs = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        }
+        if (elapsedMs + delayMs > RECONNECT_DEADLINE_MS) {
+            System.err.println("自动重连失败（" + reconnectAttempt + " 次尝试），放弃");
+            if (onError != null) {
+                onError.accept("连接中断，" + RECONNECT_DEADLINE_MS / 1000 + " 秒内未能重新连接");
+            }
+            forceDisconnect();
+            return;
+        }
+        reconnectAttempt++;
+        reconnectTask = eventLoop().schedule(this::attemptReconnect, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 进行一次重连：TCP 连接成功后重新握手，握手完成即恢复推流
+     */
+    private void attemptReconnect() {
+        reconnectTask = null;
+        if (state.get() != State.RECONNECTING) {
+            return;
+        }
+        System.out.println("正在重连 " + remoteHost + ":" + remotePort + "（第 " + reconnectAttempt + " 次）...");
+        ChannelFuture future = bootstrap(RECONNECT_CONNECT_TIMEOUT_MS, CastClientHandler::new)
+                .connect(remoteHost, remotePort);
+        channel = future.channel();
+        future.addListener((ChannelFutureListener) f -> {
+            if (f.channel() != channel) {
+                f.channel().close();
+                return;
+            }
+            if (!f.isSuccess()) {
+                channel = null;
+                if (state.get() == State.RECONNECTING) {
+                    scheduleReconnect();
+                }
+                return;
+            }
+            if (!state.compareAndSet(State.RECONNECTING, State.CONNECTED)) {
+                f.channel().close();
+                return;
+            }
+            pacer = f.channel().pipeline().get(FramePacer.class);
+            long lostAt = reconnectStartedAt;
+            handshake().thenCompose(ignored -> firstFrameSent()).thenAccept(sentAt -> {
+                long resumeMs = TimeUnit.NANOSECONDS.toMillis(sentAt - lostAt);
+                System.out.println("连接已恢复，中断 " + resumeMs + "ms");
+                if (onResumed != null) {
+                    onResumed.accept(resumeMs);
+                }
+            });
+        });
+    }
+
+    /**
+     * 记录TV端的协议版本（调用方从上次会话保存的结果恢复），决定能否与其保持备用连接
+     */
+    public void rememberPeerVersion(String host, int port, int version) {
+        if (version > 0) {
+            peerVersions.put(host + ":" + port, version);
+        }
+    }
+
+    /**
+     * TV端最近一次握手时接受的协议版本，从未握手过时返回 0
+     */
+    public int peerVersion(String host, int port) {
+        return peerVersions.getOrDefault(host + ":" + port, 0);
+    }
+
+    /**
+     * 添加备用目标：建立备用连接并保持（已存在时只更新最近使用顺序）
+     *
+     * 只对已知协议版本不低于 {@link #VERSION_STANDBY} 的TV端建立；版本未知时不握手，
+     * 避免旧版TV端把备用握手当成投屏。投屏过一次后即可作为备用目标。
+     */
+    public void addStandbyTarget(String host, int port) {
+        eventLoop().execute(() -> {
+            String key = host + ":" + port;
+            if (standby.get(key) != null) {
+                return;
+            }
+            int version = peerVersion(host, port);
+            if (version < VERSION_STANDBY) {
+                System.out.println("TV端 " + key + (version == 0 ? " 协议版本未知" : " 协议版本 " + version)
+                        + "，不建立备用连接");
+                return;
+            }
+            StandbyConnection connection = new StandbyConnection(this, host, port);
+            putStandby(key, connection);
+            connection.open();
+            System.out.println("建立备用连接: " + key);
+        });
+    }
+
+    /**
+     * 移除备用目标并关闭其连接
+     */
+    public void removeStandbyTarget(String host, int port) {
+        eventLoop().execute(() -> {
+            StandbyConnection connection = standby.remove(host + ":" + port);
+            if (connection != null) {
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * 关闭全部备用连接（应用退出时调用）
      */
-    public void setOnError(Consumer<String> callback) {
-        this.onError = callback;
+    public void clearStandbyTargets() {
+        eventLoop().execute(() -> {
+            for (StandbyConnection connection : standby.values()) {
+                connection.close();
+            }
+            standby.clear();
+        });
     }
-    
+
     /**
-     * 设置视频参数
+     * 当前已就绪、可以立即切换的备用目标（host:port）
      */
-    public void setVideoParams(int width, int height, int fps) {
-        this.videoWidth = width;
-        this.videoHeight = height;
-        this.frameRate = fps;
+    public CompletableFuture<List<String>> readyStandbyTargets() {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        eventLoop().execute(() -> {
+            List<String> ready = new ArrayList<>();
+            for (Map.Entry<String, StandbyConnection> entry : standby.entrySet()) {
+                if (entry.getValue().isReady()) {
+                    ready.add(entry.getKey());
+                }
+            }
+            result.complete(ready);
+        });
+        return result;
     }
-    
+
     /**
-     * 连接到服务器
+     * 推流中把视频流切换到另一台TV端
      *
-     * @param host 服务器地址
-     * @param port 服务器端口
+     * 直接接管到目标的备用连接：先发激活消息（携带当前格式和 SPS/PPS），再从下一个 IDR 帧继续发送，
+     * 编码器和采集都不重建。原连接通知TV端停止显示后降级为备用连接，可以随时切回。
+     * 统计（RTT、时钟偏差、延迟、接收统计）随连接重新开始。
+     *
+     * @return 切换后第一帧写入 Socket 时完成，结果为从调用到写出的耗时（毫秒）；
+     *         未在推流或目标没有就绪的备用连接时异常完成，调用方可改为重新投屏
      */
-    public void connect(String host, int port) throws Exception {
-        if (connected.get() || connecting.get()) {
-            System.out.println("已有连接或正在连接中，跳过本次连接请求");
-            return;
-        }
-
-        connecting.set(true);
-        System.out.println("正在连接到 " + host + ":" + port + "...");
-
-        // 启动10秒连接超时定时器
-        final String targetHost = host;
-        final int targetPort = port;
-        connectTimeoutTask = timeoutExecutor.schedule(() -> {
-            if (connecting.get() && !connected.get()) {
-                System.err.println("连接超时（10秒），自动断开");
-                if (onError != null) {
-                    onError.accept("连接超时（10秒），请检查TV端是否正常运行");
-                }
-                // 强制断开连接
-                forceDisconnect();
+    public CompletableFuture<Long> switchTo(String host, int port) {
+        CompletableFuture<Long> switched = new CompletableFuture<>();
+        long startedAt = System.nanoTime();
+        eventLoop().execute(() -> {
+            String key = host + ":" + port;
+            StandbyConnection target = standby.get(key);
+            Channel old = channel;
+            if (state.get() != State.STREAMING || old == null) {
+                switched.completeExceptionally(new IllegalStateException("当前未在投屏（状态: " + state.get() + "）"));
+                return;
             }
-        }, 10, TimeUnit.SECONDS);
-
-        workerGroup = new NioEventLoopGroup();
-
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(workerGroup)
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.SO_KEEPALIVE, true)
-                .option(ChannelOption.TCP_NODELAY, true)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT * 1000)
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) throws Exception {
-                        ChannelPipeline pipeline = ch.pipeline();
-
-                        // 添加长度字段编解码器（解决粘包问题）
-                        // 格式: [4字节长度][数据体]
-                        pipeline.addLast(new LengthFieldBasedFrameDecoder(
-                                10 * 1024 * 1024,  // 最大帧大小 10MB
-                                0, 4, 0, 4));
-                        pipeline.addLast(new LengthFieldPrepender(4));
-
-                        // 添加业务处理器
-                        pipeline.addLast(new CastClientHandler());
-                    }
-                });
-
-        // 连接服务器 - 使用异步连接
-        ChannelFuture future = bootstrap.connect(host, port);
-        future.addListener((ChannelFutureListener) f -> {
-            if (f.isSuccess()) {
-                // 取消超时任务
-                if (connectTimeoutTask != null) {
-                    connectTimeoutTask.cancel(false);
-                    connectTimeoutTask = null;
+            if (host.equals(remoteHost) && port == remotePort) {
+                switched.completeExceptionally(new IllegalStateException("已在投屏到 " + key));
+                return;
+            }
+            if (target == null || !target.isReady()) {
+                if (peerVersion(host, port) < VERSION_STANDBY) {
+                    switched.completeExceptionally(new IllegalStateException(
+                            "TV端 " + key + " 未确认支持备用连接，需重新投屏"));
+                    return;
                 }
-
-                channel = f.channel();
-                connecting.set(false);
-                connected.set(true);
-                System.out.println("已连接到服务器: " + host + ":" + port);
-
-                if (onConnected != null) {
-                    onConnected.run();
+                if (target == null) {
+                    addStandbyTarget(host, port);
                 }
+                switched.completeExceptionally(new IllegalStateException(
+                        "到 " + key + " 的备用连接尚未就绪，已开始预连接，请稍后再试"));
+                return;
+            }
+            standby.remove(key);
+            int version = target.acceptedVersion();
+            int udpPort = target.udpPort();
+            Channel next = target.detach();
+            String oldHost = remoteHost;
+            int oldPort = remotePort;
+            int oldVersion = negotiatedVersion;
+            int oldUdpPort = this.udpPort;
 
-                // 发送握手消息
-                sendHandshake();
-
-                // 添加关闭监听器
-                channel.closeFuture().addListener(closeFuture -> {
-                    System.out.println("[DEBUG] closeFuture 监听器: 连接已关闭");
-                    // 取消超时任务
-                    if (connectTimeoutTask != null) {
-                        connectTimeoutTask.cancel(false);
-                        connectTimeoutTask = null;
+            next.pipeline().addLast(new CastClientHandler());
+            FramePacer nextPacer = next.pipeline().get(FramePacer.class);
+            nextPacer.setBandwidth(estimatedBandwidth);
+            nextPacer.setFrameRate(frameRate);
+            lastReadNanos = System.nanoTime();
+            rttStats.reset();
+            clockSync.reset();
+            latencyStats.reset();
+            receiverStats = null;
+            remoteHost = host;
+            remotePort = port;
+            this.udpPort = udpPort;
+            CompletableFuture<Long> firstSent = new CompletableFuture<>();
+            firstFrameFuture = firstSent;
+            // 激活消息在本任务内写出，早于发送线程之后提交的任何关键帧
+            next.writeAndFlush(encodeFormat(MSG_ACTIVATE));
+            boolean udp = useUdp(version, udpPort);
+            RtpSender rtp = rtpSender;
+            synchronized (sendLock) {
+                negotiatedVersion = Math.min(PROTOCOL_VERSION, version);
+                frameSequence = 0;
+                awaitingKeyFrame = true;
+                pacer = nextPacer;
+                channel = next;
+                if (rtp != null && udp) {
+                    // 已有 UDP 发送端：直接改发到新目标
+                    rtp.retarget(new InetSocketAddress(((InetSocketAddress) next.remoteAddress()).getAddress(),
+                            udpPort));
+                } else if (rtp != null) {
+                    rtpSender = null;
+                }
+            }
+            if (rtp != null && !udp) {
+                rtp.close();
+            } else if (rtp == null && udp) {
+                // 原目标走 TCP：UDP 发送端就绪后从下一个 IDR 帧起改走 UDP，之前的帧仍走 TCP
+                openRtpSender(next, udpPort).whenComplete((opened, e) -> eventLoop().execute(() -> {
+                    if (e != null) {
+                        System.err.println("UDP 视频通道打开失败，继续使用 TCP: " + e.getMessage());
+                        return;
                     }
-                    // 注意：不在这里清理资源，让 channelInactive 处理
-                    // 只清理 workerGroup，不设置 connected 状态
-                    try {
-                        if (workerGroup != null) {
-                            workerGroup.shutdownGracefully();
-                            workerGroup = null;
+                    boolean installed;
+                    synchronized (sendLock) {
+                        installed = channel == next && rtpSender == null;
+                        if (installed) {
+                            rtpSender = opened;
+                            awaitingKeyFrame = true;
                         }
-                    } catch (Exception e) {
-                        System.err.println("关闭workerGroup时出错: " + e.getMessage());
                     }
-                });
+                    if (!installed) {
+                        opened.close();
+                    } else if (onKeyFrameRequest != null) {
+                        onKeyFrameRequest.run();
+                    }
+                }));
+            }
+
+            // 原连接：让TV端回到等待画面，保留为备用连接
+            old.pipeline().remove(CastClientHandler.class);
+            if (old.isActive() && oldVersion >= VERSION_STANDBY) {
+                ByteBuf deactivate = old.alloc().buffer(1);
+                deactivate.writeByte(MSG_DEACTIVATE);
+                old.writeAndFlush(deactivate);
+            }
+            StandbyConnection previous = standby.remove(oldHost + ":" + oldPort);
+            if (previous != null) {
+                previous.close();
+            }
+            if (oldVersion >= VERSION_STANDBY) {
+                putStandby(oldHost + ":" + oldPort,
+                        StandbyConnection.adopt(this, oldHost, oldPort, old, oldVersion, oldUdpPort));
             } else {
-                System.err.println("连接失败: " + f.cause().getMessage());
-                // 取消超时任务
-                if (connectTimeoutTask != null) {
-                    connectTimeoutTask.cancel(false);
-                    connectTimeoutTask = null;
-                }
-                // 连接失败时触发错误回调
-                if (onError != null) {
-                    onError.accept("连接失败: " + f.cause().getMessage());
-                }
-                forceDisconnect();
+                old.close();
+            }
+
+            System.out.println("投屏切换: " + oldHost + " -> " + host);
+            if (onResumeHandshake != null) {
+                onResumeHandshake.run();
             }
+            firstSent.thenAccept(sentAt -> {
+                long switchMs = TimeUnit.NANOSECONDS.toMillis(sentAt - startedAt);
+                System.out.println("投屏已切换到 " + key + "，耗时 " + switchMs + "ms");
+                switched.complete(switchMs);
+            });
+            firstSent.exceptionally(e -> {
+                switched.completeExceptionally(e);
+                return null;
+            });
         });
+        return switched;
     }
-    
+
     /**
-     * 断开连接 - 无论连接状态如何都可以调用，不会报错
+     * 加入备用连接，超出上限时关闭最久未使用的
      */
-    public void disconnect() {
-        System.out.println("[DEBUG] disconnect() 被调用");
-        // 取消超时任务
-        if (connectTimeoutTask != null) {
-            connectTimeoutTask.cancel(false);
-            connectTimeoutTask = null;
-        }
-
-        // 保存状态，然后清理资源并触发回调
-        boolean wasConnectedOrConnecting = connected.get() || connecting.get();
-        cleanupResources();
-
-        // 触发断开回调（如果之前是连接状态）
-        if (wasConnectedOrConnecting && onDisconnected != null) {
-            System.out.println("[DEBUG] disconnect: 触发 onDisconnected 回调");
-            onDisconnected.run();
+    private void putStandby(String key, StandbyConnection connection) {
+        standby.put(key, connection);
+        while (standby.size() > MAX_STANDBY_CONNECTIONS) {
+            Map.Entry<String, StandbyConnection> eldest = standby.entrySet().iterator().next();
+            standby.remove(eldest.getKey());
+            eldest.getValue().close();
+            System.out.println("备用连接超出上限，关闭: " + eldest.getKey());
         }
     }
 
     /**
-     * 强制断开连接（内部使用）
+     * 移除不可用的备用连接（TV端版本不支持等），事件循环线程调用
      */
-    private void forceDisconnect() {
-        boolean wasConnected = connected.get();
-        boolean wasConnecting = connecting.get();
-        boolean wasConnectedOrConnecting = wasConnected || wasConnecting;
-
-        System.out.println("[DEBUG] forceDisconnect: wasConnected=" + wasConnected +
-                           ", wasConnecting=" + wasConnecting +
-                           ", willTriggerCallback=" + wasConnectedOrConnecting);
-
-        // 先清理资源
-        cleanupResources();
-
-        // 只有之前有连接或正在连接时才触发回调
-        if (wasConnectedOrConnecting && onDisconnected != null) {
-            System.out.println("[DEBUG] 触发 onDisconnected 回调");
-            onDisconnected.run();
-        } else {
-            System.out.println("[DEBUG] 不触发 onDisconnected 回调: wasConnectedOrConnecting=" +
-                               wasConnectedOrConnecting + ", onDisconnected=" + (onDisconnected != null));
+    void dropStandby(StandbyConnection connection) {
+        String key = connection.host() + ":" + connection.port();
+        if (connection.acceptedVersion() > 0) {
+            peerVersions.put(key, connection.acceptedVersion());
         }
+        if (standby.get(key) == connection) {
+            standby.remove(key);
+        }
+        connection.close();
     }
 
     /**
      * 只清理资源，不触发回调
+     *
+     * 共享事件循环不在这里关闭，只关闭当前连接
      */
     private void cleanupResources() {
-        System.out.println("[DEBUG] cleanupResources: 清理资源");
-
-        connected.set(false);
-        connecting.set(false);
+        cancelConnectTimeout();
+        ScheduledFuture<?> retry = reconnectTask;
+        reconnectTask = null;
+        if (retry != null) {
+            retry.cancel(false);
+        }
+        ScheduledFuture<?> task = handshakeTimeoutTask;
+        handshakeTimeoutTask = null;
+        if (task != null) {
+            task.cancel(false);
+        }
+        awaitingKeyFrame = false;
+        PendingProbe probe = pendingProbe;
+        pendingProbe = null;
+        if (probe != null) {
+            probe.timeoutTask.cancel(false);
+        }
+        failPending(new IllegalStateException("连接已关闭"));
 
+        Channel ch = channel;
+        channel = null;
+        pacer = null;
+        RtpSender rtp = rtpSender;
+        rtpSender = null;
+        if (rtp != null) {
+            System.out.println(rtp.summary());
+            rtp.close();
+        }
         try {
-            if (channel != null && channel.isActive()) {
-                channel.close();
+            if (ch != null) {
+                ch.close();
             }
         } catch (Exception e) {
             System.err.println("关闭channel时出错: " + e.getMessage());
         }
+    }
 
-        try {
-            if (workerGroup != null) {
-                workerGroup.shutdownGracefully();
-                workerGroup = null;
+    /**
+     * 让尚未完成的启动阶段异常结束，避免调用方一直等待
+     */
+    private void failPending(Throwable cause) {
+        CompletableFuture<?>[] pending = {connectFuture, handshakeFuture, firstFrameFuture, firstRenderFuture};
+        for (CompletableFuture<?> future : pending) {
+            if (future != null) {
+                future.completeExceptionally(cause);
             }
-        } catch (Exception e) {
-            System.err.println("关闭workerGroup时出错: " + e.getMessage());
         }
+        connectFuture = null;
+        handshakeFuture = null;
+        firstFrameFuture = null;
+        firstRenderFuture = null;
+    }
 
-        channel = null;
+    /**
+     * 取消连接超时任务
+     */
+    private void cancelConnectTimeout() {
+        ScheduledFuture<?> task = connectTimeoutTask;
+        connectTimeoutTask = null;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
 
-        System.out.println("[DEBUG] cleanupResources: 资源已清理");
+    /**
+     * 发送视频帧（单接收端；多接收端由 {@link CastHub} 共享缓冲区分发）
+     *
+     * @param frame H.264编码后的帧
+     */
+    public void sendFrame(EncodedFrame frame) {
+        SharedFrame shared = new SharedFrame(frame);
+        try {
+            sendFrame(shared, false);
+        } finally {
+            shared.release();
+        }
     }
     
     /**
      * 发送视频帧
      * 
-     * @param frameData H.264编码后的帧数据
+     * 按协商的协议版本选择帧格式：
+     * v1: [0x01][4字节毫秒时间戳][Annex B 数据]
+     * v2: [0x05][1字节标志][4字节序号][8字节采集时间（纳秒）][[4字节长度][NAL]...]
+     * v2 超过 {@link #FRAGMENT_SIZE} 且TV端支持分片时，去掉类型字节后拆成若干分片：
+     * [0x06][4字节帧序号][4字节总长度][4字节偏移][数据]
+     *
+     * 帧体直接引用共享缓冲区，只有帧头按接收端生成。
+     * 该接收端排队的帧过多时按丢帧策略丢弃，只影响它自己（见 {@link #shouldDrop}）
+     *
+     * @param shared H.264编码后的帧
+     * @param primed 从 GOP 缓存补发的帧（TV端支持时带 {@link #FLAG_PRIMED}）
      */
-    public void sendFrame(byte[] frameData) {
-        if (!connected.get() || channel == null || !channel.isActive()) {
-            return;
+    void sendFrame(SharedFrame shared, boolean primed) {
+        EncodedFrame frame = shared.frame();
+        Channel ch;
+        RtpSender rtp;
+        boolean first = false;
+        int version;
+        int sequence;
+        // 与 switchTo 互斥：连接、等待关键帧标志、帧序号要一起读取
+        synchronized (sendLock) {
+            ch = channel;
+            rtp = rtpSender;
+            if (state.get() != State.STREAMING || ch == null || !ch.isActive()) {
+                return;
+            }
+
+            // 握手后从第一个 IDR 帧开始发送，之前的帧TV端无法解码
+            if (awaitingKeyFrame) {
+                if (!frame.isKeyFrame()) {
+                    framesDropped++;
+                    return;
+                }
+                awaitingKeyFrame = false;
+                first = true;
+            } else if (!primed && (rtp != null ? !rtp.isWritable() && frame.isDroppable() : shouldDrop(frame))) {
+                // UDP 没有出站队列，只在 Socket 发送缓冲区满时丢弃可丢弃帧
+                framesDropped++;
+                return;
+            }
+            version = negotiatedVersion;
+            sequence = version >= VERSION_FRAME_V2 ? frameSequence++ : 0;
         }
         
         try {
-            // 构造数据包: [1字节类型][4字节时间戳][视频数据]
-            ByteBuf buffer = Unpooled.buffer(5 + frameData.length);
-            buffer.writeByte(0x01);  // 类型: 视频帧
-            buffer.writeInt((int) System.currentTimeMillis());  // 时间戳
-            buffer.writeBytes(frameData);
-            
-            channel.writeAndFlush(buffer);
+            if (rtp != null) {
+                rtp.sendFrame(encodeFrameV2(shared, sequence, primed && version >= VERSION_PRIMED).skipBytes(1), sequence);
+                framesSent++;
+                CompletableFuture<Long> firstSent = firstFrameFuture;
+                if (first && firstSent != null) {
+                    firstSent.complete(System.nanoTime());
+                }
+                return;
+            }
+            ChannelFuture written;
+            if (version < VERSION_FRAME_V2) {
+                written = ch.writeAndFlush(encodeFrameV1(shared));
+            } else {
+                ByteBuf buffer = encodeFrameV2(shared, sequence, primed && version >= VERSION_PRIMED);
+                if (version >= VERSION_FRAGMENTS && buffer.readableBytes() - 1 > FRAGMENT_SIZE) {
+                    written = writeFragments(ch, buffer, sequence);
+                } else {
+                    written = ch.writeAndFlush(buffer);
+                }
+            }
+            framesSent++;
+            CompletableFuture<Long> firstSent = firstFrameFuture;
+            if (first && firstSent != null) {
+                written.addListener(f -> {
+                    if (f.isSuccess()) {
+                        firstSent.complete(System.nanoTime());
+                    }
+                });
+            }
         } catch (Exception e) {
             System.err.println("发送帧失败: " + e.getMessage());
         }
     }
     
     /**
-     * 发送握手消息
+     * TV端能否只解码不上屏地接收补发帧（{@link #FLAG_PRIMED}），这时整段 GOP 补发不会占满TV端解码队列
+     */
+    boolean acceptsPrimedFrames() {
+        return negotiatedVersion >= VERSION_PRIMED;
+    }
+
+    /**
+     * 补发 GOP 缓存中的帧（发送线程），第一帧须为关键帧；补发的帧不受丢帧策略限制
+     *
+     * @param holdUntilKeyFrame 只补发了 GOP 的开头：之后的帧参考缺失的帧，丢弃到下一个关键帧
+     */
+    void prime(List<SharedFrame> frames, boolean holdUntilKeyFrame) {
+        primeAllowance = frames.size();
+        for (SharedFrame frame : frames) {
+            sendFrame(frame, true);
+        }
+        if (holdUntilKeyFrame) {
+            synchronized (sendLock) {
+                awaitingKeyFrame = true;
+            }
+        }
+    }
+
+    /**
+     * 丢帧策略（发送线程）：按该接收端出站队列里尚未开始写出的帧数判断
+     *
+     * 积压 {@link #DROP_DROPPABLE_QUEUE} 帧起丢弃不被参考的帧，不影响解码；
+     * 积压到 {@link #SKIP_TO_KEY_FRAME_QUEUE} 帧说明已明显落后，丢弃后续所有帧直到下一个关键帧，并请求关键帧。
+     */
+    private boolean shouldDrop(EncodedFrame frame) {
+        FramePacer p = pacer;
+        int queued = p != null ? p.queuedFrames() : 0;
+        if (primeAllowance > 0) {
+            // 刚补发过 GOP：补发的帧不算积压
+            if (queued <= 1) {
+                primeAllowance = 0;
+            } else {
+                queued = Math.max(0, queued - primeAllowance);
+            }
+        }
+        if (queued >= SKIP_TO_KEY_FRAME_QUEUE && !frame.isKeyFrame()) {
+            awaitingKeyFrame = true;
+            System.err.println(remoteHost + " 积压 " + queued + " 帧，丢弃至下一个关键帧");
+            if (onKeyFrameRequest != null) {
+                onKeyFrameRequest.run();
+            }
+            return true;
+        }
+        return queued >= DROP_DROPPABLE_QUEUE && frame.isDroppable();
+    }
+
+    /**
+     * v1 视频帧: [1字节类型][4字节时间戳][Annex B 数据]
+     */
+    private ByteBuf encodeFrameV1(SharedFrame shared) {
+        ByteBuf header = Unpooled.buffer(5);
+        header.writeByte(MSG_VIDEO_FRAME);
+        header.writeInt((int) System.currentTimeMillis());  // 时间戳
+        return Unpooled.wrappedBuffer(header, shared.retainedAnnexB());
+    }
+
+    /**
+     * v2 视频帧: [1字节类型][1字节标志][4字节序号][8字节采集时间][[4字节长度][NAL]...]
+     */
+    private ByteBuf encodeFrameV2(SharedFrame shared, int sequence, boolean primed) {
+        EncodedFrame frame = shared.frame();
+        int flags = (frame.isKeyFrame() ? FLAG_KEY_FRAME : 0)
+                | (frame.isDroppable() ? FLAG_DROPPABLE : 0)
+                | (frame.hasConfig() ? FLAG_CONFIG : 0)
+                | (primed ? FLAG_PRIMED : 0);
+        ByteBuf header = Unpooled.buffer(14);
+        header.writeByte(MSG_VIDEO_FRAME_V2);
+        header.writeByte(flags);
+        header.writeInt(sequence);
+        header.writeLong(frame.getCaptureNanos());
+        return Unpooled.wrappedBuffer(header, shared.retainedNalBody());
+    }
+
+    /**
+     * 把 v2 视频帧拆成分片写出：[1字节类型][4字节帧序号][4字节总长度][4字节偏移][数据]
+     *
+     * 分片负载是去掉类型字节后的 v2 帧体，TV端按偏移顺序拼回后按 v2 帧解析。
+     * 分片共享原缓冲区，不复制数据
+     *
+     * @return 最后一个分片的写出结果
+     */
+    private ChannelFuture writeFragments(Channel ch, ByteBuf frame, int sequence) {
+        ByteBuf body = frame.skipBytes(1);
+        int total = body.readableBytes();
+        ChannelFuture last = null;
+        try {
+            for (int offset = 0; offset < total; offset += FRAGMENT_SIZE) {
+                int length = Math.min(FRAGMENT_SIZE, total - offset);
+                ByteBuf header = Unpooled.buffer(13);
+                header.writeByte(MSG_VIDEO_FRAGMENT);
+                header.writeInt(sequence);
+                header.writeInt(total);
+                header.writeInt(offset);
+                last = ch.write(Unpooled.wrappedBuffer(header, body.retainedSlice(body.readerIndex() + offset, length)));
+            }
+        } finally {
+            frame.release();
+        }
+        ch.flush();
+        return last;
+    }
+
+    /**
+     * 发送握手消息: [类型][版本][宽][高][帧率][配置长度][SPS/PPS][标志][会话标识（仅 UDP 标志）]
+     *
+     * @param standbyOnly 是否为备用连接握手（TV端只回响应，不切换到投屏画面）
      */
-    private void sendHandshake() {
-        if (channel == null || !channel.isActive()) {
+    void sendHandshake(Channel ch, boolean standbyOnly) {
+        if (ch == null || !ch.isActive()) {
             return;
         }
         
-        // 构造握手包
-        ByteBuf buffer = Unpooled.buffer();
-        buffer.writeByte(0x00);  // 类型: 握手
-        buffer.writeInt(1);      // 版本号
+        // 构造握手包（版本 2 在末尾附带编码器配置，版本 7 再附带标志，旧版TV端读完帧率后忽略剩余字节）
+        byte[] csd = codecConfig != null ? codecConfig : new byte[0];
+        ByteBuf buffer = Unpooled.buffer(29 + csd.length);
+        buffer.writeByte(MSG_HANDSHAKE);
+        buffer.writeInt(PROTOCOL_VERSION);  // 版本号
         buffer.writeInt(videoWidth);   // 屏幕宽度
         buffer.writeInt(videoHeight);  // 屏幕高度
         buffer.writeInt(frameRate);    // 帧率
+        buffer.writeInt(csd.length);   // 编码器配置长度
+        buffer.writeBytes(csd);        // SPS/PPS
+        int flags = (standbyOnly ? HANDSHAKE_FLAG_STANDBY : 0) | (udpTransport ? HANDSHAKE_FLAG_UDP : 0);
+        buffer.writeInt(flags);        // 标志
+        if (udpTransport) {
+            buffer.writeInt(udpSessionId);  // UDP 会话标识
+        }
         
-        channel.writeAndFlush(buffer);
+        ch.writeAndFlush(buffer);
         
-        System.out.println("发送握手信息: " + videoWidth + "x" + videoHeight + " @ " + frameRate + "fps");
+        if (!standbyOnly) {
+            System.out.println("发送握手信息: " + videoWidth + "x" + videoHeight + " @ " + frameRate + "fps，编码器配置 "
+                    + csd.length + " 字节");
+        }
     }
     
     /**
-     * 检查是否已连接
+     * 发送心跳: [1字节类型][8字节发送时间（System.nanoTime()）]，TV端原样回传
+     *
+     * @return 心跳中的发送时间
+     */
+    static long sendHeartbeat(Channel ch) {
+        long sentAt = System.nanoTime();
+        ByteBuf buffer = ch.alloc().buffer(9);
+        buffer.writeByte(MSG_HEARTBEAT);
+        buffer.writeLong(sentAt);
+        ch.writeAndFlush(buffer);
+        return sentAt;
+    }
+
+    /**
+     * 收到心跳响应: [8字节本机发送时间][8字节TV端接收时间][8字节TV端发送时间]
+     *
+     * 带回发送时间的计算 RTT，带有TV端时间的同时用于估计时钟偏差；
+     * 旧版TV端只回类型字节，只用于判断存活
+     */
+    private void onHeartbeatAck(ByteBuf msg) {
+        long receivedAt = System.nanoTime();
+        if (msg.readableBytes() < 8) {
+            return;
+        }
+        long sentAt = msg.readLong();
+        long rtt = receivedAt - sentAt;
+        if (msg.readableBytes() >= 16) {
+            clockSync.onExchange(sentAt, msg.readLong(), msg.readLong(), receivedAt);
+            if (pendingFirstRender >= 0 && clockSync.isReady()) {
+                completeFirstRender(pendingFirstRender);
+            }
+        }
+        rttStats.record(rtt);
+        PendingProbe probe = pendingProbe;
+        if (probe != null && sentAt == probe.heartbeatSentAt) {
+            probe.rttNanos = rtt;
+        }
+        LongConsumer callback = onRttSample;
+        if (callback != null) {
+            callback.accept(rtt);
+        }
+    }
+
+    /**
+     * 收到帧时间回报: [8字节采集时间（本机时钟）][8字节接收][8字节解码完成][8字节上屏]（后三者为TV端时钟）
+     */
+    private void onFrameTiming(ByteBuf msg) {
+        if (msg.readableBytes() < 32) {
+            return;
+        }
+        CompletableFuture<Long> firstRender = firstRenderFuture;
+        if (firstRender != null && !firstRender.isDone() && pendingFirstRender < 0) {
+            pendingFirstRender = msg.getLong(msg.readerIndex() + 24);
+            if (clockSync.isReady()) {
+                completeFirstRender(pendingFirstRender);
+            }
+        }
+        if (!clockSync.isReady()) {
+            return;
+        }
+        long captureNanos = msg.readLong();
+        long receivedAt = clockSync.toLocal(msg.readLong());
+        long decodedAt = clockSync.toLocal(msg.readLong());
+        long renderedAt = clockSync.toLocal(msg.readLong());
+        latencyStats.record(receivedAt - captureNanos, decodedAt - captureNanos, renderedAt - captureNanos);
+    }
+
+    private void completeFirstRender(long remoteRenderedAt) {
+        pendingFirstRender = -1;
+        CompletableFuture<Long> firstRender = firstRenderFuture;
+        if (firstRender != null) {
+            firstRender.complete(clockSync.toLocal(remoteRenderedAt));
+        }
+    }
+
+    /**
+     * 收到接收统计: [统计时长][收到][解码][显示][丢弃][队列峰值][平均解码耗时][最大解码耗时]（均为 4 字节）
+     */
+    private void onReceiverStatsReport(ByteBuf msg) {
+        if (msg.readableBytes() < 32) {
+            return;
+        }
+        ReceiverStats stats = new ReceiverStats(msg.readInt(), msg.readInt(), msg.readInt(), msg.readInt(),
+                msg.readInt(), msg.readInt(), msg.readInt(), msg.readInt());
+        receiverStats = stats;
+        Consumer<ReceiverStats> callback = onReceiverStats;
+        if (callback != null) {
+            callback.accept(stats);
+        }
+    }
+
+    /**
+     * 获取当前生命周期状态
+     */
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * 检查是否已连接（TCP 已建立，包括握手前）
      */
     public boolean isConnected() {
-        return connected.get() && channel != null && channel.isActive();
+        Channel ch = channel;
+        State current = state.get();
+        return (current == State.CONNECTED || current == State.STREAMING) && ch != null && ch.isActive();
+    }
+
+    /**
+     * 检查是否已握手并正在推流
+     */
+    public boolean isStreaming() {
+        Channel ch = channel;
+        return state.get() == State.STREAMING && ch != null && ch.isActive();
     }
 
     /**
      * 检查是否正在连接中
      */
     public boolean isConnecting() {
-        return connecting.get();
+        return state.get() == State.CONNECTING;
     }
     
     /**
@@ -331,13 +1722,32 @@ public class CastClient {
                 return;
             }
             
+            lastReadNanos = System.nanoTime();
             byte type = msg.readByte();
             
             switch (type) {
-                case 0x00:  // 握手响应
-                    System.out.println("收到握手响应");
+                case 0x00:  // 握手响应: [类型][TV端接受的版本][UDP 端口]，旧版TV端只有类型
+                    int acceptedVersion = msg.readableBytes() >= 4 ? msg.readInt() : 1;
+                    int udpPort = msg.readableBytes() >= 4 ? msg.readInt() : 0;
+                    System.out.println("收到握手响应（TV端协议版本 " + acceptedVersion + "）");
+                    onHandshakeAck(ctx.channel(), acceptedVersion, udpPort);
+                    break;
+                case 0x02:  // 心跳响应: [类型][8字节发送时间][TV端收发时间]
+                    onHeartbeatAck(msg);
+                    break;
+                case 0x04:  // 关键帧请求
+                    if (onKeyFrameRequest != null) {
+                        onKeyFrameRequest.run();
+                    }
                     break;
-                case 0x02:  // 心跳响应
+                case 0x07:  // 帧时间回报
+                    onFrameTiming(msg);
+                    break;
+                case 0x08:  // 接收统计
+                    onReceiverStatsReport(msg);
+                    break;
+                case 0x0B:  // 带宽探测回报
+                    onProbeReport(msg);
                     break;
                 case (byte) 0xFF:  // 错误
                     int errorLen = msg.readInt();
@@ -354,43 +1764,49 @@ public class CastClient {
             }
         }
         
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            lastReadNanos = System.nanoTime();
+            super.channelActive(ctx);
+        }
+
+        /**
+         * 读空闲：发送心跳；距上次收到数据超过 PEER_TIMEOUT_MS 则断开
+         */
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (!(evt instanceof IdleStateEvent) || ((IdleStateEvent) evt).state() != IdleState.READER_IDLE) {
+                super.userEventTriggered(ctx, evt);
+                return;
+            }
+            State current = state.get();
+            if (ctx.channel() != channel || (current != State.CONNECTED && current != State.STREAMING)) {
+                return;
+            }
+            long silentMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+            if (silentMs >= PEER_TIMEOUT_MS) {
+                System.err.println("TV端 " + silentMs + "ms 未响应心跳，判定连接已失效");
+                connectionLost(ctx.channel(), "TV端无响应（" + silentMs + "ms 未收到心跳响应）");
+                return;
+            }
+            sendHeartbeat(ctx.channel());
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
             System.err.println("连接异常: " + cause.getMessage());
-            if (onError != null) {
-                onError.accept(cause.getMessage());
-            }
+            connectionLost(ctx.channel(), cause.getMessage());
             ctx.close();
         }
         
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
             System.out.println("[DEBUG] channelInactive 被调用");
-            // 保存状态，然后清理并触发回调
-            boolean wasConnected = connected.get();
-            System.out.println("[DEBUG] channelInactive: wasConnected=" + wasConnected);
-
-            // 清理资源（关闭channel等）
-            connected.set(false);
-            connecting.set(false);
-
-            try {
-                if (channel != null && channel.isActive()) {
-                    channel.close();
-                }
-            } catch (Exception e) {
-                System.err.println("关闭channel时出错: " + e.getMessage());
-            }
-
-            channel = null;
-
-            // 触发断开回调（如果之前是连接状态）
-            if (wasConnected && onDisconnected != null) {
-                System.out.println("[DEBUG] channelInactive: 触发 onDisconnected 回调");
-                onDisconnected.run();
-            } else {
-                System.out.println("[DEBUG] channelInactive: 不触发回调，wasConnected=" + wasConnected);
+            // 已被 disconnect() 替换或关闭的旧连接不再触发回调
+            if (ctx.channel() != channel) {
+                return;
             }
+            connectionLost(ctx.channel(), null);
         }
     }
 }
@@ -0,0 +1,404 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 投屏会话中枢：一个编码器同时推流给多台TV端
+ *
+ * 主接收端是界面直接管理的 {@link CastClient}（负责码率自适应、延迟显示、备用连接切换），
+ * 其余接收端通过 {@link #addReceiver} 加入，各自拥有独立的连接、心跳、自动重连和出站队列。
+ * 每帧只编码一次，发送时包装成 {@link SharedFrame}，各接收端共享同一份帧数据，只各自生成帧头；
+ * 每个接收端按自己的积压情况丢帧，慢的TV端不会拖住其他接收端。
+ *
+ * 多路编码（simulcast）时每一路码流是一个轨道：主编码器是 {@link #MAIN_TRACK}，
+ * 附加编码路按名称区分。接收端加入时订阅其中一个轨道（如 1080p 的老电视棒订阅低分辨率的一路），
+ * 之后只收该轨道的帧；各轨道有自己的 GOP 缓存和关键帧请求，帧在各自的编码线程上送入。
+ *
+ * 编码器只有一个，若为某个接收端编码关键帧，所有接收端都要多收一个大尺寸 IDR。
+ * 因此新加入、重连或切换过来的接收端先从 GOP 缓存（{@link GopCache}）补发当前 GOP，立即有画面；
+ * 只有缓存不可用时才请求关键帧。补发的帧带补发标志，TV端只解码不上屏、不占解码队列，整段 GOP 都可以补发；
+ * 不支持该标志的老版本TV端解码队列只有几帧，GOP 已经较长时只补发关键帧，该接收端等编码器的下一个关键帧再继续。
+ * TV端解码失步等请求仍按限频产生关键帧。
+ * 码率由主接收端的网络状况决定，其余接收端跟不上时靠丢帧策略保护。
+ * 除TV端外还可以挂接其他形式的输出（{@link FrameSink}，如浏览器观看、录制），同样共享每帧的缓冲区。
+ * {@link #sendFrame} 只在该轨道的发送线程（编码线程）上调用，增删接收端可在任意线程。
+ */
+public class CastHub {
+
+    /**
+     * 主编码器的轨道名
+     */
+    public static final String MAIN_TRACK = "main";
+
+    // GOP 缓存容量（字节），按 20Mbps、1 秒 GOP 留出余量
+    private static final long GOP_CACHE_BYTES = 8L * 1024 * 1024;
+    // 不支持补发标志的TV端一次补发（含随后的当前帧）最多的帧数，与TV端解码队列长度一致
+    static final int MAX_PRIME_FRAMES = 5;
+
+    private final CastClient primary;
+    private final Map<String, Track> tracks = new ConcurrentHashMap<>();
+
+    private Consumer<String> onKeyFrameNeeded;
+    private Consumer<String> onKeyFrameRequest;
+    private Consumer<String> onReceiverRemoved;
+
+    /**
+     * @param primary 主接收端
+     */
+    public CastHub(CastClient primary) {
+        this.primary = primary;
+        tracks.put(MAIN_TRACK, new Track(MAIN_TRACK));
+    }
+
+    /**
+     * 设置需要立即编码关键帧的回调，参数为轨道名（接收端加入、重连或切换完成而 GOP 缓存不可用时触发）
+     */
+    public void setOnKeyFrameNeeded(Consumer<String> callback) {
+        this.onKeyFrameNeeded = callback;
+    }
+
+    /**
+     * 设置接收端请求关键帧的回调，参数为轨道名（TV端解码失步或发送端丢帧后触发，调用方应合并限频）
+     */
+    public void setOnKeyFrameRequest(Consumer<String> callback) {
+        this.onKeyFrameRequest = callback;
+    }
+
+    /**
+     * 设置接收端离开回调（参数为地址，断开或重连失败时触发）
+     */
+    public void setOnReceiverRemoved(Consumer<String> callback) {
+        this.onReceiverRemoved = callback;
+    }
+
+    /**
+     * 加入一个订阅主轨道的接收端
+     *
+     * @see #addReceiver(String, int, String)
+     */
+    public CompletableFuture<CastClient> addReceiver(String host, int port) {
+        return addReceiver(host, port, MAIN_TRACK);
+    }
+
+    /**
+     * 加入一个接收端：按所订阅轨道当前的视频格式连接并握手，之后从该轨道的当前 GOP 开始接收
+     *
+     * @param track 轨道名，附加编码路须已通过 {@link #updateVideoFormat(String, int, int, int, byte[])} 登记格式
+     * @return 握手完成后完成，结果为该接收端的客户端；轨道不可用、连接或握手失败时异常完成
+     */
+    public CompletableFuture<CastClient> addReceiver(String host, int port, String track) {
+        Track target = tracks.get(track);
+        if (target == null || !target.hasFormat()) {
+            return failed(new IllegalStateException("码流 " + track + " 尚未就绪"));
+        }
+        if (findReceiver(host, port) != null) {
+            return failed(new IllegalStateException(host + ":" + port + " 已在接收"));
+        }
+        CastClient receiver = new CastClient(primary.eventLoop());
+        primary.copySettingsTo(receiver);
+        if (target != mainTrack()) {
+            receiver.setVideoParams(target.width, target.height, target.fps);
+            receiver.setCodecConfig(target.config);
+        }
+        receiver.setOnKeyFrameRequest(() -> fire(onKeyFrameRequest, target.name));
+        receiver.setOnResumeHandshake(() -> prime(receiver));
+        receiver.setOnError(error -> System.err.println("接收端 " + host + " 错误: " + error));
+        receiver.setOnDisconnected(() -> {
+            if (target.receivers.remove(receiver)) {
+                System.out.println("接收端已离开: " + host + "（" + receiverSummary(receiver) + "）");
+                Consumer<String> callback = onReceiverRemoved;
+                if (callback != null) {
+                    callback.accept(host);
+                }
+            }
+        });
+
+        return receiver.connect(host, port)
+                .thenCompose(ignored -> receiver.handshake())
+                .thenApply(ignored -> {
+                    target.receivers.add(receiver);
+                    System.out.println("接收端已加入: " + host + (target == mainTrack() ? "" : "，码流 " + track)
+                            + "（共 " + receiverCount() + " 台）");
+                    prime(receiver);
+                    return receiver;
+                });
+    }
+
+    /**
+     * 让接收端从当前 GOP 开始接收（握手、重连或切换完成后调用）：下一帧发送前先补发 GOP 缓存，
+     * 缓存不可用时请求关键帧
+     */
+    public void prime(CastClient receiver) {
+        Track track = mainTrack();
+        for (Track candidate : tracks.values()) {
+            if (candidate.receivers.contains(receiver)) {
+                track = candidate;
+            }
+        }
+        track.pendingPrime.add(receiver);
+    }
+
+    /**
+     * 清空各轨道的 GOP 缓存（停止采集后调用）
+     */
+    public void clearGopCache() {
+        for (Track track : tracks.values()) {
+            track.pendingPrime.clear();
+            track.gopCache.clear();
+        }
+    }
+
+    /**
+     * 移除一个接收端并断开其连接
+     */
+    public void removeReceiver(String host, int port) {
+        CastClient receiver = findReceiver(host, port);
+        if (receiver != null) {
+            receiver.disconnect();
+        }
+    }
+
+    /**
+     * 断开全部附加接收端（主接收端不受影响）
+     */
+    public void removeAllReceivers() {
+        for (Track track : tracks.values()) {
+            for (CastClient receiver : track.receivers) {
+                receiver.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 附加接收端地址
+     */
+    public List<String> getReceiverHosts() {
+        List<String> hosts = new ArrayList<>();
+        for (Track track : tracks.values()) {
+            for (CastClient receiver : track.receivers) {
+                hosts.add(receiver.getRemoteHost());
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * 接收端总数（含主接收端）
+     */
+    public int receiverCount() {
+        int count = 1;
+        for (Track track : tracks.values()) {
+            count += track.receivers.size();
+        }
+        return count;
+    }
+
+    /**
+     * 挂接一个输出，之后收到该轨道的每一帧（与TV端接收端共享帧数据）
+     */
+    void addSink(String trackName, FrameSink sink) {
+        tracks.computeIfAbsent(trackName, Track::new).sinks.add(sink);
+    }
+
+    /**
+     * 移除一个输出
+     */
+    void removeSink(FrameSink sink) {
+        for (Track track : tracks.values()) {
+            track.sinks.remove(sink);
+        }
+    }
+
+    /**
+     * 把主编码器的一帧分发给主轨道的所有接收端，帧数据只包装一次，各接收端共享
+     */
+    public void sendFrame(EncodedFrame frame) {
+        sendFrame(MAIN_TRACK, frame);
+    }
+
+    /**
+     * 把一帧分发给订阅该轨道的所有接收端（在该轨道的编码线程上调用）
+     */
+    public void sendFrame(String trackName, EncodedFrame frame) {
+        Track track = tracks.get(trackName);
+        if (track == null) {
+            return;
+        }
+        SharedFrame shared = new SharedFrame(frame);
+        try {
+            track.gopCache.add(shared);
+            CastClient joining;
+            while ((joining = track.pendingPrime.poll()) != null) {
+                primeFromCache(track, joining);
+            }
+            if (track == mainTrack() && primary.isConnected()) {
+                primary.sendFrame(shared, false);
+            }
+            for (CastClient receiver : track.receivers) {
+                receiver.sendFrame(shared, false);
+            }
+            for (FrameSink sink : track.sinks) {
+                sink.onFrame(shared);
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
+    /**
+     * 补发缓存中当前帧之前的帧（当前帧随后与其他接收端一起发送）；以关键帧开始，接收端从这里开始解码
+     *
+     * TV端支持补发标志时整段补发；否则连同当前帧超过 {@link #MAX_PRIME_FRAMES} 时只补发关键帧：
+     * 后面的帧参考被跳过的帧，该接收端改为等编码器按 GOP 产生的下一个关键帧，不为它额外请求关键帧
+     */
+    private void primeFromCache(Track track, CastClient receiver) {
+        if (!track.gopCache.isUsable()) {
+            fire(onKeyFrameNeeded, track.name);
+            return;
+        }
+        List<SharedFrame> frames = track.gopCache.frames();
+        List<SharedFrame> backlog = frames.subList(0, frames.size() - 1);
+        if (receiver.acceptsPrimedFrames() || backlog.size() < MAX_PRIME_FRAMES) {
+            receiver.prime(backlog, false);
+            System.out.println("接收端 " + receiver.getRemoteHost() + " 从 GOP 缓存补发 " + backlog.size() + " 帧");
+            return;
+        }
+        receiver.prime(backlog.subList(0, 1), true);
+        System.out.println("接收端 " + receiver.getRemoteHost() + " 当前 GOP 已有 " + frames.size()
+                + " 帧，只补发关键帧，等待新的关键帧");
+    }
+
+    /**
+     * 运行中更新主编码器的视频格式，通知主轨道的所有接收端
+     */
+    public void updateVideoFormat(int width, int height, int fps, byte[] config) {
+        updateVideoFormat(MAIN_TRACK, width, height, fps, config);
+    }
+
+    /**
+     * 登记或更新一个轨道的视频格式，通知订阅它的接收端；附加编码路在第一帧之前调用
+     */
+    public void updateVideoFormat(String trackName, int width, int height, int fps, byte[] config) {
+        Track track = tracks.computeIfAbsent(trackName, Track::new);
+        track.width = width;
+        track.height = height;
+        track.fps = fps;
+        track.config = config;
+        if (track == mainTrack()) {
+            primary.updateVideoFormat(width, height, fps, config);
+        }
+        for (CastClient receiver : track.receivers) {
+            receiver.updateVideoFormat(width, height, fps, config);
+        }
+    }
+
+    /**
+     * 移除一个附加编码路的轨道，断开订阅它的接收端
+     */
+    public void removeTrack(String trackName) {
+        if (MAIN_TRACK.equals(trackName)) {
+            return;
+        }
+        Track track = tracks.remove(trackName);
+        if (track != null) {
+            for (CastClient receiver : track.receivers) {
+                receiver.disconnect();
+            }
+            track.pendingPrime.clear();
+            track.gopCache.clear();
+        }
+    }
+
+    /**
+     * 各附加接收端的发送统计，用于日志
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Track track : tracks.values()) {
+            for (CastClient receiver : track.receivers) {
+                if (sb.length() > 0) {
+                    sb.append("；");
+                }
+                sb.append(receiver.getRemoteHost());
+                if (track != mainTrack()) {
+                    sb.append("[").append(track.name).append("]");
+                }
+                sb.append("：").append(receiverSummary(receiver));
+            }
+        }
+        return sb.toString();
+    }
+
+    private Track mainTrack() {
+        return tracks.get(MAIN_TRACK);
+    }
+
+    private CastClient findReceiver(String host, int port) {
+        for (Track track : tracks.values()) {
+            for (CastClient receiver : track.receivers) {
+                if (host.equals(receiver.getRemoteHost()) && port == receiver.getRemotePort()) {
+                    return receiver;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static CompletableFuture<CastClient> failed(Throwable cause) {
+        CompletableFuture<CastClient> failed = new CompletableFuture<>();
+        failed.completeExceptionally(cause);
+        return failed;
+    }
+
+    private static String receiverSummary(CastClient receiver) {
+        return "已发送 " + receiver.getFramesSent() + " 帧，丢弃 " + receiver.getFramesDropped() + " 帧";
+    }
+
+    /**
+     * TV端以外的输出：在轨道的发送线程上收到每一帧，需要异步使用时自行增加帧体的引用
+     */
+    interface FrameSink {
+        void onFrame(SharedFrame frame);
+    }
+
+    private static void fire(Consumer<String> callback, String track) {
+        if (callback != null) {
+            callback.accept(track);
+        }
+    }
+
+    /**
+     * 一路码流：订阅的接收端、GOP 缓存（仅该路发送线程使用）和视频格式
+     */
+    private static final class Track {
+
+        final String name;
+        final List<CastClient> receivers = new CopyOnWriteArrayList<>();
+        final List<FrameSink> sinks = new CopyOnWriteArrayList<>();
+        final GopCache gopCache = new GopCache(GOP_CACHE_BYTES);
+        // 等待补发 GOP 的接收端，在下一帧发送前处理
+        final ConcurrentLinkedQueue<CastClient> pendingPrime = new ConcurrentLinkedQueue<>();
+        // 附加编码路的格式（主轨道使用主接收端的设置）
+        volatile int width;
+        volatile int height;
+        volatile int fps;
+        volatile byte[] config;
+
+        Track(String name) {
+            this.name = name;
+        }
+
+        boolean hasFormat() {
+            return MAIN_TRACK.equals(name) || width > 0;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.ScreenCapture;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 一个独立的投屏会话：采集一块显示区域 → 编码 → 推流到一台TV端
+ *
+ * 一台电脑同时把不同显示器投到不同的TV端时，每台显示器一个会话。会话拥有自己的
+ * {@link ScreenCapture}（采集线程、编码器）、{@link CastClient}、{@link CastHub} 和码率自适应，
+ * 网络处理运行在会话专用的单线程事件循环上；各会话之间没有共享的锁和线程，由操作系统分配到不同的核。
+ * 主窗口的投屏仍由界面直接管理，本类用于其余显示器。
+ */
+public class CastSession {
+
+    private final String name;
+    private final Rectangle region;
+    private final EventLoopGroup eventLoop;
+    private final ScreenCapture capture = new ScreenCapture();
+    private final CastClient client;
+    private final CastHub hub;
+    private AdaptiveBitrateController bitrateController;
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private volatile String host;
+    private volatile Dimension size;
+
+    // 发送统计，由 statsSummary 按调用间隔换算帧率和码率
+    private final AtomicLong framesEncoded = new AtomicLong();
+    private final AtomicLong bytesEncoded = new AtomicLong();
+    private long lastStatsAt = System.nanoTime();
+    private long lastStatsFrames;
+    private long lastStatsBytes;
+
+    private Consumer<String> onStopped;
+
+    /**
+     * @param name   会话名称（如“显示器 2”），用于日志和统计
+     * @param region 采集区域（虚拟桌面坐标）
+     */
+    public CastSession(String name, Rectangle region) {
+        this.name = name;
+        this.region = new Rectangle(region);
+        this.eventLoop = new NioEventLoopGroup(1, new DefaultThreadFactory("cast-session-" + name, true));
+        this.client = new CastClient(eventLoop);
+        this.hub = new CastHub(client);
+    }
+
+    /**
+     * 设置会话结束回调（参数为原因，连接断开、出错或调用 {@link #stop()} 后触发一次）
+     */
+    public void setOnStopped(Consumer<String> callback) {
+        this.onStopped = callback;
+    }
+
+    /**
+     * 设置视频传输方式（见 {@link CastClient#setUdpTransport}），在 {@link #start} 之前调用
+     */
+    public void setUdpTransport(boolean udp, int fecPercent) {
+        client.setUdpTransport(udp, fecPercent);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public boolean isStreaming() {
+        return client.isStreaming();
+    }
+
+    /**
+     * 开始投屏：并行启动编码器和建立连接，两者就绪后以实际分辨率握手
+     *
+     * @param width   编码宽度，0 表示与采集区域一致
+     * @param height  编码高度，0 表示与采集区域一致
+     * @param bitrate 码率上限（bit/s），码率自适应在此之下调整
+     * @return 握手完成时完成，结果为编码分辨率
+     */
+    public CompletableFuture<Dimension> start(String host, int port, int width, int height, int fps, int bitrate,
+                                              boolean pacing) {
+        this.host = host;
+        capture.setCaptureRegion(region);
+        capture.setUseNativeResolution(width <= 0 || height <= 0);
+        if (width > 0 && height > 0) {
+            capture.setTargetResolution(width, height);
+        }
+        capture.setFrameRate(fps);
+        capture.setBitrate(bitrate);
+
+        client.setPacingEnabled(pacing);
+        client.setEstimatedBandwidth(bitrate * 3L);
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(client, bitrate, capture::setBitrate);
+        controller.setOnDecision(msg -> System.out.println("[" + name + "] 码率自适应：" + msg));
+        bitrateController = controller;
+
+        client.setOnReceiverStats(controller::onReceiverStats);
+        client.setOnRttSample(controller::onRttSample);
+        client.setOnKeyFrameRequest(capture::requestKeyFrameFromReceiver);
+        client.setOnResumeHandshake(() -> hub.prime(client));
+        client.setOnDisconnected(() -> stopAsync("连接已断开"));
+        client.setOnError(error -> stopAsync("连接错误: " + error));
+        hub.setOnKeyFrameNeeded(track -> capture.requestKeyFrame());
+        hub.setOnKeyFrameRequest(track -> capture.requestKeyFrameFromReceiver());
+        capture.setOnFrameCaptured(frame -> {
+            framesEncoded.incrementAndGet();
+            bytesEncoded.addAndGet(frame.getData().length);
+            hub.sendFrame(frame);
+        });
+        capture.setOnFormatChanged((w, h, rate, config) -> {
+            size = new Dimension(w, h);
+            hub.updateVideoFormat(w, h, rate, config);
+        });
+        capture.setOnError(e -> stopAsync("采集出错: " + e.getMessage()));
+
+        System.out.println("[" + name + "] 开始投屏到 " + host + "，采集区域 " + region.width + "x" + region.height
+                + "@" + region.x + "," + region.y);
+        CompletableFuture<Dimension> encoderReady = capture.start();
+        CompletableFuture<Void> connected = client.connect(host, port);
+        return encoderReady.thenCombine(connected, (encodeSize, ignored) -> encodeSize)
+                .thenCompose(encodeSize -> {
+                    client.setVideoParams(encodeSize.width, encodeSize.height, fps);
+                    client.setCodecConfig(capture.getCodecConfig());
+                    return client.handshake().thenApply(ignored -> encodeSize);
+                })
+                .thenApply(encodeSize -> {
+                    size = encodeSize;
+                    controller.setCoarseAdjustment(!capture.supportsOnlineBitrate());
+                    applyBandwidthProbe(bitrate, controller);
+                    capture.requestKeyFrame();
+                    controller.start();
+                    System.out.println("[" + name + "] 投屏已开始: " + encodeSize.width + "x" + encodeSize.height);
+                    return encodeSize;
+                })
+                .whenComplete((encodeSize, e) -> {
+                    if (e != null) {
+                        stopAsync("启动失败: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * 按握手时的带宽探测结果降低初始码率和分辨率档位（只降不升）
+     */
+    private void applyBandwidthProbe(int bitrate, AdaptiveBitrateController controller) {
+        BandwidthProbe probe = client.getBandwidthProbe();
+        if (probe == null) {
+            return;
+        }
+        // 发送节奏按测得的吞吐量放出数据，此后随码率决策调整
+        controller.setLinkBandwidth(probe.getThroughputBps());
+        int start = probe.recommendedBitrate(bitrate);
+        if (start < bitrate) {
+            controller.setStartBitrate(start, "带宽探测");
+            capture.limitQualityToBitrate(start);
+        }
+        System.out.println("[" + name + "] 带宽探测: " + probe + "，初始码率 "
+                + String.format("%.1fMbps", start / 1e6));
+    }
+
+    /**
+     * 停止会话并释放采集、编码器、连接和事件循环；可在任意线程调用，只执行一次
+     */
+    public void stop() {
+        stop("已停止");
+    }
+
+    /**
+     * 在事件循环或采集线程上触发的停止交给其他线程执行，避免在这些线程里等待它们自己退出
+     */
+    private void stopAsync(String reason) {
+        if (!stopped.get()) {
+            CompletableFuture.runAsync(() -> stop(reason));
+        }
+    }
+
+    private void stop(String reason) {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        System.out.println("[" + name + "] 正在停止（" + reason + "）: " + statsSummary());
+        AdaptiveBitrateController controller = bitrateController;
+        if (controller != null) {
+            controller.stop();
+        }
+        capture.stop();
+        hub.clearGopCache();
+        client.disconnect();
+        eventLoop.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        Consumer<String> callback = onStopped;
+        if (callback != null) {
+            callback.accept(reason);
+        }
+    }
+
+    /**
+     * 会话统计：目标、分辨率、最近一段时间的编码帧率和码率、发送端丢帧、端到端延迟
+     */
+    public synchronized String statsSummary() {
+        long now = System.nanoTime();
+        long frames = framesEncoded.get();
+        long bytes = bytesEncoded.get();
+        double seconds = Math.max(1e-3, (now - lastStatsAt) / 1e9);
+        double fps = (frames - lastStatsFrames) / seconds;
+        double mbps = (bytes - lastStatsBytes) * 8 / seconds / 1_000_000;
+        lastStatsAt = now;
+        lastStatsFrames = frames;
+        lastStatsBytes = bytes;
+
+        Dimension current = size;
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(" → ").append(host != null ? host : "-");
+        if (current != null) {
+            sb.append(" | ").append(current.width).append("x").append(current.height);
+        }
+        sb.append(String.format(" | %.0ffps %.1fMbps | 已发送 %d 帧，丢弃 %d 帧",
+                fps, mbps, client.getFramesSent(), client.getFramesDropped()));
+        LatencyStats latency = client.getLatencyStats();
+        if (latency.count() > 0) {
+            sb.append(String.format(" | 延迟 p50 %.0fms",
+                    latency.percentileNanos(LatencyStats.Stage.RENDER, 0.5) / 1e6));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,172 @@
+package com.cast.pc.network;
+
+/**
+ * PC 与TV端的时钟偏差估计（NTP 方式）
+ *
+ * 每次心跳交换得到四个时间：t1 本地发送、t2 对端接收、t3 对端发送、t4 本地接收，
+ * 偏差 = ((t2 - t1) + (t3 - t4)) / 2，往返时延 = (t4 - t1) - (t3 - t2)。
+ * 往返时延越小，偏差越准：每次取最近 {@link #FILTER_SIZE} 次交换中时延最小的一次作为测量值，
+ * 再对最近 {@link #HISTORY_SIZE} 个测量值做最小二乘拟合，得到偏差和漂移（两边时钟的频率差）。
+ *
+ * 两端时间都是各自的 System.nanoTime()，基准不同没有关系，基准差会并入偏差。
+ * 采样在事件循环线程写入，换算可在任意线程调用，方法均为同步方法。
+ */
+public class ClockSync {
+
+    // 选取最小时延的交换窗口
+    static final int FILTER_SIZE = 8;
+    // 参与拟合的测量值个数
+    static final int HISTORY_SIZE = 64;
+    // 测量值时间跨度小于该值时不估计漂移（纳秒）：跨度太短时测量抖动会被放大成很大的漂移
+    private static final long MIN_DRIFT_SPAN_NANOS = 10_000_000_000L;
+    // 漂移上限（晶振误差通常在 ±100ppm 以内，超出说明拟合受抖动干扰）
+    private static final double MAX_DRIFT = 500e-6;
+
+    // 最近的交换：本地时间、偏差、时延
+    private final long[] sampleAt = new long[FILTER_SIZE];
+    private final long[] sampleOffset = new long[FILTER_SIZE];
+    private final long[] sampleDelay = new long[FILTER_SIZE];
+    private int sampleNext;
+    private int sampleCount;
+
+    // 过滤后的测量值：本地时间、偏差
+    private final long[] historyAt = new long[HISTORY_SIZE];
+    private final long[] historyOffset = new long[HISTORY_SIZE];
+    private int historyNext;
+    private int historyCount;
+    private long lastMeasurementAt = Long.MIN_VALUE;
+
+    // 拟合结果：offset(t) = baseOffset + drift * (t - baseAt)
+    private long baseAt;
+    private double baseOffset;
+    private double drift;
+    private long bestDelay = -1;
+
+    /**
+     * 记录一次时间交换
+     *
+     * @param t1 本地发送时间
+     * @param t2 对端接收时间（对端时钟）
+     * @param t3 对端发送时间（对端时钟）
+     * @param t4 本地接收时间
+     */
+    public synchronized void onExchange(long t1, long t2, long t3, long t4) {
+        long delay = (t4 - t1) - (t3 - t2);
+        if (delay < 0 || t3 < t2) {
+            return;
+        }
+        long offset = ((t2 - t1) + (t3 - t4)) / 2;
+
+        sampleAt[sampleNext] = t4;
+        sampleOffset[sampleNext] = offset;
+        sampleDelay[sampleNext] = delay;
+        sampleNext = (sampleNext + 1) % FILTER_SIZE;
+        sampleCount = Math.min(sampleCount + 1, FILTER_SIZE);
+
+        // 窗口内时延最小的交换作为测量值，同一次交换只计入一次
+        int best = 0;
+        for (int i = 1; i < sampleCount; i++) {
+            if (sampleDelay[i] < sampleDelay[best]) {
+                best = i;
+            }
+        }
+        bestDelay = sampleDelay[best];
+        if (sampleAt[best] == lastMeasurementAt) {
+            return;
+        }
+        lastMeasurementAt = sampleAt[best];
+        historyAt[historyNext] = sampleAt[best];
+        historyOffset[historyNext] = sampleOffset[best];
+        historyNext = (historyNext + 1) % HISTORY_SIZE;
+        historyCount = Math.min(historyCount + 1, HISTORY_SIZE);
+        fit();
+    }
+
+    /**
+     * 清空估计（新连接开始时调用）
+     */
+    public synchronized void reset() {
+        sampleNext = 0;
+        sampleCount = 0;
+        historyNext = 0;
+        historyCount = 0;
+        lastMeasurementAt = Long.MIN_VALUE;
+        baseAt = 0;
+        baseOffset = 0;
+        drift = 0;
+        bestDelay = -1;
+    }
+
+    /**
+     * 是否已有可用的偏差估计
+     */
+    public synchronized boolean isReady() {
+        return historyCount > 0;
+    }
+
+    /**
+     * 指定本地时刻的偏差估计（对端时钟 - 本地时钟，纳秒）
+     */
+    public synchronized long offsetAt(long localNanos) {
+        return Math.round(baseOffset + drift * (localNanos - baseAt));
+    }
+
+    /**
+     * 估计的漂移（对端时钟相对本地时钟每秒快多少纳秒，即 ppb）
+     */
+    public synchronized double driftPpb() {
+        return drift * 1e9;
+    }
+
+    /**
+     * 估计误差上界（最佳交换往返时延的一半，纳秒），尚无估计时返回 -1
+     */
+    public synchronized long uncertaintyNanos() {
+        return bestDelay < 0 ? -1 : bestDelay / 2;
+    }
+
+    /**
+     * 把对端时间换算为本地时间
+     */
+    public synchronized long toLocal(long remoteNanos) {
+        // 偏差随时间缓慢变化，用换算前的近似本地时间求偏差即可
+        return remoteNanos - offsetAt(remoteNanos - Math.round(baseOffset));
+    }
+
+    /**
+     * 对测量值做最小二乘直线拟合；跨度太短时只取最新测量值，不估计漂移
+     */
+    private void fit() {
+        int newest = (historyNext - 1 + HISTORY_SIZE) % HISTORY_SIZE;
+        int oldest = historyCount < HISTORY_SIZE ? 0 : historyNext;
+        if (historyCount < 3 || historyAt[newest] - historyAt[oldest] < MIN_DRIFT_SPAN_NANOS) {
+            baseAt = historyAt[newest];
+            baseOffset = historyOffset[newest];
+            drift = 0;
+            return;
+        }
+
+        // 以最新测量值为原点，避免大数相乘丢失精度
+        long originAt = historyAt[newest];
+        long originOffset = historyOffset[newest];
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < historyCount; i++) {
+            meanX += historyAt[i] - originAt;
+            meanY += historyOffset[i] - originOffset;
+        }
+        meanX /= historyCount;
+        meanY /= historyCount;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0; i < historyCount; i++) {
+            double dx = historyAt[i] - originAt - meanX;
+            double dy = historyOffset[i] - originOffset - meanY;
+            sxx += dx * dx;
+            sxy += dx * dy;
+        }
+        drift = sxx > 0 ? Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, sxy / sxx)) : 0;
+        baseAt = originAt;
+        baseOffset = originOffset + meanY - drift * meanX;
+    }
+}
@@ -0,0 +1,495 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * H.264 分片 MP4（fMP4）封装，供浏览器用 Media Source Extensions 播放
+ *
+ * 初始化段（ftyp + moov）由关键帧携带的 SPS/PPS 生成；之后每帧一个媒体段（moof + mdat），
+ * mdat 的内容就是 {@link SharedFrame} 的 v2 帧体 [[4字节长度][NAL]...]（即 MP4 要求的 NAL 长度分帧），
+ * 直接引用共享缓冲区，不复制 NAL 数据，只为每帧生成约 112 字节的段头。
+ * 时间戳为 90kHz：解码时间取帧的解码时刻，样本的显示时间偏移为采集时刻减解码时刻。
+ * 编码器不输出 B 帧，偏移为 0；直接投放的文件含 B 帧时按偏移还原显示顺序。
+ * 只在该轨道的发送线程（编码线程）上使用。
+ */
+final class Fmp4Muxer {
+
+    private static final int TIMESCALE = 90_000;
+    private static final int TRACK_ID = 1;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    // moof（mfhd + traf(tfhd + tfdt + trun)）的固定长度，以及加上 mdat 头后的段头长度
+    private static final int MOOF_SIZE = 104;
+    private static final int SEGMENT_HEADER_SIZE = MOOF_SIZE + 8;
+    // 样本标志：关键帧不依赖其他帧；非关键帧依赖其他帧、不是同步样本
+    private static final int SAMPLE_FLAGS_KEY = 0x02000000;
+    private static final int SAMPLE_FLAGS_DELTA = 0x01010000;
+    // 第二帧之前按 30fps 估计帧时长
+    private static final int DEFAULT_DURATION = TIMESCALE / 30;
+
+    private byte[] sps;
+    private byte[] pps;
+    private ByteBuf init;
+    private String codec;
+    private int width;
+    private int height;
+
+    private int sequence;
+    private long firstDecodeNanos = -1;
+    private long lastDecodeTime = -1;
+    private int lastDuration = DEFAULT_DURATION;
+
+    /**
+     * 当前的初始化段，还没收到带 SPS/PPS 的关键帧时为 null（本对象持有，调用方需要时自行 retain）
+     */
+    ByteBuf init() {
+        return init;
+    }
+
+    /**
+     * MSE 使用的编码格式字符串，如 avc1.64001f
+     */
+    String codec() {
+        return codec;
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    /**
+     * 检查帧中的 SPS/PPS，与当前初始化段不同时重新生成
+     *
+     * @return 初始化段是否变化（调用方应在这一帧之前把新的初始化段发给观看端）
+     */
+    boolean updateConfig(EncodedFrame frame) {
+        if (!frame.hasConfig()) {
+            return false;
+        }
+        byte[] newSps = null;
+        byte[] newPps = null;
+        byte[] data = frame.getData();
+        for (int i = 0; i < frame.nalCount(); i++) {
+            int offset = frame.nalOffset(i);
+            int length = frame.nalLength(i);
+            if (length == 0) {
+                continue;
+            }
+            int type = data[offset] & 0x1F;
+            if (type == NAL_SPS && newSps == null) {
+                newSps = Arrays.copyOfRange(data, offset, offset + length);
+            } else if (type == NAL_PPS && newPps == null) {
+                newPps = Arrays.copyOfRange(data, offset, offset + length);
+            }
+        }
+        if (newSps == null || newPps == null || newSps.length < 4
+                || (Arrays.equals(newSps, sps) && Arrays.equals(newPps, pps))) {
+            return false;
+        }
+        int[] size = SpsParser.parseSize(newSps);
+        if (size == null) {
+            System.err.println("[浏览器观看] 无法解析 SPS，忽略这组编码器配置");
+            return false;
+        }
+        sps = newSps;
+        pps = newPps;
+        width = size[0];
+        height = size[1];
+        codec = String.format("avc1.%02x%02x%02x", sps[1] & 0xFF, sps[2] & 0xFF, sps[3] & 0xFF);
+        if (init != null) {
+            init.release();
+        }
+        init = buildInit();
+        return true;
+    }
+
+    /**
+     * 把一帧封装为媒体段：段头（moof + mdat 头）加上共享的帧体，帧体不复制
+     *
+     * @param body 帧体 [[4字节长度][NAL]...]，所有权转移给返回的段
+     */
+    ByteBuf segment(EncodedFrame frame, ByteBuf body) {
+        long decodeNanos = frame.getDecodeNanos();
+        if (firstDecodeNanos < 0) {
+            firstDecodeNanos = decodeNanos;
+        }
+        long decodeTime = Math.max(0, ticks(decodeNanos - firstDecodeNanos));
+        // 显示时间与解码时间各自取整后相减，偏移不累积取整误差
+        int compositionOffset = (int) (ticks(frame.getCaptureNanos() - firstDecodeNanos) - decodeTime);
+        if (decodeTime <= lastDecodeTime) {
+            // 时间戳必须严格递增
+            decodeTime = lastDecodeTime + 1;
+        }
+        if (lastDecodeTime >= 0) {
+            lastDuration = (int) Math.min(TIMESCALE, decodeTime - lastDecodeTime);
+        }
+        lastDecodeTime = decodeTime;
+
+        int size = body.readableBytes();
+        ByteBuf header = Unpooled.buffer(SEGMENT_HEADER_SIZE);
+        header.writeInt(MOOF_SIZE);
+        header.writeBytes(type("moof"));
+        // mfhd
+        header.writeInt(16);
+        header.writeBytes(type("mfhd"));
+        header.writeInt(0);
+        header.writeInt(++sequence);
+        // traf
+        header.writeInt(MOOF_SIZE - 24);
+        header.writeBytes(type("traf"));
+        // tfhd：default-base-is-moof
+        header.writeInt(16);
+        header.writeBytes(type("tfhd"));
+        header.writeInt(0x020000);
+        header.writeInt(TRACK_ID);
+        // tfdt（版本 1，64 位解码时间）
+        header.writeInt(20);
+        header.writeBytes(type("tfdt"));
+        header.writeInt(0x01000000);
+        header.writeLong(decodeTime);
+        // trun（版本 1，有符号的显示时间偏移）：data-offset、样本时长、样本大小、样本标志、显示时间偏移
+        header.writeInt(36);
+        header.writeBytes(type("trun"));
+        header.writeInt(0x01000F01);
+        header.writeInt(1);
+        header.writeInt(SEGMENT_HEADER_SIZE);
+        header.writeInt(lastDuration);
+        header.writeInt(size);
+        header.writeInt(frame.isKeyFrame() ? SAMPLE_FLAGS_KEY : SAMPLE_FLAGS_DELTA);
+        header.writeInt(compositionOffset);
+        // mdat
+        header.writeInt(8 + size);
+        header.writeBytes(type("mdat"));
+        return Unpooled.wrappedBuffer(header, body);
+    }
+
+    /**
+     * 释放初始化段并重置时间线（停止后重新开始时调用）
+     */
+    void reset() {
+        if (init != null) {
+            init.release();
+            init = null;
+        }
+        sps = null;
+        pps = null;
+        codec = null;
+        sequence = 0;
+        firstDecodeNanos = -1;
+        lastDecodeTime = -1;
+        lastDuration = DEFAULT_DURATION;
+    }
+
+    /**
+     * 初始化段: ftyp + moov(mvhd + trak(tkhd + mdia(mdhd + hdlr + minf(vmhd + dinf + stbl))) + mvex(trex))
+     */
+    private ByteBuf buildInit() {
+        ByteBuf out = Unpooled.buffer(640 + sps.length + pps.length);
+
+        int ftyp = begin(out, "ftyp");
+        out.writeBytes(type("isom"));
+        out.writeInt(0x200);
+        for (String brand : new String[]{"isom", "iso5", "iso6", "avc1", "mp41"}) {
+            out.writeBytes(type(brand));
+        }
+        end(out, ftyp);
+
+        int moov = begin(out, "moov");
+        int mvhd = begin(out, "mvhd");
+        out.writeInt(0);
+        out.writeInt(0);                 // 创建时间
+        out.writeInt(0);                 // 修改时间
+        out.writeInt(1000);              // 时间单位
+        out.writeInt(0);                 // 时长（分片文件为 0）
+        out.writeInt(0x00010000);        // 播放速率 1.0
+        out.writeShort(0x0100);          // 音量 1.0
+        out.writeZero(10);
+        writeMatrix(out);
+        out.writeZero(24);
+        out.writeInt(TRACK_ID + 1);      // 下一个轨道 ID
+        end(out, mvhd);
+
+        int trak = begin(out, "trak");
+        int tkhd = begin(out, "tkhd");
+        out.writeInt(0x00000003);        // 已启用、在播放中使用
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(TRACK_ID);
+        out.writeInt(0);
+        out.writeInt(0);                 // 时长
+        out.writeZero(8);
+        out.writeShort(0);               // 层
+        out.writeShort(0);               // 备用组
+        out.writeShort(0);               // 音量（视频轨为 0）
+        out.writeShort(0);
+        writeMatrix(out);
+        out.writeInt(width << 16);
+        out.writeInt(height << 16);
+        end(out, tkhd);
+
+        int mdia = begin(out, "mdia");
+        int mdhd = begin(out, "mdhd");
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(TIMESCALE);
+        out.writeInt(0);
+        out.writeShort(0x55C4);          // 语言 und
+        out.writeShort(0);
+        end(out, mdhd);
+        int hdlr = begin(out, "hdlr");
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeBytes(type("vide"));
+        out.writeZero(12);
+        out.writeBytes("VideoHandler".getBytes(StandardCharsets.US_ASCII));
+        out.writeByte(0);
+        end(out, hdlr);
+
+        int minf = begin(out, "minf");
+        int vmhd = begin(out, "vmhd");
+        out.writeInt(1);
+        out.writeZero(8);
+        end(out, vmhd);
+        int dinf = begin(out, "dinf");
+        int dref = begin(out, "dref");
+        out.writeInt(0);
+        out.writeInt(1);
+        int url = begin(out, "url ");
+        out.writeInt(1);                 // 数据在本文件中
+        end(out, url);
+        end(out, dref);
+        end(out, dinf);
+
+        int stbl = begin(out, "stbl");
+        int stsd = begin(out, "stsd");
+        out.writeInt(0);
+        out.writeInt(1);
+        int avc1 = begin(out, "avc1");
+        out.writeZero(6);
+        out.writeShort(1);               // 数据引用索引
+        out.writeZero(16);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeInt(0x00480000);        // 72 dpi
+        out.writeInt(0x00480000);
+        out.writeInt(0);
+        out.writeShort(1);               // 每样本帧数
+        out.writeZero(32);               // 编码器名称
+        out.writeShort(0x0018);          // 色深
+        out.writeShort(-1);
+        int avcC = begin(out, "avcC");
+        out.writeByte(1);
+        out.writeByte(sps[1]);           // profile
+        out.writeByte(sps[2]);           // 兼容性
+        out.writeByte(sps[3]);           // level
+        out.writeByte(0xFF);             // NAL 长度字段 4 字节
+        out.writeByte(0xE1);             // 1 个 SPS
+        out.writeShort(sps.length);
+        out.writeBytes(sps);
+        out.writeByte(1);                // 1 个 PPS
+        out.writeShort(pps.length);
+        out.writeBytes(pps);
+        end(out, avcC);
+        end(out, avc1);
+        end(out, stsd);
+        for (String empty : new String[]{"stts", "stsc", "stco"}) {
+            int box = begin(out, empty);
+            out.writeInt(0);
+            out.writeInt(0);
+            end(out, box);
+        }
+        int stsz = begin(out, "stsz");
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        end(out, stsz);
+        end(out, stbl);
+        end(out, minf);
+        end(out, mdia);
+        end(out, trak);
+
+        int mvex = begin(out, "mvex");
+        int trex = begin(out, "trex");
+        out.writeInt(0);
+        out.writeInt(TRACK_ID);
+        out.writeInt(1);                 // 默认样本描述索引
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        end(out, trex);
+        end(out, mvex);
+        end(out, moov);
+        return out;
+    }
+
+    /**
+     * 纳秒换算为 90kHz 时间单位（四舍五入）
+     */
+    private static long ticks(long nanos) {
+        return Math.round(nanos * (TIMESCALE / 1e9));
+    }
+
+    private static int begin(ByteBuf out, String type) {
+        int start = out.writerIndex();
+        out.writeInt(0);
+        out.writeBytes(type(type));
+        return start;
+    }
+
+    private static void end(ByteBuf out, int start) {
+        out.setInt(start, out.writerIndex() - start);
+    }
+
+    private static void writeMatrix(ByteBuf out) {
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : matrix) {
+            out.writeInt(value);
+        }
+    }
+
+    private static byte[] type(String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 从 SPS 中解析画面尺寸（考虑裁剪），只读取到 frame_cropping 为止
+     */
+    static final class SpsParser {
+
+        private final byte[] rbsp;
+        private int bit;
+
+        private SpsParser(byte[] rbsp) {
+            this.rbsp = rbsp;
+        }
+
+        /**
+         * @param sps 含 NAL 头的 SPS
+         * @return [宽, 高]，格式不支持时返回 null
+         */
+        static int[] parseSize(byte[] sps) {
+            try {
+                return new SpsParser(unescape(sps)).readSize();
+            } catch (IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        private int[] readSize() {
+            bit = 8;                                 // NAL 头
+            int profile = bits(8);
+            bits(16);                                // 兼容性标志、level
+            ue();                                    // seq_parameter_set_id
+            int chromaFormat = 1;
+            if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+                    || profile == 83 || profile == 86 || profile == 118 || profile == 128 || profile == 138
+                    || profile == 139 || profile == 134 || profile == 135) {
+                chromaFormat = ue();
+                if (chromaFormat == 3) {
+                    bits(1);                         // separate_colour_plane_flag
+                }
+                ue();                                // bit_depth_luma_minus8
+                ue();                                // bit_depth_chroma_minus8
+                bits(1);                             // qpprime_y_zero_transform_bypass_flag
+                if (bits(1) == 1) {                  // seq_scaling_matrix_present_flag
+                    for (int i = 0; i < (chromaFormat != 3 ? 8 : 12); i++) {
+                        if (bits(1) == 1) {
+                            skipScalingList(i < 6 ? 16 : 64);
+                        }
+                    }
+                }
+            }
+            ue();                                    // log2_max_frame_num_minus4
+            int pocType = ue();
+            if (pocType == 0) {
+                ue();
+            } else if (pocType == 1) {
+                bits(1);
+                se();
+                se();
+                int cycle = ue();
+                for (int i = 0; i < cycle; i++) {
+                    se();
+                }
+            }
+            ue();                                    // max_num_ref_frames
+            bits(1);                                 // gaps_in_frame_num_value_allowed_flag
+            int widthMbs = ue() + 1;
+            int heightMapUnits = ue() + 1;
+            int frameMbsOnly = bits(1);
+            if (frameMbsOnly == 0) {
+                bits(1);                             // mb_adaptive_frame_field_flag
+            }
+            bits(1);                                 // direct_8x8_inference_flag
+            int width = widthMbs * 16;
+            int height = (2 - frameMbsOnly) * heightMapUnits * 16;
+            if (bits(1) == 1) {                      // frame_cropping_flag
+                int cropUnitX = chromaFormat == 1 || chromaFormat == 2 ? 2 : 1;
+                int cropUnitY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMbsOnly);
+                width -= (ue() + ue()) * cropUnitX;
+                height -= (ue() + ue()) * cropUnitY;
+            }
+            return new int[]{width, height};
+        }
+
+        private void skipScalingList(int size) {
+            int last = 8;
+            int next = 8;
+            for (int i = 0; i < size && next != 0; i++) {
+                next = (last + se() + 256) % 256;
+                last = next == 0 ? last : next;
+            }
+        }
+
+        private int bits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                int b = (rbsp[bit >> 3] >> (7 - (bit & 7))) & 1;
+                value = (value << 1) | b;
+                bit++;
+            }
+            return value;
+        }
+
+        private int ue() {
+            int zeros = 0;
+            while (bits(1) == 0) {
+                zeros++;
+            }
+            return (1 << zeros) - 1 + bits(zeros);
+        }
+
+        private int se() {
+            int value = ue();
+            return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+        }
+
+        /**
+         * 去掉防竞争字节（00 00 03 → 00 00）
+         */
+        private static byte[] unescape(byte[] nal) {
+            byte[] out = new byte[nal.length];
+            int length = 0;
+            int zeros = 0;
+            for (byte b : nal) {
+                if (zeros >= 2 && b == 3) {
+                    zeros = 0;
+                    continue;
+                }
+                zeros = b == 0 ? zeros + 1 : 0;
+                out[length++] = b;
+            }
+            return Arrays.copyOf(out, length);
+        }
+    }
+}
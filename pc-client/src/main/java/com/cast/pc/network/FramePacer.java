@@ -0,0 +1,291 @@
+package com.cast.pc.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 出站调度器：长度前缀 + 控制消息优先 + 发送节奏控制（令牌桶）
+ *
+ * 取代 LengthFieldPrepender 作为最后一个出站处理器，按消息写出 [4字节长度][消息]：
+ * <ul>
+ *   <li>控制消息（握手、心跳等）进入优先队列，在下一个消息边界插到排队的视频数据前面；
+ *       大帧已被拆成分片，控制消息最多等待一个分片</li>
+ *   <li>视频消息（视频帧、分片、格式变更、停用）保持原有顺序；格式变更标记新旧帧的分界，不能插队</li>
+ *   <li>开启节奏控制时，把一帧数据切成小块，在帧间隔的一部分时间内匀速发出，
+ *       避免 1~2MB 的关键帧一次性灌进 Wi-Fi AP 队列，拖慢后面所有数据</li>
+ * </ul>
+ *
+ * 速率按帧计算：尽量在 {@link #SPREAD_FRACTION} 个帧间隔内发完，
+ * 不超过估计带宽，但也不会慢到一个帧间隔内发不完。分片按所属整帧的大小计算速率。
+ * 所有方法都在 Channel 的事件循环线程上执行。
+ */
+class FramePacer extends ChannelDuplexHandler {
+
+    // 每次写出的块大小
+    static final int CHUNK_SIZE = 16 * 1024;
+    // 帧数据在帧间隔的多大比例内发完
+    private static final double SPREAD_FRACTION = 0.5;
+    // 令牌桶深度（允许的突发量）
+    private static final int BUCKET_SIZE = 4 * CHUNK_SIZE;
+    // 小于该大小的视频消息不消耗令牌
+    private static final int SMALL_MESSAGE = 1024;
+    // 长度前缀字节数
+    private static final int LENGTH_FIELD = 4;
+
+    private final boolean pacingEnabled;
+    private final ArrayDeque<Pending> controlQueue = new ArrayDeque<>();
+    private final ArrayDeque<Pending> videoQueue = new ArrayDeque<>();
+    // 正在分块写出的视频消息（长度前缀已写出）
+    private Pending current;
+    // 只在事件循环线程上修改，其他线程只读
+    private volatile long pendingBytes;
+    // 排队中尚未开始写出的视频帧数（同上）
+    private volatile int queuedFrames;
+
+    private volatile long bandwidthBytesPerSec;
+    private volatile int frameRate;
+
+    private double rateBytesPerSec;
+    private double tokens = BUCKET_SIZE;
+    private long lastRefillNanos = System.nanoTime();
+    private ScheduledFuture<?> drainTask;
+
+    /**
+     * @param pacingEnabled 是否启用节奏控制；关闭时只做长度前缀和控制消息优先
+     */
+    FramePacer(long bandwidthBitsPerSec, int frameRate, boolean pacingEnabled) {
+        this.pacingEnabled = pacingEnabled;
+        setBandwidth(bandwidthBitsPerSec);
+        setFrameRate(frameRate);
+    }
+
+    /**
+     * 更新估计带宽（bit/s）
+     */
+    void setBandwidth(long bitsPerSec) {
+        this.bandwidthBytesPerSec = Math.max(1, bitsPerSec / 8);
+    }
+
+    /**
+     * 更新帧率
+     */
+    void setFrameRate(int fps) {
+        this.frameRate = Math.max(1, fps);
+    }
+
+    /**
+     * 尚未写入 Socket 的字节数（可在任意线程读取）
+     */
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * 排队中尚未开始写出的视频帧数（可在任意线程读取），发送端据此判断该接收端是否跟不上
+     */
+    int queuedFrames() {
+        return queuedFrames;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        ByteBuf buf = (ByteBuf) msg;
+        Pending pending = new Pending(buf, promise);
+        if (pending.video) {
+            videoQueue.add(pending);
+            if (pending.frameStart) {
+                queuedFrames++;
+            }
+        } else {
+            controlQueue.add(pending);
+        }
+        pendingBytes += LENGTH_FIELD + buf.readableBytes();
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        drain(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            drain(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        releaseAll();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releaseAll();
+    }
+
+    /**
+     * 写出排队的消息：消息边界处控制消息优先，视频数据按令牌桶分块写出，令牌不足时定时继续
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        boolean wrote = false;
+        while (ctx.channel().isWritable()) {
+            if (current == null) {
+                Pending next = controlQueue.isEmpty() ? videoQueue.poll() : controlQueue.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next.video && next.frameStart) {
+                    queuedFrames--;
+                }
+                int length = next.buf.readableBytes();
+                ctx.write(ctx.alloc().buffer(LENGTH_FIELD).writeInt(length), ctx.voidPromise());
+                pendingBytes -= LENGTH_FIELD;
+                wrote = true;
+
+                if (!next.video || !pacingEnabled || length <= SMALL_MESSAGE) {
+                    pendingBytes -= length;
+                    ctx.write(next.buf, next.promise);
+                    continue;
+                }
+                if (next.frameStart) {
+                    rateBytesPerSec = rateFor(next.frameBytes);
+                }
+                current = next;
+            }
+
+            int remaining = current.buf.readableBytes();
+            refill();
+            int chunk = Math.min(CHUNK_SIZE, remaining);
+            if (tokens < chunk) {
+                long waitNanos = (long) ((chunk - tokens) / rateBytesPerSec * 1_000_000_000L);
+                scheduleDrain(ctx, waitNanos);
+                break;
+            }
+
+            tokens -= chunk;
+            pendingBytes -= chunk;
+            if (chunk == remaining) {
+                ctx.write(current.buf, current.promise);
+                current = null;
+            } else {
+                ctx.write(current.buf.readRetainedSlice(chunk), ctx.voidPromise());
+            }
+            wrote = true;
+        }
+        if (wrote) {
+            ctx.flush();
+        }
+    }
+
+    /**
+     * 计算一帧的发送速率：在帧间隔的 SPREAD_FRACTION 内发完，受估计带宽限制，
+     * 但至少保证一个帧间隔内发完，避免积压
+     */
+    private double rateFor(int frameBytes) {
+        double interval = 1.0 / frameRate;
+        double spreadRate = frameBytes / (interval * SPREAD_FRACTION);
+        double minRate = frameBytes / interval;
+        return Math.max(minRate, Math.min(spreadRate, bandwidthBytesPerSec));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(BUCKET_SIZE, tokens + (now - lastRefillNanos) / 1e9 * rateBytesPerSec);
+        lastRefillNanos = now;
+    }
+
+    private void scheduleDrain(ChannelHandlerContext ctx, long delayNanos) {
+        if (drainTask != null && !drainTask.isDone()) {
+            return;
+        }
+        drainTask = ctx.executor().schedule(() -> {
+            drainTask = null;
+            drain(ctx);
+        }, Math.max(delayNanos, 100_000L), TimeUnit.NANOSECONDS);
+    }
+
+    private void releaseAll() {
+        if (drainTask != null) {
+            drainTask.cancel(false);
+            drainTask = null;
+        }
+        if (current != null) {
+            release(current);
+            current = null;
+        }
+        Pending p;
+        while ((p = controlQueue.poll()) != null) {
+            release(p);
+        }
+        while ((p = videoQueue.poll()) != null) {
+            release(p);
+        }
+        pendingBytes = 0;
+        queuedFrames = 0;
+    }
+
+    private static void release(Pending p) {
+        ReferenceCountUtil.safeRelease(p.buf);
+        p.promise.tryFailure(new ClosedChannelException());
+    }
+
+    /**
+     * 排队中的消息，入队时根据类型字节分类
+     */
+    private static final class Pending {
+        final ByteBuf buf;
+        final ChannelPromise promise;
+        // 视频数据（按顺序、受节奏控制），否则为控制消息
+        final boolean video;
+        // 是否是一帧的开始（整帧消息或第一个分片），开始时按整帧大小计算速率
+        final boolean frameStart;
+        // 所属整帧的字节数
+        final int frameBytes;
+
+        Pending(ByteBuf buf, ChannelPromise promise) {
+            this.buf = buf;
+            this.promise = promise;
+            int length = buf.readableBytes();
+            int type = length > 0 ? buf.getUnsignedByte(buf.readerIndex()) : -1;
+            switch (type) {
+                case CastClient.MSG_VIDEO_FRAME:
+                case CastClient.MSG_VIDEO_FRAME_V2:
+                    video = true;
+                    frameStart = true;
+                    frameBytes = length;
+                    break;
+                case CastClient.MSG_VIDEO_FRAGMENT:
+                    // [类型][序号][整帧长度][偏移][数据]
+                    video = true;
+                    frameStart = length >= 13 && buf.getInt(buf.readerIndex() + 9) == 0;
+                    frameBytes = length >= 13 ? buf.getInt(buf.readerIndex() + 5) : length;
+                    break;
+                case CastClient.MSG_FORMAT_CHANGE:
+                case CastClient.MSG_DEACTIVATE:
+                    video = true;
+                    frameStart = true;
+                    frameBytes = length;
+                    break;
+                default:
+                    video = false;
+                    frameStart = false;
+                    frameBytes = length;
+            }
+        }
+    }
+}
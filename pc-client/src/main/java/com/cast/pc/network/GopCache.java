@@ -0,0 +1,74 @@
+package com.cast.pc.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 当前 GOP 缓存：最近一个关键帧及其后的所有帧
+ *
+ * 新加入或重连的接收端先补发缓存中的帧，从关键帧开始解码，立即有画面，
+ * 不必让编码器额外产生关键帧（否则所有接收端都要多收一个大尺寸 IDR）。
+ * 缓存按字节数限制：超出 {@link #maxBytes} 时清空并失效，直到下一个关键帧，期间只能请求关键帧。
+ * 帧以 {@link SharedFrame} 引用保存，与发送共享同一份数据。只在发送线程上使用。
+ */
+final class GopCache {
+
+    private final long maxBytes;
+    private final ArrayDeque<SharedFrame> frames = new ArrayDeque<>();
+    private long bytes;
+
+    GopCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 加入一帧：关键帧开始新的 GOP；还没有关键帧或缓存已失效时忽略非关键帧
+     */
+    void add(SharedFrame frame) {
+        if (frame.frame().isKeyFrame()) {
+            clear();
+        } else if (frames.isEmpty()) {
+            return;
+        }
+        if (bytes + frame.size() > maxBytes) {
+            System.err.println("GOP 缓存超出 " + maxBytes / 1024 + "KB，失效至下一个关键帧");
+            clear();
+            return;
+        }
+        frames.add(frame.retain());
+        bytes += frame.size();
+    }
+
+    /**
+     * 缓存是否可用于补发（以关键帧开始、未失效）
+     */
+    boolean isUsable() {
+        return !frames.isEmpty();
+    }
+
+    /**
+     * 缓存中的帧，按发送顺序
+     */
+    List<SharedFrame> frames() {
+        return new ArrayList<>(frames);
+    }
+
+    /**
+     * 缓存的帧数
+     */
+    int size() {
+        return frames.size();
+    }
+
+    /**
+     * 清空并释放缓存的帧
+     */
+    void clear() {
+        SharedFrame frame;
+        while ((frame = frames.poll()) != null) {
+            frame.release();
+        }
+        bytes = 0;
+    }
+}
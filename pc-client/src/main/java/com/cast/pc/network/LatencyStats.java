@@ -0,0 +1,95 @@
+package com.cast.pc.network;
+
+import java.util.Arrays;
+
+/**
+ * 端到端延迟统计
+ *
+ * TV端按帧回报接收、解码完成、上屏的时间，换算到 PC 时钟后与采集时间相减，
+ * 得到 采集→接收、采集→解码、采集→显示 三段延迟。
+ * 每段保存最近 {@link #WINDOW} 帧，用于计算分位数。方法均为同步方法。
+ */
+public class LatencyStats {
+
+    // 滑动窗口大小（帧）
+    static final int WINDOW = 300;
+
+    /**
+     * 延迟阶段
+     */
+    public enum Stage {
+        RECEIVE("接收"),
+        DECODE("解码"),
+        RENDER("显示");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final long[][] samples = new long[Stage.values().length][WINDOW];
+    private int next;
+    private int count;
+
+    /**
+     * 记录一帧的各段延迟（纳秒）
+     */
+    public synchronized void record(long receiveNanos, long decodeNanos, long renderNanos) {
+        samples[Stage.RECEIVE.ordinal()][next] = receiveNanos;
+        samples[Stage.DECODE.ordinal()][next] = decodeNanos;
+        samples[Stage.RENDER.ordinal()][next] = renderNanos;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+    }
+
+    /**
+     * 清空统计（新连接开始时调用）
+     */
+    public synchronized void reset() {
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * 窗口内的帧数
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * 指定阶段的延迟分位数（纳秒），没有采样时返回 -1
+     *
+     * @param quantile 0~1，如 0.95
+     */
+    public synchronized long percentileNanos(Stage stage, double quantile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples[stage.ordinal()], count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(quantile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * 统计摘要，用于界面和日志
+     */
+    public synchronized String summary() {
+        if (count == 0) {
+            return "端到端延迟：暂无数据";
+        }
+        StringBuilder sb = new StringBuilder("端到端延迟（p50/p95）");
+        for (Stage stage : Stage.values()) {
+            sb.append(String.format("  采集→%s %.0f/%.0fms", stage.getLabel(),
+                    percentileNanos(stage, 0.5) / 1e6, percentileNanos(stage, 0.95) / 1e6));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package com.cast.pc.network;
+
+/**
+ * TV端定期回报的接收统计（一个统计周期内的增量）
+ *
+ * 区分瓶颈：收到的帧少于发送的帧说明网络跟不上；收到但解码、显示不过来、
+ * 队列堆积或解码耗时接近帧间隔，说明TV端解码能力是瓶颈。
+ */
+public final class ReceiverStats {
+
+    private final int intervalMs;
+    private final int received;
+    private final int decoded;
+    private final int rendered;
+    private final int dropped;
+    private final int maxQueueDepth;
+    private final int avgDecodeMicros;
+    private final int maxDecodeMicros;
+
+    ReceiverStats(int intervalMs, int received, int decoded, int rendered, int dropped,
+                  int maxQueueDepth, int avgDecodeMicros, int maxDecodeMicros) {
+        this.intervalMs = intervalMs;
+        this.received = received;
+        this.decoded = decoded;
+        this.rendered = rendered;
+        this.dropped = dropped;
+        this.maxQueueDepth = maxQueueDepth;
+        this.avgDecodeMicros = avgDecodeMicros;
+        this.maxDecodeMicros = maxDecodeMicros;
+    }
+
+    /**
+     * 统计周期（毫秒）
+     */
+    public int getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * 完整收到的帧数
+     */
+    public int getReceived() {
+        return received;
+    }
+
+    /**
+     * 解码输出的帧数
+     */
+    public int getDecoded() {
+        return decoded;
+    }
+
+    /**
+     * 上屏的帧数
+     */
+    public int getRendered() {
+        return rendered;
+    }
+
+    /**
+     * 丢弃的帧数（格式错误、分片不完整、解码队列溢出、等待关键帧）
+     */
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * 统计周期内解码队列的最大深度
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * 平均解码耗时（微秒）
+     */
+    public int getAvgDecodeMicros() {
+        return avgDecodeMicros;
+    }
+
+    /**
+     * 最大解码耗时（微秒）
+     */
+    public int getMaxDecodeMicros() {
+        return maxDecodeMicros;
+    }
+
+    /**
+     * 上屏帧率
+     */
+    public double getRenderedFps() {
+        return intervalMs > 0 ? rendered * 1000.0 / intervalMs : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("收到 %d，解码 %d，显示 %d（%.0ffps），丢弃 %d，队列峰值 %d，解码耗时 %.1f/%.1fms",
+                received, decoded, rendered, getRenderedFps(), dropped, maxQueueDepth,
+                avgDecodeMicros / 1000.0, maxDecodeMicros / 1000.0);
+    }
+}
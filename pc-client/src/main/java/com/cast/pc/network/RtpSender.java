@@ -0,0 +1,315 @@
+package com.cast.pc.network;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP 视频发送（RTP 风格分包 + 前向纠错 + NACK 重传）
+ *
+ * TCP 在有丢包的 Wi-Fi 上丢一个包就要等重传，后面的数据全部排队，表现为整帧间隔的卡顿。
+ * 走 UDP 时每帧拆成不超过 {@link #MAX_PAYLOAD} 字节的数据包，再按比例附加 XOR 校验包：
+ * 第 i 个数据包属于第 (i mod k) 组，每组一个校验包，每组丢一个包TV端可直接恢复；
+ * 恢复不了的包由TV端用 NACK 请求重传，只重传发出后 {@link #RETRANSMIT_DEADLINE_MS} 内的帧，
+ * 过期的帧TV端会放弃并请求关键帧。握手、心跳、格式变更等控制消息仍走 TCP。
+ *
+ * 数据包: [0x80][标志|负载类型][2字节包序号][4字节帧序号][4字节会话标识]
+ *        [2字节帧内序号][2字节数据包数 n][2字节校验包数 k][4字节帧长度][负载]
+ * 负载是去掉类型字节的 v2 视频帧（与分片的负载相同），帧内序号 0..n-1 为数据包，n..n+k-1 为校验包。
+ * NACK: [0x80][负载类型][2字节保留][4字节帧序号][4字节会话标识][2字节个数 m][m 个帧内序号]，m 为 0 时重传整帧。
+ *
+ * {@link #sendFrame} 在发送线程调用，NACK 在事件循环线程处理，历史记录用本对象加锁保护。
+ */
+final class RtpSender {
+
+    // 单个数据包的最大负载：加上包头、UDP/IP 头后不超过常见的 1500 字节 MTU
+    static final int MAX_PAYLOAD = 1200;
+    static final int HEADER_SIZE = 22;
+    static final int RTP_VERSION_BYTE = 0x80;
+    static final int PT_MEDIA = 96;
+    static final int PT_FEC = 97;
+    static final int PT_NACK = 98;
+    private static final int MARKER = 0x80;
+    // 保留的已发送帧数（用于重传），按帧序号取模存放
+    private static final int HISTORY_FRAMES = 128;
+    // 超过这个时间的帧不再重传（毫秒），与TV端等待缺帧的期限一致
+    static final int RETRANSMIT_DEADLINE_MS = 150;
+    // UDP 发送缓冲区：容纳几个大关键帧的突发
+    private static final int SOCKET_SEND_BUFFER = 1024 * 1024;
+
+    private final Channel channel;
+    private InetSocketAddress target;
+    private final int sessionId;
+    private final int fecPercent;
+
+    private final SentFrame[] history = new SentFrame[HISTORY_FRAMES];
+    private int packetSequence;
+    private boolean closed;
+    // 统计（加锁访问）
+    private long packetsSent;
+    private long fecPacketsSent;
+    private long packetsRetransmitted;
+    private long nacksReceived;
+
+    private RtpSender(Channel channel, InetSocketAddress target, int sessionId, int fecPercent) {
+        this.channel = channel;
+        this.target = target;
+        this.sessionId = sessionId;
+        this.fecPercent = fecPercent;
+    }
+
+    /**
+     * 在指定事件循环上打开 UDP 发送端（绑定任意本地端口）
+     *
+     * @param fecPercent 校验包占数据包的百分比，0 表示不发送校验包
+     */
+    static CompletableFuture<RtpSender> open(EventLoopGroup group, InetSocketAddress target, int sessionId,
+                                             int fecPercent) {
+        CompletableFuture<RtpSender> opened = new CompletableFuture<>();
+        RtpSender[] holder = new RtpSender[1];
+        new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .option(ChannelOption.SO_SNDBUF, SOCKET_SEND_BUFFER)
+                .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+                        RtpSender sender = holder[0];
+                        if (sender != null) {
+                            sender.onDatagram(packet.content());
+                        }
+                    }
+                })
+                .bind(0)
+                .addListener((ChannelFutureListener) f -> {
+                    if (!f.isSuccess()) {
+                        opened.completeExceptionally(f.cause());
+                        return;
+                    }
+                    holder[0] = new RtpSender(f.channel(), target, sessionId, Math.max(0, fecPercent));
+                    System.out.println("UDP 视频通道已打开: " + target + "，校验包 " + fecPercent + "%");
+                    opened.complete(holder[0]);
+                });
+        return opened;
+    }
+
+    /**
+     * 发送缓冲区是否还能接受数据（不能时调用方应丢弃可丢弃帧）
+     */
+    boolean isWritable() {
+        return channel.isActive() && channel.isWritable();
+    }
+
+    /**
+     * 分包发送一帧
+     *
+     * @param body      去掉类型字节的 v2 视频帧，本方法负责释放
+     * @param frameSeq  帧序号（与帧体内的序号相同）
+     */
+    synchronized void sendFrame(ByteBuf body, int frameSeq) {
+        try {
+            if (closed) {
+                return;
+            }
+            int length = body.readableBytes();
+            int dataCount = Math.max(1, (length + MAX_PAYLOAD - 1) / MAX_PAYLOAD);
+            int fecCount = fecPercent > 0 ? Math.min(dataCount, Math.max(1, (dataCount * fecPercent + 99) / 100)) : 0;
+            if (dataCount + fecCount > 0xFFFF) {
+                fecCount = 0xFFFF - dataCount;
+            }
+            ByteBuf[] packets = new ByteBuf[dataCount + fecCount];
+
+            int chunk = Math.min(MAX_PAYLOAD, length);
+            byte[][] parity = new byte[fecCount][];
+            for (int j = 0; j < fecCount; j++) {
+                parity[j] = new byte[chunk];
+            }
+            for (int i = 0; i < dataCount; i++) {
+                int offset = body.readerIndex() + i * MAX_PAYLOAD;
+                int size = Math.min(MAX_PAYLOAD, length - i * MAX_PAYLOAD);
+                if (fecCount > 0) {
+                    byte[] group = parity[i % fecCount];
+                    for (int b = 0; b < size; b++) {
+                        group[b] ^= body.getByte(offset + b);
+                    }
+                }
+                ByteBuf header = header(PT_MEDIA, i == dataCount - 1, frameSeq, i, dataCount, fecCount, length);
+                packets[i] = Unpooled.wrappedBuffer(header, body.retainedSlice(offset, size));
+            }
+            for (int j = 0; j < fecCount; j++) {
+                ByteBuf header = header(PT_FEC, false, frameSeq, dataCount + j, dataCount, fecCount, length);
+                packets[dataCount + j] = Unpooled.wrappedBuffer(header, Unpooled.wrappedBuffer(parity[j]));
+            }
+
+            int slot = Math.floorMod(frameSeq, HISTORY_FRAMES);
+            SentFrame evicted = history[slot];
+            history[slot] = new SentFrame(frameSeq, System.nanoTime(), packets);
+            if (evicted != null) {
+                evicted.release();
+            }
+
+            for (ByteBuf packet : packets) {
+                channel.write(new DatagramPacket(packet.retainedDuplicate(), target));
+            }
+            channel.flush();
+            packetsSent += dataCount;
+            fecPacketsSent += fecCount;
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * 包头；包序号在每个包（含重传）发送前按顺序填写，TV端据此统计丢包
+     */
+    private ByteBuf header(int payloadType, boolean marker, int frameSeq, int index, int dataCount, int fecCount,
+                           int length) {
+        ByteBuf header = Unpooled.buffer(HEADER_SIZE);
+        header.writeByte(RTP_VERSION_BYTE);
+        header.writeByte((marker ? MARKER : 0) | payloadType);
+        header.writeShort(packetSequence++ & 0xFFFF);
+        header.writeInt(frameSeq);
+        header.writeInt(sessionId);
+        header.writeShort(index);
+        header.writeShort(dataCount);
+        header.writeShort(fecCount);
+        header.writeInt(length);
+        return header;
+    }
+
+    /**
+     * 收到TV端的数据报（NACK），重传仍在期限内的包
+     */
+    private synchronized void onDatagram(ByteBuf msg) {
+        if (closed || msg.readableBytes() < 14 || msg.readUnsignedByte() != RTP_VERSION_BYTE
+                || (msg.readUnsignedByte() & 0x7F) != PT_NACK) {
+            return;
+        }
+        msg.skipBytes(2);
+        int frameSeq = msg.readInt();
+        if (msg.readInt() != sessionId) {
+            return;
+        }
+        int count = msg.readUnsignedShort();
+        nacksReceived++;
+
+        SentFrame frame = history[Math.floorMod(frameSeq, HISTORY_FRAMES)];
+        if (frame == null || frame.sequence != frameSeq
+                || System.nanoTime() - frame.sentAtNanos > TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_DEADLINE_MS)) {
+            return;
+        }
+        if (count == 0) {
+            // 整帧都没收到：重传全部数据包
+            for (int i = 0; i < frame.dataCount(); i++) {
+                retransmit(frame, i);
+            }
+        } else {
+            for (int i = 0; i < count && msg.readableBytes() >= 2; i++) {
+                retransmit(frame, msg.readUnsignedShort());
+            }
+        }
+        channel.flush();
+    }
+
+    private void retransmit(SentFrame frame, int index) {
+        if (index < 0 || index >= frame.packets.length) {
+            return;
+        }
+        // 重传包使用新的包序号。包头复制一份再改：历史里的包头与之前尚未写出的包共享内存，
+        // 直接改写会把正在排队的原包和后续重传都改成同一个序号
+        ByteBuf original = frame.packets[index];
+        ByteBuf header = Unpooled.buffer(HEADER_SIZE);
+        header.writeBytes(original, original.readerIndex(), HEADER_SIZE);
+        header.setShort(2, packetSequence++ & 0xFFFF);
+        ByteBuf payload = original.retainedSlice(original.readerIndex() + HEADER_SIZE,
+                original.readableBytes() - HEADER_SIZE);
+        channel.write(new DatagramPacket(Unpooled.wrappedBuffer(header, payload), target));
+        packetsRetransmitted++;
+    }
+
+    /**
+     * 重传历史中某帧的第 index 个包的副本（用于测试），不在历史中时返回 null
+     */
+    synchronized byte[] historyPacket(int frameSeq, int index) {
+        SentFrame frame = history[Math.floorMod(frameSeq, HISTORY_FRAMES)];
+        if (frame == null || frame.sequence != frameSeq || index < 0 || index >= frame.packets.length) {
+            return null;
+        }
+        ByteBuf packet = frame.packets[index];
+        byte[] copy = new byte[packet.readableBytes()];
+        packet.getBytes(packet.readerIndex(), copy);
+        return copy;
+    }
+
+    /**
+     * 改发到另一台TV端（切换投屏目标时），之前发出的帧不再重传
+     */
+    synchronized void retarget(InetSocketAddress target) {
+        releaseHistory();
+        this.target = target;
+        System.out.println("UDP 视频通道改发到: " + target);
+    }
+
+    /**
+     * 发送统计，用于日志
+     */
+    synchronized String summary() {
+        return String.format("UDP 数据包 %d，校验包 %d，NACK %d 次，重传 %d 包",
+                packetsSent, fecPacketsSent, nacksReceived, packetsRetransmitted);
+    }
+
+    /**
+     * 关闭 UDP 通道并释放重传历史
+     */
+    synchronized void close() {
+        closed = true;
+        releaseHistory();
+        channel.close();
+    }
+
+    private void releaseHistory() {
+        for (int i = 0; i < history.length; i++) {
+            if (history[i] != null) {
+                history[i].release();
+                history[i] = null;
+            }
+        }
+    }
+
+    /**
+     * 已发送的一帧：各数据包、校验包（保留引用以便重传）
+     */
+    private static final class SentFrame {
+        final int sequence;
+        final long sentAtNanos;
+        final ByteBuf[] packets;
+
+        SentFrame(int sequence, long sentAtNanos, ByteBuf[] packets) {
+            this.sequence = sequence;
+            this.sentAtNanos = sentAtNanos;
+            this.packets = packets;
+        }
+
+        int dataCount() {
+            return packets[0].getUnsignedShort(14);
+        }
+
+        void release() {
+            for (ByteBuf packet : packets) {
+                packet.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.cast.pc.network;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 往返时延统计
+ *
+ * 保存最近 {@link #WINDOW} 个心跳 RTT 采样，按固定的毫秒区间统计直方图，并计算分位数。
+ * 最小值从连接开始累计，作为网络空闲时的基线 RTT。
+ * 采样在事件循环线程写入，界面和码率控制在其他线程读取，方法均为同步方法。
+ */
+public class RttStats {
+
+    // 滑动窗口大小（按 250ms 心跳约为最近 30 秒）
+    static final int WINDOW = 120;
+    // 直方图区间上界（毫秒），最后一个区间为超过最大上界的采样
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private final long[] samples = new long[WINDOW];
+    private final int[] buckets = new int[BUCKET_BOUNDS_MS.length + 1];
+    private int next;
+    private int count;
+    private long lastNanos = -1;
+    private long minNanos = Long.MAX_VALUE;
+
+    /**
+     * 记录一次 RTT 采样（纳秒）
+     */
+    public synchronized void record(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (count == WINDOW) {
+            buckets[bucketOf(samples[next])]--;
+        } else {
+            count++;
+        }
+        samples[next] = rttNanos;
+        buckets[bucketOf(rttNanos)]++;
+        next = (next + 1) % WINDOW;
+
+        lastNanos = rttNanos;
+        minNanos = Math.min(minNanos, rttNanos);
+    }
+
+    /**
+     * 清空统计（新连接开始时调用）
+     */
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0);
+        next = 0;
+        count = 0;
+        lastNanos = -1;
+        minNanos = Long.MAX_VALUE;
+    }
+
+    /**
+     * 窗口内的采样数
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * 最近一次 RTT（纳秒），没有采样时返回 -1
+     */
+    public synchronized long lastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * 连接以来的最小 RTT（纳秒），没有采样时返回 -1
+     */
+    public synchronized long minNanos() {
+        return minNanos == Long.MAX_VALUE ? -1 : minNanos;
+    }
+
+    /**
+     * 窗口内的 RTT 分位数（纳秒），没有采样时返回 -1
+     *
+     * @param quantile 0~1，如 0.95
+     */
+    public synchronized long percentileNanos(double quantile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(quantile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * 窗口内各区间的采样数，区间上界见 {@link #bucketBoundsMs()}，最后一项为超出最大上界的采样
+     */
+    public synchronized int[] histogram() {
+        return buckets.clone();
+    }
+
+    /**
+     * 直方图区间上界（毫秒）
+     */
+    public static long[] bucketBoundsMs() {
+        return BUCKET_BOUNDS_MS.clone();
+    }
+
+    /**
+     * 统计摘要，用于日志
+     */
+    public synchronized String summary() {
+        if (count == 0) {
+            return "RTT：暂无采样";
+        }
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] == 0) {
+                continue;
+            }
+            if (histogram.length() > 0) {
+                histogram.append(' ');
+            }
+            histogram.append(i < BUCKET_BOUNDS_MS.length ? "<" + BUCKET_BOUNDS_MS[i] : "≥" + BUCKET_BOUNDS_MS[i - 1])
+                    .append("ms:").append(buckets[i]);
+        }
+        return String.format("RTT 最近 %.1fms，p50 %.1fms，p95 %.1fms，p99 %.1fms，最小 %.1fms（%d 次采样，%s）",
+                toMs(lastNanos), toMs(percentileNanos(0.5)), toMs(percentileNanos(0.95)),
+                toMs(percentileNanos(0.99)), toMs(minNanos), count, histogram);
+    }
+
+    private static int bucketOf(long rttNanos) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(rttNanos);
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (ms < BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    private static double toMs(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
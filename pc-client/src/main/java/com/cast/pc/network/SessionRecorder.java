@@ -0,0 +1,405 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.BytePointer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * 投屏录制：把发给TV端的同一份编码数据用 FFmpeg 封装写入 MP4 或 MKV 文件，不重新编码
+ *
+ * 挂接在 {@link CastHub} 的主轨道上，编码线程只把帧放进有界队列，由专门的 I/O 线程封装和写盘，
+ * 磁盘卡顿不会拖慢采集和发送：队列满时丢帧到下一个关键帧（文件中表现为短暂的跳帧），并计入丢帧数。
+ *
+ * 录制中的文件可以随时打开和拖动进度，进程崩溃时保留已写入的部分：
+ * MP4 使用分片格式（空 moov，每个关键帧、最长 {@value #FRAGMENT_MICROS} 微秒开始一个 moof 分片，
+ * 结束时追加 mfra 随机访问索引）；MKV 每个关键帧、最长 1 秒开始一个新的 Cluster，结束时写入 Cues 索引。
+ * 每个分片写出后立即交给操作系统。
+ *
+ * 从第一个关键帧开始录制；分辨率或编码器配置（SPS/PPS）变化时在新的关键帧处换一个文件继续录制。
+ */
+public class SessionRecorder implements CastHub.FrameSink {
+
+    // 编码线程与 I/O 线程之间的队列长度（帧），约 2~4 秒
+    private static final int QUEUE_FRAMES = 120;
+    // 分片最长时长（微秒），GOP 较长时也按此间隔落盘
+    private static final int FRAGMENT_MICROS = 1_000_000;
+    // 输入时间基（90kHz，与采集时刻换算）
+    private static final AVRational INPUT_TIME_BASE = av_make_q(1, 90000);
+    // 停止时等待 I/O 线程写完剩余帧、写入索引的最长时间（毫秒）
+    private static final long STOP_TIMEOUT_MS = 5000;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    private final Path directory;
+    private final String extension;
+    private final BlockingQueue<EncodedFrame> queue = new ArrayBlockingQueue<>(QUEUE_FRAMES);
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+    private CastHub hub;
+    private Thread ioThread;
+    private volatile boolean running;
+
+    // 编码线程使用：队列满后丢帧到下一个关键帧
+    private boolean waitingForKeyFrame = true;
+    private volatile long framesDropped;
+
+    // 以下仅 I/O 线程使用
+    private AVFormatContext formatContext;
+    private AVStream stream;
+    private AVPacket packet;
+    private byte[] config;
+    private long firstNanos;
+    private long lastDts = -1;
+    private long lastDuration;
+    private volatile Path currentFile;
+    private volatile long framesWritten;
+    private volatile long bytesWritten;
+
+    /**
+     * @param directory 录制文件所在目录（不存在时创建）
+     * @param format    "mp4" 或 "mkv"
+     */
+    public SessionRecorder(Path directory, String format) {
+        String ext = format == null ? "mp4" : format.trim().toLowerCase();
+        if (!ext.equals("mp4") && !ext.equals("mkv")) {
+            throw new IllegalArgumentException("不支持的录制格式: " + format + "（可选 mp4、mkv）");
+        }
+        this.directory = directory;
+        this.extension = ext;
+    }
+
+    /**
+     * 开始录制主轨道，下一个关键帧开始写入文件；停止后不能再次开始，每次录制新建一个实例
+     */
+    public synchronized void start(CastHub hub) throws IOException {
+        if (running) {
+            return;
+        }
+        if (ioThread != null) {
+            throw new IllegalStateException("录制已结束，不能再次开始");
+        }
+        Files.createDirectories(directory);
+        this.hub = hub;
+        running = true;
+        ioThread = new Thread(this::writeLoop, "recorder-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        hub.addSink(CastHub.MAIN_TRACK, this);
+        System.out.println("[录制] 已开始，目录 " + directory.toAbsolutePath() + "，格式 " + extension);
+    }
+
+    /**
+     * 停止录制：不再接收新帧，I/O 线程写完队列中的帧并写入索引后关闭文件
+     *
+     * @return 文件关闭后完成（不阻塞调用线程）
+     */
+    public synchronized CompletableFuture<Void> stop() {
+        if (!running) {
+            return finished;
+        }
+        running = false;
+        hub.removeSink(this);
+        Thread thread = ioThread;
+        // I/O 线程卡在磁盘上时不无限等待：超时后中断，尽量写入索引
+        CompletableFuture.delayedExecutor(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS).execute(() -> {
+            if (!finished.isDone()) {
+                System.err.println("[录制] 写盘超时，放弃队列中剩余的帧");
+                thread.interrupt();
+            }
+        });
+        return finished;
+    }
+
+    /**
+     * 当前录制的文件，还没收到关键帧时为 null
+     */
+    public Path getCurrentFile() {
+        return currentFile;
+    }
+
+    /**
+     * 已写入的帧数
+     */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * 已写入的编码数据字节数（不含封装开销）
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * 因写盘跟不上（队列已满）丢弃的帧数
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * 编码线程：只入队，不做任何 I/O
+     */
+    @Override
+    public void onFrame(SharedFrame shared) {
+        if (!running) {
+            return;
+        }
+        EncodedFrame frame = shared.frame();
+        if (waitingForKeyFrame && !frame.isKeyFrame()) {
+            return;
+        }
+        if (queue.offer(frame)) {
+            waitingForKeyFrame = false;
+        } else {
+            // 丢掉的帧可能被后面的帧参考，丢到下一个关键帧
+            waitingForKeyFrame = true;
+            framesDropped++;
+        }
+    }
+
+    /**
+     * I/O 线程：逐帧封装写入，停止后写完剩余帧并关闭文件
+     */
+    private void writeLoop() {
+        packet = av_packet_alloc();
+        try {
+            while (running || !queue.isEmpty()) {
+                EncodedFrame frame = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (frame != null) {
+                    write(frame);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            System.err.println("[录制] 写入失败，停止录制: " + e.getMessage());
+            running = false;
+            if (hub != null) {
+                hub.removeSink(this);
+            }
+        } finally {
+            closeFile();
+            av_packet_free(packet);
+            queue.clear();
+            System.out.println("[录制] 已停止，共写入 " + framesWritten + " 帧"
+                    + (framesDropped > 0 ? "，写盘跟不上丢弃 " + framesDropped + " 帧" : ""));
+            finished.complete(null);
+        }
+    }
+
+    private void write(EncodedFrame frame) {
+        if (frame.isKeyFrame()) {
+            byte[] frameConfig = extractConfig(frame);
+            if (frameConfig != null && !Arrays.equals(frameConfig, config)) {
+                // 第一个关键帧，或分辨率/编码器变化：换一个文件
+                closeFile();
+                openFile(frameConfig);
+            }
+        }
+        if (formatContext == null) {
+            return;
+        }
+
+        // 解码时刻换算为 90kHz 解码时间戳（文件第一帧为 0），保证严格递增；时长按上一帧间隔估计。
+        // 显示时间戳 = 解码时间戳 + 显示时间偏移（含 B 帧的文件才不为 0），不早于解码时间戳
+        if (lastDts < 0) {
+            firstNanos = frame.getDecodeNanos();
+        }
+        long dts = (frame.getDecodeNanos() - firstNanos) * 9 / 100_000;
+        if (dts <= lastDts) {
+            dts = lastDts + 1;
+        }
+        if (lastDts >= 0) {
+            lastDuration = dts - lastDts;
+        }
+        lastDts = dts;
+        long pts = dts + Math.max(0, (frame.getCaptureNanos() - frame.getDecodeNanos()) * 9 / 100_000);
+
+        byte[] data = frame.getData();
+        if (av_new_packet(packet, data.length) < 0) {
+            throw new RuntimeException("无法分配数据包");
+        }
+        try {
+            packet.data().put(data);
+            packet.stream_index(0);
+            packet.pts(av_rescale_q(pts, INPUT_TIME_BASE, stream.time_base()));
+            packet.dts(av_rescale_q(dts, INPUT_TIME_BASE, stream.time_base()));
+            packet.duration(av_rescale_q(lastDuration > 0 ? lastDuration : 3000, INPUT_TIME_BASE, stream.time_base()));
+            if (frame.isKeyFrame()) {
+                packet.flags(packet.flags() | AV_PKT_FLAG_KEY);
+            }
+            int ret = av_write_frame(formatContext, packet);
+            if (ret < 0) {
+                throw new RuntimeException("写入帧失败（" + errorString(ret) + "）");
+            }
+        } finally {
+            av_packet_unref(packet);
+        }
+        framesWritten++;
+        bytesWritten += data.length;
+    }
+
+    /**
+     * 以关键帧中的 SPS/PPS 新建录制文件并写入文件头
+     */
+    private void openFile(byte[] frameConfig) {
+        int[] size = Fmp4Muxer.SpsParser.parseSize(spsOf(frameConfig));
+        if (size == null) {
+            System.err.println("[录制] 无法解析 SPS，等待下一个关键帧");
+            return;
+        }
+        Path file = nextFile();
+        AVFormatContext context = new AVFormatContext(null);
+        int ret = avformat_alloc_output_context2(context, null, extension.equals("mkv") ? "matroska" : "mp4",
+                file.toString());
+        if (ret < 0) {
+            throw new RuntimeException("无法创建封装器（" + errorString(ret) + "）");
+        }
+        AVDictionary options = new AVDictionary(null);
+        try {
+            AVStream newStream = avformat_new_stream(context, null);
+            AVCodecParameters par = newStream.codecpar();
+            par.codec_type(AVMEDIA_TYPE_VIDEO);
+            par.codec_id(AV_CODEC_ID_H264);
+            par.width(size[0]);
+            par.height(size[1]);
+            // Annex B 格式的 SPS/PPS，封装器据此生成 avcC 并把帧转换为长度前缀格式
+            BytePointer extradata = new BytePointer(av_mallocz(frameConfig.length + AV_INPUT_BUFFER_PADDING_SIZE));
+            extradata.put(frameConfig);
+            par.extradata(extradata);
+            par.extradata_size(frameConfig.length);
+            newStream.time_base(INPUT_TIME_BASE);
+
+            // 每个分片写出后立即交给操作系统，崩溃时最多丢失最后一个分片
+            av_dict_set(options, "flush_packets", "1", 0);
+            if (extension.equals("mkv")) {
+                av_dict_set(options, "cluster_time_limit", "1000", 0);
+            } else {
+                av_dict_set(options, "movflags", "frag_keyframe+empty_moov+default_base_moof", 0);
+                av_dict_set(options, "frag_duration", String.valueOf(FRAGMENT_MICROS), 0);
+            }
+
+            AVIOContext pb = new AVIOContext(null);
+            ret = avio_open(pb, file.toString(), AVIO_FLAG_WRITE);
+            if (ret < 0) {
+                throw new RuntimeException("无法创建文件 " + file + "（" + errorString(ret) + "）");
+            }
+            context.pb(pb);
+            ret = avformat_write_header(context, options);
+            if (ret < 0) {
+                avio_closep(context.pb());
+                throw new RuntimeException("无法写入文件头（" + errorString(ret) + "）");
+            }
+            formatContext = context;
+            stream = newStream;
+        } catch (RuntimeException e) {
+            avformat_free_context(context);
+            throw e;
+        } finally {
+            av_dict_free(options);
+        }
+        config = frameConfig;
+        firstNanos = 0;
+        lastDts = -1;
+        lastDuration = 0;
+        currentFile = file;
+        System.out.println("[录制] 写入 " + file.getFileName() + "（" + size[0] + "x" + size[1] + "）");
+    }
+
+    /**
+     * 写入索引并关闭当前文件
+     */
+    private void closeFile() {
+        if (formatContext == null) {
+            return;
+        }
+        int ret = av_write_trailer(formatContext);
+        if (ret < 0) {
+            System.err.println("[录制] 写入索引失败（" + errorString(ret) + "），文件仍可按分片播放");
+        }
+        avio_closep(formatContext.pb());
+        avformat_free_context(formatContext);
+        formatContext = null;
+        stream = null;
+        config = null;
+    }
+
+    private Path nextFile() {
+        String base = "cast-" + LocalDateTime.now().format(FILE_TIME);
+        Path file = directory.resolve(base + "." + extension);
+        for (int i = 2; Files.exists(file); i++) {
+            file = directory.resolve(base + "-" + i + "." + extension);
+        }
+        return file;
+    }
+
+    /**
+     * 关键帧中的 SPS 和 PPS（Annex B 格式，各带 4 字节起始码），没有时返回 null
+     */
+    private static byte[] extractConfig(EncodedFrame frame) {
+        byte[] data = frame.getData();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean sps = false;
+        boolean pps = false;
+        for (int i = 0; i < frame.nalCount(); i++) {
+            int offset = frame.nalOffset(i);
+            int length = frame.nalLength(i);
+            if (length == 0) {
+                continue;
+            }
+            int type = data[offset] & 0x1F;
+            if ((type == NAL_SPS && !sps) || (type == NAL_PPS && !pps)) {
+                out.write(0);
+                out.write(0);
+                out.write(0);
+                out.write(1);
+                out.write(data, offset, length);
+                sps |= type == NAL_SPS;
+                pps |= type == NAL_PPS;
+            }
+        }
+        return sps && pps ? out.toByteArray() : null;
+    }
+
+    private static byte[] spsOf(byte[] annexB) {
+        EncodedFrame parsed = EncodedFrame.fromAnnexB(annexB, 0);
+        for (int i = 0; i < parsed.nalCount(); i++) {
+            int offset = parsed.nalOffset(i);
+            if (parsed.nalLength(i) > 0 && (annexB[offset] & 0x1F) == NAL_SPS) {
+                return Arrays.copyOfRange(annexB, offset, offset + parsed.nalLength(i));
+            }
+        }
+        return new byte[0];
+    }
+
+    private static String errorString(int code) {
+        BytePointer buf = new BytePointer(AV_ERROR_MAX_STRING_SIZE);
+        av_strerror(code, buf, buf.capacity());
+        return buf.getString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 一帧编码数据的共享缓冲区：同一帧发给多个接收端时共用，不按接收端复制
+ *
+ * 帧体（v2 的 [[4字节长度][NAL]...]、v1 的 Annex B）在第一次使用时直接包装 EncodedFrame 的字节数组，
+ * NAL 数据本身不复制，只为每个 NAL 补 4 字节长度。各接收端拿到增加了引用计数的副本，
+ * 写入 Socket 后由 Netty 释放。本对象自身也有引用计数（创建者持有一个，GOP 缓存各持有一个），
+ * 最后一个持有者调用 {@link #release()} 时释放帧体。只在发送线程上构造、分发和释放。
+ */
+final class SharedFrame {
+
+    private final EncodedFrame frame;
+    private ByteBuf nalBody;
+    private ByteBuf annexB;
+    private int refCnt = 1;
+
+    SharedFrame(EncodedFrame frame) {
+        this.frame = frame;
+    }
+
+    EncodedFrame frame() {
+        return frame;
+    }
+
+    /**
+     * v2 帧体 [[4字节长度][NAL]...]，调用方负责释放返回的缓冲区
+     */
+    ByteBuf retainedNalBody() {
+        if (nalBody == null) {
+            ByteBuf data = Unpooled.wrappedBuffer(frame.getData());
+            CompositeByteBuf body = Unpooled.compositeBuffer(Math.max(16, frame.nalCount() * 2));
+            ByteBuf lengths = Unpooled.buffer(frame.nalCount() * 4);
+            for (int i = 0; i < frame.nalCount(); i++) {
+                lengths.writeInt(frame.nalLength(i));
+                body.addComponent(true, lengths.retainedSlice(i * 4, 4));
+                body.addComponent(true, data.retainedSlice(frame.nalOffset(i), frame.nalLength(i)));
+            }
+            lengths.release();
+            data.release();
+            nalBody = body;
+        }
+        return nalBody.retainedDuplicate();
+    }
+
+    /**
+     * v1 帧体（Annex B 原样），调用方负责释放返回的缓冲区
+     */
+    ByteBuf retainedAnnexB() {
+        if (annexB == null) {
+            annexB = Unpooled.wrappedBuffer(frame.getData());
+        }
+        return annexB.retainedDuplicate();
+    }
+
+    /**
+     * 编码数据字节数（GOP 缓存按此计算容量）
+     */
+    int size() {
+        return frame.getData().length;
+    }
+
+    /**
+     * 增加一个持有者
+     */
+    SharedFrame retain() {
+        refCnt++;
+        return this;
+    }
+
+    /**
+     * 释放一个持有者的引用，最后一个释放时回收帧体
+     */
+    void release() {
+        if (--refCnt > 0) {
+            return;
+        }
+        if (nalBody != null) {
+            nalBody.release();
+            nalBody = null;
+        }
+        if (annexB != null) {
+            annexB.release();
+            annexB = null;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.cast.pc.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 备用连接：与最近使用或常用的TV端保持一条已握手的空闲连接
+ *
+ * 握手时带上备用标志，TV端只回握手响应，不切换到投屏画面；空闲期间照常收发心跳，
+ * 既保活又能及时发现失效。切换投屏目标时由 {@link CastClient#switchTo} 直接接管这条连接，
+ * 省去 TCP 连接和握手；被切走的投屏连接也会降级为备用连接，方便切回。
+ * 连接断开后按指数退避自动重连，直到被移出备用列表。只在共享事件循环线程上使用。
+ */
+class StandbyConnection {
+
+    // 单次 TCP 连接超时（毫秒）
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    // 断开后重连的首次退避、最大退避（毫秒）
+    private static final int RETRY_BASE_DELAY_MS = 500;
+    private static final int RETRY_MAX_DELAY_MS = 10_000;
+
+    private final CastClient client;
+    private final String host;
+    private final int port;
+
+    private Channel channel;
+    // TV端接受的协议版本，握手完成前为 0
+    private int acceptedVersion;
+    // TV端接收视频的 UDP 端口，不支持时为 0
+    private int udpPort;
+    private long lastReadNanos;
+    private int retryAttempt;
+    private ScheduledFuture<?> retryTask;
+    private boolean closed;
+
+    StandbyConnection(CastClient client, String host, int port) {
+        this.client = client;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * 把一条已握手的连接转为备用连接（投屏目标切走时调用，连接上的投屏处理器须已移除）
+     */
+    static StandbyConnection adopt(CastClient client, String host, int port, Channel ch, int version, int udpPort) {
+        StandbyConnection standby = new StandbyConnection(client, host, port);
+        standby.channel = ch;
+        standby.acceptedVersion = version;
+        standby.udpPort = udpPort;
+        standby.lastReadNanos = System.nanoTime();
+        ch.pipeline().addLast(standby.new StandbyHandler());
+        if (!ch.isActive()) {
+            // 降级期间连接已断开，channelInactive 不会再触发
+            standby.channel = null;
+            standby.scheduleRetry();
+        }
+        return standby;
+    }
+
+    String host() {
+        return host;
+    }
+
+    int port() {
+        return port;
+    }
+
+    /**
+     * 是否已握手、可以立即接管
+     */
+    boolean isReady() {
+        Channel ch = channel;
+        return ch != null && ch.isActive() && acceptedVersion >= CastClient.VERSION_STANDBY;
+    }
+
+    /**
+     * TV端接受的协议版本
+     */
+    int acceptedVersion() {
+        return acceptedVersion;
+    }
+
+    /**
+     * TV端接收视频的 UDP 端口（握手响应给出），不支持时为 0
+     */
+    int udpPort() {
+        return udpPort;
+    }
+
+    /**
+     * 建立连接并以备用方式握手
+     */
+    void open() {
+        if (closed || channel != null) {
+            return;
+        }
+        ChannelFuture future = client.bootstrap(CONNECT_TIMEOUT_MS, StandbyHandler::new).connect(host, port);
+        channel = future.channel();
+        future.addListener((ChannelFutureListener) f -> {
+            if (!f.isSuccess() && f.channel() == channel) {
+                channel = null;
+                scheduleRetry();
+            }
+        });
+    }
+
+    /**
+     * 交出连接供投屏使用：移除备用处理器，此后本对象不再管理该连接
+     *
+     * @return 已握手的连接
+     */
+    Channel detach() {
+        closed = true;
+        cancelRetry();
+        Channel ch = channel;
+        channel = null;
+        ch.pipeline().remove(StandbyHandler.class);
+        return ch;
+    }
+
+    /**
+     * 关闭连接，不再重连
+     */
+    void close() {
+        closed = true;
+        cancelRetry();
+        Channel ch = channel;
+        channel = null;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    /**
+     * 带抖动的指数退避重连
+     */
+    private void scheduleRetry() {
+        if (closed) {
+            return;
+        }
+        long backoff = Math.min(RETRY_MAX_DELAY_MS, (long) RETRY_BASE_DELAY_MS << Math.min(retryAttempt, 16));
+        long delayMs = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        retryAttempt++;
+        retryTask = client.eventLoop().schedule(() -> {
+            retryTask = null;
+            open();
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelRetry() {
+        ScheduledFuture<?> task = retryTask;
+        retryTask = null;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * 备用连接处理器：握手、心跳保活，其他消息忽略
+     */
+    private class StandbyHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            lastReadNanos = System.nanoTime();
+            acceptedVersion = 0;
+            client.sendHandshake(ctx.channel(), true);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            if (msg.readableBytes() < 1) {
+                return;
+            }
+            lastReadNanos = System.nanoTime();
+            if (msg.readByte() != CastClient.MSG_HANDSHAKE) {
+                return;
+            }
+            acceptedVersion = msg.readableBytes() >= 4 ? msg.readInt() : 1;
+            udpPort = msg.readableBytes() >= 4 ? msg.readInt() : 0;
+            if (acceptedVersion < CastClient.VERSION_STANDBY) {
+                // 旧版TV端不认识备用标志，会把这次握手当成投屏，不能保持这种连接
+                System.err.println("TV端 " + host + " 协议版本 " + acceptedVersion + "，不支持备用连接");
+                client.dropStandby(StandbyConnection.this);
+                return;
+            }
+            retryAttempt = 0;
+            System.out.println("备用连接已就绪: " + host + ":" + port);
+        }
+
+        /**
+         * 读空闲：发送心跳；距上次收到数据超过 PEER_TIMEOUT_MS 则断开重连
+         */
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (!(evt instanceof IdleStateEvent) || ((IdleStateEvent) evt).state() != IdleState.READER_IDLE) {
+                super.userEventTriggered(ctx, evt);
+                return;
+            }
+            long silentMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+            if (silentMs >= CastClient.PEER_TIMEOUT_MS) {
+                System.err.println("备用连接 " + host + " " + silentMs + "ms 无响应，重新连接");
+                ctx.close();
+                return;
+            }
+            CastClient.sendHeartbeat(ctx.channel());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            System.err.println("备用连接 " + host + " 异常: " + cause.getMessage());
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel() != channel) {
+                return;
+            }
+            channel = null;
+            acceptedVersion = 0;
+            scheduleRetry();
+        }
+    }
+}
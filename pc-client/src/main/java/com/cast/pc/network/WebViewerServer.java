@@ -0,0 +1,429 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * 浏览器观看：内置 HTTP 服务，让局域网内的笔记本、平板不装任何软件直接用浏览器观看投屏画面
+ *
+ * 挂接在 {@link CastHub} 的主轨道上，复用已编码的 H.264 码流，封装为分片 MP4（{@link Fmp4Muxer}）：
+ * <ul>
+ *   <li>{@code /} 观看页面，用 Media Source Extensions 播放 WebSocket 收到的分片</li>
+ *   <li>{@code /ws} WebSocket：先发一条 JSON 文本（编码格式、尺寸），再逐个发送初始化段和媒体段</li>
+ *   <li>{@code /stream.mp4} 以 HTTP 分块传输连续输出同样的 fMP4 字节流</li>
+ * </ul>
+ * 每帧只在编码线程上封装一次，段头约 112 字节，帧体直接引用共享缓冲区；各观看端拿到同一个段的引用，
+ * 由一个事件循环任务统一写出，观看人数几乎不影响 CPU。新观看端从缓存的当前 GOP 开始，不需要编码器额外出关键帧；
+ * 写不动的观看端丢帧到下一个关键帧，不影响TV端和其他观看端。
+ */
+public class WebViewerServer implements CastHub.FrameSink {
+
+    // 单个观看端出站缓冲区水位：超过高水位时丢帧到下一个关键帧
+    private static final WriteBufferWaterMark WATER_MARK = new WriteBufferWaterMark(512 * 1024, 2 * 1024 * 1024);
+    // GOP 缓存容量（字节），超出后等下一个关键帧重新开始缓存
+    private static final long GOP_CACHE_BYTES = 8L * 1024 * 1024;
+    // HTTP 请求最大长度（只有页面和升级请求）
+    private static final int MAX_REQUEST_SIZE = 64 * 1024;
+    private static final String VIEWER_PAGE = "/web/viewer.html";
+
+    private final int port;
+    private EventLoopGroup group;
+    private Channel serverChannel;
+    private CastHub hub;
+    private volatile boolean running;
+    private IntConsumer onViewerCountChanged;
+
+    // 封装（只在编码线程使用）
+    private final Fmp4Muxer muxer = new Fmp4Muxer();
+
+    // 以下只在事件循环线程使用
+    private final List<Viewer> viewers = new ArrayList<>();
+    private final List<ByteBuf> gopSegments = new ArrayList<>();
+    private long gopBytes;
+    private boolean gopUsable;
+    private ByteBuf init;
+    private String formatJson;
+    private volatile int viewerCount;
+
+    /**
+     * @param port 监听端口
+     */
+    public WebViewerServer(int port) {
+        this.port = port;
+    }
+
+    /**
+     * 设置观看人数变化回调（在事件循环线程上调用）
+     */
+    public void setOnViewerCountChanged(IntConsumer callback) {
+        this.onViewerCountChanged = callback;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 当前观看人数
+     */
+    public int getViewerCount() {
+        return viewerCount;
+    }
+
+    /**
+     * 启动 HTTP 服务并挂接到投屏中枢的主轨道
+     *
+     * @return 开始监听后完成；端口被占用等失败时异常完成
+     */
+    public synchronized CompletableFuture<Void> start(CastHub hub) {
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        if (running) {
+            started.complete(null);
+            return started;
+        }
+        byte[] page = loadPage();
+        group = new NioEventLoopGroup(1, new DefaultThreadFactory("web-viewer", true));
+        new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WATER_MARK)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(MAX_REQUEST_SIZE));
+                        ch.pipeline().addLast(new WebSocketServerProtocolHandler("/ws"));
+                        ch.pipeline().addLast(new ViewerHandler(page));
+                    }
+                })
+                .bind(port)
+                .addListener((ChannelFutureListener) f -> {
+                    if (!f.isSuccess()) {
+                        System.err.println("[浏览器观看] 端口 " + port + " 监听失败: " + f.cause().getMessage());
+                        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+                        started.completeExceptionally(f.cause());
+                        return;
+                    }
+                    serverChannel = f.channel();
+                    this.hub = hub;
+                    running = true;
+                    hub.addSink(CastHub.MAIN_TRACK, this);
+                    System.out.println("[浏览器观看] 已启动，端口 " + port);
+                    started.complete(null);
+                });
+        return started;
+    }
+
+    /**
+     * 停止服务，断开所有观看端
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        hub.removeSink(this);
+        serverChannel.close();
+        group.execute(() -> {
+            for (Viewer viewer : viewers) {
+                viewer.channel.close();
+            }
+            viewers.clear();
+            clearGop();
+            if (init != null) {
+                init.release();
+                init = null;
+            }
+        });
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        System.out.println("[浏览器观看] 已停止");
+    }
+
+    /**
+     * 编码线程：封装为媒体段，交给事件循环分发
+     */
+    @Override
+    public void onFrame(SharedFrame shared) {
+        if (!running) {
+            return;
+        }
+        EncodedFrame frame = shared.frame();
+        boolean configChanged = muxer.updateConfig(frame);
+        if (muxer.init() == null) {
+            return;
+        }
+        ByteBuf newInit = configChanged ? muxer.init().retainedDuplicate() : null;
+        String json = configChanged ? String.format("{\"codec\":\"%s\",\"width\":%d,\"height\":%d}",
+                muxer.codec(), muxer.width(), muxer.height()) : null;
+        ByteBuf segment = muxer.segment(frame, shared.retainedNalBody());
+        boolean keyFrame = frame.isKeyFrame();
+        try {
+            group.execute(() -> deliver(segment, keyFrame, newInit, json));
+        } catch (RejectedExecutionException e) {
+            segment.release();
+            if (newInit != null) {
+                newInit.release();
+            }
+        }
+    }
+
+    /**
+     * 事件循环线程：更新 GOP 缓存，把同一个段的引用写给所有观看端
+     */
+    private void deliver(ByteBuf segment, boolean keyFrame, ByteBuf newInit, String json) {
+        if (newInit != null) {
+            if (init != null) {
+                init.release();
+            }
+            init = newInit;
+            formatJson = json;
+            System.out.println("[浏览器观看] 视频格式: " + json);
+            for (Viewer viewer : viewers) {
+                // 新格式从这一帧（带 SPS/PPS 的关键帧）开始
+                viewer.sendInit();
+            }
+        }
+        if (keyFrame) {
+            clearGop();
+            gopUsable = true;
+        }
+        if (gopUsable) {
+            if (gopBytes + segment.readableBytes() > GOP_CACHE_BYTES) {
+                clearGop();
+            } else {
+                gopSegments.add(segment.retain());
+                gopBytes += segment.readableBytes();
+            }
+        }
+        for (Viewer viewer : viewers) {
+            viewer.send(segment, keyFrame);
+        }
+        segment.release();
+    }
+
+    private void clearGop() {
+        for (ByteBuf cached : gopSegments) {
+            cached.release();
+        }
+        gopSegments.clear();
+        gopBytes = 0;
+        gopUsable = false;
+    }
+
+    /**
+     * 事件循环线程：新观看端从初始化段和缓存的当前 GOP 开始
+     */
+    private void join(Viewer viewer) {
+        viewers.add(viewer);
+        if (init != null) {
+            viewer.sendInit();
+            if (gopUsable && !gopSegments.isEmpty()) {
+                for (ByteBuf cached : gopSegments) {
+                    viewer.write(cached.retainedDuplicate());
+                }
+                viewer.awaitingKeyFrame = false;
+            }
+            viewer.channel.flush();
+        }
+        System.out.println("[浏览器观看] 观看端加入: " + viewer.channel.remoteAddress()
+                + (viewer.webSocket ? "（WebSocket）" : "（HTTP）") + "，共 " + viewers.size() + " 个");
+        viewerCountChanged();
+    }
+
+    private void leave(Channel channel) {
+        for (int i = 0; i < viewers.size(); i++) {
+            Viewer viewer = viewers.get(i);
+            if (viewer.channel == channel) {
+                viewers.remove(i);
+                System.out.println("[浏览器观看] 观看端离开: " + channel.remoteAddress() + "，丢弃 "
+                        + viewer.dropped + " 帧，剩余 " + viewers.size() + " 个");
+                viewerCountChanged();
+                return;
+            }
+        }
+    }
+
+    private void viewerCountChanged() {
+        viewerCount = viewers.size();
+        IntConsumer callback = onViewerCountChanged;
+        if (callback != null) {
+            callback.accept(viewerCount);
+        }
+    }
+
+    private static byte[] loadPage() {
+        try (InputStream in = WebViewerServer.class.getResourceAsStream(VIEWER_PAGE)) {
+            if (in != null) {
+                return in.readAllBytes();
+            }
+        } catch (IOException e) {
+            System.err.println("[浏览器观看] 读取观看页面失败: " + e.getMessage());
+        }
+        return "<h1>viewer page missing</h1>".getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一个观看端（只在事件循环线程使用）
+     */
+    private final class Viewer {
+        final Channel channel;
+        final boolean webSocket;
+        // 收到初始化段后要从关键帧开始；写不动丢帧后也要等下一个关键帧
+        boolean awaitingKeyFrame = true;
+        boolean initialized;
+        long dropped;
+
+        Viewer(Channel channel, boolean webSocket) {
+            this.channel = channel;
+            this.webSocket = webSocket;
+        }
+
+        void sendInit() {
+            if (webSocket) {
+                channel.write(new TextWebSocketFrame(formatJson));
+            }
+            write(init.retainedDuplicate());
+            channel.flush();
+            initialized = true;
+            awaitingKeyFrame = true;
+        }
+
+        void send(ByteBuf segment, boolean keyFrame) {
+            if (!initialized) {
+                return;
+            }
+            if (!channel.isWritable()) {
+                awaitingKeyFrame = true;
+                dropped++;
+                return;
+            }
+            if (awaitingKeyFrame && !keyFrame) {
+                dropped++;
+                return;
+            }
+            awaitingKeyFrame = false;
+            write(segment.retainedDuplicate());
+            channel.flush();
+        }
+
+        void write(ByteBuf data) {
+            channel.write(webSocket ? new BinaryWebSocketFrame(data) : new DefaultHttpContent(data));
+        }
+    }
+
+    /**
+     * HTTP 处理：观看页面、fMP4 流；WebSocket 握手完成后加入观看端
+     */
+    private final class ViewerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        private final byte[] page;
+
+        ViewerHandler(byte[] page) {
+            this.page = page;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            if (request.method() != HttpMethod.GET) {
+                respond(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, "text/plain", new byte[0]);
+                return;
+            }
+            String path = new QueryStringDecoder(request.uri()).path();
+            switch (path) {
+                case "/":
+                case "/index.html":
+                    respond(ctx, request, HttpResponseStatus.OK, "text/html; charset=utf-8", page);
+                    break;
+                case "/stream.mp4":
+                    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+                    response.headers().set(HttpHeaderNames.CONTENT_TYPE, "video/mp4");
+                    response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+                    response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+                    HttpUtil.setTransferEncodingChunked(response, true);
+                    ctx.writeAndFlush(response);
+                    join(new Viewer(ctx.channel(), false));
+                    break;
+                default:
+                    respond(ctx, request, HttpResponseStatus.NOT_FOUND, "text/plain", new byte[0]);
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+                join(new Viewer(ctx.channel(), true));
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            leave(ctx.channel());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+
+        private void respond(ChannelHandlerContext ctx, FullHttpRequest request, HttpResponseStatus status,
+                             String contentType, byte[] body) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                    Unpooled.wrappedBuffer(body));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            HttpUtil.setContentLength(response, body.length);
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            if (keepAlive) {
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
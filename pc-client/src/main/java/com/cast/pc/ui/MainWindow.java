@@ -1,7 +1,20 @@
 package com.cast.pc.ui;
 
+import com.cast.pc.capture.EgressRing;
+import com.cast.pc.capture.MediaFileSource;
+import com.cast.pc.capture.QualityLadder;
 import com.cast.pc.capture.ScreenCapture;
+import com.cast.pc.capture.SimulcastLayer;
+import com.cast.pc.network.AdaptiveBitrateController;
+import com.cast.pc.network.BandwidthProbe;
 import com.cast.pc.network.CastClient;
+import com.cast.pc.network.CastHub;
+import com.cast.pc.network.CastSession;
+import com.cast.pc.network.ClockSync;
+import com.cast.pc.network.LatencyStats;
+import com.cast.pc.network.ReceiverStats;
+import com.cast.pc.network.SessionRecorder;
+import com.cast.pc.network.WebViewerServer;
 import com.cast.pc.discovery.DeviceDiscovery;
 import com.cast.pc.config.AppConfig;
 import javafx.animation.*;
@@ -17,12 +30,24 @@ import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
+import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 主窗口界面 - 现代浅色清新主题
@@ -32,16 +57,41 @@ import java.util.List;
 public class MainWindow extends Application {
     
     private CastClient castClient;
+    // 多接收端分发：主接收端为 castClient，其余TV端共享同一路编码
+    private CastHub castHub;
     private ScreenCapture screenCapture;
+    private volatile AdaptiveBitrateController bitrateController;
+    // 当前投屏设备 IP（仅 FX 线程使用）
+    private String castingIp;
     private DeviceDiscovery deviceDiscovery;
     private AppConfig appConfig;
+    // 其他显示器的独立投屏会话
+    private final List<CastSession> displaySessions = new CopyOnWriteArrayList<>();
+    // 浏览器观看（未启用时为 null）
+    private WebViewerServer webViewer;
+    // 本机共享内存输出（未配置时为 null）
+    private EgressRing egressRing;
+    // 当前投屏的录制（未配置或未在投屏时为 null，仅 FX 线程使用）
+    private SessionRecorder recorder;
+    // 正在投放的视频文件（未投放文件时为 null，仅 FX 线程使用）
+    private MediaFileSource mediaSource;
     
     // UI 组件引用
     private Label statusLabel;
     private Label deviceLabel;
+    private Label qualityRungLabel;
+    private Label latencyLabel;
+    private Label receiverLabel;
+    private Label sessionsLabel;
+    private Timeline latencyRefresh;
+    private Timeline sessionsRefresh;
     private Circle statusIndicator;
     private Button startButton;
     private Button stopButton;
+    private Button switchButton;
+    private Button addReceiverButton;
+    private Button displaySessionButton;
+    private Button mediaFileButton;
     private Button refreshButton;
     private Button settingsButton;
     private ListView<String> deviceListView;
@@ -56,7 +106,6 @@ public class MainWindow extends Application {
     private Label fpsLabel;
     private Button resetSettingsButton;
     private Label settingsStatusLabel;
-    private volatile boolean isApplyingSettings = false;
 
     // 状态颜色（仅用于 Circle 填充）
     private static final Color COLOR_STATUS_CONNECTED = Color.web("#10b981");
@@ -250,7 +299,20 @@ public class MainWindow extends Application {
         stopButton.setDisable(false); // 断开按钮始终可点击
         stopButton.setOnAction(e -> stopCasting());
         
-        buttonBox.getChildren().addAll(startButton, stopButton);
+        switchButton = createStyledButton("⇄ 切换设备", false);
+        switchButton.setOnAction(e -> switchCasting());
+
+        addReceiverButton = createStyledButton("＋ 同时投屏", false);
+        addReceiverButton.setOnAction(e -> addReceiver());
+
+        displaySessionButton = createStyledButton("▣ 投屏其他显示器", false);
+        displaySessionButton.setOnAction(e -> startDisplaySession());
+
+        mediaFileButton = createStyledButton("🎬 投放视频文件", false);
+        mediaFileButton.setOnAction(e -> castMediaFile());
+
+        buttonBox.getChildren().addAll(startButton, stopButton, switchButton, addReceiverButton, displaySessionButton,
+                mediaFileButton);
 
         panel.getChildren().addAll(statusCard, infoCard, buttonBox);
         return panel;
@@ -295,7 +357,32 @@ public class MainWindow extends Application {
         deviceLabel = new Label("未选择设备");
         deviceLabel.getStyleClass().add("label-muted");
         
-        card.getChildren().addAll(title, statusBox, deviceLabel);
+        // 性能档位（电脑性能不足时自动降档）
+        qualityRungLabel = new Label("");
+        qualityRungLabel.getStyleClass().add("label-muted");
+        
+        // 端到端延迟（TV端回报，按估计的时钟偏差换算）
+        latencyLabel = new Label("");
+        latencyLabel.getStyleClass().add("label-muted");
+
+        // TV端接收统计（解码、显示、丢帧、队列）
+        receiverLabel = new Label("");
+        receiverLabel.getStyleClass().add("label-muted");
+
+        latencyRefresh = new Timeline(new KeyFrame(Duration.seconds(1), e -> {
+            updateLatencyLabel();
+            updateReceiverLabel();
+        }));
+        latencyRefresh.setCycleCount(Animation.INDEFINITE);
+
+        // 其他显示器的投屏会话（每个会话一行统计）
+        sessionsLabel = new Label("");
+        sessionsLabel.getStyleClass().add("label-muted");
+        sessionsRefresh = new Timeline(new KeyFrame(Duration.seconds(1), e -> updateSessionsLabel()));
+        sessionsRefresh.setCycleCount(Animation.INDEFINITE);
+
+        card.getChildren().addAll(title, statusBox, deviceLabel, qualityRungLabel, latencyLabel, receiverLabel,
+                sessionsLabel);
         return card;
     }
     
@@ -581,8 +668,22 @@ public class MainWindow extends Application {
         
         appConfig = new AppConfig();
         castClient = new CastClient();
+        castHub = new CastHub(castClient);
         screenCapture = new ScreenCapture();
         deviceDiscovery = new DeviceDiscovery();
+
+        // 后台预加载 FFmpeg 本地库；选择设备时预热编码器
+        ScreenCapture.preloadNatives();
+        deviceListView.getSelectionModel().selectedItemProperty().addListener((obs, oldItem, newItem) -> {
+            if (newItem != null) {
+                warmUpCapture();
+                // 投屏中选中其他设备：提前建立备用连接，切换时无需等待连接和握手
+                String ip = newItem.substring(newItem.indexOf("   ") + 3).trim();
+                if (castClient.isStreaming() && !ip.equals(castingIp)) {
+                    addStandbyTarget(ip);
+                }
+            }
+        });
         
         // 应用网段配置
         String segment = appConfig.getNetworkSegment();
@@ -608,6 +709,32 @@ public class MainWindow extends Application {
             // 连接断开时停止屏幕捕获和清理资源（会更新UI状态）
             stopCastingInternal("已断开");
         }));
+        // TV端接收统计：丢帧和解码积压交给自适应码率
+        castClient.setOnReceiverStats(stats -> {
+            AdaptiveBitrateController controller = bitrateController;
+            if (controller != null) {
+                controller.onReceiverStats(stats);
+            }
+        });
+        // 心跳 RTT：交给自适应码率作为拥塞信号
+        castClient.setOnRttSample(rtt -> {
+            AdaptiveBitrateController controller = bitrateController;
+            if (controller != null) {
+                controller.onRttSample(rtt);
+            }
+        });
+        // 自动重连：连接中断时采集和编码器继续运行，恢复后从 GOP 缓存补发（缓存不可用时立即发送IDR）
+        castClient.setOnReconnecting(reason -> {
+            updateStatus("正在重连...", "waiting");
+            log("🔄 连接中断（" + reason + "），正在自动重连...", "warning");
+        });
+        castClient.setOnResumeHandshake(() -> castHub.prime(castClient));
+        castClient.setOnResumed(resumeMs -> {
+            updateStatus("已连接", "connected");
+            log("✅ 连接已恢复（画面中断 " + resumeMs + "ms）", "success");
+        });
+        // TV端请求关键帧：由屏幕捕获合并、限频后在下一帧发送IDR
+        castClient.setOnKeyFrameRequest(screenCapture::requestKeyFrameFromReceiver);
         castClient.setOnError(msg -> Platform.runLater(() -> {
             System.out.println("[DEBUG] onError 回调被触发: " + msg);
             log("❌ 错误：" + msg, "error");
@@ -615,14 +742,34 @@ public class MainWindow extends Application {
             stopCastingInternal("连接错误");
         }));
         
-        // 屏幕捕获回调
-        screenCapture.setOnFrameCaptured(frame -> {
-            if (castClient.isConnected()) {
-                castClient.sendFrame(frame);
-            }
+        // 附加接收端：加入或重连时从 GOP 缓存补发，缓存不可用时立即发送IDR；TV端请求按限频处理
+        castHub.setOnKeyFrameNeeded(track -> requestTrackKeyFrame(track, false));
+        castHub.setOnKeyFrameRequest(track -> requestTrackKeyFrame(track, true));
+        castHub.setOnReceiverRemoved(host -> log("📺 附加接收端已断开：" + host, "warning"));
+
+        // 屏幕捕获回调：每帧编码一次，分发给所有接收端
+        screenCapture.setOnFrameCaptured(castHub::sendFrame);
+        setupSimulcastLayers();
+        // 编码格式变化（设置修改或性能档位切换）：在新格式的首帧之前通知TV端
+        screenCapture.setOnFormatChanged((width, height, fps, codecConfig) -> {
+            castHub.updateVideoFormat(width, height, fps, codecConfig);
+            Platform.runLater(() -> {
+                String deviceName = deviceLabel.getText();
+                if (deviceName.contains(" (")) {
+                    deviceName = deviceName.substring(0, deviceName.indexOf(" ("));
+                }
+                deviceLabel.setText(deviceName + " (" + width + "x" + height + ")");
+            });
+        });
+        // 性能档位变化：更新界面
+        screenCapture.setOnQualityChanged(rung -> {
+            Platform.runLater(() -> qualityRungLabel.setText("⚙️ 性能档位：" + rung));
+            log("⚙️ 性能档位切换：" + rung, rung.getIndex() > 0 ? "warning" : "info");
         });
         
         updateNetworkModeLabel();
+        startWebViewer();
+        startEgressRing();
         log("✨ 服务初始化完成", "success");
         log("📍 本机 IP: " + getLocalIpAddress(), "info");
     }
@@ -679,8 +826,106 @@ public class MainWindow extends Application {
         });
     }
     
+    /**
+     * 界面上选择的视频设置
+     */
+    private static final class VideoSettings {
+        String resolutionName;
+        boolean useNativeResolution;
+        int targetWidth;
+        int targetHeight;
+        int bitrate = 16000000;
+        int fps = 30;
+    }
+
+    /**
+     * 读取界面上的视频设置并配置到屏幕捕获
+     */
+    private VideoSettings applyVideoSettings() {
+        VideoSettings settings = readVideoSettings();
+
+        // 配置屏幕捕获
+        screenCapture.setConfig(appConfig);
+        screenCapture.setUseNativeResolution(settings.useNativeResolution);
+        screenCapture.setBitrate(settings.bitrate);
+        screenCapture.setFrameRate(settings.fps);
+        if (!settings.useNativeResolution) {
+            screenCapture.setTargetResolution(settings.targetWidth, settings.targetHeight);
+        }
+        return settings;
+    }
+
+    /**
+     * 读取界面上的视频设置
+     */
+    private VideoSettings readVideoSettings() {
+        VideoSettings settings = new VideoSettings();
+        settings.resolutionName = resolutionComboBox.getValue();
+        String selectedBitrate = bitrateComboBox.getValue();
+        String selectedFps = fpsComboBox.getValue();
+
+        // 解析分辨率
+        switch (settings.resolutionName) {
+            case "自动 (跟随电脑屏幕)":
+                settings.useNativeResolution = true;
+                break;
+            case "720p (1280×720)":
+                settings.targetWidth = 1280;
+                settings.targetHeight = 720;
+                break;
+            case "1080p (1920×1080)":
+                settings.targetWidth = 1920;
+                settings.targetHeight = 1080;
+                break;
+            case "2K (2560×1440)":
+                settings.targetWidth = 2560;
+                settings.targetHeight = 1440;
+                break;
+            case "4K (3840×2160)":
+                settings.targetWidth = 3840;
+                settings.targetHeight = 2160;
+                break;
+            case "8K (7680×4320)":
+                settings.targetWidth = 7680;
+                settings.targetHeight = 4320;
+                break;
+        }
+
+        // 解析码率
+        if (selectedBitrate.contains("4")) settings.bitrate = 4000000;
+        else if (selectedBitrate.contains("8")) settings.bitrate = 8000000;
+        else if (selectedBitrate.contains("16")) settings.bitrate = 16000000;
+        else if (selectedBitrate.contains("24")) settings.bitrate = 24000000;
+        else if (selectedBitrate.contains("32")) settings.bitrate = 32000000;
+        else if (selectedBitrate.contains("50")) settings.bitrate = 50000000;
+        else if (selectedBitrate.contains("80")) settings.bitrate = 80000000;
+        else if (selectedBitrate.contains("100")) settings.bitrate = 100000000;
+
+        // 解析帧率
+        if (selectedFps.contains("24")) settings.fps = 24;
+        else if (selectedFps.contains("30")) settings.fps = 30;
+        else if (selectedFps.contains("60")) settings.fps = 60;
+        else if (selectedFps.contains("120")) settings.fps = 120;
+        return settings;
+    }
+
+    /**
+     * 选择设备后按当前设置预热编码器，缩短点击投屏到出画面的时间
+     */
+    private void warmUpCapture() {
+        if (screenCapture == null || screenCapture.isRunning()
+                || deviceListView.getSelectionModel().getSelectedItem() == null) {
+            return;
+        }
+        applyVideoSettings();
+        screenCapture.prepare();
+    }
+
     /**
      * 开始投屏
+     *
+     * TCP 连接与编码器初始化并行进行，两者都就绪后握手；
+     * 握手（含带宽探测）完成后按探测结果调整初始码率和档位，立即请求 IDR 帧，并统计点击到首帧发出的耗时
      */
     private void startCasting() {
         String selected = deviceListView.getSelectionModel().getSelectedItem();
@@ -688,6 +933,7 @@ public class MainWindow extends Application {
             showAlert("请先选择一个设备");
             return;
         }
+        long clickedAt = System.nanoTime();
         
         // 解析 IP 地址
         String ip = selected.substring(selected.indexOf("   ") + 3).trim();
@@ -696,129 +942,584 @@ public class MainWindow extends Application {
         try {
             log("🔗 正在连接到：" + ip, "info");
             
-            // 获取视频设置
-            String selectedResolution = resolutionComboBox.getValue();
-            String selectedBitrate = bitrateComboBox.getValue();
-            String selectedFps = fpsComboBox.getValue();
-            
-            // 解析分辨率
-            int targetWidth = 0, targetHeight = 0;
-            boolean useNativeResolution = false;
-            
-            switch (selectedResolution) {
-                case "自动 (跟随电脑屏幕)":
-                    useNativeResolution = true;
-                    break;
-                case "720p (1280×720)":
-                    targetWidth = 1280;
-                    targetHeight = 720;
-                    break;
-                case "1080p (1920×1080)":
-                    targetWidth = 1920;
-                    targetHeight = 1080;
-                    break;
-                case "2K (2560×1440)":
-                    targetWidth = 2560;
-                    targetHeight = 1440;
-                    break;
-                case "4K (3840×2160)":
-                    targetWidth = 3840;
-                    targetHeight = 2160;
-                    break;
-                case "8K (7680×4320)":
-                    targetWidth = 7680;
-                    targetHeight = 4320;
-                    break;
+            // 获取视频设置并配置屏幕捕获
+            VideoSettings settings = applyVideoSettings();
+            int bitrate = settings.bitrate;
+            int fps = settings.fps;
+            log("⚙️ 视频设置：分辨率=" + settings.resolutionName + ", 码率=" + (bitrate/1000000) + "Mbps, 帧率=" + fps + "fps", "info");
+            if (!settings.useNativeResolution) {
+                log("📺 设置投屏分辨率：" + settings.targetWidth + "x" + settings.targetHeight, "info");
             }
             
-            // 解析码率
-            int bitrate = 16000000;
-            if (selectedBitrate.contains("4")) bitrate = 4000000;
-            else if (selectedBitrate.contains("8")) bitrate = 8000000;
-            else if (selectedBitrate.contains("16")) bitrate = 16000000;
-            else if (selectedBitrate.contains("24")) bitrate = 24000000;
-            else if (selectedBitrate.contains("32")) bitrate = 32000000;
-            else if (selectedBitrate.contains("50")) bitrate = 50000000;
-            else if (selectedBitrate.contains("80")) bitrate = 80000000;
-            else if (selectedBitrate.contains("100")) bitrate = 100000000;
+            // 发送节奏控制：初始估计带宽取码率的 3 倍
+            castClient.setPacingEnabled(appConfig.isPacingEnabled());
+            castClient.setEstimatedBandwidth(bitrate * 3L);
+            // 视频传输：UDP 时控制消息仍走 TCP，TV端不支持则自动使用 TCP
+            castClient.setUdpTransport(appConfig.isUdpTransport(), appConfig.getFecPercent());
             
-            // 解析帧率
-            int fps = 30;
-            if (selectedFps.contains("24")) fps = 24;
-            else if (selectedFps.contains("30")) fps = 30;
-            else if (selectedFps.contains("60")) fps = 60;
-            else if (selectedFps.contains("120")) fps = 120;
-            
-            log("⚙️ 视频设置：分辨率=" + selectedResolution + ", 码率=" + (bitrate/1000000) + "Mbps, 帧率=" + fps + "fps", "info");
-            
-            // 配置屏幕捕获
-            screenCapture.setConfig(appConfig);
-            screenCapture.setUseNativeResolution(useNativeResolution);
-            screenCapture.setBitrate(bitrate);
-            screenCapture.setFrameRate(fps);
-            
-            if (!useNativeResolution) {
-                screenCapture.setTargetResolution(targetWidth, targetHeight);
-                log("📺 设置投屏分辨率：" + targetWidth + "x" + targetHeight, "info");
+            // 自适应码率：以用户选择的码率为上限，根据网络反馈在线调整编码器码率
+            if (bitrateController != null) {
+                bitrateController.stop();
             }
+            bitrateController = new AdaptiveBitrateController(castClient, bitrate, screenCapture::setBitrate);
+            bitrateController.setOnDecision(msg -> log("📶 码率自适应：" + msg, "info"));
+            AdaptiveBitrateController controller = bitrateController;
             
-            // 先启动屏幕捕获，获取实际分辨率
-            screenCapture.start();
-            
-            // 等待一小段时间让捕获器初始化
-            Thread.sleep(500);
+            // 并行：启动屏幕捕获（编码器初始化）和建立 TCP 连接
+            CompletableFuture<Dimension> encoderReady = screenCapture.start()
+                    .thenApply(size -> {
+                        log("📺 实际投屏分辨率：" + size.width + "x" + size.height + "（编码器就绪 "
+                                + elapsedMs(clickedAt) + "ms）", "info");
+                        return size;
+                    });
+            // 编码器的第一帧就是关键帧，录制从这里开始
+            startRecording();
+            CompletableFuture<Void> connected = castClient.connect(ip, 8888)
+                    .thenRun(() -> log("🔌 TCP 已连接（" + elapsedMs(clickedAt) + "ms）", "info"));
+            log("⏳ 正在连接...", "info");
+            // 连接开始后禁用开始按钮，防止重复点击
+            startButton.setDisable(true);
             
-            // 获取实际编码分辨率
-            String resolution = screenCapture.getCurrentResolution();
-            log("📺 实际投屏分辨率：" + resolution, "info");
+            // 两者都就绪后以实际分辨率握手，握手完成立即请求关键帧
+            encoderReady.thenCombine(connected, (size, ignored) -> size)
+                    .thenCompose(size -> {
+                        castClient.setVideoParams(size.width, size.height, fps);
+                        castClient.setCodecConfig(screenCapture.getCodecConfig());
+                        return castClient.handshake().thenApply(ignored -> size);
+                    })
+                    .thenAccept(size -> {
+                        controller.setCoarseAdjustment(!screenCapture.supportsOnlineBitrate());
+                        applyBandwidthProbe(bitrate, controller);
+                        screenCapture.requestKeyFrame();
+                        // 点击到首帧上屏（TV端帧时间回报，已换算到本机时钟）；旧版TV端不回报时退回到首帧发出
+                        castClient.firstFrameRendered().whenComplete((renderedAt, e) -> {
+                            if (e == null) {
+                                log("⏱️ 首帧已上屏：点击后 " + (renderedAt - clickedAt) / 1_000_000 + "ms", "success");
+                            } else if (e instanceof UnsupportedOperationException) {
+                                castClient.firstFrameSent().thenAccept(sentAt -> log("⏱️ 首帧已发出：点击后 "
+                                        + (sentAt - clickedAt) / 1_000_000 + "ms（TV端不回报上屏时间）", "success"));
+                            }
+                        });
             
-            // 解析分辨率
-            String[] parts = resolution.split("x");
-            int width = Integer.parseInt(parts[0]);
-            int height = Integer.parseInt(parts[1]);
+                        Platform.runLater(() -> {
+                            deviceLabel.setText(deviceName + " (" + size.width + "x" + size.height + ")");
+                            log("▶️ 投屏已开始（握手完成 " + elapsedMs(clickedAt) + "ms）", "success");
+                            castingIp = ip;
+                            appConfig.addRecentDevice(ip);
+                            appConfig.setDeviceVersion(ip, castClient.peerVersion(ip, 8888));
+                            appConfig.save();
+                            warmStandbyConnections();
+                            controller.start();
+                            latencyRefresh.play();
+                            if (screenCapture.getQualityRung() != null) {
+                                qualityRungLabel.setText("⚙️ 性能档位：" + screenCapture.getQualityRung());
+                            }
             
-            // 设置客户端视频参数
-            castClient.setVideoParams(width, height, fps);
+                            // 连接成功后停止扫描设备列表
+                            if (deviceDiscovery != null) {
+                                deviceDiscovery.stop();
+                                log("🔍 已停止扫描设备", "info");
+                            }
+                        });
+                    })
+                    .exceptionally(e -> {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        Platform.runLater(() -> {
+                            // 连接错误已由 onError/onDisconnected 处理过时不再重复停止
+                            if (startButton.isDisable()) {
+                                log("❌ 投屏启动失败：" + cause.getMessage(), "error");
+                                stopCastingInternal("连接错误");
+                            }
+                        });
+                        return null;
+                    });
             
-            // 设置连接成功回调（仅用于更新 UI）
-            castClient.setOnConnected(() -> {
-                Platform.runLater(() -> {
-                    deviceLabel.setText(deviceName + " (" + resolution + ")");
-                    updateStatus("已连接", "connected");
-                    log("▶️ 投屏已开始", "success");
-
-                    // 连接成功后停止扫描设备列表
-                    if (deviceDiscovery != null) {
-                        deviceDiscovery.stop();
-                        log("🔍 已停止扫描设备", "info");
+        } catch (Exception e) {
+            log("❌ 连接失败：" + e.getMessage(), "error");
+            showAlert("连接失败：" + e.getMessage());
+            startButton.setDisable(false);
+            screenCapture.stop();
+        }
+    }
+
+    /**
+     * 投放本地视频文件：直接发送文件中已压缩的 H.264 数据，不经过屏幕捕获和重新编码
+     *
+     * 连接、握手和发送与屏幕投屏相同（TV端协议不变），用文件的分辨率和 SPS/PPS 握手；
+     * 码率由文件决定，不做自适应。播放完毕后自动停止。
+     */
+    private void castMediaFile() {
+        String selected = deviceListView.getSelectionModel().getSelectedItem();
+        if (selected == null) {
+            showAlert("请先选择一个设备");
+            return;
+        }
+        if (startButton.isDisable()) {
+            showAlert("请先停止当前投屏");
+            return;
+        }
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("选择要投放的视频文件（H.264）");
+        chooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("视频文件", "*.mp4", "*.mkv", "*.mov", "*.ts", "*.h264", "*.264"),
+                new FileChooser.ExtensionFilter("所有文件", "*.*"));
+        File file = chooser.showOpenDialog(startButton.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        long clickedAt = System.nanoTime();
+        String ip = selected.substring(selected.indexOf("   ") + 3).trim();
+        String deviceName = selected.substring(2, selected.indexOf("\n")).trim();
+
+        MediaFileSource source;
+        try {
+            source = MediaFileSource.open(file.toPath());
+        } catch (IOException e) {
+            log("❌ 无法投放 " + file.getName() + "：" + e.getMessage(), "error");
+            showAlert(e.getMessage());
+            return;
+        }
+        mediaSource = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int fps = source.getFps();
+        log("🎬 投放视频文件：" + file.getName() + "（" + width + "x" + height + " @ " + fps + "fps"
+                + (source.getBitrate() > 0 ? "，" + String.format("%.1fMbps", source.getBitrate() / 1e6) : "")
+                + "，直接发送原始码流）", "info");
+
+        castClient.setPacingEnabled(appConfig.isPacingEnabled());
+        castClient.setEstimatedBandwidth((source.getBitrate() > 0 ? source.getBitrate() : 8_000_000L) * 3);
+        castClient.setUdpTransport(appConfig.isUdpTransport(), appConfig.getFecPercent());
+        source.setOnFrame(castHub::sendFrame);
+        source.setOnFinished(() -> Platform.runLater(() -> {
+            if (mediaSource == source) {
+                log("🎬 视频文件播放完毕", "success");
+                stopCasting();
+            }
+        }));
+        source.setOnError(e -> Platform.runLater(() -> {
+            if (mediaSource == source) {
+                log("❌ 投放视频文件出错：" + e.getMessage(), "error");
+                stopCastingInternal("连接错误");
+            }
+        }));
+        startButton.setDisable(true);
+        startRecording();
+
+        castClient.connect(ip, 8888)
+                .thenCompose(ignored -> {
+                    castClient.setVideoParams(width, height, fps);
+                    castClient.setCodecConfig(source.getCodecConfig());
+                    return castClient.handshake();
+                })
+                .thenAccept(ignored -> Platform.runLater(() -> {
+                    if (mediaSource != source) {
+                        return;  // 握手期间已停止
                     }
+                    source.start();
+                    castingIp = ip;
+                    appConfig.setDeviceVersion(ip, castClient.peerVersion(ip, 8888));
+                    appConfig.save();
+                    deviceLabel.setText(deviceName + " (" + width + "x" + height + ")");
+                    log("▶️ 视频文件投放已开始（握手完成 " + elapsedMs(clickedAt) + "ms）", "success");
+                    latencyRefresh.play();
+                }))
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    Platform.runLater(() -> {
+                        if (startButton.isDisable()) {
+                            log("❌ 视频文件投放启动失败：" + cause.getMessage(), "error");
+                            stopCastingInternal("连接错误");
+                        }
+                    });
+                    return null;
                 });
-            });
+    }
+
+    /**
+     * 停止正在投放的视频文件
+     */
+    private void stopMediaFile() {
+        MediaFileSource source = mediaSource;
+        if (source != null) {
+            mediaSource = null;
+            source.stop();
+        }
+    }
+
+    /**
+     * 与常用和最近投屏过的设备建立备用连接
+     */
+    private void warmStandbyConnections() {
+        for (String ip : appConfig.getStandbyDevices()) {
+            if (!ip.equals(castingIp)) {
+                addStandbyTarget(ip);
+            }
+        }
+    }
+
+    /**
+     * 建立到设备的备用连接：带上上次会话记录的协议版本，版本未知或过旧的设备不会被预连接
+     */
+    private void addStandbyTarget(String ip) {
+        castClient.rememberPeerVersion(ip, 8888, appConfig.getDeviceVersion(ip));
+        castClient.addStandbyTarget(ip, 8888);
+    }
 
-            // 异步连接
+    /**
+     * 把投屏切换到选中的设备：使用备用连接，不重建编码器、不重新连接
+     */
+    private void switchCasting() {
+        String selected = deviceListView.getSelectionModel().getSelectedItem();
+        if (selected == null) {
+            showAlert("请先选择一个设备");
+            return;
+        }
+        if (!castClient.isStreaming()) {
+            showAlert("请先开始投屏");
+            return;
+        }
+        String ip = selected.substring(selected.indexOf("   ") + 3).trim();
+        String deviceName = selected.substring(2, selected.indexOf("\n")).trim();
+        if (ip.equals(castingIp)) {
+            log("ℹ️ 已在投屏到 " + deviceName, "info");
+            return;
+        }
+
+        log("⇄ 正在切换到：" + deviceName + " @ " + ip, "info");
+        castClient.switchTo(ip, 8888)
+                .thenAccept(switchMs -> Platform.runLater(() -> {
+                    castingIp = ip;
+                    String resolution = deviceLabel.getText();
+                    resolution = resolution.contains(" (") ? resolution.substring(resolution.indexOf(" (")) : "";
+                    deviceLabel.setText(deviceName + resolution);
+                    appConfig.addRecentDevice(ip);
+                    appConfig.save();
+                    log("⇄ 已切换到 " + deviceName + "（" + switchMs + "ms）", "success");
+                }))
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    log("⚠️ 无法立即切换：" + cause.getMessage(), "warning");
+                    return null;
+                });
+    }
+
+    /**
+     * 按配置创建附加编码路（如 4K 主编码之外再出一路 1080p），每路的帧送入 CastHub 的同名轨道
+     */
+    private void setupSimulcastLayers() {
+        for (String spec : appConfig.getSimulcastLayers()) {
             try {
-                castClient.connect(ip, 8888);
-                log("⏳ 正在连接...", "info");
-                // 连接开始后禁用开始按钮，防止重复点击
-                startButton.setDisable(true);
-            } catch (Exception e) {
-                log("❌ 连接失败：" + e.getMessage(), "error");
-                showAlert("连接失败：" + e.getMessage());
-                startButton.setDisable(false);
-                screenCapture.stop();
+                int x = spec.indexOf('x');
+                int at = spec.indexOf('@');
+                int width = Integer.parseInt(spec.substring(0, x).trim());
+                int height = Integer.parseInt(spec.substring(x + 1, at).trim());
+                int bitrate = (int) (Double.parseDouble(spec.substring(at + 1).trim()) * 1_000_000);
+                String name = width + "x" + height;
+                SimulcastLayer layer = screenCapture.addSimulcastLayer(name, width, height, bitrate);
+                layer.setOnFrameCaptured(frame -> castHub.sendFrame(name, frame));
+                layer.setOnFormatChanged((w, h, fps, config) -> castHub.updateVideoFormat(name, w, h, fps, config));
+                log("🎞️ 多路编码：" + layer, "info");
+            } catch (RuntimeException e) {
+                log("⚠️ 忽略无效的多路编码配置：" + spec, "warning");
             }
-            
-        } catch (Exception e) {
-            log("❌ 连接失败：" + e.getMessage(), "error");
-            showAlert("连接失败：" + e.getMessage());
         }
     }
+
+    /**
+     * 启用浏览器观看时启动内置 HTTP 服务，投屏期间局域网内的浏览器可以直接观看主画面
+     */
+    private void startWebViewer() {
+        if (!appConfig.isWebViewerEnabled()) {
+            return;
+        }
+        webViewer = new WebViewerServer(appConfig.getWebViewerPort());
+        webViewer.setOnViewerCountChanged(count -> log("🌐 浏览器观看人数：" + count, "info"));
+        webViewer.start(castHub)
+                .thenRun(() -> log("🌐 浏览器观看：http://" + getLocalIpAddress() + ":" + webViewer.getPort() + "/",
+                        "success"))
+                .exceptionally(e -> {
+                    log("⚠️ 浏览器观看启动失败（端口 " + webViewer.getPort() + "）：" + e.getMessage(), "warning");
+                    return null;
+                });
+    }
+
+    /**
+     * 配置了共享内存文件时打开环形输出，投屏期间主画面的编码帧同时写入，供本机其他程序读取
+     */
+    private void startEgressRing() {
+        String file = appConfig.getEgressRingFile();
+        if (file.isEmpty()) {
+            return;
+        }
+        try {
+            egressRing = EgressRing.create(Path.of(file), appConfig.getEgressRingSizeMb() * 1024L * 1024L);
+            screenCapture.setEgressRing(egressRing);
+            log("🗂️ 本机共享内存输出：" + egressRing.getPath(), "success");
+        } catch (IOException | RuntimeException e) {
+            log("⚠️ 共享内存输出打开失败（" + file + "）：" + e.getMessage(), "warning");
+        }
+    }
+
+    /**
+     * 配置了录制目录时开始录制本次投屏（从下一个关键帧开始写入）
+     */
+    private void startRecording() {
+        String dir = appConfig.getRecordDir();
+        if (dir.isEmpty() || recorder != null) {
+            return;
+        }
+        try {
+            SessionRecorder newRecorder = new SessionRecorder(Path.of(dir), appConfig.getRecordFormat());
+            newRecorder.start(castHub);
+            recorder = newRecorder;
+            log("⏺️ 正在录制到：" + dir, "info");
+        } catch (IOException | RuntimeException e) {
+            log("⚠️ 录制启动失败（" + dir + "）：" + e.getMessage(), "warning");
+        }
+    }
+
+    /**
+     * 停止录制，文件在 I/O 线程写完剩余帧和索引后关闭
+     */
+    private void stopRecording() {
+        SessionRecorder current = recorder;
+        if (current == null) {
+            return;
+        }
+        recorder = null;
+        current.stop().thenRun(() -> {
+            if (current.getCurrentFile() != null) {
+                log("💾 录制已保存：" + current.getCurrentFile() + "（" + current.getFramesWritten() + " 帧"
+                        + (current.getFramesDropped() > 0 ? "，写盘跟不上丢弃 " + current.getFramesDropped() + " 帧" : "")
+                        + "）", "success");
+            }
+        });
+    }
+
+    private SimulcastLayer findSimulcastLayer(String name) {
+        for (SimulcastLayer layer : screenCapture.getSimulcastLayers()) {
+            if (layer.getName().equals(name)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 为某一路码流请求关键帧：主编码由屏幕捕获处理，附加编码路各自处理
+     *
+     * @param fromReceiver TV端请求（合并限频），否则立即编码IDR
+     */
+    private void requestTrackKeyFrame(String track, boolean fromReceiver) {
+        SimulcastLayer layer = CastHub.MAIN_TRACK.equals(track) ? null : findSimulcastLayer(track);
+        if (layer == null) {
+            if (fromReceiver) {
+                screenCapture.requestKeyFrameFromReceiver();
+            } else {
+                screenCapture.requestKeyFrame();
+            }
+        } else if (fromReceiver) {
+            layer.requestKeyFrameFromReceiver();
+        } else {
+            layer.requestKeyFrame();
+        }
+    }
+
+    /**
+     * 把选中的设备加为附加接收端，与当前投屏共用编码；设备配置了附加编码路时订阅该路
+     */
+    private void addReceiver() {
+        String selected = deviceListView.getSelectionModel().getSelectedItem();
+        if (selected == null) {
+            showAlert("请先选择一个设备");
+            return;
+        }
+        if (!castClient.isStreaming()) {
+            showAlert("请先开始投屏");
+            return;
+        }
+        String ip = selected.substring(selected.indexOf("   ") + 3).trim();
+        String deviceName = selected.substring(2, selected.indexOf("\n")).trim();
+        if (ip.equals(castingIp)) {
+            log("ℹ️ 已在投屏到 " + deviceName, "info");
+            return;
+        }
+
+        String track = appConfig.getDeviceLayer(ip);
+        if (track.isEmpty() || findSimulcastLayer(track) == null) {
+            track = CastHub.MAIN_TRACK;
+        }
+
+        log("＋ 正在加入接收端：" + deviceName + " @ " + ip
+                + (CastHub.MAIN_TRACK.equals(track) ? "" : "（码流 " + track + "）"), "info");
+        castHub.addReceiver(ip, 8888, track)
+                .thenAccept(receiver -> log("＋ " + deviceName + " 已加入，共 " + castHub.receiverCount()
+                        + " 台TV端同时接收", "success"))
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    log("❌ 加入接收端失败：" + cause.getMessage(), "error");
+                    return null;
+                });
+    }
+
+    /**
+     * 把另一台显示器投到选中的设备：新建独立会话（采集、编码、连接都与主投屏分开）
+     */
+    private void startDisplaySession() {
+        String selected = deviceListView.getSelectionModel().getSelectedItem();
+        if (selected == null) {
+            showAlert("请先选择一个设备");
+            return;
+        }
+        String ip = selected.substring(selected.indexOf("   ") + 3).trim();
+        String deviceName = selected.substring(2, selected.indexOf("\n")).trim();
+        if (ip.equals(castingIp) || castHub.getReceiverHosts().contains(ip)) {
+            showAlert(deviceName + " 正在接收主投屏");
+            return;
+        }
+        for (CastSession session : displaySessions) {
+            if (ip.equals(session.getHost())) {
+                showAlert(deviceName + " 正在接收" + session.getName());
+                return;
+            }
+        }
+
+        // 选择显示器
+        List<Rectangle> displays = ScreenCapture.getDisplayBounds();
+        List<String> choices = new ArrayList<>();
+        for (int i = 0; i < displays.size(); i++) {
+            Rectangle bounds = displays.get(i);
+            choices.add("显示器 " + (i + 1) + "：" + bounds.width + "x" + bounds.height
+                    + "（" + bounds.x + "," + bounds.y + "）" + (i == 0 ? " 主显示器" : ""));
+        }
+        ChoiceDialog<String> dialog = new ChoiceDialog<>(choices.get(choices.size() - 1), choices);
+        dialog.setTitle("投屏其他显示器");
+        dialog.setHeaderText("选择要投到 " + deviceName + " 的显示器");
+        Optional<String> choice = dialog.showAndWait();
+        if (!choice.isPresent()) {
+            return;
+        }
+        int index = choices.indexOf(choice.get());
+        String name = "显示器 " + (index + 1);
+
+        VideoSettings settings = readVideoSettings();
+        CastSession session = new CastSession(name, displays.get(index));
+        session.setUdpTransport(appConfig.isUdpTransport(), appConfig.getFecPercent());
+        session.setOnStopped(reason -> Platform.runLater(() -> {
+            displaySessions.remove(session);
+            log("▣ " + name + " → " + deviceName + " 已结束：" + reason, "warning");
+            if (displaySessions.isEmpty()) {
+                sessionsRefresh.stop();
+                sessionsLabel.setText("");
+            }
+        }));
+        displaySessions.add(session);
+        log("▣ 正在把 " + name + " 投到 " + deviceName + " @ " + ip, "info");
+        session.start(ip, 8888, settings.useNativeResolution ? 0 : settings.targetWidth,
+                        settings.useNativeResolution ? 0 : settings.targetHeight, settings.fps, settings.bitrate,
+                        appConfig.isPacingEnabled())
+                .thenAccept(size -> Platform.runLater(() -> {
+                    log("▣ " + name + " → " + deviceName + " 已开始（" + size.width + "x" + size.height + "）", "success");
+                    sessionsRefresh.play();
+                }))
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    log("❌ " + name + " 投屏失败：" + cause.getMessage(), "error");
+                    return null;
+                });
+    }
+
+    /**
+     * 停止全部其他显示器的投屏会话
+     */
+    private void stopDisplaySessions() {
+        for (CastSession session : displaySessions) {
+            session.stop();
+        }
+    }
+
+    /**
+     * 刷新各显示器会话的统计（每秒一次）
+     */
+    private void updateSessionsLabel() {
+        StringBuilder sb = new StringBuilder();
+        for (CastSession session : displaySessions) {
+            if (sb.length() > 0) {
+                sb.append("\n");
+            }
+            sb.append("▣ ").append(session.statsSummary());
+        }
+        sessionsLabel.setText(sb.toString());
+    }
+
+    /**
+     * 刷新端到端延迟显示（每秒一次）
+     */
+    private void updateLatencyLabel() {
+        LatencyStats latency = castClient.getLatencyStats();
+        ClockSync clock = castClient.getClockSync();
+        if (latency.count() == 0) {
+            if (clock.isReady()) {
+                latencyLabel.setText("⏱️ 端到端延迟：等待TV端回报");
+            } else if (castClient.getRttStats().count() > 0) {
+                // 有心跳响应但不带TV端时间：旧版TV端
+                latencyLabel.setText("⏱️ 端到端延迟：TV端版本不支持");
+            } else {
+                latencyLabel.setText("⏱️ 端到端延迟：正在同步时钟");
+            }
+            return;
+        }
+        latencyLabel.setText(String.format("⏱️ 采集→显示 p50 %.0fms / p95 %.0fms / p99 %.0fms（时钟误差 ±%.1fms）",
+                latency.percentileNanos(LatencyStats.Stage.RENDER, 0.5) / 1e6,
+                latency.percentileNanos(LatencyStats.Stage.RENDER, 0.95) / 1e6,
+                latency.percentileNanos(LatencyStats.Stage.RENDER, 0.99) / 1e6,
+                clock.uncertaintyNanos() / 1e6));
+    }
+
+    /**
+     * 刷新TV端接收统计显示（每秒一次）
+     */
+    private void updateReceiverLabel() {
+        ReceiverStats stats = castClient.getReceiverStats();
+        if (stats == null) {
+            receiverLabel.setText("");
+            return;
+        }
+        receiverLabel.setText("📺 TV端：" + stats);
+    }
+
+    /**
+     * 按握手时的带宽探测结果降低初始码率和分辨率档位（只降不升），并显示测得的吞吐量和 RTT
+     */
+    private void applyBandwidthProbe(int bitrate, AdaptiveBitrateController controller) {
+        BandwidthProbe probe = castClient.getBandwidthProbe();
+        if (probe == null) {
+            return;
+        }
+        // 发送节奏按测得的吞吐量放出数据，此后随码率决策调整
+        controller.setLinkBandwidth(probe.getThroughputBps());
+        int start = probe.recommendedBitrate(bitrate);
+        if (start >= bitrate) {
+            log("📡 带宽探测：" + probe + "，按设置码率开始", "info");
+            return;
+        }
+        controller.setStartBitrate(start, "带宽探测");
+        QualityLadder.Rung rung = screenCapture.limitQualityToBitrate(start);
+        log("📡 带宽探测：" + probe + " → 初始码率 " + String.format("%.1fMbps", start / 1e6)
+                + (rung != null ? "，档位 " + rung : ""), "warning");
+    }
+
+    private static long elapsedMs(long since) {
+        return (System.nanoTime() - since) / 1_000_000;
+    }
     
     /**
      * 停止投屏 - 无论当前连接状态如何都可以调用
      */
     private void stopCasting() {
         stopCastingInternal("等待连接...");
+        stopDisplaySessions();
         log("⏹️ 投屏已停止", "warning");
     }
 
@@ -830,16 +1531,32 @@ public class MainWindow extends Application {
         log("⏹️ 正在停止投屏...", "info");
         System.out.println("[DEBUG] stopCastingInternal 被调用，状态: " + statusText);
 
-        // 停止屏幕捕获
+        // 停止屏幕捕获（或视频文件投放）
         try {
+            stopMediaFile();
             System.out.println("[DEBUG] 正在停止屏幕捕获...");
             screenCapture.stop();
             System.out.println("[DEBUG] 屏幕捕获已停止");
+            // 采集线程已退出，丢弃本次投屏的 GOP 缓存
+            castHub.clearGopCache();
+            stopRecording();
         } catch (Exception e) {
             System.err.println("[DEBUG] 停止屏幕捕获时出错: " + e.getMessage());
             e.printStackTrace();
         }
 
+        // 停止自适应码率
+        if (bitrateController != null) {
+            bitrateController.stop();
+        }
+        if (castClient.getRttStats().count() > 0) {
+            log("📶 " + castClient.getRttStats().summary(), "info");
+        }
+        latencyRefresh.stop();
+        if (castClient.getLatencyStats().count() > 0) {
+            log("⏱️ " + castClient.getLatencyStats().summary(), "info");
+        }
+
         // 断开连接（无论是否已连接都可以安全调用）
         try {
             System.out.println("[DEBUG] 正在断开连接...");
@@ -850,10 +1567,21 @@ public class MainWindow extends Application {
             e.printStackTrace();
         }
 
+        // 断开附加接收端；不在投屏时不保持备用连接
+        if (!castHub.getReceiverHosts().isEmpty()) {
+            log("📺 附加接收端：" + castHub.summary(), "info");
+        }
+        castHub.removeAllReceivers();
+        castClient.clearStandbyTargets();
+        castingIp = null;
+
         // 重置UI状态
         System.out.println("[DEBUG] 正在重置UI状态...");
         startButton.setDisable(false);
         deviceLabel.setText("未选择设备");
+        qualityRungLabel.setText("");
+        latencyLabel.setText("");
+        receiverLabel.setText("");
 
         // 根据传入的状态文本更新状态
         if ("已断开".equals(statusText)) {
@@ -875,6 +1603,8 @@ public class MainWindow extends Application {
         if (settingsStatusLabel != null) {
             settingsStatusLabel.setText("");
         }
+        // 为下一次投屏重新预热
+        warmUpCapture();
         System.out.println("[DEBUG] stopCastingInternal 执行完成");
     }
     
@@ -1010,93 +1740,59 @@ public class MainWindow extends Application {
     
     /**
      * 立即应用设置
+     *
+     * 直接在运行中的采集会话上重新配置：码率/帧率立即生效，
+     * 分辨率变化由备用编码器在后台准备后无缝切换，不再停止/重启采集
      */
     private void applySettingsImmediately() {
-        if (isApplyingSettings) return;
         if (!castClient.isConnected()) {
             settingsStatusLabel.setText("⚠️ 请先连接设备");
             settingsStatusLabel.getStyleClass().setAll("settings-status-warning");
             return;
         }
         
-        isApplyingSettings = true;
-        
         String finalSelectedResolution = resolutionComboBox.getValue();
         String finalSelectedBitrate = bitrateComboBox.getValue();
         String finalSelectedFps = fpsComboBox.getValue();
         
-        new Thread(() -> {
-            try {
-                Platform.runLater(() -> {
-                    settingsStatusLabel.setText("⏳ 正在应用设置...");
-                    settingsStatusLabel.getStyleClass().setAll("settings-status-processing");
-                });
-                
-                int finalBitrate = finalSelectedBitrate.contains("4 Mbps") ? 4000000 :
-                                   finalSelectedBitrate.contains("8 Mbps") ? 8000000 :
-                                   finalSelectedBitrate.contains("16 Mbps") ? 16000000 :
-                                   finalSelectedBitrate.contains("24 Mbps") ? 24000000 :
-                                   finalSelectedBitrate.contains("32 Mbps") ? 32000000 :
-                                   finalSelectedBitrate.contains("50 Mbps") ? 50000000 :
-                                   finalSelectedBitrate.contains("80 Mbps") ? 80000000 : 100000000;
-                int finalFps = finalSelectedFps.contains("24 fps") ? 24 :
-                              finalSelectedFps.contains("30 fps") ? 30 :
-                              finalSelectedFps.contains("60 fps") ? 60 : 120;
+        try {
+            int finalBitrate = finalSelectedBitrate.contains("4 Mbps") ? 4000000 :
+                               finalSelectedBitrate.contains("8 Mbps") ? 8000000 :
+                               finalSelectedBitrate.contains("16 Mbps") ? 16000000 :
+                               finalSelectedBitrate.contains("24 Mbps") ? 24000000 :
+                               finalSelectedBitrate.contains("32 Mbps") ? 32000000 :
+                               finalSelectedBitrate.contains("50 Mbps") ? 50000000 :
+                               finalSelectedBitrate.contains("80 Mbps") ? 80000000 : 100000000;
+            int finalFps = finalSelectedFps.contains("24 fps") ? 24 :
+                          finalSelectedFps.contains("30 fps") ? 30 :
+                          finalSelectedFps.contains("60 fps") ? 60 : 120;
                 
-                boolean finalUseNativeResolution = finalSelectedResolution.contains("自动");
-                int finalTargetWidth = 1920;
-                int finalTargetHeight = 1080;
+            boolean finalUseNativeResolution = finalSelectedResolution.contains("自动");
+            int finalTargetWidth = 1920;
+            int finalTargetHeight = 1080;
                 
-                if (finalSelectedResolution.contains("720p")) { finalTargetWidth = 1280; finalTargetHeight = 720; }
-                else if (finalSelectedResolution.contains("1080p")) { finalTargetWidth = 1920; finalTargetHeight = 1080; }
-                else if (finalSelectedResolution.contains("2K")) { finalTargetWidth = 2560; finalTargetHeight = 1440; }
-                else if (finalSelectedResolution.contains("4K")) { finalTargetWidth = 3840; finalTargetHeight = 2160; }
-                else if (finalSelectedResolution.contains("8K")) { finalTargetWidth = 7680; finalTargetHeight = 4320; }
+            if (finalSelectedResolution.contains("720p")) { finalTargetWidth = 1280; finalTargetHeight = 720; }
+            else if (finalSelectedResolution.contains("1080p")) { finalTargetWidth = 1920; finalTargetHeight = 1080; }
+            else if (finalSelectedResolution.contains("2K")) { finalTargetWidth = 2560; finalTargetHeight = 1440; }
+            else if (finalSelectedResolution.contains("4K")) { finalTargetWidth = 3840; finalTargetHeight = 2160; }
+            else if (finalSelectedResolution.contains("8K")) { finalTargetWidth = 7680; finalTargetHeight = 4320; }
                 
-                if (screenCapture != null && screenCapture.isRunning()) {
-                    screenCapture.stop();
-                    // 等待更长时间确保 FFmpeg 资源完全释放
-                    Thread.sleep(1500);
-                    
-                    screenCapture.setUseNativeResolution(finalUseNativeResolution);
-                    screenCapture.setBitrate(finalBitrate);
-                    screenCapture.setFrameRate(finalFps);
-                    if (!finalUseNativeResolution) {
-                        screenCapture.setTargetResolution(finalTargetWidth, finalTargetHeight);
-                    }
-                    
-                    screenCapture.start();
-                    // 等待捕获初始化完成
-                    Thread.sleep(800);
-                    
-                    String newResolution = screenCapture.getCurrentResolution();
-                    String[] parts = newResolution.split("x");
-                    int width = Integer.parseInt(parts[0]);
-                    int height = Integer.parseInt(parts[1]);
-                    
-                    castClient.setVideoParams(width, height, finalFps);
-                    
-                    Platform.runLater(() -> {
-                        String deviceName = deviceLabel.getText();
-                        if (deviceName.contains(" ")) {
-                            deviceName = deviceName.substring(0, deviceName.indexOf(" "));
-                        }
-                        deviceLabel.setText(deviceName + " (" + newResolution + ")");
-                        settingsStatusLabel.setText("✅ 设置已生效：" + newResolution + " @ " + (finalBitrate/1000000) + "Mbps, " + finalFps + "fps");
-                        settingsStatusLabel.getStyleClass().setAll("settings-status-success");
-                        log("✅ 视频设置已更新：" + finalSelectedResolution + ", " + (finalBitrate/1000000) + "Mbps, " + finalFps + "fps", "success");
-                    });
+            if (screenCapture != null && screenCapture.isRunning()) {
+                screenCapture.reconfigure(finalUseNativeResolution, finalTargetWidth, finalTargetHeight,
+                        finalFps, finalBitrate);
+                if (bitrateController != null) {
+                    bitrateController.setMaxBitrate(finalBitrate);
                 }
-            } catch (Exception e) {
-                Platform.runLater(() -> {
-                    settingsStatusLabel.setText("❌ 应用失败：" + e.getMessage());
-                    settingsStatusLabel.getStyleClass().setAll("settings-status-error");
-                    log("❌ 应用设置失败：" + e.getMessage(), "error");
-                });
-            } finally {
-                isApplyingSettings = false;
+                
+                settingsStatusLabel.setText("✅ 设置已生效：" + finalSelectedResolution + " @ " + (finalBitrate/1000000) + "Mbps, " + finalFps + "fps");
+                settingsStatusLabel.getStyleClass().setAll("settings-status-success");
+                log("✅ 视频设置已更新：" + finalSelectedResolution + ", " + (finalBitrate/1000000) + "Mbps, " + finalFps + "fps", "success");
             }
-        }).start();
+        } catch (Exception e) {
+            settingsStatusLabel.setText("❌ 应用失败：" + e.getMessage());
+            settingsStatusLabel.getStyleClass().setAll("settings-status-error");
+            log("❌ 应用设置失败：" + e.getMessage(), "error");
+        }
     }
     
     /**
@@ -1180,13 +1876,31 @@ public class MainWindow extends Application {
                 screenCapture.stop();
                 log("✅ 屏幕捕获已停止", "info");
             }
+            stopMediaFile();
+            // 录制：等待写完索引再退出（I/O 线程是守护线程）
+            if (recorder != null) {
+                recorder.stop().completeOnTimeout(null, 5, TimeUnit.SECONDS).join();
+                recorder = null;
+            }
             
             // 2. 断开投屏连接
             if (castClient != null) {
                 log("🔌 正在断开连接...", "info");
                 castClient.disconnect();
+                castHub.removeAllReceivers();
+                castClient.clearStandbyTargets();
                 log("✅ 连接已断开", "info");
             }
+            stopDisplaySessions();
+            if (webViewer != null) {
+                webViewer.stop();
+            }
+            if (egressRing != null) {
+                screenCapture.setEgressRing(null);
+                egressRing.close();
+            }
+            // 释放共享网络事件循环
+            CastClient.shutdownSharedEventLoop();
             
             // 3. 停止设备发现服务
             if (deviceDiscovery != null) {
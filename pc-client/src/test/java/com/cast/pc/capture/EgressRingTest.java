@@ -0,0 +1,384 @@
+package com.cast.pc.capture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 共享内存环形文件的读写
+ *
+ * 帧内容由帧序号生成，读者拿到的每一帧都能校验是否完整；
+ * 覆盖（读者被套圈）、写者重新打开时读者必须丢弃被覆盖的帧、从关键帧继续，不能交付被改写了一半的帧。
+ */
+class EgressRingTest {
+
+    // 最小的数据区，少量帧就会绕回开头、套圈
+    private static final long SMALL_RING = 64 * 1024;
+    private static final int GOP = 10;
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void framesRoundTripAcrossWrapAround() throws Exception {
+        try (EgressRing ring = EgressRing.create(dir.resolve("ring"), SMALL_RING);
+             EgressRingReader reader = EgressRingReader.open(dir.resolve("ring"))) {
+            assertNull(reader.poll());
+            // 大小不一的帧，多次绕回开头（含填充记录和剩余不足一个记录头的情况）
+            for (int sequence = 0; sequence < 200; sequence++) {
+                assertTrue(ring.publish(frame(sequence, sizeOf(sequence)), WIDTH, HEIGHT));
+                EgressRingReader.Frame frame = reader.poll();
+                assertNotNull(frame, "第 " + sequence + " 帧");
+                assertEquals(sequence, frame.getSequence());
+                verify(frame);
+                assertNull(reader.poll());
+            }
+            assertEquals(200, reader.getFramesRead());
+            assertEquals(0, reader.getFramesLost());
+        }
+    }
+
+    @Test
+    void readerOpensAtLatestKeyFrame() throws Exception {
+        try (EgressRing ring = EgressRing.create(dir.resolve("ring"), SMALL_RING)) {
+            for (int sequence = 0; sequence < 14; sequence++) {
+                ring.publish(frame(sequence, 1000), WIDTH, HEIGHT);
+            }
+            try (EgressRingReader reader = EgressRingReader.open(dir.resolve("ring"))) {
+                EgressRingReader.Frame frame = reader.poll();
+                assertEquals(10, frame.getSequence());
+                assertTrue(frame.isKeyFrame());
+            }
+        }
+    }
+
+    @Test
+    void lappedReaderSkipsToKeyFrame() throws Exception {
+        try (EgressRing ring = EgressRing.create(dir.resolve("ring"), SMALL_RING);
+             EgressRingReader reader = EgressRingReader.open(dir.resolve("ring"))) {
+            int sequence = 0;
+            for (; sequence < 3; sequence++) {
+                ring.publish(frame(sequence, 4000), WIDTH, HEIGHT);
+            }
+            assertEquals(0, reader.poll().getSequence());
+            // 读者停住，写者写了不止一整圈
+            for (; sequence < 37; sequence++) {
+                ring.publish(frame(sequence, 4000), WIDTH, HEIGHT);
+            }
+            EgressRingReader.Frame frame = reader.poll();
+            assertTrue(frame.isKeyFrame(), "套圈后从关键帧继续，实际第 " + frame.getSequence() + " 帧");
+            assertEquals(30, frame.getSequence());
+            verify(frame);
+            assertEquals(29, reader.getFramesLost());
+            for (long expected = 31; expected < sequence; expected++) {
+                assertEquals(expected, reader.poll().getSequence());
+            }
+            assertNull(reader.poll());
+        }
+    }
+
+    @Test
+    void writerReopenIsDetected() throws Exception {
+        Path path = dir.resolve("ring");
+        EgressRing first = EgressRing.create(path, SMALL_RING);
+        try (EgressRingReader reader = EgressRingReader.open(path)) {
+            for (int sequence = 0; sequence < 5; sequence++) {
+                first.publish(frame(sequence, 2000), WIDTH, HEIGHT);
+            }
+            assertEquals(0, reader.poll().getSequence());
+            first.close();
+            assertFalse(reader.isWriterOpen());
+
+            // 写者重新打开：序号从 0 开始，读者丢下旧数据从新的关键帧读
+            try (EgressRing second = EgressRing.create(path, SMALL_RING)) {
+                assertTrue(reader.isWriterOpen());
+                for (int sequence = 0; sequence < 3; sequence++) {
+                    second.publish(frame(sequence, 3000), WIDTH, HEIGHT);
+                }
+                for (long expected = 0; expected < 3; expected++) {
+                    EgressRingReader.Frame frame = reader.poll();
+                    assertEquals(expected, frame.getSequence());
+                    verify(frame);
+                }
+                assertNull(reader.poll());
+            }
+        }
+    }
+
+    @Test
+    void oversizedFrameIsDropped() throws Exception {
+        try (EgressRing ring = EgressRing.create(dir.resolve("ring"), SMALL_RING)) {
+            assertFalse(ring.publish(frame(0, (int) SMALL_RING / 2), WIDTH, HEIGHT));
+            assertEquals(1, ring.getFramesDropped());
+            assertEquals(0, ring.getFramesWritten());
+        }
+    }
+
+    /**
+     * 写者已预留到读者正要读的记录、正改写到一半（用另一个可写映射模拟）：读者不能交付这条记录
+     */
+    @Test
+    void recordBeingOverwrittenIsRejected() throws Exception {
+        Path path = dir.resolve("ring");
+        try (EgressRing ring = EgressRing.create(path, SMALL_RING);
+             EgressRingReader reader = EgressRingReader.open(path);
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int sequence = 0; sequence < 3; sequence++) {
+                ring.publish(frame(sequence, 4000), WIDTH, HEIGHT);
+            }
+            MappedByteBuffer raw = channel.map(FileChannel.MapMode.READ_WRITE, 0, EgressRing.HEADER_SIZE + SMALL_RING);
+            raw.order(ByteOrder.LITTLE_ENDIAN);
+            // 第 0 帧的记录从数据区开头开始：预留位置越过它一整圈，负载后半段已是新数据
+            EgressRing.LONG.setVolatile(raw, EgressRing.OFFSET_RESERVE_POSITION, SMALL_RING + 2000);
+            for (int i = 2000; i < 4000; i++) {
+                raw.put(EgressRing.HEADER_SIZE + EgressRing.RECORD_HEADER_SIZE + i, (byte) 0x11);
+            }
+
+            EgressRingReader.Frame frame = reader.poll();
+            assertTrue(frame == null || (frame.getSequence() != 0 && intact(frame)),
+                    "交付了正在被改写的第 0 帧");
+        }
+    }
+
+    /**
+     * 写者不限速地写，4 个读者同时读：读者不断被套圈，复制期间被改写的帧必须被丢弃（顺序锁），
+     * 交付的每一帧内容完整，丢帧之后交付的第一帧是关键帧
+     */
+    @Test
+    void concurrentReadersNeverSeeTornFrames() throws Exception {
+        Path path = dir.resolve("ring");
+        try (EgressRing ring = EgressRing.create(path, SMALL_RING)) {
+            List<StressReader> readers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                readers.add(new StressReader(EgressRingReader.open(path)));
+            }
+            Writer writer = new Writer(ring, -1);
+            writer.start();
+            readers.forEach(Thread::start);
+            Thread.sleep(3000);
+            long read = 0;
+            long lost = 0;
+            List<String> errors = new ArrayList<>();
+            for (StressReader reader : readers) {
+                reader.running.set(false);
+                reader.join();
+                read += reader.ring.getFramesRead();
+                lost += reader.ring.getFramesLost();
+                errors.addAll(reader.errors);
+                reader.ring.close();
+            }
+            writer.finish();
+            System.out.println("并发读写: 写入 " + ring.getFramesWritten() + " 帧，4 个读者共读出 " + read
+                    + " 帧，被覆盖 " + lost + " 帧");
+            assertTrue(errors.isEmpty(), errors.toString());
+            assertTrue(read > 0);
+            // 确实发生了套圈，上面的检查覆盖到了被覆盖的路径
+            assertTrue(lost > 0, "读者没有被套圈");
+        }
+    }
+
+    /**
+     * 吞吐量：不限速的写者，以及每秒 60 帧时多个读者都不丢帧
+     */
+    @Test
+    void throughput() throws Exception {
+        for (int size : new int[] {60_000, 500_000}) {
+            try (EgressRing ring = EgressRing.create(dir.resolve("ring-" + size), 32L << 20)) {
+                Writer writer = new Writer(ring, size);
+                long start = System.nanoTime();
+                writer.start();
+                Thread.sleep(1000);
+                writer.finish();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long frames = ring.getFramesWritten();
+                System.out.printf("写者 %dKB 帧: %.0f 帧/秒，%.2f GB/s%n", size / 1000, frames / seconds,
+                        frames * (double) size / seconds / 1e9);
+                assertTrue(frames > 60);
+            }
+        }
+
+        Path path = dir.resolve("ring-paced");
+        try (EgressRing ring = EgressRing.create(path, 32L << 20)) {
+            int frames = 120;
+            List<Reader> readers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                readers.add(new Reader(EgressRingReader.open(path)));
+            }
+            readers.forEach(Reader::start);
+            long start = System.nanoTime();
+            for (int sequence = 0; sequence < frames; sequence++) {
+                long due = start + sequence * TimeUnit.SECONDS.toNanos(1) / 60;
+                while (System.nanoTime() < due) {
+                    Thread.sleep(1);
+                }
+                ring.publish(frame(sequence, 150_000), WIDTH, HEIGHT);
+            }
+            ring.close();
+            for (Reader reader : readers) {
+                reader.join(5000);
+                assertEquals(frames, reader.read, "读者读出的帧数");
+                assertEquals(0, reader.corrupted);
+                reader.ring.close();
+            }
+            System.out.println("每秒 60 帧、150KB 帧、4 个读者: 全部读出 " + frames + " 帧");
+        }
+    }
+
+    /**
+     * 第 sequence 帧：每 GOP 帧一个关键帧，负载由序号生成，不含起始码
+     */
+    private static EncodedFrame frame(long sequence, int size) {
+        byte[] data = new byte[size];
+        data[3] = 1;
+        data[4] = (byte) (sequence % GOP == 0 ? 0x65 : 0x41);
+        for (int i = 5; i < size; i++) {
+            data[i] = pattern(sequence, i);
+        }
+        return EncodedFrame.fromAnnexB(data, sequence);
+    }
+
+    private static byte pattern(long sequence, int index) {
+        return (byte) ((sequence * 31 + index) | 0x80);
+    }
+
+    private static int sizeOf(long sequence) {
+        return 500 + (int) ((sequence * 7919) % 9000);
+    }
+
+    /**
+     * 并发测试用的帧大小：接近数据区的一半，读者复制一帧的时间里写者更容易绕回来改写它
+     */
+    private static int largeSizeOf(long sequence) {
+        return 12_000 + (int) ((sequence * 7919) % 20_000);
+    }
+
+    private static boolean intact(EgressRingReader.Frame frame) {
+        byte[] data = frame.getData();
+        long sequence = frame.getSequence();
+        if (data.length < 5 || frame.isKeyFrame() != (sequence % GOP == 0) || frame.getCaptureNanos() != sequence
+                || frame.getWidth() != WIDTH || frame.getHeight() != HEIGHT) {
+            return false;
+        }
+        for (int i = 5; i < data.length; i++) {
+            if (data[i] != pattern(sequence, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void verify(EgressRingReader.Frame frame) {
+        assertTrue(intact(frame), "第 " + frame.getSequence() + " 帧内容不完整");
+    }
+
+    /**
+     * 不限速的写者线程
+     *
+     * size 为 -1 时帧大小随序号变化（{@link #largeSizeOf}）、每帧按序号生成负载，读者可以校验内容；
+     * 否则循环写入预先生成的一个关键帧和一个普通帧，只测量写入本身的吞吐量
+     */
+    private static final class Writer extends Thread {
+        private final EgressRing ring;
+        private final EncodedFrame[] prebuilt;
+        private final AtomicBoolean running = new AtomicBoolean(true);
+
+        Writer(EgressRing ring, int size) {
+            super("ring-writer");
+            this.ring = ring;
+            this.prebuilt = size > 0 ? new EncodedFrame[] {frame(0, size), frame(1, size)} : null;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            for (long sequence = 0; running.get(); sequence++) {
+                EncodedFrame frame = prebuilt == null ? frame(sequence, largeSizeOf(sequence))
+                        : prebuilt[sequence % GOP == 0 ? 0 : 1];
+                ring.publish(frame, WIDTH, HEIGHT);
+            }
+        }
+
+        void finish() throws InterruptedException {
+            running.set(false);
+            join();
+        }
+    }
+
+    /**
+     * 不停轮询并校验每一帧的读者
+     */
+    private static final class StressReader extends Thread {
+        final EgressRingReader ring;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<String> errors = new ArrayList<>();
+
+        StressReader(EgressRingReader ring) {
+            super("ring-stress-reader");
+            this.ring = ring;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long lastSequence = -1;
+            while (running.get() && errors.size() < 10) {
+                EgressRingReader.Frame frame = ring.poll();
+                if (frame == null) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                if (!intact(frame)) {
+                    errors.add("第 " + frame.getSequence() + " 帧内容不完整");
+                }
+                if (lastSequence >= 0 && frame.getSequence() != lastSequence + 1 && !frame.isKeyFrame()) {
+                    errors.add("丢帧后从非关键帧 " + frame.getSequence() + " 继续");
+                }
+                lastSequence = frame.getSequence();
+            }
+        }
+    }
+
+    private static final class Reader extends Thread {
+        final EgressRingReader ring;
+        int read;
+        int corrupted;
+
+        Reader(EgressRingReader ring) {
+            super("ring-reader");
+            this.ring = ring;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                EgressRingReader.Frame frame;
+                while ((frame = ring.take(5, TimeUnit.SECONDS)) != null) {
+                    read++;
+                    if (!intact(frame)) {
+                        corrupted++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
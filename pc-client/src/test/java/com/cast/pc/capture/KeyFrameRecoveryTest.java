@@ -0,0 +1,190 @@
+package com.cast.pc.capture;
+
+import com.cast.pc.network.CastClient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 本机回环上测量关键帧请求的恢复时间：模拟的TV端发出请求，到收到下一个 IDR 帧为止
+ *
+ * 发送端是真实的 CastClient 和编码器，按采集线程的方式每帧检查一次请求（{@link KeyFrameRequestLimiter}）。
+ * 编码器 1 秒一个关键帧，不请求时平均要等半个 GOP 才能恢复。
+ */
+class KeyFrameRecoveryTest {
+
+    private static final int FPS = 30;
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+
+    @AfterAll
+    static void shutdown() {
+        CastClient.shutdownSharedEventLoop();
+    }
+
+    @Test
+    void requestedKeyFrameArrivesWithinTwoFrameIntervals() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            FakeReceiver receiver = new FakeReceiver(server);
+            receiver.start();
+
+            KeyFrameRequestLimiter limiter = new KeyFrameRequestLimiter(ScreenCapture.RECEIVER_KEY_FRAME_INTERVAL_MS);
+            CastClient client = new CastClient();
+            client.setVideoParams(WIDTH, HEIGHT, FPS);
+            client.setOnKeyFrameRequest(limiter::request);
+            client.connect("127.0.0.1", server.getLocalPort()).get(5, TimeUnit.SECONDS);
+            client.handshake().get(5, TimeUnit.SECONDS);
+
+            VideoEncoder encoder = new VideoEncoder(WIDTH, HEIGHT, FPS, 1_000_000);
+            try {
+                // 与采集线程相同：每毫秒检查一次请求，有请求时立即采集一帧并编码为IDR
+                BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                long deadline = System.currentTimeMillis() + 10_000;
+                long nextFrameAt = 0;
+                int frame = 0;
+                while (!receiver.done.await(0, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < deadline) {
+                    long now = System.currentTimeMillis();
+                    boolean keyFrame = limiter.poll(now) > 0;
+                    if (!keyFrame && now < nextFrameAt) {
+                        Thread.sleep(1);
+                        continue;
+                    }
+                    if (keyFrame) {
+                        encoder.requestKeyFrame();
+                    }
+                    draw(image, frame++);
+                    byte[] data = encoder.encode(image);
+                    if (data != null && data.length > 0) {
+                        client.sendFrame(EncodedFrame.fromAnnexB(data, System.nanoTime()));
+                    }
+                    nextFrameAt = now + 1000 / FPS;
+                }
+            } finally {
+                encoder.close();
+                client.disconnect();
+            }
+
+            assertTrue(receiver.done.getCount() == 0, "测试场景未完成");
+            long recoveryMs = TimeUnit.NANOSECONDS.toMillis(receiver.firstKeyFrameAt - receiver.burstAt);
+            long limitedMs = TimeUnit.NANOSECONDS.toMillis(receiver.secondKeyFrameAt - receiver.firstKeyFrameAt);
+            System.out.println("关键帧恢复耗时 " + recoveryMs + "ms（帧间隔 " + 1000 / FPS + "ms，GOP 1000ms），"
+                    + "5 次突发请求产生 " + receiver.keyFramesAfterBurst + " 个 IDR，"
+                    + "限频后两次 IDR 间隔 " + limitedMs + "ms");
+            assertTrue(recoveryMs < 2 * 1000 / FPS, "恢复耗时 " + recoveryMs + "ms");
+            assertEquals(1, receiver.keyFramesAfterBurst, "突发请求应合并为一个 IDR");
+            assertTrue(limitedMs >= ScreenCapture.RECEIVER_KEY_FRAME_INTERVAL_MS - 20,
+                    "两次 IDR 间隔 " + limitedMs + "ms");
+        }
+    }
+
+    /**
+     * 每帧移动一个色块，保证编码器输出非空的 P 帧
+     */
+    private static void draw(BufferedImage image, int frame) {
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.DARK_GRAY);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.setColor(Color.ORANGE);
+        g.fillRect((frame * 7) % (WIDTH - 40), (frame * 3) % (HEIGHT - 40), 40, 40);
+        g.dispose();
+    }
+
+    /**
+     * 模拟的TV端：以协议版本 4 应答握手，收到自然关键帧后连发 5 个关键帧请求，
+     * 恢复 300ms 后再发一个请求（应被限频推迟到上次 IDR 的 500ms 之后）
+     */
+    private static final class FakeReceiver extends Thread {
+        private final ServerSocket server;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long burstAt;
+        volatile long firstKeyFrameAt;
+        volatile int keyFramesAfterBurst;
+        volatile long secondRequestAt;
+        volatile long secondKeyFrameAt;
+
+        FakeReceiver(ServerSocket server) {
+            super("fake-receiver");
+            this.server = server;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = server.accept()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                int framesSinceNaturalKey = -1;
+                List<Long> keyFrames = new ArrayList<>();
+                while (true) {
+                    byte[] message = new byte[in.readInt()];
+                    in.readFully(message);
+                    long now = System.nanoTime();
+                    int type = message[0];
+                    if (type == 0x00) {
+                        out.writeInt(9);
+                        out.writeByte(0x00);
+                        out.writeInt(4);
+                        out.writeInt(0);
+                        out.flush();
+                        continue;
+                    }
+                    if (type != 0x05) {
+                        continue;
+                    }
+                    boolean key = (message[1] & 0x01) != 0;
+                    if (key) {
+                        keyFrames.add(now);
+                    }
+
+                    if (burstAt == 0) {
+                        // 等一个自然关键帧之后的第 5 帧，离下一个自然关键帧足够远
+                        framesSinceNaturalKey = key ? 0 : framesSinceNaturalKey >= 0 ? framesSinceNaturalKey + 1 : -1;
+                        if (framesSinceNaturalKey == 5) {
+                            burstAt = System.nanoTime();
+                            for (int i = 0; i < 5; i++) {
+                                out.writeInt(1);
+                                out.writeByte(0x04);
+                            }
+                            out.flush();
+                        }
+                    } else if (firstKeyFrameAt == 0) {
+                        if (key) {
+                            firstKeyFrameAt = now;
+                        }
+                    } else if (secondRequestAt == 0) {
+                        if (now - firstKeyFrameAt >= TimeUnit.MILLISECONDS.toNanos(300)) {
+                            keyFramesAfterBurst = (int) keyFrames.stream().filter(t -> t > burstAt).count();
+                            secondRequestAt = now;
+                            out.writeInt(1);
+                            out.writeByte(0x04);
+                            out.flush();
+                        }
+                    } else if (key) {
+                        secondKeyFrameAt = now;
+                        done.countDown();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // 连接关闭
+            }
+        }
+    }
+}
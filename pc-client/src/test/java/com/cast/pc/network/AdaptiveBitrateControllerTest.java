@@ -0,0 +1,50 @@
+package com.cast.pc.network;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 发送节奏跟随带宽探测结果和码率决策
+ */
+class AdaptiveBitrateControllerTest {
+
+    @AfterAll
+    static void shutdown() {
+        CastClient.shutdownSharedEventLoop();
+    }
+
+    @Test
+    void probedBandwidthDrivesPacer() {
+        CastClient client = new CastClient();
+        AtomicInteger encoderBitrate = new AtomicInteger();
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(client, 16_000_000, encoderBitrate::set);
+
+        // 探测到 5Mbps：起始码率 3Mbps，数据按 5Mbps 放出而不是设置码率的 3 倍
+        controller.setLinkBandwidth(5_000_000);
+        controller.setStartBitrate(3_000_000, "带宽探测");
+        assertEquals(3_000_000, encoderBitrate.get());
+        assertEquals(5_000_000, client.getEstimatedBandwidth());
+
+        // 网络稳定、码率上调后，节奏不低于码率的 1.5 倍
+        controller.setStartBitrate(4_000_000, "上调");
+        assertEquals(6_000_000, client.getEstimatedBandwidth());
+    }
+
+    @Test
+    void pacerStaysWithinBitrateHeadroom() {
+        CastClient client = new CastClient();
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(client, 8_000_000, bitrate -> { });
+
+        // 没有测得带宽或带宽很高时取码率的 3 倍
+        controller.setLinkBandwidth(500_000_000);
+        assertEquals(24_000_000, client.getEstimatedBandwidth());
+
+        controller.setStartBitrate(2_000_000, "带宽探测");
+        assertEquals(6_000_000, client.getEstimatedBandwidth());
+        assertEquals(controller.getPacingBandwidth(), client.getEstimatedBandwidth());
+    }
+}
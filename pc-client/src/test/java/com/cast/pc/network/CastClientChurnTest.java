@@ -0,0 +1,92 @@
+package com.cast.pc.network;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 反复连接、断开：所有连接共用一个事件循环，线程数不随连接次数增长，重新连接不需要等待线程创建
+ */
+class CastClientChurnTest {
+
+    private static final int CYCLES = 200;
+
+    @AfterAll
+    static void shutdown() {
+        CastClient.shutdownSharedEventLoop();
+    }
+
+    @Test
+    void connectDisconnectKeepsThreadCountFlat() throws Exception {
+        List<Socket> accepted = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        synchronized (accepted) {
+                            accepted.add(socket);
+                        }
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }, "churn-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            // 前面的测试类留下的 Netty 线程（关闭中的共享事件循环、空闲约 1 秒后退出的 GlobalEventExecutor）
+            // 会在测量中途退出，等它们结束再取基线
+            long deadline = System.currentTimeMillis() + 5000;
+            while (hasLeftoverNettyThread() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            CastClient client = new CastClient();
+            // 第一次连接创建共享事件循环，不计入
+            client.connect("127.0.0.1", server.getLocalPort()).get(5, TimeUnit.SECONDS);
+            client.disconnect();
+            int baseline = Thread.activeCount();
+
+            long worstNanos = 0;
+            int peakThreads = baseline;
+            for (int i = 0; i < CYCLES; i++) {
+                long start = System.nanoTime();
+                client.connect("127.0.0.1", server.getLocalPort()).get(5, TimeUnit.SECONDS);
+                worstNanos = Math.max(worstNanos, System.nanoTime() - start);
+                peakThreads = Math.max(peakThreads, Thread.activeCount());
+                client.disconnect();
+                assertEquals(CastClient.State.IDLE, client.getState());
+            }
+
+            long worstMs = TimeUnit.NANOSECONDS.toMillis(worstNanos);
+            System.out.println("连接 " + CYCLES + " 次: 线程数 " + baseline + " -> " + Thread.activeCount()
+                    + "（峰值 " + peakThreads + "），最慢重新连接 " + worstMs + "ms");
+            assertEquals(baseline, peakThreads, "连接过程中不应创建新线程");
+            assertEquals(baseline, Thread.activeCount(), "断开后不应残留线程");
+            assertTrue(worstMs < 100, "重新连接耗时 " + worstMs + "ms");
+        } finally {
+            synchronized (accepted) {
+                for (Socket socket : accepted) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static boolean hasLeftoverNettyThread() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .map(Thread::getName)
+                .anyMatch(name -> name.startsWith("cast-client") || name.startsWith("globalEventExecutor"));
+    }
+}
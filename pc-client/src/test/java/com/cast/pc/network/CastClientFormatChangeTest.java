@@ -0,0 +1,115 @@
+package com.cast.pc.network;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 运行中改变分辨率：支持格式变更消息的TV端收到 0x03，最早版本的TV端（握手响应不带版本）收到新格式的握手
+ */
+class CastClientFormatChangeTest {
+
+    @AfterAll
+    static void shutdown() {
+        CastClient.shutdownSharedEventLoop();
+    }
+
+    @Test
+    void formatChangeMessageForCurrentReceivers() throws Exception {
+        List<byte[]> messages = changeFormat(CastClient.VERSION_FORMAT_CHANGE);
+        assertEquals(2, messages.size(), "收到 " + messages.size() + " 条消息");
+        assertEquals(CastClient.MSG_HANDSHAKE, messages.get(0)[0]);
+        byte[] change = messages.get(1);
+        assertEquals(CastClient.MSG_FORMAT_CHANGE, change[0]);
+        assertEquals(1280, ByteBuffer.wrap(change).getInt(1));
+        assertEquals(720, ByteBuffer.wrap(change).getInt(5));
+    }
+
+    @Test
+    void firstGenerationReceiverIsHandshakenAgain() throws Exception {
+        List<byte[]> messages = changeFormat(1);
+        assertEquals(2, messages.size(), "收到 " + messages.size() + " 条消息");
+        for (byte[] message : messages) {
+            assertEquals(CastClient.MSG_HANDSHAKE, message[0], "不应发送TV端不认识的消息");
+        }
+        // 握手: [类型][版本][宽][高][帧率]...
+        ByteBuffer again = ByteBuffer.wrap(messages.get(1));
+        assertEquals(1280, again.getInt(5));
+        assertEquals(720, again.getInt(9));
+    }
+
+    /**
+     * 以 1920x1080 握手后把格式改为 1280x720，返回TV端收到的全部非心跳消息
+     *
+     * @param version 模拟TV端的版本，1 表示握手响应不带版本号的最早版本
+     */
+    private static List<byte[]> changeFormat(int version) throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            List<byte[]> messages = new CopyOnWriteArrayList<>();
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    boolean answered = false;
+                    while (true) {
+                        byte[] message = new byte[in.readInt()];
+                        in.readFully(message);
+                        if (message[0] == CastClient.MSG_HEARTBEAT) {
+                            continue;
+                        }
+                        messages.add(message);
+                        if (message[0] == CastClient.MSG_HANDSHAKE && !answered) {
+                            answered = true;
+                            if (version > 1) {
+                                out.writeInt(9);
+                                out.writeByte(CastClient.MSG_HANDSHAKE);
+                                out.writeInt(version);
+                                out.writeInt(0);
+                            } else {
+                                out.writeInt(1);
+                                out.writeByte(CastClient.MSG_HANDSHAKE);
+                            }
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // 连接关闭
+                }
+            }, "fake-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            CastClient client = new CastClient();
+            client.setVideoParams(1920, 1080, 30);
+            try {
+                client.connect("127.0.0.1", server.getLocalPort())
+                        .thenCompose(ignored -> client.handshake())
+                        .get(5, TimeUnit.SECONDS);
+                assertTrue(client.isStreaming());
+                client.updateVideoFormat(1280, 720, 30, null);
+                long deadline = System.currentTimeMillis() + 2000;
+                while (messages.size() < 2 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                Thread.sleep(100);
+            } finally {
+                client.disconnect();
+            }
+            return messages;
+        }
+    }
+}
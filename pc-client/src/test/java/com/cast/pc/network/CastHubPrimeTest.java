@@ -0,0 +1,166 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 接收端加入时从 GOP 缓存补发
+ *
+ * 支持补发标志的TV端整段补发、补发的帧带标志；老版本TV端 GOP 刚开始时整段补发，
+ * GOP 已经较长时只补发关键帧，在编码器的下一个关键帧到来之前不再给它发送参考缺失的帧。
+ * 两种情况都不为加入的接收端请求关键帧。
+ */
+class CastHubPrimeTest {
+
+    private static final byte[] IDR = {0, 0, 0, 1, 0x65, (byte) 0x88, 0x01, 0x02};
+    private static final byte[] P_FRAME = {0, 0, 0, 1, 0x41, (byte) 0x9a, 0x01, 0x02};
+
+    @AfterAll
+    static void shutdown() {
+        CastClient.shutdownSharedEventLoop();
+    }
+
+    @Test
+    void shortGopIsReplayedInFull() throws Exception {
+        Result result = joinAfter(2, 4);
+        // 关键帧 + 1 帧补发，之后照常接收
+        assertEquals(List.of(true, false, false, false, false, true, false), result.keyFrames());
+        assertEquals(0, result.keyFramesNeeded);
+    }
+
+    @Test
+    void longGopIsReplayedAsPrimedFrames() throws Exception {
+        Result result = joinAfter(30, CastClient.VERSION_PRIMED);
+        // 整个 GOP 带补发标志，之后的帧照常接收
+        assertEquals(30 + 5, result.frames.size(), "收到 " + result.frames);
+        for (int i = 0; i < result.frames.size(); i++) {
+            int flags = result.frames.get(i);
+            assertEquals(i < 30, (flags & CastClient.FLAG_PRIMED) != 0, "第 " + i + " 帧标志 " + flags);
+            assertEquals(i == 0 || i == 33, (flags & CastClient.FLAG_KEY_FRAME) != 0, "第 " + i + " 帧标志 " + flags);
+        }
+        assertEquals(0, result.keyFramesNeeded);
+    }
+
+    @Test
+    void longGopOnOldReceiverWaitsForNextKeyFrame() throws Exception {
+        Result result = joinAfter(30, 4);
+        // 只收到关键帧，之后的帧一直等到编码器的下一个关键帧
+        assertEquals(List.of(true, true, false), result.keyFrames());
+        assertEquals(0, result.keyFramesNeeded);
+    }
+
+    private static final class Result {
+        final List<Integer> frames;
+        final int keyFramesNeeded;
+
+        Result(List<Integer> frames, int keyFramesNeeded) {
+            this.frames = frames;
+            this.keyFramesNeeded = keyFramesNeeded;
+        }
+
+        List<Boolean> keyFrames() {
+            List<Boolean> keyFrames = new ArrayList<>();
+            for (int flags : frames) {
+                keyFrames.add((flags & CastClient.FLAG_KEY_FRAME) != 0);
+            }
+            return keyFrames;
+        }
+    }
+
+    /**
+     * 发送 gopFrames 帧（关键帧开头）后加入一个以 version 应答握手的接收端，再发 3 帧、一个关键帧、1 帧，
+     * 返回接收端按顺序收到的帧标志
+     */
+    private static Result joinAfter(int gopFrames, int version) throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            FakeReceiver receiver = new FakeReceiver(server, version);
+            receiver.start();
+
+            CastClient primary = new CastClient();
+            primary.setVideoParams(320, 180, 30);
+            CastHub hub = new CastHub(primary);
+            hub.updateVideoFormat(320, 180, 30, null);
+            AtomicInteger keyFramesNeeded = new AtomicInteger();
+            hub.setOnKeyFrameNeeded(track -> keyFramesNeeded.incrementAndGet());
+
+            long nanos = 0;
+            hub.sendFrame(EncodedFrame.fromAnnexB(IDR, nanos++));
+            for (int i = 1; i < gopFrames; i++) {
+                hub.sendFrame(EncodedFrame.fromAnnexB(P_FRAME, nanos++));
+            }
+            CastClient joined = hub.addReceiver("127.0.0.1", server.getLocalPort()).get(5, TimeUnit.SECONDS);
+            for (int i = 0; i < 3; i++) {
+                hub.sendFrame(EncodedFrame.fromAnnexB(P_FRAME, nanos++));
+            }
+            hub.sendFrame(EncodedFrame.fromAnnexB(IDR, nanos++));
+            hub.sendFrame(EncodedFrame.fromAnnexB(P_FRAME, nanos++));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            int expected = version >= CastClient.VERSION_PRIMED ? gopFrames + 5 : 3;
+            while (receiver.frames.size() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(100);
+            joined.disconnect();
+            assertTrue(receiver.frames.size() >= 3, "接收端收到 " + receiver.frames);
+            System.out.println("GOP 已有 " + gopFrames + " 帧时加入，收到: " + receiver.frames);
+            return new Result(receiver.frames, keyFramesNeeded.get());
+        }
+    }
+
+    /**
+     * 模拟的TV端：以给定协议版本应答握手，记录收到的每个 v2 视频帧的标志
+     */
+    private static final class FakeReceiver extends Thread {
+        private final ServerSocket server;
+        private final int version;
+        final List<Integer> frames = new CopyOnWriteArrayList<>();
+
+        FakeReceiver(ServerSocket server, int version) {
+            super("fake-receiver");
+            this.server = server;
+            this.version = version;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = server.accept()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                while (true) {
+                    byte[] message = new byte[in.readInt()];
+                    in.readFully(message);
+                    if (message[0] == CastClient.MSG_HANDSHAKE) {
+                        out.writeInt(9);
+                        out.writeByte(CastClient.MSG_HANDSHAKE);
+                        out.writeInt(version);
+                        out.writeInt(0);
+                        out.flush();
+                    } else if (message[0] == CastClient.MSG_VIDEO_FRAME_V2) {
+                        frames.add(message[1] & 0xFF);
+                    }
+                }
+            } catch (IOException e) {
+                // 连接关闭
+            }
+        }
+    }
+}
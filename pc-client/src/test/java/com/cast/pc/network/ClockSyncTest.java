@@ -0,0 +1,164 @@
+package com.cast.pc.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ClockSync 的偏差、漂移估计
+ *
+ * 用模拟的对端时钟 remote(t) = t + offset + drift * t 生成心跳交换，
+ * 往返时延可以不对称、带排队抖动，检查最小时延过滤、漂移拟合和 ±500ppm 上限。
+ */
+class ClockSyncTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long SECOND = 1_000_000_000L;
+
+    /**
+     * 模拟的对端时钟
+     */
+    private static final class RemoteClock {
+        final long offset;
+        final double drift;
+
+        RemoteClock(long offset, double drift) {
+            this.offset = offset;
+            this.drift = drift;
+        }
+
+        long at(long local) {
+            return local + offset + Math.round(drift * local);
+        }
+
+        /** 本地时刻 local 的真实偏差 */
+        long offsetAt(long local) {
+            return at(local) - local;
+        }
+    }
+
+    /**
+     * 在本地时刻 t1 发起一次交换：去程 forward、对端处理 1ms、回程 back
+     *
+     * @return 本地接收时间 t4
+     */
+    private static long exchange(ClockSync sync, RemoteClock remote, long t1, long forward, long back) {
+        long t2 = remote.at(t1 + forward);
+        long t3 = remote.at(t1 + forward + MS);
+        long t4 = t1 + forward + MS + back;
+        sync.onExchange(t1, t2, t3, t4);
+        return t4;
+    }
+
+    @Test
+    void minimumDelayExchangeWinsOverAsymmetricOnes() {
+        RemoteClock remote = new RemoteClock(123_456 * MS, 0);
+        ClockSync sync = new ClockSync();
+        assertFalse(sync.isReady());
+        assertEquals(-1, sync.uncertaintyNanos());
+
+        // 去程排队 20ms、回程 1ms：单次偏差误差约 +9.5ms
+        long t = SECOND;
+        for (int i = 0; i < 3; i++) {
+            exchange(sync, remote, t, 20 * MS, MS);
+            t += SECOND;
+        }
+        assertTrue(sync.isReady());
+        assertEquals(remote.offset + 9_500_000, sync.offsetAt(t), 10_000);
+
+        // 一次对称的低时延交换，之后窗口内再有不对称的交换也应沿用它
+        exchange(sync, remote, t, MS / 2, MS / 2);
+        t += SECOND;
+        for (int i = 0; i < ClockSync.FILTER_SIZE - 2; i++) {
+            exchange(sync, remote, t, 20 * MS, MS);
+            t += SECOND;
+        }
+        assertEquals(remote.offset, sync.offsetAt(t), 10_000);
+        assertEquals(MS / 2, sync.uncertaintyNanos());
+        // 跨度不足 10 秒，不估计漂移
+        assertEquals(0, sync.driftPpb());
+    }
+
+    @Test
+    void offsetStaysAccurateUnderJitter() {
+        RemoteClock remote = new RemoteClock(-987_654_321L, 0);
+        ClockSync sync = new ClockSync();
+        Random random = new Random(37);
+        long t = SECOND;
+        long worstNaive = 0;
+        for (int i = 0; i < 120; i++) {
+            // 基础时延 1ms，30% 的交换在随机一侧排队 0~30ms
+            long queue = random.nextDouble() < 0.3 ? (long) (random.nextDouble() * 30 * MS) : 0;
+            boolean forwardQueued = random.nextBoolean();
+            long forward = MS + (forwardQueued ? queue : 0);
+            long back = MS + (forwardQueued ? 0 : queue);
+            worstNaive = Math.max(worstNaive, queue / 2);
+            exchange(sync, remote, t, forward, back);
+            t += SECOND;
+        }
+        long error = Math.abs(sync.offsetAt(t) - remote.offsetAt(t));
+        System.out.println("抖动下偏差误差 " + error / 1000 + "us（单次交换最大误差 " + worstNaive / 1000 + "us）");
+        assertTrue(error < 100_000, "偏差误差 " + error + "ns");
+        assertTrue(worstNaive > 10 * MS);
+        // 抖动不应被拟合成漂移
+        assertEquals(0, sync.driftPpb(), 1_000);
+    }
+
+    @Test
+    void driftIsEstimated() {
+        // 对端时钟快 50ppm：一分钟累计 3ms
+        RemoteClock remote = new RemoteClock(5 * SECOND, 50e-6);
+        ClockSync sync = new ClockSync();
+        Random random = new Random(3);
+        long t = SECOND;
+        for (int i = 0; i < 60; i++) {
+            long jitter = (long) (random.nextDouble() * 200_000);
+            exchange(sync, remote, t, MS + jitter, MS);
+            t += SECOND;
+        }
+        assertEquals(50_000, sync.driftPpb(), 2_000, "漂移 ppb");
+        // 外推 10 秒后仍准确
+        long later = t + 10 * SECOND;
+        assertEquals(remote.offsetAt(later), sync.offsetAt(later), 200_000);
+        // 对端时间换算回本地
+        long local = t + 3 * SECOND;
+        assertEquals(local, sync.toLocal(remote.at(local)), 200_000);
+    }
+
+    @Test
+    void driftIsClampedTo500Ppm() {
+        for (double drift : new double[] {2000e-6, -2000e-6}) {
+            RemoteClock remote = new RemoteClock(0, drift);
+            ClockSync sync = new ClockSync();
+            long t = SECOND;
+            for (int i = 0; i < 30; i++) {
+                exchange(sync, remote, t, MS, MS);
+                t += SECOND;
+            }
+            assertEquals(Math.signum(drift) * 500_000, sync.driftPpb(), 1e-6);
+        }
+    }
+
+    @Test
+    void invalidExchangesIgnoredAndResetClears() {
+        ClockSync sync = new ClockSync();
+        // 往返时延为负、对端发送早于接收
+        sync.onExchange(1000, 5000, 6000, 1500);
+        sync.onExchange(1000, 5000, 4000, 9000);
+        assertFalse(sync.isReady());
+
+        RemoteClock remote = new RemoteClock(42 * MS, 0);
+        exchange(sync, remote, SECOND, MS, MS);
+        assertTrue(sync.isReady());
+        assertEquals(remote.offset, sync.offsetAt(SECOND));
+
+        sync.reset();
+        assertFalse(sync.isReady());
+        assertEquals(-1, sync.uncertaintyNanos());
+        assertEquals(0, sync.offsetAt(SECOND));
+    }
+}
@@ -0,0 +1,68 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 含 B 帧的码流（直接投放的文件）按解码顺序送入：媒体段的解码时间按解码顺序递增，
+ * 解码时间 + 显示时间偏移还原出每帧的显示时间
+ */
+class Fmp4MuxerTest {
+
+    private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 30;
+    // 90kHz 下一帧的时长
+    private static final int FRAME_TICKS = 3000;
+    // trun 在段头中的位置：moof 头 8 + mfhd 16 + traf 头 8 + tfhd 16 + tfdt 20
+    private static final int TRUN_OFFSET = 8 + 16 + 8 + 16 + 20;
+    private static final int TFDT_OFFSET = TRUN_OFFSET - 20;
+
+    @Test
+    void bFramesKeepDecodeOrderAndCarryCompositionOffsets() {
+        // 解码顺序 I0 P3 B1 B2 P6 B4 B5（数字为显示顺序），解码时间比显示时间早一帧
+        int[] display = {0, 3, 1, 2, 6, 4, 5};
+        Fmp4Muxer muxer = new Fmp4Muxer();
+        long start = 1_000_000_000L;
+        long lastDecodeTime = -1;
+        for (int i = 0; i < display.length; i++) {
+            byte[] annexB = {0, 0, 0, 1, (byte) (i == 0 ? 0x65 : 0x41), 0x01, 0x02};
+            long decodeNanos = start + (i - 1) * FRAME_NANOS;
+            long captureNanos = start + display[i] * FRAME_NANOS;
+            EncodedFrame frame = EncodedFrame.fromAnnexB(annexB, captureNanos, decodeNanos);
+            ByteBuf segment = muxer.segment(frame, Unpooled.wrappedBuffer(new byte[]{0, 0, 0, 3, 0x41, 1, 2}));
+            try {
+                assertEquals(0x01000F01, segment.getInt(TRUN_OFFSET + 8), "trun 版本和标志");
+                long decodeTime = segment.getLong(TFDT_OFFSET + 12);
+                int compositionOffset = segment.getInt(TRUN_OFFSET + 32);
+                assertTrue(decodeTime > lastDecodeTime, "第 " + i + " 帧解码时间 " + decodeTime);
+                lastDecodeTime = decodeTime;
+                assertEquals(i * FRAME_TICKS, decodeTime, "第 " + i + " 帧解码时间");
+                // 第一帧的解码时间为 0，其显示时间为一帧之后
+                assertEquals((display[i] + 1) * FRAME_TICKS, decodeTime + compositionOffset, "第 " + i + " 帧显示时间");
+            } finally {
+                segment.release();
+            }
+        }
+    }
+
+    @Test
+    void framesWithoutBFramesHaveNoCompositionOffset() {
+        Fmp4Muxer muxer = new Fmp4Muxer();
+        for (int i = 0; i < 3; i++) {
+            EncodedFrame frame = EncodedFrame.fromAnnexB(new byte[]{0, 0, 0, 1, 0x41, 0x01}, i * FRAME_NANOS);
+            ByteBuf segment = muxer.segment(frame, Unpooled.wrappedBuffer(new byte[]{0, 0, 0, 2, 0x41, 1}));
+            try {
+                assertEquals(i * FRAME_TICKS, segment.getLong(TFDT_OFFSET + 12));
+                assertEquals(0, segment.getInt(TRUN_OFFSET + 32));
+            } finally {
+                segment.release();
+            }
+        }
+    }
+}
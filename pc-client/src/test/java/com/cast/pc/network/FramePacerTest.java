@@ -0,0 +1,227 @@
+package com.cast.pc.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 经过限速代理发送一段视频流，比较开启、关闭节奏控制时的帧送达延迟
+ *
+ * 代理模拟 Wi-Fi AP：按瓶颈带宽转发、队列深度有限，队列满时丢包，
+ * 丢掉的数据在重传超时后重新进入队列，TCP 按顺序交付（丢包会挡住后面的帧）。
+ * 代理记录每次从 Socket 读到数据的真实时刻，AP 的排队、丢包和重传按这些时刻离线计算，
+ * 结果不受测试机调度的影响。
+ */
+class FramePacerTest {
+
+    private static final int FPS = 30;
+    private static final int FRAMES = 120;
+    private static final int GOP = 20;
+    private static final int KEY_FRAME_BYTES = 1024 * 1024;
+    private static final int DELTA_FRAME_BYTES = 40 * 1024;
+
+    // 瓶颈带宽 300Mbit/s，AP 队列 256KB，TCP 最小重传超时 200ms，按 1460 字节分段
+    private static final long LINK_BITS_PER_SEC = 300_000_000L;
+    private static final int AP_QUEUE_BYTES = 256 * 1024;
+    private static final long RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final int SEGMENT = 1460;
+
+    private static EventLoopGroup group;
+
+    @BeforeAll
+    static void setUp() {
+        group = new NioEventLoopGroup(1);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    void pacingLowersP99FrameLatencyOverBottleneck() throws Exception {
+        long[] unpaced = run(false);
+        long[] paced = run(true);
+        long unpacedP99 = percentile(unpaced, 0.99);
+        long pacedP99 = percentile(paced, 0.99);
+        System.out.println("帧送达延迟 p50/p99（ms）: 不限速 " + ms(percentile(unpaced, 0.5)) + "/" + ms(unpacedP99)
+                + "，节奏控制 " + ms(percentile(paced, 0.5)) + "/" + ms(pacedP99));
+        assertTrue(pacedP99 < unpacedP99 / 2,
+                "节奏控制 p99 " + ms(pacedP99) + "ms，不限速 p99 " + ms(unpacedP99) + "ms");
+    }
+
+    /**
+     * 以 30fps 发送一段视频流，返回每帧的送达延迟（纳秒）
+     */
+    private static long[] run(boolean pacing) throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            BottleneckLink link = new BottleneckLink(server);
+            link.start();
+
+            CastClient client = new CastClient(group);
+            client.setPacingEnabled(pacing);
+            client.setEstimatedBandwidth(LINK_BITS_PER_SEC);
+            client.setVideoParams(1920, 1080, FPS);
+            Channel channel = client.bootstrap(5000, ChannelInboundHandlerAdapter::new)
+                    .connect("127.0.0.1", server.getLocalPort()).sync().channel();
+
+            long[] sentAt = new long[FRAMES];
+            long[] frameEnd = new long[FRAMES];
+            long streamBytes = 0;
+            long start = System.nanoTime();
+            long intervalNanos = 1_000_000_000L / FPS;
+            for (int i = 0; i < FRAMES; i++) {
+                long due = start + i * intervalNanos;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                int size = i % GOP == 0 ? KEY_FRAME_BYTES : DELTA_FRAME_BYTES;
+                ByteBuf frame = Unpooled.buffer(size);
+                frame.writeByte(CastClient.MSG_VIDEO_FRAME);
+                frame.writeInt(i);
+                frame.writeZero(size - 5);
+                sentAt[i] = System.nanoTime();
+                channel.writeAndFlush(frame);
+                streamBytes += 4 + size;
+                frameEnd[i] = streamBytes;
+            }
+
+            link.awaitBytes(streamBytes, 10_000);
+            channel.close().sync();
+            link.join(2000);
+            assertEquals(streamBytes, link.received(), "代理收到的字节数");
+
+            long[] delivered = link.deliveryTimes(frameEnd);
+            long[] latency = new long[FRAMES];
+            for (int i = 0; i < FRAMES; i++) {
+                latency[i] = delivered[i] - sentAt[i];
+            }
+            return latency;
+        }
+    }
+
+    private static long percentile(long[] values, double p) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static long ms(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * 限速代理：接收一个连接，记录数据到达时刻，按 AP 模型计算每个字节离开瓶颈的时刻
+     */
+    private static final class BottleneckLink extends Thread {
+        private final ServerSocket server;
+        // 到达记录：[时刻, 流中结束偏移]
+        private final List<long[]> arrivals = new ArrayList<>();
+        private volatile long received;
+
+        BottleneckLink(ServerSocket server) {
+            super("bottleneck-link");
+            this.server = server;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[64 * 1024];
+            try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    long now = System.nanoTime();
+                    synchronized (arrivals) {
+                        arrivals.add(new long[]{now, received + n});
+                    }
+                    received += n;
+                }
+            } catch (IOException e) {
+                // 连接关闭
+            }
+        }
+
+        long received() {
+            return received;
+        }
+
+        void awaitBytes(long bytes, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (received < bytes && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+
+        /**
+         * 计算每帧最后一个字节按顺序交付给接收端的时刻
+         *
+         * @param frameEnd 每帧在流中的结束偏移
+         */
+        long[] deliveryTimes(long[] frameEnd) {
+            // 把到达的数据切成 TCP 分段：[进入 AP 的时刻, 起始偏移, 长度]
+            PriorityQueue<long[]> pending = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+            long offset = 0;
+            synchronized (arrivals) {
+                for (long[] arrival : arrivals) {
+                    while (offset < arrival[1]) {
+                        long length = Math.min(SEGMENT, arrival[1] - offset);
+                        pending.add(new long[]{arrival[0], offset, length});
+                        offset += length;
+                    }
+                }
+            }
+            int segments = (int) ((offset + SEGMENT - 1) / SEGMENT);
+            long[] departure = new long[segments];
+            double nanosPerByte = 8e9 / LINK_BITS_PER_SEC;
+            long linkFreeAt = Long.MIN_VALUE;
+            while (!pending.isEmpty()) {
+                long[] segment = pending.poll();
+                long now = segment[0];
+                long backlogBytes = linkFreeAt > now ? (long) ((linkFreeAt - now) / nanosPerByte) : 0;
+                if (backlogBytes + segment[2] > AP_QUEUE_BYTES) {
+                    // 队列满，丢包后等重传
+                    pending.add(new long[]{now + RTO_NANOS, segment[1], segment[2]});
+                    continue;
+                }
+                linkFreeAt = Math.max(linkFreeAt, now) + (long) (segment[2] * nanosPerByte);
+                departure[(int) (segment[1] / SEGMENT)] = linkFreeAt;
+            }
+
+            // 按顺序交付：一帧在它之前的所有分段都到达后才交付
+            long[] delivered = new long[frameEnd.length];
+            long inOrder = Long.MIN_VALUE;
+            int next = 0;
+            for (int i = 0; i < frameEnd.length; i++) {
+                int last = (int) ((frameEnd[i] - 1) / SEGMENT);
+                for (; next <= last; next++) {
+                    inOrder = Math.max(inOrder, departure[next]);
+                }
+                delivered[i] = inOrder;
+            }
+            return delivered;
+        }
+    }
+}
@@ -0,0 +1,637 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 丢包下 UDP（校验包 + NACK 重传）与 TCP 的卡顿时长对比
+ *
+ * 两种传输都是真实的 CastClient，经过同一条有损链路（src/test/resources/impaired_link.py：
+ * TUN 网卡上随机丢包、单向 3ms、100Mbps，两个方向都丢），TCP 由内核按自己的机制重传，不做模拟。
+ * TV端接收按TV端的策略：TCP 按序交付；UDP 用与 RtpFrameAssembler 相同的恢复、NACK 和 150ms 放弃期限，
+ * 帧序号不连续时请求关键帧并冻结到下一个关键帧。
+ * 卡顿时长：相邻两次显示间隔超过两个帧间隔时，超出一个帧间隔的部分之和。
+ * 单个丢包率下两边都有波动（TCP 看有没有碰上至少 200ms 的超时重传，UDP 看有没有跳帧等关键帧），
+ * 所以每档都允许 UDP 比 TCP 多出 {@link #FREEZE_MARGIN_MS}；UDP 的每次卡顿受放弃期限约束，单独检查最长的一次。
+ *
+ * 需要 root、/dev/net/tun 和 python3（Linux 上用 sudo 运行或在容器里运行），不满足时跳过；
+ * 属于集成测试，默认不运行，用 mvn test -Pintegration 运行。
+ */
+@Tag("integration")
+class RtpLossTest {
+
+    private static final String LINK = "castloss0";
+    private static final String TV_ADDRESS = "10.77.0.1";
+    // 经有损链路到达 TV_ADDRESS 的地址（见 impaired_link.py）
+    private static final String LINK_ADDRESS = "10.77.1.2";
+    private static final int ONE_WAY_MS = 3;
+    private static final int LINK_MBPS = 100;
+
+    private static final int FPS = 30;
+    private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / FPS;
+    private static final int GOP = 30;
+    private static final int WARMUP_FRAMES = 30;
+    private static final int MEASURED_FRAMES = 600;
+    private static final int FEC_PERCENT = 10;
+    // 每档丢包率下 UDP 卡顿允许超出 TCP 的部分：一次跳帧等关键帧的代价
+    private static final long FREEZE_MARGIN_MS = RtpSender.RETRANSMIT_DEADLINE_MS + 100;
+
+    @AfterAll
+    static void shutdown() {
+        CastClient.shutdownSharedEventLoop();
+    }
+
+    @Test
+    void udpFreezesLessThanTcpUnderLoss() throws Exception {
+        assumeTrue(ImpairedLink.available(), "需要 root、/dev/net/tun 和 python3");
+        double[] losses = {0.01, 0.03, 0.05};
+        Result[] tcp = new Result[losses.length];
+        Result[] udp = new Result[losses.length];
+        for (int i = 0; i < losses.length; i++) {
+            tcp[i] = run(losses[i], false);
+            udp[i] = run(losses[i], true);
+        }
+        System.out.printf("丢包   %-44s %-44s%n", "TCP", "UDP 校验包 " + FEC_PERCENT + "%");
+        for (int i = 0; i < losses.length; i++) {
+            System.out.printf("%3.0f%%   %-44s %-44s%n", losses[i] * 100, tcp[i], udp[i]);
+        }
+
+        for (int i = 0; i < losses.length; i++) {
+            // 两种传输都要一直在出画面
+            assertTrue(tcp[i].displayed > MEASURED_FRAMES / 2, "TCP " + tcp[i]);
+            assertTrue(udp[i].displayed > MEASURED_FRAMES / 2, "UDP " + udp[i]);
+        }
+        // 每档丢包率下 UDP 的卡顿都不比 TCP 多（留出一次跳帧的余量）
+        for (int i = 0; i < losses.length; i++) {
+            assertTrue(udp[i].freezeMillis < tcp[i].freezeMillis + FREEZE_MARGIN_MS,
+                    String.format("丢包 %.0f%%: UDP %s，TCP %s", losses[i] * 100, udp[i], tcp[i]));
+        }
+        // 缺帧最多等放弃期限，之后跳过、请求关键帧，不会出现 TCP 超时重传那样的长时间卡顿
+        for (Result result : udp) {
+            assertTrue(result.longestMillis < RtpSender.RETRANSMIT_DEADLINE_MS + 100, "UDP " + result);
+        }
+    }
+
+    private static final class Result {
+        final int displayed;
+        final long freezeMillis;
+        final int longFreezes;
+        final long longestMillis;
+
+        Result(int displayed, long freezeMillis, int longFreezes, long longestMillis) {
+            this.displayed = displayed;
+            this.freezeMillis = freezeMillis;
+            this.longFreezes = longFreezes;
+            this.longestMillis = longestMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("卡顿 %5d ms，>100ms %2d 次，最长 %3d ms，显示 %d 帧",
+                    freezeMillis, longFreezes, longestMillis, displayed);
+        }
+    }
+
+    /**
+     * 经有损链路投屏 WARMUP_FRAMES + MEASURED_FRAMES 帧，统计后 MEASURED_FRAMES 帧时间内的卡顿
+     */
+    private static Result run(double loss, boolean udp) throws Exception {
+        try (ImpairedLink link = ImpairedLink.start(loss, 45); FakeTv tv = new FakeTv(udp)) {
+            CastClient client = new CastClient();
+            client.setPacingEnabled(true);
+            client.setUdpTransport(udp, FEC_PERCENT);
+            AtomicBoolean keyFrameRequested = new AtomicBoolean();
+            client.setOnKeyFrameRequest(() -> keyFrameRequested.set(true));
+            try {
+                client.connect(LINK_ADDRESS, tv.port()).get(5, TimeUnit.SECONDS);
+                client.setVideoParams(1920, 1080, FPS);
+                client.handshake().get(5, TimeUnit.SECONDS);
+                assertEquals(udp, client.isUdpActive());
+
+                // 约 8Mbps 的帧序列：关键帧 100~140KB，其余 18~40KB；请求关键帧时下一帧编成关键帧
+                long start = System.nanoTime();
+                int total = WARMUP_FRAMES + MEASURED_FRAMES;
+                for (int i = 0; i < total; i++) {
+                    long due = start + i * FRAME_NANOS;
+                    while (System.nanoTime() < due) {
+                        LockSupport.parkNanos(due - System.nanoTime());
+                    }
+                    boolean key = i % GOP == 0 || keyFrameRequested.getAndSet(false);
+                    client.sendFrame(EncodedFrame.fromAnnexB(frame(i, key), System.nanoTime()));
+                }
+                Thread.sleep(500);
+                return tv.result(start + WARMUP_FRAMES * FRAME_NANOS, start + total * FRAME_NANOS);
+            } finally {
+                client.disconnect();
+            }
+        }
+    }
+
+    private static byte[] frame(int index, boolean key) {
+        Random random = new Random(index * 7919L + 17);
+        byte[] data = new byte[key ? 100_000 + random.nextInt(40_000) : 18_000 + random.nextInt(22_000)];
+        Arrays.fill(data, 4, data.length, (byte) 0x55);
+        data[3] = 1;
+        data[4] = (byte) (key ? 0x65 : 0x41);
+        return data;
+    }
+
+    /**
+     * 有损链路进程（impaired_link.py），关闭时结束进程、网卡随之删除
+     */
+    private static final class ImpairedLink implements AutoCloseable {
+        private final Process process;
+
+        private ImpairedLink(Process process) {
+            this.process = process;
+        }
+
+        static boolean available() {
+            if (!new File("/dev/net/tun").exists() || !"root".equals(System.getProperty("user.name"))) {
+                return false;
+            }
+            try {
+                return new ProcessBuilder("python3", "--version").start().waitFor() == 0;
+            } catch (IOException | InterruptedException e) {
+                return false;
+            }
+        }
+
+        static ImpairedLink start(double loss, int seed) throws Exception {
+            String script = new File(RtpLossTest.class.getResource("/impaired_link.py").toURI()).getPath();
+            Process process = new ProcessBuilder("python3", script, LINK, TV_ADDRESS, String.valueOf(loss),
+                    String.valueOf(ONE_WAY_MS), String.valueOf(LINK_MBPS), String.valueOf(seed))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                    StandardCharsets.UTF_8));
+            if (!"ready".equals(out.readLine())) {
+                process.destroyForcibly();
+                throw new IOException("有损链路启动失败");
+            }
+            return new ImpairedLink(process);
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            process.destroy();
+            process.waitFor(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 模拟的TV端：TCP 上应答握手和心跳、接收 TCP 视频帧；UDP 模式下按TV端策略重组、发 NACK
+     * 只记录每个可显示帧的到达时间（帧序号不连续后冻结到下一个关键帧）
+     */
+    private static final class FakeTv implements AutoCloseable {
+        private final boolean udp;
+        private final ServerSocket server;
+        private final DatagramSocket datagrams;
+        private final List<Long> displayed = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean closed;
+        private volatile Socket socket;
+        private DataOutputStream out;
+        private int expected = -1;
+        private boolean frozen = true;
+
+        FakeTv(boolean udp) throws IOException {
+            this.udp = udp;
+            InetAddress address = InetAddress.getByName(TV_ADDRESS);
+            server = new ServerSocket(0, 1, address);
+            datagrams = udp ? new DatagramSocket(server.getLocalPort(), address) : null;
+            start("fake-tv-tcp", this::serveTcp);
+            if (udp) {
+                start("fake-tv-udp", this::serveUdp);
+            }
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        private void start(String name, Runnable task) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void serveTcp() {
+            Map<Integer, byte[]> fragments = new HashMap<>();
+            try (Socket accepted = server.accept()) {
+                socket = accepted;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(accepted.getInputStream()));
+                out = new DataOutputStream(accepted.getOutputStream());
+                while (!closed) {
+                    byte[] message = new byte[in.readInt()];
+                    in.readFully(message);
+                    ByteBuffer buffer = ByteBuffer.wrap(message, 1, message.length - 1);
+                    switch (message[0]) {
+                        case CastClient.MSG_HANDSHAKE:
+                            // 协议版本 8：支持 UDP，不做带宽探测
+                            reply(9, CastClient.MSG_HANDSHAKE, CastClient.VERSION_UDP, udp ? port() : 0);
+                            break;
+                        case CastClient.MSG_HEARTBEAT:
+                            long now = System.nanoTime();
+                            reply(25, CastClient.MSG_HEARTBEAT, buffer.getLong(), now, now);
+                            break;
+                        case CastClient.MSG_VIDEO_FRAME_V2:
+                            onFrame(Arrays.copyOfRange(message, 1, message.length));
+                            break;
+                        case CastClient.MSG_VIDEO_FRAGMENT:
+                            int sequence = buffer.getInt();
+                            int total = buffer.getInt();
+                            int offset = buffer.getInt();
+                            byte[] body = offset == 0 ? new byte[total] : fragments.get(sequence);
+                            if (body == null) {
+                                break;
+                            }
+                            fragments.put(sequence, body);
+                            buffer.get(body, offset, buffer.remaining());
+                            if (offset + message.length - 13 == total) {
+                                fragments.remove(sequence);
+                                onFrame(body);
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                // 连接关闭
+            }
+        }
+
+        private void reply(int length, int type, Number... fields) throws IOException {
+            synchronized (this) {
+                out.writeInt(length);
+                out.writeByte(type);
+                for (Number field : fields) {
+                    if (field instanceof Long) {
+                        out.writeLong(field.longValue());
+                    } else {
+                        out.writeInt(field.intValue());
+                    }
+                }
+                out.flush();
+            }
+        }
+
+        private void serveUdp() {
+            FrameAssembler assembler = new FrameAssembler();
+            SocketAddress sender = null;
+            int sessionId = 0;
+            long lastPoll = 0;
+            byte[] buffer = new byte[2048];
+            try {
+                datagrams.setSoTimeout(FrameAssembler.POLL_INTERVAL_MS);
+                while (!closed) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    boolean received;
+                    try {
+                        datagrams.receive(packet);
+                        received = true;
+                    } catch (SocketTimeoutException e) {
+                        received = false;
+                    }
+                    long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+                    if (received) {
+                        if (packet.getLength() < RtpSender.HEADER_SIZE) {
+                            continue;
+                        }
+                        sender = packet.getSocketAddress();
+                        sessionId = ByteBuffer.wrap(buffer).getInt(8);
+                        assembler.accept(Arrays.copyOf(buffer, packet.getLength()), now);
+                    } else if (now - lastPoll < FrameAssembler.POLL_INTERVAL_MS) {
+                        continue;
+                    }
+                    // 与TV端相同：每个包之后以及每 10ms 交付帧、发出重传请求
+                    lastPoll = now;
+                    for (byte[] frame : assembler.drain(now)) {
+                        onFrame(frame);
+                    }
+                    for (FrameAssembler.Nack nack : assembler.nacks(now)) {
+                        ByteBuffer request = ByteBuffer.allocate(16 + nack.indices.length * 2);
+                        request.put((byte) RtpSender.RTP_VERSION_BYTE).put((byte) RtpSender.PT_NACK).putShort((short) 0);
+                        request.putInt(nack.sequence).putInt(sessionId).putShort((short) nack.indices.length);
+                        for (int index : nack.indices) {
+                            request.putShort((short) index);
+                        }
+                        datagrams.send(new DatagramPacket(request.array(), request.position(), sender));
+                    }
+                }
+            } catch (IOException e) {
+                // 套接字关闭
+            }
+        }
+
+        /**
+         * 去掉类型字节的 v2 帧体：[标志][4字节序号]...
+         */
+        private void onFrame(byte[] body) throws IOException {
+            boolean key = (body[0] & CastClient.FLAG_KEY_FRAME) != 0;
+            int sequence = ByteBuffer.wrap(body).getInt(1);
+            boolean requestKeyFrame = false;
+            synchronized (displayed) {
+                if (expected >= 0 && sequence != expected && !frozen) {
+                    frozen = true;
+                    requestKeyFrame = true;
+                }
+                expected = sequence + 1;
+                if (key) {
+                    frozen = false;
+                }
+                if (!frozen) {
+                    displayed.add(System.nanoTime());
+                }
+            }
+            if (requestKeyFrame) {
+                reply(1, 0x04);
+            }
+        }
+
+        /**
+         * [from, to) 内的卡顿统计
+         */
+        Result result(long from, long to) {
+            List<Long> times = new ArrayList<>();
+            synchronized (displayed) {
+                for (long time : displayed) {
+                    if (time >= from && time < to) {
+                        times.add(time);
+                    }
+                }
+            }
+            long freeze = 0;
+            long longest = 0;
+            int longFreezes = 0;
+            long previous = from;
+            times.add(to);
+            for (long time : times) {
+                long gap = time - previous;
+                if (gap > 2 * FRAME_NANOS) {
+                    freeze += gap - FRAME_NANOS;
+                }
+                if (gap > TimeUnit.MILLISECONDS.toNanos(100)) {
+                    longFreezes++;
+                }
+                longest = Math.max(longest, gap);
+                previous = time;
+            }
+            return new Result(times.size() - 1, TimeUnit.NANOSECONDS.toMillis(freeze), longFreezes,
+                    TimeUnit.NANOSECONDS.toMillis(longest));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            server.close();
+            Socket accepted = socket;
+            if (accepted != null) {
+                accepted.close();
+            }
+            if (datagrams != null) {
+                datagrams.close();
+            }
+        }
+    }
+
+    /**
+     * TV端 RtpFrameAssembler 的同一套策略：每组丢一个包用校验包恢复，恢复不了的发 NACK，
+     * 帧按序交付，缺帧等待超过 {@link #FRAME_DEADLINE_MS} 后跳过
+     */
+    private static final class FrameAssembler {
+        static final int POLL_INTERVAL_MS = 10;
+        static final long FRAME_DEADLINE_MS = RtpSender.RETRANSMIT_DEADLINE_MS;
+        private static final long NACK_DELAY_MS = 15;
+        private static final long NACK_INTERVAL_MS = 30;
+        private static final int MAX_PENDING_FRAMES = 64;
+
+        static final class Nack {
+            final int sequence;
+            final int[] indices;
+
+            Nack(int sequence, int[] indices) {
+                this.sequence = sequence;
+                this.indices = indices;
+            }
+        }
+
+        private static final class PendingFrame {
+            final int sequence;
+            final int dataCount;
+            final int fecCount;
+            final int length;
+            final long firstAt;
+            final byte[][] packets;
+            long lastPacketAt;
+            long lastNackAt;
+            int highestIndex = -1;
+
+            PendingFrame(int sequence, int dataCount, int fecCount, int length, long firstAt) {
+                this.sequence = sequence;
+                this.dataCount = dataCount;
+                this.fecCount = fecCount;
+                this.length = length;
+                this.firstAt = firstAt;
+                this.lastPacketAt = firstAt;
+                this.packets = new byte[dataCount + fecCount][];
+            }
+
+            boolean isComplete() {
+                for (int i = 0; i < dataCount; i++) {
+                    if (packets[i] == null) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            void recover() {
+                for (int group = 0; group < fecCount; group++) {
+                    byte[] parity = packets[dataCount + group];
+                    int missing = -1;
+                    int missingCount = 0;
+                    for (int i = group; i < dataCount; i += fecCount) {
+                        if (packets[i] == null) {
+                            missing = i;
+                            missingCount++;
+                        }
+                    }
+                    if (parity == null || missingCount != 1) {
+                        continue;
+                    }
+                    byte[] rebuilt = parity.clone();
+                    for (int i = group; i < dataCount; i += fecCount) {
+                        if (packets[i] != null) {
+                            for (int b = 0; b < packets[i].length; b++) {
+                                rebuilt[b] ^= packets[i][b];
+                            }
+                        }
+                    }
+                    int size = missing == dataCount - 1 ? length - parity.length * (dataCount - 1) : parity.length;
+                    packets[missing] = Arrays.copyOf(rebuilt, size);
+                }
+            }
+
+            int[] missingIndices() {
+                List<Integer> result = new ArrayList<>();
+                int groups = fecCount > 0 ? fecCount : 1;
+                for (int group = 0; group < groups; group++) {
+                    boolean parityPresent = fecCount > 0 && packets[dataCount + group] != null;
+                    for (int i = group; i < dataCount; i += groups) {
+                        if (packets[i] == null) {
+                            if (parityPresent) {
+                                parityPresent = false;
+                            } else {
+                                result.add(i);
+                            }
+                        }
+                    }
+                }
+                return result.stream().mapToInt(Integer::intValue).toArray();
+            }
+
+            byte[] assemble() {
+                byte[] frame = new byte[length];
+                int offset = 0;
+                for (int i = 0; i < dataCount; i++) {
+                    int size = Math.min(packets[i].length, length - offset);
+                    System.arraycopy(packets[i], 0, frame, offset, size);
+                    offset += size;
+                }
+                return frame;
+            }
+        }
+
+        private final Map<Integer, PendingFrame> pending = new HashMap<>();
+        private final Map<Integer, Long> lostFrameNackAt = new HashMap<>();
+        private Integer nextSequence;
+
+        void accept(byte[] packet, long now) {
+            ByteBuffer buffer = ByteBuffer.wrap(packet);
+            int payloadType = buffer.get(1) & 0x7F;
+            int sequence = buffer.getInt(4);
+            int index = buffer.getShort(12) & 0xFFFF;
+            int dataCount = buffer.getShort(14) & 0xFFFF;
+            int fecCount = buffer.getShort(16) & 0xFFFF;
+            int length = buffer.getInt(18);
+            if ((payloadType != RtpSender.PT_MEDIA && payloadType != RtpSender.PT_FEC)
+                    || dataCount == 0 || index >= dataCount + fecCount || length <= 0) {
+                return;
+            }
+            if (nextSequence == null) {
+                nextSequence = sequence;
+            }
+            int ahead = sequence - nextSequence;
+            if (ahead < 0 || ahead >= MAX_PENDING_FRAMES) {
+                return;
+            }
+            PendingFrame frame = pending.computeIfAbsent(sequence, s -> {
+                lostFrameNackAt.remove(s);
+                return new PendingFrame(s, dataCount, fecCount, length, now);
+            });
+            if (frame.packets[index] != null) {
+                return;
+            }
+            frame.packets[index] = Arrays.copyOfRange(packet, RtpSender.HEADER_SIZE, packet.length);
+            frame.lastPacketAt = now;
+            frame.highestIndex = Math.max(frame.highestIndex, index);
+            if (!frame.isComplete()) {
+                frame.recover();
+            }
+        }
+
+        List<byte[]> drain(long now) {
+            List<byte[]> frames = new ArrayList<>();
+            while (nextSequence != null) {
+                PendingFrame frame = pending.get(nextSequence);
+                if (frame != null && frame.isComplete()) {
+                    frames.add(frame.assemble());
+                    pending.remove(nextSequence);
+                    nextSequence++;
+                    continue;
+                }
+                long waitingSince = frame != null ? frame.firstAt
+                        : pending.values().stream().mapToLong(f -> f.firstAt).min().orElse(Long.MAX_VALUE);
+                if (waitingSince == Long.MAX_VALUE || now - waitingSince < FRAME_DEADLINE_MS) {
+                    break;
+                }
+                pending.remove(nextSequence);
+                lostFrameNackAt.remove(nextSequence);
+                nextSequence++;
+            }
+            return frames;
+        }
+
+        List<Nack> nacks(long now) {
+            List<Nack> result = new ArrayList<>();
+            if (nextSequence == null || pending.isEmpty()) {
+                return result;
+            }
+            int next = nextSequence;
+            int newest = pending.keySet().stream().max((a, b) -> Integer.compare(a - next, b - next)).get();
+            for (int sequence = next; sequence - newest <= 0; sequence++) {
+                PendingFrame frame = pending.get(sequence);
+                if (frame == null) {
+                    int lost = sequence;
+                    long firstLater = pending.values().stream().filter(f -> f.sequence - lost > 0)
+                            .mapToLong(f -> f.firstAt).min().orElse(Long.MAX_VALUE);
+                    if (firstLater == Long.MAX_VALUE || now - firstLater >= FRAME_DEADLINE_MS
+                            || now - lostFrameNackAt.getOrDefault(sequence, 0L) < NACK_INTERVAL_MS) {
+                        continue;
+                    }
+                    lostFrameNackAt.put(sequence, now);
+                    result.add(new Nack(sequence, new int[0]));
+                    continue;
+                }
+                if (frame.isComplete() || now - frame.firstAt >= FRAME_DEADLINE_MS) {
+                    continue;
+                }
+                boolean sentCompletely = sequence != newest || frame.highestIndex == frame.packets.length - 1;
+                if ((!sentCompletely && now - frame.lastPacketAt < NACK_DELAY_MS)
+                        || now - frame.lastNackAt < NACK_INTERVAL_MS) {
+                    continue;
+                }
+                int[] missing = frame.missingIndices();
+                if (missing.length > 0) {
+                    frame.lastNackAt = now;
+                    result.add(new Nack(sequence, missing));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.cast.pc.network;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * RtpSender 的 NACK 重传
+ *
+ * 每个重传包都要带新的包序号，而且不能改动重传历史里的包：
+ * 同一个 NACK 里重复的帧内序号、之后再次请求的同一个包，发出的内容除包序号外与原包一致。
+ */
+class RtpSenderTest {
+
+    private static final int SESSION_ID = 0x5EED;
+    private static final int FRAME_SEQ = 7;
+
+    @Test
+    void retransmissionsGetFreshPacketSequences() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try (DatagramSocket tv = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            tv.setSoTimeout(2000);
+            RtpSender sender = RtpSender.open(group,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), tv.getLocalPort()), SESSION_ID, 0)
+                    .get(5, TimeUnit.SECONDS);
+
+            // 3 个数据包的帧
+            byte[] body = new byte[RtpSender.MAX_PAYLOAD * 2 + 100];
+            new Random(45).nextBytes(body);
+            sender.sendFrame(Unpooled.wrappedBuffer(body), FRAME_SEQ);
+            List<DatagramPacket> sent = receive(tv, 3);
+            SocketAddress senderAddress = sent.get(0).getSocketAddress();
+            byte[][] originals = new byte[3][];
+            for (DatagramPacket packet : sent) {
+                byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+                originals[index(data)] = data;
+            }
+
+            // 同一个 NACK 里请求两次 1 号包，再请求 2 号包；然后再请求一次整帧
+            nack(tv, senderAddress, 1, 1, 2);
+            List<DatagramPacket> retransmitted = new ArrayList<>(receive(tv, 3));
+            nack(tv, senderAddress);
+            retransmitted.addAll(receive(tv, 3));
+
+            Set<Integer> sequences = new HashSet<>();
+            for (DatagramPacket packet : sent) {
+                sequences.add(sequence(packet.getData()));
+            }
+            for (DatagramPacket packet : retransmitted) {
+                byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+                sequences.add(sequence(data));
+                // 除包序号外与原包逐字节一致
+                byte[] expected = originals[index(data)].clone();
+                expected[2] = data[2];
+                expected[3] = data[3];
+                assertArrayEquals(expected, data);
+            }
+            assertEquals(sent.size() + retransmitted.size(), sequences.size(), "包序号重复: " + sequences);
+            // 重传历史里仍是最初发出的包
+            for (int i = 0; i < originals.length; i++) {
+                assertArrayEquals(originals[i], sender.historyPacket(FRAME_SEQ, i), "历史中的 " + i + " 号包被改动");
+            }
+            sender.close();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private static List<DatagramPacket> receive(DatagramSocket socket, int count) throws IOException {
+        List<DatagramPacket> packets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            socket.receive(packet);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    /**
+     * NACK: [0x80][负载类型][2字节保留][4字节帧序号][4字节会话标识][2字节个数][帧内序号...]
+     */
+    private static void nack(DatagramSocket socket, SocketAddress to, int... indices) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + indices.length * 2);
+        buffer.put((byte) RtpSender.RTP_VERSION_BYTE);
+        buffer.put((byte) RtpSender.PT_NACK);
+        buffer.putShort((short) 0);
+        buffer.putInt(FRAME_SEQ);
+        buffer.putInt(SESSION_ID);
+        buffer.putShort((short) indices.length);
+        for (int index : indices) {
+            buffer.putShort((short) index);
+        }
+        socket.send(new DatagramPacket(buffer.array(), buffer.position(), to));
+    }
+
+    private static int sequence(byte[] packet) {
+        return ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+    }
+
+    private static int index(byte[] packet) {
+        return ((packet[12] & 0xFF) << 8) | (packet[13] & 0xFF);
+    }
+}
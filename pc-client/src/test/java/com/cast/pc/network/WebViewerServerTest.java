@@ -0,0 +1,313 @@
+package com.cast.pc.network;
+
+import com.cast.pc.capture.EncodedFrame;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 浏览器观看的 fMP4 分帧，用无界面的客户端分别从 /ws 和 /stream.mp4 接收
+ *
+ * 观看端在 GOP 中途加入，收到的字节流必须是 ftyp + moov 开头，之后全是 moof + mdat 成对出现：
+ * trun 的样本大小等于 mdat 负载长度、数据偏移指向 mdat 负载，第一个媒体段是关键帧，
+ * 段序号和解码时间严格递增。
+ */
+class WebViewerServerTest {
+
+    // 640x360 Baseline 的 SPS/PPS（x264 输出）
+    private static final byte[] SPS = hex("6742c01e8c8d405017fcb00f08846a");
+    private static final byte[] PPS = hex("68ce3c80");
+    private static final int NAL_IDR = 5;
+    private static final int GOP = 30;
+    private static final int JOIN_AFTER = 45;
+    private static final int FRAMES = 120;
+    private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 30;
+
+    @AfterAll
+    static void shutdown() {
+        CastClient.shutdownSharedEventLoop();
+    }
+
+    @Test
+    void webSocketAndHttpStreamsAreWellFramed() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        CastHub hub = new CastHub(new CastClient());
+        WebViewerServer server = new WebViewerServer(port);
+        server.start(hub).get(5, TimeUnit.SECONDS);
+        HttpClient http = HttpClient.newHttpClient();
+        WebSocketCapture ws = new WebSocketCapture();
+        ByteArrayOutputStream httpBytes = new ByteArrayOutputStream();
+        Thread httpReader = null;
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                hub.sendFrame(frame(i));
+                if (i == JOIN_AFTER - 1) {
+                    http.newWebSocketBuilder().buildAsync(URI.create("ws://127.0.0.1:" + port + "/ws"), ws)
+                            .get(5, TimeUnit.SECONDS);
+                    HttpResponse<InputStream> response = http.send(HttpRequest.newBuilder(
+                            URI.create("http://127.0.0.1:" + port + "/stream.mp4")).build(),
+                            HttpResponse.BodyHandlers.ofInputStream());
+                    assertEquals(200, response.statusCode());
+                    assertEquals("video/mp4", response.headers().firstValue("content-type").orElse(""));
+                    httpReader = new Thread(() -> {
+                        try (InputStream in = response.body()) {
+                            byte[] buffer = new byte[16 * 1024];
+                            int read;
+                            while ((read = in.read(buffer)) >= 0) {
+                                synchronized (httpBytes) {
+                                    httpBytes.write(buffer, 0, read);
+                                }
+                            }
+                        } catch (IOException e) {
+                            // 服务停止
+                        }
+                    }, "stream-reader");
+                    httpReader.start();
+                    waitFor(() -> server.getViewerCount() == 2);
+                }
+            }
+            // 加入时补发当前 GOP（第 30 帧起），之后每帧一段
+            int expected = FRAMES - (JOIN_AFTER / GOP) * GOP;
+            waitFor(() -> segments(ws.bytes()).size() >= expected && segments(httpBytes(httpBytes)).size() >= expected);
+        } finally {
+            server.stop();
+        }
+        if (httpReader != null) {
+            httpReader.join(2000);
+        }
+
+        List<String> texts = ws.texts;
+        assertEquals(1, texts.size(), "WebSocket 文本消息: " + texts);
+        assertTrue(texts.get(0).contains("\"codec\":\"avc1.42c01e\""), texts.get(0));
+        assertTrue(texts.get(0).contains("\"width\":640") && texts.get(0).contains("\"height\":360"), texts.get(0));
+
+        int expected = FRAMES - (JOIN_AFTER / GOP) * GOP;
+        verifyFraming("/ws", ws.bytes(), expected);
+        verifyFraming("/stream.mp4", httpBytes(httpBytes), expected);
+    }
+
+    /**
+     * 检查一个观看端收到的完整字节流
+     */
+    private static void verifyFraming(String name, byte[] stream, int expectedSegments) {
+        List<Box> boxes = boxes(stream);
+        assertTrue(boxes.size() >= 2, name + " 盒子数 " + boxes.size());
+        assertEquals("ftyp", boxes.get(0).type, name);
+        assertEquals("moov", boxes.get(1).type, name);
+        assertEquals(0, (boxes.size() - 2) % 2, name + " 末尾有不成对的盒子");
+
+        ByteBuffer data = ByteBuffer.wrap(stream);
+        long lastSequence = 0;
+        long lastDecodeTime = -1;
+        int keyFrames = 0;
+        for (int i = 2; i < boxes.size(); i += 2) {
+            Box moof = boxes.get(i);
+            Box mdat = boxes.get(i + 1);
+            String at = name + " 第 " + (i / 2) + " 段";
+            assertEquals("moof", moof.type, at);
+            assertEquals("mdat", mdat.type, at);
+
+            Box mfhd = child(data, moof, "mfhd");
+            Box traf = child(data, moof, "traf");
+            Box tfdt = child(data, traf, "tfdt");
+            Box trun = child(data, traf, "trun");
+            long sequence = data.getInt(mfhd.offset + 12) & 0xFFFFFFFFL;
+            long decodeTime = data.getLong(tfdt.offset + 12);
+            assertTrue(sequence > lastSequence, at + " 段序号 " + sequence);
+            assertTrue(decodeTime > lastDecodeTime, at + " 解码时间 " + decodeTime);
+            lastSequence = sequence;
+            lastDecodeTime = decodeTime;
+
+            // trun（版本 1）: [flags 0x000F01][样本数][数据偏移][时长][大小][样本标志][显示时间偏移]
+            assertEquals(0x01000F01, data.getInt(trun.offset + 8), at);
+            assertEquals(1, data.getInt(trun.offset + 12), at);
+            int dataOffset = data.getInt(trun.offset + 16);
+            int sampleSize = data.getInt(trun.offset + 24);
+            int sampleFlags = data.getInt(trun.offset + 28);
+            // 编码器不输出 B 帧，显示时间即解码时间
+            assertEquals(0, data.getInt(trun.offset + 32), at + " 显示时间偏移");
+            assertEquals(mdat.size - 8, sampleSize, at + " trun 样本大小与 mdat 负载长度不符");
+            assertEquals(moof.size + 8, dataOffset, at + " 数据偏移没有指向 mdat 负载");
+
+            // mdat 负载是 [4字节长度][NAL]... ，长度恰好用完
+            boolean idr = false;
+            int position = mdat.offset + 8;
+            while (position < mdat.offset + mdat.size) {
+                int length = data.getInt(position);
+                assertTrue(length > 0 && position + 4 + length <= mdat.offset + mdat.size, at + " NAL 长度越界");
+                idr |= (stream[position + 4] & 0x1F) == NAL_IDR;
+                position += 4 + length;
+            }
+            boolean key = sampleFlags == 0x02000000;
+            assertEquals(idr, key, at + " 样本标志与 IDR 不一致");
+            if (i == 2) {
+                assertTrue(key, name + " 第一个媒体段不是关键帧");
+            }
+            if (key) {
+                keyFrames++;
+            }
+        }
+        int segments = (boxes.size() - 2) / 2;
+        assertEquals(expectedSegments, segments, name + " 媒体段数");
+        assertEquals(segments / GOP + (segments % GOP > 0 ? 1 : 0), keyFrames, name + " 关键帧数");
+        System.out.println(name + ": ftyp + moov + " + segments + " 个 moof/mdat，关键帧 " + keyFrames
+                + "，共 " + stream.length + " 字节");
+    }
+
+    /**
+     * 第 index 帧：每 GOP 帧一个带 SPS/PPS 的 IDR，其余为 P 帧；切片内容是填充数据，只检查封装
+     */
+    private static EncodedFrame frame(int index) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean key = index % GOP == 0;
+        if (key) {
+            annexB(out, SPS);
+            annexB(out, PPS);
+        }
+        byte[] slice = new byte[key ? 6000 + index : 800 + (index * 37) % 1500];
+        Arrays.fill(slice, (byte) 0x5A);
+        slice[0] = (byte) (key ? 0x65 : 0x41);
+        annexB(out, slice);
+        return EncodedFrame.fromAnnexB(out.toByteArray(), index * FRAME_NANOS);
+    }
+
+    private static void annexB(ByteArrayOutputStream out, byte[] nal) {
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(nal, 0, nal.length);
+    }
+
+    private static final class Box {
+        final int offset;
+        final int size;
+        final String type;
+
+        Box(int offset, int size, String type) {
+            this.offset = offset;
+            this.size = size;
+            this.type = type;
+        }
+    }
+
+    /**
+     * 顶层盒子，末尾不完整的盒子忽略
+     */
+    private static List<Box> boxes(byte[] stream) {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer data = ByteBuffer.wrap(stream);
+        int offset = 0;
+        while (offset + 8 <= stream.length) {
+            int size = data.getInt(offset);
+            if (size < 8 || offset + size > stream.length) {
+                break;
+            }
+            boxes.add(new Box(offset, size, new String(stream, offset + 4, 4, StandardCharsets.US_ASCII)));
+            offset += size;
+        }
+        return boxes;
+    }
+
+    private static List<Box> segments(byte[] stream) {
+        List<Box> media = new ArrayList<>();
+        for (Box box : boxes(stream)) {
+            if (box.type.equals("mdat")) {
+                media.add(box);
+            }
+        }
+        return media;
+    }
+
+    private static Box child(ByteBuffer data, Box parent, String type) {
+        int offset = parent.offset + 8;
+        while (offset + 8 <= parent.offset + parent.size) {
+            int size = data.getInt(offset);
+            byte[] name = new byte[4];
+            data.get(offset + 4, name);
+            if (type.equals(new String(name, StandardCharsets.US_ASCII))) {
+                return new Box(offset, size, type);
+            }
+            assertTrue(size >= 8, parent.type + " 内盒子长度 " + size);
+            offset += size;
+        }
+        throw new AssertionError(parent.type + " 中没有 " + type);
+    }
+
+    private static byte[] httpBytes(ByteArrayOutputStream bytes) {
+        synchronized (bytes) {
+            return bytes.toByteArray();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] hex(String text) {
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * WebSocket 观看端：记录文本消息，拼接二进制消息
+     */
+    private static final class WebSocketCapture implements WebSocket.Listener {
+        final List<String> texts = new CopyOnWriteArrayList<>();
+        private final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            texts.add(data.toString());
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            synchronized (binary) {
+                binary.write(bytes, 0, bytes.length);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        byte[] bytes() {
+            synchronized (binary) {
+                return binary.toByteArray();
+            }
+        }
+    }
+}
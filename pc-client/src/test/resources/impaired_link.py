@@ -0,0 +1,108 @@
+#!/usr/bin/env python3
+"""
+有损链路：在 TUN 网卡上按比例随机丢包、加单向时延和带宽限制，供丢包测试使用（需要 root 和 /dev/net/tun）
+
+用法: impaired_link.py <网卡名> <本机地址> <丢包率 0~1> <单向时延 ms> <带宽 Mbps> <随机种子>
+
+网卡地址为 <本机地址>/16（如 10.77.0.1/16）。发往 x.y.1.1 / x.y.1.2 的包在链路上经过丢包、排队和时延后，
+源地址改为另一端（x.y.1.2 / x.y.1.1）、目的地址改为本机，重新送回内核：
+连接 x.y.1.2 的一方看到对端是 x.y.1.2，监听本机地址的一方看到对端是 x.y.1.1，
+两个方向的每个包（含 TCP 的 ACK、NACK）都经过这条链路。内核的 TCP 原样工作，丢包后按自己的机制重传。
+网卡配置好后输出一行 ready。
+"""
+import fcntl
+import heapq
+import os
+import random
+import select
+import socket
+import struct
+import sys
+import time
+
+TUNSETIFF = 0x400454ca
+IFF_TUN, IFF_NO_PI = 0x0001, 0x1000
+SIOCSIFADDR, SIOCSIFNETMASK, SIOCGIFFLAGS, SIOCSIFFLAGS = 0x8916, 0x891c, 0x8913, 0x8914
+IFF_UP, IFF_RUNNING = 0x1, 0x40
+
+
+def ifreq_addr(name, addr):
+    return struct.pack('16sH2s4s8s', name, socket.AF_INET, b'\0\0', socket.inet_aton(addr), b'\0' * 8)
+
+
+def checksum(data):
+    """反码和校验：16 位字的反码和等于整个数按大端解释后对 0xFFFF 取模"""
+    if len(data) % 2:
+        data += b'\0'
+    total = int.from_bytes(data, 'big') % 0xFFFF
+    if total == 0 and any(data):
+        total = 0xFFFF
+    return ~total & 0xFFFF
+
+
+def rewrite(packet, prefix, local):
+    """(本机 -> 对端 x) 改写为 (对端 3-x -> 本机)，重算 IP 和 TCP/UDP 校验和"""
+    p = bytearray(packet)
+    p[12:16] = prefix + bytes([3 - p[19]])
+    p[16:20] = local
+    ihl = (p[0] & 0x0F) * 4
+    p[10:12] = b'\0\0'
+    p[10:12] = checksum(bytes(p[:ihl])).to_bytes(2, 'big')
+    proto = p[9]
+    offset = {6: 16, 17: 6}.get(proto)
+    fragment_offset = struct.unpack('!H', p[6:8])[0] & 0x1FFF
+    if offset is not None and fragment_offset == 0:
+        segment = p[ihl:]
+        segment[offset:offset + 2] = b'\0\0'
+        pseudo = bytes(p[12:20]) + struct.pack('!BBH', 0, proto, len(segment))
+        value = checksum(pseudo + bytes(segment))
+        if proto == 17 and value == 0:
+            value = 0xFFFF
+        segment[offset:offset + 2] = value.to_bytes(2, 'big')
+        p[ihl:] = segment
+    return bytes(p)
+
+
+def main():
+    name = sys.argv[1].encode()
+    local_addr = sys.argv[2]
+    loss, delay, rate = float(sys.argv[3]), float(sys.argv[4]) / 1000, float(sys.argv[5]) * 1e6
+    rnd = random.Random(int(sys.argv[6]))
+
+    fd = os.open('/dev/net/tun', os.O_RDWR)
+    fcntl.ioctl(fd, TUNSETIFF, struct.pack('16sH', name, IFF_TUN | IFF_NO_PI))
+    s = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+    fcntl.ioctl(s, SIOCSIFADDR, ifreq_addr(name, local_addr))
+    fcntl.ioctl(s, SIOCSIFNETMASK, ifreq_addr(name, '255.255.0.0'))
+    flags = struct.unpack('16sH', fcntl.ioctl(s, SIOCGIFFLAGS, struct.pack('16sH', name, 0))[:18])[1]
+    fcntl.ioctl(s, SIOCSIFFLAGS, struct.pack('16sH', name, flags | IFF_UP | IFF_RUNNING))
+    print('ready', flush=True)
+
+    local = socket.inet_aton(local_addr)
+    prefix = local[:2] + b'\x01'
+    # 每个方向（按对端区分）各自排队：链路空闲时刻
+    link_free = {}
+    queue = []
+    order = 0
+    while True:
+        timeout = max(0.0, queue[0][0] - time.monotonic()) if queue else 0.5
+        readable, _, _ = select.select([fd], [], [], timeout)
+        if readable:
+            packet = os.read(fd, 65535)
+            now = time.monotonic()
+            if (len(packet) >= 20 and packet[0] >> 4 == 4 and packet[12:16] == local
+                    and packet[16:19] == prefix and packet[19] in (1, 2) and rnd.random() >= loss):
+                peer = packet[19]
+                link_free[peer] = max(now, link_free.get(peer, 0.0)) + len(packet) * 8 / rate
+                order += 1
+                heapq.heappush(queue, (link_free[peer] + delay, order, packet))
+        now = time.monotonic()
+        while queue and queue[0][0] <= now:
+            os.write(fd, rewrite(heapq.heappop(queue)[2], prefix, local))
+
+
+if __name__ == '__main__':
+    try:
+        main()
+    except KeyboardInterrupt:
+        pass
@@ -108,4 +108,7 @@ dependencies {
     
     // 日志
     implementation("com.jakewharton.timber:timber:5.0.1")
+    
+    // 单元测试
+    testImplementation("junit:junit:4.13.2")
 }
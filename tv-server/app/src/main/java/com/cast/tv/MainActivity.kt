@@ -89,7 +89,9 @@ class MainActivity : ComponentActivity() {
         
         // 用于传递 Surface 给 Service
         var sharedSurface: android.view.Surface? = null
-        var onVideoFrameReceived: ((ByteArray, Long) -> Unit)? = null
+        var onVideoFrameReceived: ((VideoDecoder.VideoFrame) -> Unit)? = null
+        // 供 Service 定期取解码统计回报给发送端
+        var decoderStatsProvider: (() -> VideoDecoder.Stats?)? = null
     }
     
     enum class ConnectionStatus {
@@ -109,9 +111,10 @@ class MainActivity : ComponentActivity() {
         Timber.d("本机 IP 地址：$serverIp")
         
         // 设置视频帧接收回调
-        onVideoFrameReceived = { data, timestamp ->
-            videoDecoder?.decodeFrame(data, timestamp)
+        onVideoFrameReceived = { frame ->
+            videoDecoder?.decodeFrame(frame)
         }
+        decoderStatsProvider = { videoDecoder?.takeStats() }
         
         // 监听连接状态
         setupConnectionStateListener()
@@ -124,8 +127,12 @@ class MainActivity : ComponentActivity() {
                         VideoSurface(
                             onSurfaceCreated = { surface ->
                                 Timber.d("Surface 已创建，初始化解码器")
-                                videoDecoder = VideoDecoder(surface).apply {
-                                    initialize()
+                                // Surface 往往在连接建立之后才创建：按当前连接的分辨率和编码器配置初始化
+                                val state = CastServerService.connectionState.value
+                                videoDecoder = if (state is CastServerService.ConnectionState.Connected) {
+                                    createDecoder(surface, state)
+                                } else {
+                                    createDecoder(surface, null)
                                 }
                                 sharedSurface = surface
                             },
@@ -189,6 +196,7 @@ class MainActivity : ComponentActivity() {
         videoDecoder = null
         sharedSurface = null
         onVideoFrameReceived = null
+        decoderStatsProvider = null
     }
     
     override fun onBackPressed() {
@@ -212,13 +220,16 @@ class MainActivity : ComponentActivity() {
                         showVideo = true
                         Timber.d("设备已连接：${state.deviceName}，分辨率：${state.width}x${state.height}，切换到视频显示")
                         
-                        // 根据连接的分辨率重新初始化解码器
-                        sharedSurface?.let { surface ->
-                            videoDecoder?.release()
-                            videoDecoder = VideoDecoder(surface).apply {
-                                initialize(state.width, state.height)
+                        // 当前解码器可以直接处理新分辨率（自适应播放）且编码器配置未变时不重建，避免黑屏
+                        if (videoDecoder?.canAdaptTo(state.width, state.height, state.codecConfig) == true) {
+                            Timber.d("解码器沿用：${state.width}x${state.height}")
+                        } else {
+                            // 根据连接的分辨率和编码器配置重新初始化解码器
+                            sharedSurface?.let { surface ->
+                                videoDecoder?.release()
+                                videoDecoder = createDecoder(surface, state)
+                                Timber.d("解码器已重新初始化：${state.width}x${state.height}")
                             }
-                            Timber.d("解码器已重新初始化：${state.width}x${state.height}")
                         }
                     }
                     is CastServerService.ConnectionState.Disconnected -> {
@@ -236,6 +247,26 @@ class MainActivity : ComponentActivity() {
         }
     }
     
+    /**
+     * 创建并初始化解码器
+     *
+     * @param state 当前连接，null 表示尚未连接（使用默认分辨率，等待流内配置）
+     */
+    private fun createDecoder(
+        surface: android.view.Surface,
+        state: CastServerService.ConnectionState.Connected?
+    ): VideoDecoder {
+        return VideoDecoder(surface).apply {
+            onKeyFrameNeeded = { CastServerService.requestKeyFrame() }
+            onFrameTiming = { CastServerService.reportFrameTiming(it) }
+            if (state != null) {
+                initialize(state.width, state.height, state.codecConfig)
+            } else {
+                initialize()
+            }
+        }
+    }
+    
     /**
      * 获取本机 IP 地址
      */
@@ -3,6 +3,7 @@ package com.cast.tv.decoder
 import android.media.MediaCodec
 import android.media.MediaCodecInfo
 import android.media.MediaFormat
+import android.os.SystemClock
 import android.view.Surface
 import kotlinx.coroutines.*
 import timber.log.Timber
@@ -11,7 +12,9 @@ import java.nio.ByteBuffer
 /**
  * 视频解码器
  * 
- * 使用Android MediaCodec硬件解码H.264视频流
+ * 使用Android MediaCodec硬件解码H.264视频流。
+ * 加入投屏时发送端会从 GOP 缓存补发当前 GOP（补发帧），补发帧只为重建参考帧：
+ * 不计入解码队列长度、解码后不上屏，整段 GOP 尽快解码完，之后的帧直接接上画面。
  */
 class VideoDecoder(private val surface: Surface) {
     
@@ -19,32 +22,164 @@ class VideoDecoder(private val surface: Surface) {
         const val MIME_TYPE = "video/avc"  // H.264
         const val DEFAULT_WIDTH = 1920
         const val DEFAULT_HEIGHT = 1080
+        // 仍在等待关键帧时，重复请求的最短间隔
+        const val KEY_FRAME_RETRY_MS = 1000L
+        // 最多跟踪多少帧的时间（解码器丢弃的帧不会上屏，超出后淘汰最旧的）
+        private const val MAX_TRACKED_TIMINGS = 64
+        
+        /**
+         * 检查 Annex B 数据中是否包含 IDR 切片（NAL 类型 5）
+         *
+         * x264 在 IDR 前会先输出 SPS/PPS，所以不能只看第一个 NAL
+         */
+        fun containsKeyFrame(data: ByteArray): Boolean {
+            var i = 0
+            while (i + 3 < data.size) {
+                if (data[i].toInt() == 0 && data[i + 1].toInt() == 0 && data[i + 2].toInt() == 1) {
+                    if ((data[i + 3].toInt() and 0x1F) == 5) return true
+                    i += 3
+                } else {
+                    i++
+                }
+            }
+            return false
+        }
+    }
+    
+    /**
+     * 从 Annex B 数据中取出第一个指定类型的 NAL 单元（带 4 字节起始码）
+     */
+    private fun extractNal(data: ByteArray, nalType: Int): ByteArray? {
+        var start = -1
+        var i = 0
+        while (i + 3 < data.size) {
+            if (data[i].toInt() == 0 && data[i + 1].toInt() == 0 && data[i + 2].toInt() == 1) {
+                if (start >= 0) {
+                    // 下一个起始码之前的尾随 0 属于 4 字节起始码
+                    var end = i
+                    while (end > start && data[end - 1].toInt() == 0) end--
+                    return byteArrayOf(0, 0, 0, 1) + data.copyOfRange(start, end)
+                }
+                if ((data[i + 3].toInt() and 0x1F) == nalType) {
+                    start = i + 3
+                }
+                i += 3
+            } else {
+                i++
+            }
+        }
+        return if (start >= 0) byteArrayOf(0, 0, 0, 1) + data.copyOfRange(start, data.size) else null
     }
     
+    /**
+     * 需要发送端立即发送关键帧时回调（丢帧或解码出错后参考链已断）
+     */
+    var onKeyFrameNeeded: (() -> Unit)? = null
+    
+    /**
+     * 每帧上屏时回调该帧的时间（只统计带接收时间的 v2 视频帧）
+     */
+    var onFrameTiming: ((FrameTiming) -> Unit)? = null
+    
     private var decoder: MediaCodec? = null
     private var width = DEFAULT_WIDTH
     private var height = DEFAULT_HEIGHT
     
+    // 自适应播放：支持时流内分辨率变化无需重建解码器
+    private var adaptivePlayback = false
+    private var maxWidth = 0
+    private var maxHeight = 0
+    // 创建解码器时使用的 SPS/PPS（null 表示等待流内配置）
+    private var codecConfig: ByteArray? = null
+    
     private val decoderScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
     private var isRunning = false
     
     // 帧队列
     private val frameQueue = ArrayDeque<VideoFrame>()
     private val queueLock = Object()
-    private val MAX_QUEUE_SIZE = 5  // 最大队列大小，防止延迟过大
+    private val MAX_QUEUE_SIZE = 5  // 最大队列大小（不含补发帧），防止延迟过大
+    
+    // 丢帧后参考链断裂：在下一个关键帧到来前丢弃非关键帧
+    private var awaitingKeyFrame = false
+    private var keyFrameRequestedAt = 0L
+    private var lastKeyFrameRequestAt = 0L
+    
+    // 已送入解码器、尚未上屏的帧：显示时间戳（微秒）-> [接收时间, 解码完成时间, 送入解码器时间]
+    private val pendingTimings = object : LinkedHashMap<Long, LongArray>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, LongArray>): Boolean =
+            size > MAX_TRACKED_TIMINGS
+    }
+    private val timingLock = Object()
+    // 已送入解码器的补发帧的显示时间戳，输出时不上屏（受 timingLock 保护）
+    private val primedTimestamps = HashSet<Long>()
+    
+    // 统计计数，由 takeStats() 取出后清零（帧数和峰值受 queueLock 保护，解码相关受 timingLock 保护）
+    private var statFramesIn = 0
+    private var statDropped = 0
+    private var statMaxQueue = 0
+    private var statDecoded = 0
+    private var statRendered = 0
+    private var statDecodeSamples = 0
+    private var statDecodeNanosTotal = 0L
+    private var statDecodeNanosMax = 0L
     
     data class VideoFrame(
         val data: ByteArray,
         val timestamp: Long,
-        val isKeyFrame: Boolean
+        val isKeyFrame: Boolean,
+        // 不被其他帧参考，丢弃后不影响后续解码
+        val isDroppable: Boolean = false,
+        // 加入时补发的帧，只解码不上屏，不受队列长度限制
+        val isPrimed: Boolean = false,
+        // 接收完成时间（System.nanoTime()），0 表示不统计
+        val receivedAtNanos: Long = 0
+    )
+    
+    /**
+     * 一段时间内的解码统计
+     *
+     * @param framesIn 送入解码队列的帧数
+     * @param decoded 解码输出的帧数
+     * @param rendered 上屏的帧数
+     * @param dropped 因队列溢出或等待关键帧丢弃的帧数
+     * @param maxQueueDepth 期间解码队列的最大深度
+     * @param avgDecodeMicros 平均解码耗时（送入解码器到输出）
+     * @param maxDecodeMicros 最大解码耗时
+     */
+    data class Stats(
+        val framesIn: Int,
+        val decoded: Int,
+        val rendered: Int,
+        val dropped: Int,
+        val maxQueueDepth: Int,
+        val avgDecodeMicros: Int,
+        val maxDecodeMicros: Int
+    )
+    
+    /**
+     * 一帧的时间：采集时间为发送端时钟，其余为本机 System.nanoTime()
+     */
+    data class FrameTiming(
+        val captureNanos: Long,
+        val receivedAtNanos: Long,
+        val decodedAtNanos: Long,
+        val renderedAtNanos: Long
     )
     
     /**
      * 初始化解码器
+     *
+     * @param codecConfig 握手时收到的 SPS/PPS（Annex B），提供时在第一个视频包之前就完成解码器配置
      */
-    fun initialize(videoWidth: Int = DEFAULT_WIDTH, videoHeight: Int = DEFAULT_HEIGHT) {
+    fun initialize(
+        videoWidth: Int = DEFAULT_WIDTH,
+        videoHeight: Int = DEFAULT_HEIGHT,
+        codecConfig: ByteArray? = null
+    ) {
         width = videoWidth
         height = videoHeight
+        this.codecConfig = codecConfig
         
         try {
             // 创建解码器
@@ -57,8 +192,36 @@ class VideoDecoder(private val surface: Surface) {
             format.setInteger(MediaFormat.KEY_FRAME_RATE, 30)
             format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 2)
             
+            // 编码器配置：csd-0 = SPS，csd-1 = PPS（均带起始码）
+            codecConfig?.let { config ->
+                val sps = extractNal(config, 7)
+                val pps = extractNal(config, 8)
+                if (sps != null && pps != null) {
+                    format.setByteBuffer("csd-0", ByteBuffer.wrap(sps))
+                    format.setByteBuffer("csd-1", ByteBuffer.wrap(pps))
+                } else {
+                    Timber.w("编码器配置中缺少 SPS/PPS，等待流内配置")
+                }
+            }
+            
+            // 开启自适应播放，允许流内切换分辨率（不超过最大尺寸）
+            val capabilities = decoder!!.codecInfo.getCapabilitiesForType(MIME_TYPE)
+            adaptivePlayback = capabilities.isFeatureSupported(
+                MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback)
+            if (adaptivePlayback) {
+                val videoCapabilities = capabilities.videoCapabilities
+                maxWidth = maxOf(width, minOf(3840, videoCapabilities.supportedWidths.upper))
+                maxHeight = maxOf(height, minOf(2160, videoCapabilities.supportedHeights.upper))
+                format.setInteger(MediaFormat.KEY_MAX_WIDTH, maxWidth)
+                format.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxHeight)
+            }
+            
             // 配置解码器
             decoder?.configure(format, surface, null, 0)
+            // 上屏时间由系统给出（System.nanoTime() 时基），比 releaseOutputBuffer 的调用时间更接近实际显示
+            decoder?.setOnFrameRenderedListener({ _, presentationTimeUs, nanoTime ->
+                onFrameRendered(presentationTimeUs, nanoTime)
+            }, null)
             decoder?.start()
             
             isRunning = true
@@ -68,7 +231,8 @@ class VideoDecoder(private val surface: Surface) {
                 decodeLoop()
             }
             
-            Timber.d("视频解码器已初始化: ${width}x$height")
+            Timber.d("视频解码器已初始化: ${width}x$height，自适应播放: $adaptivePlayback，" +
+                "预配置 SPS/PPS: ${codecConfig != null}")
             
         } catch (e: Exception) {
             Timber.e(e, "初始化解码器失败")
@@ -76,6 +240,18 @@ class VideoDecoder(private val surface: Surface) {
         }
     }
     
+    /**
+     * 当前解码器能否不重建直接解码指定分辨率、编码器配置的流
+     *
+     * 编码器配置（SPS/PPS）变化时需要重建：csd 只在 configure 时生效
+     */
+    fun canAdaptTo(videoWidth: Int, videoHeight: Int, newCodecConfig: ByteArray? = null): Boolean {
+        if (!isRunning) return false
+        if (newCodecConfig != null && !newCodecConfig.contentEquals(codecConfig)) return false
+        if (videoWidth == width && videoHeight == height) return true
+        return adaptivePlayback && videoWidth <= maxWidth && videoHeight <= maxHeight
+    }
+    
     /**
      * 释放解码器
      */
@@ -101,31 +277,105 @@ class VideoDecoder(private val surface: Surface) {
     }
     
     /**
-     * 解码视频帧
+     * 解码视频帧（v1 格式，帧类型由数据判断）
      */
     fun decodeFrame(data: ByteArray, timestamp: Long) {
+        decodeFrame(VideoFrame(data, timestamp, containsKeyFrame(data)))
+    }
+    
+    /**
+     * 解码视频帧
+     */
+    fun decodeFrame(frame: VideoFrame) {
         if (!isRunning) return
         
-        // 判断是否为关键帧 (H.264 NAL单元类型5)
-        val isKeyFrame = data.size > 4 && 
-            ((data[4].toInt() and 0x1F) == 5)
+        val isKeyFrame = frame.isKeyFrame
         
         synchronized(queueLock) {
+            statFramesIn++
+            if (isKeyFrame && awaitingKeyFrame) {
+                awaitingKeyFrame = false
+                Timber.d("收到关键帧，恢复耗时: ${SystemClock.elapsedRealtime() - keyFrameRequestedAt}ms")
+            }
+            if (awaitingKeyFrame) {
+                // 参考帧已丢失，解码只会花屏，等待关键帧
+                statDropped++
+                requestKeyFrameLocked("等待关键帧")
+                return
+            }
+            
+            if (frame.isPrimed) {
+                // 不被参考的补发帧不上屏，解码也没有意义
+                if (!frame.isDroppable) {
+                    frameQueue.addLast(frame)
+                    queueLock.notify()
+                }
+                return
+            }
+            
+            // 队列已满时优先丢弃可丢弃帧，不会破坏参考链
+            if (liveFramesLocked() >= MAX_QUEUE_SIZE) {
+                if (frame.isDroppable) {
+                    statDropped++
+                    return
+                }
+                val droppable = frameQueue.indexOfFirst { it.isDroppable }
+                if (droppable >= 0) {
+                    frameQueue.removeAt(droppable)
+                    statDropped++
+                }
+            }
+            
             // 如果队列已满，移除最旧的帧（如果是关键帧则保留）
-            while (frameQueue.size >= MAX_QUEUE_SIZE) {
-                val removed = frameQueue.removeFirst()
+            while (liveFramesLocked() >= MAX_QUEUE_SIZE) {
+                val oldest = frameQueue.indexOfFirst { !it.isPrimed }
+                val removed = frameQueue.removeAt(oldest)
+                statDropped++
                 if (removed.isKeyFrame && !isKeyFrame) {
                     // 如果移除的是关键帧而新来的不是，保留关键帧
-                    frameQueue.addFirst(removed)
+                    frameQueue.add(oldest, removed)
+                    requestKeyFrameLocked("队列已满，丢弃新帧")
                     return  // 丢弃新帧
                 }
+                if (!isKeyFrame) {
+                    // 新帧参考了被丢弃的旧帧，同样无法解码
+                    requestKeyFrameLocked("队列已满，丢弃旧帧")
+                    statDropped++
+                    return
+                }
             }
             
-            frameQueue.addLast(VideoFrame(data, timestamp, isKeyFrame))
+            frameQueue.addLast(frame)
+            statMaxQueue = maxOf(statMaxQueue, liveFramesLocked())
             queueLock.notify()
         }
     }
     
+    /**
+     * 队列中要上屏的帧数，补发帧不计入（需持有 queueLock）
+     */
+    private fun liveFramesLocked(): Int = frameQueue.count { !it.isPrimed }
+    
+    /**
+     * 丢帧后进入等待关键帧状态，并向发送端请求关键帧（需持有 queueLock）
+     */
+    private fun requestKeyFrameLocked(reason: String) {
+        val now = SystemClock.elapsedRealtime()
+        if (!awaitingKeyFrame) {
+            awaitingKeyFrame = true
+            keyFrameRequestedAt = now
+            // 已排队的非关键帧同样依赖丢失的参考帧
+            val queued = frameQueue.size
+            frameQueue.removeAll { !it.isKeyFrame }
+            statDropped += queued - frameQueue.size
+        } else if (now - lastKeyFrameRequestAt < KEY_FRAME_RETRY_MS) {
+            return
+        }
+        lastKeyFrameRequestAt = now
+        Timber.w("请求关键帧: $reason")
+        onKeyFrameNeeded?.invoke()
+    }
+    
     /**
      * 解码循环
      */
@@ -143,6 +393,13 @@ class VideoDecoder(private val surface: Surface) {
                     val frame = getFrameFromQueue()
                     
                     if (frame != null) {
+                        synchronized(timingLock) {
+                            if (frame.isPrimed) {
+                                primedTimestamps.add(frame.timestamp)
+                            } else {
+                                pendingTimings[frame.timestamp] = longArrayOf(frame.receivedAtNanos, 0L, System.nanoTime())
+                            }
+                        }
                         val inputBuffer = decoder.getInputBuffer(inputBufferIndex)
                         inputBuffer?.clear()
                         inputBuffer?.put(frame.data)
@@ -171,8 +428,19 @@ class VideoDecoder(private val surface: Surface) {
                 
                 when {
                     outputBufferIndex >= 0 -> {
-                        // 渲染到Surface
-                        decoder.releaseOutputBuffer(outputBufferIndex, true)
+                        val render = synchronized(timingLock) {
+                            statDecoded++
+                            pendingTimings[bufferInfo.presentationTimeUs]?.let { times ->
+                                times[1] = System.nanoTime()
+                                val decodeNanos = times[1] - times[2]
+                                statDecodeSamples++
+                                statDecodeNanosTotal += decodeNanos
+                                statDecodeNanosMax = maxOf(statDecodeNanosMax, decodeNanos)
+                            }
+                            !primedTimestamps.remove(bufferInfo.presentationTimeUs)
+                        }
+                        // 渲染到Surface（补发帧只更新参考帧，不上屏）
+                        decoder.releaseOutputBuffer(outputBufferIndex, render)
                     }
                     outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED -> {
                         val format = decoder.outputFormat
@@ -183,6 +451,9 @@ class VideoDecoder(private val surface: Surface) {
             } catch (e: Exception) {
                 if (isRunning) {
                     Timber.e(e, "解码出错")
+                    synchronized(queueLock) {
+                        requestKeyFrameLocked("解码出错")
+                    }
                 }
             }
             
@@ -190,6 +461,59 @@ class VideoDecoder(private val surface: Surface) {
         }
     }
     
+    /**
+     * 帧已上屏：取出该帧的接收和解码时间，回报完整的帧时间
+     */
+    private fun onFrameRendered(presentationTimeUs: Long, renderedAtNanos: Long) {
+        val times = synchronized(timingLock) {
+            statRendered++
+            pendingTimings.remove(presentationTimeUs)
+        } ?: return
+        // 没有接收时间的帧（v1 视频帧）只计数，不回报
+        if (times[0] == 0L || times[1] == 0L) return
+        onFrameTiming?.invoke(FrameTiming(
+            captureNanos = presentationTimeUs * 1000,
+            receivedAtNanos = times[0],
+            decodedAtNanos = times[1],
+            renderedAtNanos = renderedAtNanos
+        ))
+    }
+    
+    /**
+     * 取出自上次调用以来的解码统计并清零
+     */
+    fun takeStats(): Stats {
+        var framesIn = 0
+        var dropped = 0
+        var maxQueue = 0
+        synchronized(queueLock) {
+            framesIn = statFramesIn
+            dropped = statDropped
+            maxQueue = maxOf(statMaxQueue, frameQueue.size)
+            statFramesIn = 0
+            statDropped = 0
+            statMaxQueue = 0
+        }
+        synchronized(timingLock) {
+            val average = if (statDecodeSamples > 0) statDecodeNanosTotal / statDecodeSamples / 1000 else 0L
+            val stats = Stats(
+                framesIn = framesIn,
+                decoded = statDecoded,
+                rendered = statRendered,
+                dropped = dropped,
+                maxQueueDepth = maxQueue,
+                avgDecodeMicros = average.toInt(),
+                maxDecodeMicros = (statDecodeNanosMax / 1000).toInt()
+            )
+            statDecoded = 0
+            statRendered = 0
+            statDecodeSamples = 0
+            statDecodeNanosTotal = 0L
+            statDecodeNanosMax = 0L
+            return stats
+        }
+    }
+    
     /**
      * 从队列获取帧
      */
@@ -9,14 +9,20 @@ import android.content.Context
 import android.content.Intent
 import android.os.Build
 import android.os.IBinder
+import android.os.SystemClock
 import androidx.core.app.NotificationCompat
 import com.cast.tv.MainActivity
 import com.cast.tv.R
+import com.cast.tv.decoder.VideoDecoder
+import io.netty.bootstrap.Bootstrap
 import io.netty.bootstrap.ServerBootstrap
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
 import io.netty.channel.*
 import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.DatagramPacket
 import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioDatagramChannel
 import io.netty.channel.socket.nio.NioServerSocketChannel
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder
 import io.netty.handler.codec.LengthFieldPrepender
@@ -24,11 +30,16 @@ import kotlinx.coroutines.*
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import timber.log.Timber
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
 
 /**
  * 投屏接收服务
  * 
- * 在后台运行，监听TCP连接，接收并解码视频流
+ * 在后台运行，监听TCP连接，接收并解码视频流；
+ * 发送端请求时视频改走同一端口的 UDP（见 [RtpFrameAssembler]），控制消息仍走 TCP
  */
 class CastServerService : Service() {
     
@@ -36,11 +47,71 @@ class CastServerService : Service() {
         const val PORT = 8888
         const val NOTIFICATION_CHANNEL_ID = "cast_server_channel"
         const val NOTIFICATION_ID = 1
+        // 支持的最高协议版本：3 = v2 视频帧；4 = 大帧分片；5 = 回报帧时间；6 = 定期回报接收统计；
+        // 7 = 备用连接（握手带标志，激活/停用消息）；8 = UDP 视频传输（握手带会话标识，响应附带 UDP 端口）；
+        // 9 = 握手后的带宽探测（回报探测包的到达间隔）；10 = 补发帧标志（只解码不上屏）
+        const val PROTOCOL_VERSION = 10
+        // 回报帧时间所需的发送端协议版本
+        private const val VERSION_FRAME_TIMING = 5
+        // 回报接收统计所需的发送端协议版本
+        private const val VERSION_RECEIVER_STATS = 6
+        // 握手携带标志所需的发送端协议版本
+        private const val VERSION_STANDBY = 7
+        // 握手标志：备用连接，只回响应，不切换到投屏画面
+        private const val HANDSHAKE_FLAG_STANDBY = 0x01
+        // 握手标志：视频走 UDP，标志后附 4 字节会话标识
+        private const val HANDSHAKE_FLAG_UDP = 0x02
+        // 视频走 UDP 所需的发送端协议版本
+        private const val VERSION_UDP = 8
+        // UDP 接收缓冲区：容纳关键帧的突发
+        private const val UDP_RECEIVE_BUFFER = 2 * 1024 * 1024
+        // 检查 UDP 缺包、到期帧的间隔（毫秒）
+        private const val UDP_POLL_INTERVAL_MS = 10L
+        // 接收统计回报间隔（毫秒）
+        private const val STATS_INTERVAL_MS = 1000L
         
         // 连接状态
         private val _connectionState = MutableStateFlow<ConnectionState>(ConnectionState.Disconnected)
         val connectionState: StateFlow<ConnectionState> = _connectionState
         
+        // 当前投屏连接，用于向发送端回发控制消息
+        @Volatile
+        private var activeChannel: Channel? = null
+        // 当前发送端的协议版本（握手时给出）
+        @Volatile
+        private var peerVersion = 0
+        
+        /**
+         * 请求发送端立即发送IDR关键帧（解码器丢帧或失步时调用）
+         *
+         * 发送端会合并突发的请求并限制频率，这里不需要节流
+         */
+        fun requestKeyFrame() {
+            val channel = activeChannel ?: return
+            if (!channel.isActive) return
+            val request = channel.alloc().buffer(1)
+            request.writeByte(0x04)
+            channel.writeAndFlush(request)
+        }
+        
+        /**
+         * 回报一帧的时间: [0x07][8字节采集时间][8字节接收][8字节解码完成][8字节上屏]
+         *
+         * 发送端用心跳估计的时钟偏差换算后得到端到端延迟；旧版发送端不认识该消息，不发送
+         */
+        fun reportFrameTiming(timing: VideoDecoder.FrameTiming) {
+            if (peerVersion < VERSION_FRAME_TIMING) return
+            val channel = activeChannel ?: return
+            if (!channel.isActive) return
+            val report = channel.alloc().buffer(33)
+            report.writeByte(0x07)
+            report.writeLong(timing.captureNanos)
+            report.writeLong(timing.receivedAtNanos)
+            report.writeLong(timing.decodedAtNanos)
+            report.writeLong(timing.renderedAtNanos)
+            channel.writeAndFlush(report)
+        }
+        
         fun start(context: Context) {
             val intent = Intent(context, CastServerService::class.java)
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -62,7 +133,9 @@ class CastServerService : Service() {
             val deviceName: String,
             val width: Int = 1920,
             val height: Int = 1080,
-            val fps: Int = 30
+            val fps: Int = 30,
+            // 编码器配置（SPS/PPS，Annex B），旧版发送端为 null
+            val codecConfig: ByteArray? = null
         ) : ConnectionState()
         data class Error(val message: String) : ConnectionState()
     }
@@ -71,6 +144,10 @@ class CastServerService : Service() {
     private var bossGroup: EventLoopGroup? = null
     private var workerGroup: EventLoopGroup? = null
     private var serverChannel: Channel? = null
+    private var udpGroup: EventLoopGroup? = null
+    private var udpChannel: Channel? = null
+    // UDP 投屏会话：会话标识 → 正在投屏的连接及其重组状态（投屏连接激活时登记，断开或停用时移除）
+    private val udpSessions = ConcurrentHashMap<Int, UdpSession>()
     
     override fun onCreate() {
         super.onCreate()
@@ -128,6 +205,7 @@ class CastServerService : Service() {
                 // 绑定端口
                 val future = bootstrap.bind(PORT).sync()
                 serverChannel = future.channel()
+                startUdpReceiver()
                 
                 Timber.d("投屏服务器已启动，端口: $PORT")
                 
@@ -143,17 +221,73 @@ class CastServerService : Service() {
         }
     }
     
+    /**
+     * 在同一端口上接收 UDP 视频；失败时只记录日志，握手时不提供 UDP，发送端继续用 TCP
+     */
+    private fun startUdpReceiver() {
+        try {
+            val group = NioEventLoopGroup(1)
+            udpGroup = group
+            val channel = Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel::class.java)
+                .option(ChannelOption.SO_RCVBUF, UDP_RECEIVE_BUFFER)
+                .handler(RtpServerHandler())
+                .bind(PORT).sync().channel()
+            udpChannel = channel
+            channel.eventLoop().scheduleAtFixedRate({
+                val now = SystemClock.elapsedRealtime()
+                udpSessions.values.forEach { flushUdpSession(channel, it, now) }
+            }, UDP_POLL_INTERVAL_MS, UDP_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)
+            Timber.d("UDP 视频接收已启动，端口: $PORT")
+        } catch (e: Exception) {
+            Timber.e(e, "UDP 视频接收启动失败，只使用 TCP")
+            udpChannel = null
+        }
+    }
+    
+    /**
+     * 交付一个 UDP 会话已排好序的帧（在投屏连接的事件循环上按 v2 视频帧处理），并发出重传请求
+     */
+    private fun flushUdpSession(channel: Channel, session: UdpSession, now: Long) {
+        val assembler = session.assembler
+        val frames = assembler.drain(now)
+        val skipped = (assembler.framesSkipped - session.reportedSkipped).toInt()
+        session.reportedSkipped = assembler.framesSkipped
+        if (frames.isNotEmpty() || skipped > 0) {
+            session.ctx.executor().execute { session.onFrames(frames, skipped) }
+        }
+        val sender = session.sender ?: return
+        for (nack in assembler.nacks(now)) {
+            val request = channel.alloc().buffer(16 + nack.indices.size * 2)
+            request.writeByte(0x80)
+            request.writeByte(RtpFrameAssembler.PT_NACK)
+            request.writeShort(0)
+            request.writeInt(nack.frameSequence)
+            request.writeInt(session.id)
+            request.writeShort(nack.indices.size)
+            nack.indices.forEach { request.writeShort(it) }
+            channel.write(DatagramPacket(request, sender))
+        }
+        channel.flush()
+    }
+    
     /**
      * 停止服务器
      */
     private fun stopServer() {
         serverChannel?.close()?.syncUninterruptibly()
+        udpChannel?.close()?.syncUninterruptibly()
         bossGroup?.shutdownGracefully()
         workerGroup?.shutdownGracefully()
+        udpGroup?.shutdownGracefully()
+        udpSessions.clear()
         
         serverChannel = null
+        udpChannel = null
         bossGroup = null
         workerGroup = null
+        udpGroup = null
         
         _connectionState.value = ConnectionState.Disconnected
         
@@ -198,12 +332,69 @@ class CastServerService : Service() {
             .build()
     }
     
+    /**
+     * 一个经 UDP 接收视频的投屏连接
+     *
+     * @param onFrames 在投屏连接的事件循环上处理排好序的帧和期间跳过的帧数
+     */
+    private class UdpSession(
+        val id: Int,
+        val ctx: ChannelHandlerContext,
+        val onFrames: (List<ByteArray>, Int) -> Unit
+    ) {
+        // 以下只在 UDP 事件循环线程上使用
+        val assembler = RtpFrameAssembler()
+        var sender: InetSocketAddress? = null
+        var reportedSkipped = 0L
+    }
+    
+    /**
+     * UDP 视频处理器：按会话标识找到投屏连接，重组后交付
+     */
+    private inner class RtpServerHandler : SimpleChannelInboundHandler<DatagramPacket>() {
+        
+        override fun channelRead0(ctx: ChannelHandlerContext, packet: DatagramPacket) {
+            val msg = packet.content()
+            if (msg.readableBytes() < RtpFrameAssembler.HEADER_SIZE) return
+            val session = udpSessions[msg.getInt(msg.readerIndex() + 8)] ?: return
+            session.sender = packet.sender()
+            val now = SystemClock.elapsedRealtime()
+            session.assembler.accept(msg, now)
+            flushUdpSession(ctx.channel(), session, now)
+        }
+        
+        override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
+            Timber.e(cause, "UDP 视频接收异常")
+        }
+    }
+    
     /**
      * 服务器处理器
      */
     private inner class CastServerHandler : SimpleChannelInboundHandler<ByteBuf>() {
         
         private var clientAddress: String? = null
+        // 上一个 v2 视频帧的序号，用于发现缺帧
+        private var lastSequence: Int? = null
+        // 分片帧重组
+        private val reassembler = FrameReassembler()
+        // 接收统计：完整收到的帧数、网络层丢弃的帧数（格式错误、分片不完整）
+        private var framesReceived = 0
+        private var framesDiscarded = 0
+        private var statsTask: ScheduledFuture<*>? = null
+        private var lastStatsAt = 0L
+        // 是否为正在投屏的连接（备用连接激活前、停用后为 false，收到的视频丢弃）
+        private var active = false
+        // 握手时发送端给出的协议版本，备用连接激活时使用
+        private var handshakeVersion = 0
+        // 视频走 UDP 时的会话标识（握手时给出），以及投屏期间登记的 UDP 会话
+        private var udpSessionId: Int? = null
+        private var udpSession: UdpSession? = null
+        // 进行中的带宽探测：探测标识、第一个包的到达时间、收到的包数和第一个包之后的字节数
+        private var probeId: Int? = null
+        private var probeFirstAt = 0L
+        private var probePackets = 0
+        private var probeBytes = 0L
         
         override fun channelActive(ctx: ChannelHandlerContext) {
             clientAddress = ctx.channel().remoteAddress().toString()
@@ -212,10 +403,18 @@ class CastServerService : Service() {
         
         override fun channelInactive(ctx: ChannelHandlerContext) {
             Timber.d("客户端断开: $clientAddress")
-            _connectionState.value = ConnectionState.Disconnected
+            statsTask?.cancel(false)
+            statsTask = null
+            unregisterUdp()
+            // 备用连接断开不影响正在进行的投屏
+            if (activeChannel == ctx.channel() || activeChannel == null) {
+                activeChannel = null
+                _connectionState.value = ConnectionState.Disconnected
+            }
         }
         
         override fun channelRead0(ctx: ChannelHandlerContext, msg: ByteBuf) {
+            val receivedAt = System.nanoTime()
             if (msg.readableBytes() < 1) return
             
             val type = msg.readByte()
@@ -223,14 +422,22 @@ class CastServerService : Service() {
             when (type.toInt()) {
                 0x00 -> handleHandshake(ctx, msg)  // 握手消息
                 0x01 -> handleVideoFrame(msg)      // 视频帧
-                0x02 -> handleHeartbeat(ctx)       // 心跳
+                0x02 -> handleHeartbeat(ctx, msg, receivedAt)  // 心跳
+                0x03 -> handleFormatChange(msg)    // 格式变更
+                0x05 -> handleVideoFrameV2(msg)    // v2 视频帧
+                0x06 -> handleVideoFragment(msg)   // v2 视频帧分片
+                0x09 -> handleActivate(ctx, msg)   // 备用连接激活
+                0x0A -> handleDeactivate(ctx)      // 停止投屏，转为备用连接
+                0x0B -> handleProbe(ctx, msg, receivedAt)  // 带宽探测
                 else -> Timber.w("未知消息类型: $type")
             }
         }
         
         override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
             Timber.e(cause, "连接异常")
-            _connectionState.value = ConnectionState.Error(cause.message ?: "连接异常")
+            if (active) {
+                _connectionState.value = ConnectionState.Error(cause.message ?: "连接异常")
+            }
             ctx.close()
         }
         
@@ -243,26 +450,152 @@ class CastServerService : Service() {
                 val width = msg.readInt()
                 val height = msg.readInt()
                 val fps = msg.readInt()
+                // 版本 2 起附带编码器配置，版本 7 起附带标志，版本 8 的 UDP 标志后附会话标识
+                val codecConfig = if (version >= 2) readCodecConfig(msg) else null
+                val flags = if (version >= VERSION_STANDBY && msg.readableBytes() >= 4) msg.readInt() else 0
+                udpSessionId = if (version >= VERSION_UDP && (flags and HANDSHAKE_FLAG_UDP) != 0
+                    && msg.readableBytes() >= 4 && udpChannel != null) msg.readInt() else null
                 
-                Timber.d("握手信息 - 版本: $version, 分辨率: ${width}x$height, 帧率: $fps")
-                
-                // 发送握手响应
+                // 发送握手响应，附带接受的协议版本（发送端据此选择帧格式），版本 8 起附带 UDP 端口（0 表示不支持）
                 val response = ctx.alloc().buffer()
                 response.writeByte(0x00)
+                response.writeInt(minOf(version, PROTOCOL_VERSION))
+                if (version >= VERSION_UDP) {
+                    response.writeInt(if (udpSessionId != null) PORT else 0)
+                }
                 ctx.writeAndFlush(response)
+                handshakeVersion = version
+                
+                if ((flags and HANDSHAKE_FLAG_STANDBY) != 0) {
+                    // 备用连接：保持连接和心跳，等发送端切换过来时再激活
+                    Timber.d("备用连接已握手: $clientAddress（版本 $version）")
+                    return
+                }
+                Timber.d("握手信息 - 版本: $version, 分辨率: ${width}x$height, 帧率: $fps, " +
+                    "编码器配置: ${codecConfig?.size ?: 0} 字节")
+                activate(ctx, width, height, fps, codecConfig)
+                
+            } catch (e: Exception) {
+                Timber.e(e, "处理握手消息失败")
+                sendError(ctx, "握手失败: ${e.message}")
+            }
+        }
+        
+        /**
+         * 开始在本连接上投屏：记为当前连接，重置帧序号和重组状态，界面切换到投屏画面
+         */
+        private fun activate(ctx: ChannelHandlerContext, width: Int, height: Int, fps: Int, codecConfig: ByteArray?) {
+            active = true
+            activeChannel = ctx.channel()
+            peerVersion = handshakeVersion
+            lastSequence = null
+            reassembler.reset()
+            registerUdp(ctx)
+            startStatsReports(ctx, handshakeVersion)
+            
+            _connectionState.value = ConnectionState.Connected(
+                deviceName = clientAddress ?: "未知设备",
+                width = width,
+                height = height,
+                fps = fps,
+                codecConfig = codecConfig
+            )
+        }
+        
+        /**
+         * 视频走 UDP 时登记新的会话（重组状态从头开始），同一会话标识之前的登记被替换
+         */
+        private fun registerUdp(ctx: ChannelHandlerContext) {
+            unregisterUdp()
+            val id = udpSessionId ?: return
+            val session = UdpSession(id, ctx) { frames, skipped ->
+                framesDiscarded += skipped
+                frames.forEach { handleVideoFrameV2(Unpooled.wrappedBuffer(it)) }
+            }
+            udpSession = session
+            udpSessions[id] = session
+            Timber.d("视频经 UDP 接收: $clientAddress")
+        }
+        
+        private fun unregisterUdp() {
+            val session = udpSession ?: return
+            udpSession = null
+            udpSessions.remove(session.id, session)
+        }
+        
+        /**
+         * 处理激活消息: [宽][高][帧率][配置长度][SPS/PPS]
+         *
+         * 发送端把投屏切换到这条备用连接，紧随其后的是关键帧
+         */
+        private fun handleActivate(ctx: ChannelHandlerContext, msg: ByteBuf) {
+            try {
+                val width = msg.readInt()
+                val height = msg.readInt()
+                val fps = msg.readInt()
+                val codecConfig = readCodecConfig(msg)
+                
+                Timber.d("备用连接激活 - 分辨率: ${width}x$height, 帧率: $fps, 编码器配置: ${codecConfig?.size ?: 0} 字节")
+                activate(ctx, width, height, fps, codecConfig)
+            } catch (e: Exception) {
+                Timber.e(e, "处理激活消息失败")
+            }
+        }
+        
+        /**
+         * 处理停用消息：发送端已切换到其他TV端，本连接转为备用连接，界面回到等待画面
+         */
+        private fun handleDeactivate(ctx: ChannelHandlerContext) {
+            Timber.d("投屏已切换到其他设备，转为备用连接: $clientAddress")
+            active = false
+            statsTask?.cancel(false)
+            statsTask = null
+            reassembler.reset()
+            unregisterUdp()
+            if (activeChannel == ctx.channel()) {
+                activeChannel = null
+                _connectionState.value = ConnectionState.Disconnected
+            }
+        }
+        
+        /**
+         * 处理格式变更消息
+         *
+         * 发送端在运行中切换了分辨率/帧率，紧随其后的是新格式的关键帧
+         */
+        private fun handleFormatChange(msg: ByteBuf) {
+            if (!active) return
+            try {
+                val width = msg.readInt()
+                val height = msg.readInt()
+                val fps = msg.readInt()
+                val codecConfig = readCodecConfig(msg)
+                
+                Timber.d("格式变更 - 分辨率: ${width}x$height, 帧率: $fps, 编码器配置: ${codecConfig?.size ?: 0} 字节")
                 
                 _connectionState.value = ConnectionState.Connected(
                     deviceName = clientAddress ?: "未知设备",
                     width = width,
                     height = height,
-                    fps = fps
+                    fps = fps,
+                    codecConfig = codecConfig
                 )
-                
             } catch (e: Exception) {
-                Timber.e(e, "处理握手消息失败")
-                sendError(ctx, "握手失败: ${e.message}")
+                Timber.e(e, "处理格式变更消息失败")
             }
         }
+                
+        /**
+         * 读取 [4字节长度][SPS/PPS] 形式的编码器配置，没有或长度非法时返回 null
+         */
+        private fun readCodecConfig(msg: ByteBuf): ByteArray? {
+            if (msg.readableBytes() < 4) return null
+            val length = msg.readInt()
+            if (length <= 0 || length > msg.readableBytes()) return null
+            val config = ByteArray(length)
+            msg.readBytes(config)
+            return config
+        }
         
         /**
          * 处理视频帧
@@ -276,13 +609,11 @@ class CastServerService : Service() {
                 Timber.d("收到视频帧，大小: ${data.size} bytes, 时间戳: $timestamp")
                 
                 // 将视频帧传递给解码器
-                val callback = MainActivity.onVideoFrameReceived
-                if (callback != null) {
-                    callback.invoke(data, timestamp.toLong())
-                    Timber.d("视频帧已传递给解码器")
-                } else {
-                    Timber.w("视频帧回调未设置，无法传递给解码器")
-                }
+                deliverFrame(VideoDecoder.VideoFrame(
+                    data = data,
+                    timestamp = timestamp.toLong(),
+                    isKeyFrame = VideoDecoder.containsKeyFrame(data)
+                ))
                 
             } catch (e: Exception) {
                 Timber.e(e, "处理视频帧失败")
@@ -290,14 +621,160 @@ class CastServerService : Service() {
         }
         
         /**
-         * 处理心跳
+         * 处理 v2 视频帧：帧类型由发送端标明，采集时间换算为微秒作为显示时间戳
          */
-        private fun handleHeartbeat(ctx: ChannelHandlerContext) {
-            val response = ctx.alloc().buffer()
+        private fun handleVideoFrameV2(msg: ByteBuf) {
+            val receivedAt = System.nanoTime()
+            val packet = VideoPacket.parse(msg)
+            if (packet == null) {
+                framesDiscarded++
+                Timber.w("v2 视频帧格式错误，丢弃并请求关键帧")
+                requestKeyFrame()
+                return
+            }
+            
+            // 序号不连续说明中间有帧丢失，参考链已断
+            val expected = lastSequence?.plus(1)
+            lastSequence = packet.sequence
+            if (expected != null && packet.sequence != expected && !packet.isKeyFrame) {
+                Timber.w("视频帧序号不连续: 期望 $expected，收到 ${packet.sequence}")
+                requestKeyFrame()
+            }
+            
+            deliverFrame(VideoDecoder.VideoFrame(
+                data = packet.annexB,
+                timestamp = packet.captureNanos / 1000,
+                isKeyFrame = packet.isKeyFrame,
+                isDroppable = packet.isDroppable,
+                isPrimed = packet.isPrimed,
+                receivedAtNanos = receivedAt
+            ))
+        }
+        
+        /**
+         * 处理 v2 视频帧分片，拼成完整帧后按 v2 视频帧处理
+         */
+        private fun handleVideoFragment(msg: ByteBuf) {
+            when (val result = reassembler.accept(msg)) {
+                is FrameReassembler.Result.Pending -> Unit
+                is FrameReassembler.Result.Complete -> handleVideoFrameV2(Unpooled.wrappedBuffer(result.data))
+                is FrameReassembler.Result.Invalid -> {
+                    framesDiscarded++
+                    Timber.w("视频帧分片无效，丢弃并请求关键帧: ${result.reason}")
+                    requestKeyFrame()
+                }
+            }
+        }
+        
+        /**
+         * 将视频帧传递给解码器
+         */
+        private fun deliverFrame(frame: VideoDecoder.VideoFrame) {
+            if (!active) return
+            framesReceived++
+            val callback = MainActivity.onVideoFrameReceived
+            if (callback != null) {
+                callback.invoke(frame)
+            } else {
+                Timber.w("视频帧回调未设置，无法传递给解码器")
+            }
+        }
+        
+        /**
+         * 握手后开始定期回报接收统计（发送端版本不支持时不发送）
+         */
+        private fun startStatsReports(ctx: ChannelHandlerContext, version: Int) {
+            statsTask?.cancel(false)
+            statsTask = null
+            if (version < VERSION_RECEIVER_STATS) return
+            framesReceived = 0
+            framesDiscarded = 0
+            MainActivity.decoderStatsProvider?.invoke()  // 清掉上一次连接残留的统计
+            lastStatsAt = SystemClock.elapsedRealtime()
+            statsTask = ctx.executor().scheduleAtFixedRate(
+                { sendStats(ctx) }, STATS_INTERVAL_MS, STATS_INTERVAL_MS, TimeUnit.MILLISECONDS)
+        }
+        
+        /**
+         * 回报接收统计: [0x08][4字节统计时长（毫秒）][收到][解码][显示][丢弃][队列峰值][平均解码耗时（微秒）][最大解码耗时（微秒）]
+         *
+         * 计数均为本统计周期内的增量
+         */
+        private fun sendStats(ctx: ChannelHandlerContext) {
+            if (!ctx.channel().isActive) return
+            val now = SystemClock.elapsedRealtime()
+            val decoder = MainActivity.decoderStatsProvider?.invoke()
+            val report = ctx.alloc().buffer(33)
+            report.writeByte(0x08)
+            report.writeInt((now - lastStatsAt).toInt())
+            report.writeInt(framesReceived)
+            report.writeInt(decoder?.decoded ?: 0)
+            report.writeInt(decoder?.rendered ?: 0)
+            report.writeInt(framesDiscarded + (decoder?.dropped ?: 0))
+            report.writeInt(decoder?.maxQueueDepth ?: 0)
+            report.writeInt(decoder?.avgDecodeMicros ?: 0)
+            report.writeInt(decoder?.maxDecodeMicros ?: 0)
+            ctx.writeAndFlush(report)
+            lastStatsAt = now
+            framesReceived = 0
+            framesDiscarded = 0
+        }
+        
+        /**
+         * 处理心跳: [8字节发送端发送时间]
+         *
+         * 原样回传发送端的时间戳（发送端据此计算 RTT），并附上本机的接收和发送时间，
+         * 发送端据此估计两端时钟偏差: [0x02][发送端时间][本机接收时间][本机发送时间]
+         */
+        private fun handleHeartbeat(ctx: ChannelHandlerContext, msg: ByteBuf, receivedAt: Long) {
+            val response = ctx.alloc().buffer(25)
             response.writeByte(0x02)
+            if (msg.readableBytes() >= 8) {
+                response.writeLong(msg.readLong())
+                response.writeLong(receivedAt)
+                response.writeLong(System.nanoTime())
+            }
             ctx.writeAndFlush(response)
         }
         
+        /**
+         * 处理带宽探测包: [4字节探测标识][2字节序号][2字节总数][填充]
+         *
+         * 发送端连续发出一串探测包，按第一个包到最后一个包的到达间隔计算吞吐量。每收到一个包回报一次累计值
+         * （弱网上探测数据会挡住心跳响应，逐包回报让发送端知道连接仍然正常，超时也能按已收到的部分计算）:
+         * [0x0B][探测标识][已收到的包数][第一个包之后的字节数][第一个包到当前包的间隔（纳秒）]
+         */
+        private fun handleProbe(ctx: ChannelHandlerContext, msg: ByteBuf, receivedAt: Long) {
+            if (msg.readableBytes() < 8) return
+            // 消息长度（含类型字节和长度前缀）
+            val size = msg.readableBytes() + 5
+            val id = msg.readInt()
+            val index = msg.readUnsignedShort()
+            val count = msg.readUnsignedShort()
+            if (id != probeId) {
+                probeId = id
+                probeFirstAt = receivedAt
+                probePackets = 1
+                probeBytes = 0
+            } else {
+                probePackets++
+                probeBytes += size
+            }
+
+            val report = ctx.alloc().buffer(25)
+            report.writeByte(0x0B)
+            report.writeInt(id)
+            report.writeInt(probePackets)
+            report.writeLong(probeBytes)
+            report.writeLong(receivedAt - probeFirstAt)
+            ctx.writeAndFlush(report)
+            if (index >= count - 1) {
+                Timber.d("带宽探测: $probePackets 包，%.1fMbps",
+                    probeBytes * 8.0 * 1000 / maxOf(1L, receivedAt - probeFirstAt))
+                probeId = null
+            }
+        }
+        
         /**
          * 发送错误响应
          */
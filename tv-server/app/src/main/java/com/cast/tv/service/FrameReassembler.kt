@@ -0,0 +1,101 @@
+package com.cast.tv.service
+
+import io.netty.buffer.ByteBuf
+
+/**
+ * 视频帧分片重组
+ *
+ * 分片格式: [4字节帧序号][4字节总长度][4字节偏移][数据]（类型字节已被读取）
+ * 发送端按顺序写出同一帧的所有分片，TCP 保证到达顺序，因此只接受从当前已收长度处续写的分片；
+ * 序号、偏移或长度对不上都说明这一帧已不完整，整帧丢弃。
+ * 缓冲区不按第一个分片声明的总长度一次分配，而是随收到的数据增长，伪造的长度占不了多少内存。
+ * 只在 Channel 的事件循环线程上使用。
+ */
+class FrameReassembler {
+
+    companion object {
+        // 单帧最大字节数，4K 高码率的关键帧也只有几 MB
+        const val MAX_FRAME_SIZE = 16 * 1024 * 1024
+        private const val HEADER_SIZE = 4 + 4 + 4
+        // 缓冲区初始大小，不够时按倍数增长到帧的总长度
+        private const val INITIAL_CAPACITY = 256 * 1024
+    }
+
+    sealed class Result {
+        /** 分片已接收，帧尚未完整 */
+        object Pending : Result()
+        /** 帧已完整，data 为去掉类型字节的 v2 帧体 */
+        class Complete(val data: ByteArray) : Result()
+        /** 分片无效，正在重组的帧已丢弃 */
+        class Invalid(val reason: String) : Result()
+    }
+
+    private var sequence = 0
+    private var total = 0
+    private var buffer: ByteArray? = null
+    private var received = 0
+
+    /**
+     * 处理一个分片
+     */
+    fun accept(msg: ByteBuf): Result {
+        if (msg.readableBytes() < HEADER_SIZE) {
+            return fail("分片头不完整")
+        }
+        val fragmentSequence = msg.readInt()
+        val total = msg.readInt()
+        val offset = msg.readInt()
+        val length = msg.readableBytes()
+
+        if (offset == 0) {
+            // 新帧开始，之前未完成的帧作废（缺帧由重组后的帧序号检查发现）
+            if (total <= 0 || total > MAX_FRAME_SIZE) {
+                return fail("帧长度非法: $total")
+            }
+            sequence = fragmentSequence
+            this.total = total
+            buffer = ByteArray(minOf(total, INITIAL_CAPACITY))
+            received = 0
+        }
+        if (buffer == null) {
+            return fail("缺少帧的第一个分片")
+        }
+        if (fragmentSequence != sequence || total != this.total || offset != received) {
+            return fail("分片不连续: 帧 $fragmentSequence 偏移 $offset，期望帧 $sequence 偏移 $received")
+        }
+        return append(msg, length)
+    }
+
+    /**
+     * 丢弃正在重组的帧（新连接握手时调用）
+     */
+    fun reset() {
+        buffer = null
+        received = 0
+    }
+
+    private fun append(msg: ByteBuf, length: Int): Result {
+        var current = buffer ?: return fail("缺少帧的第一个分片")
+        if (length > total - received) {
+            return fail("分片超出帧长度")
+        }
+        if (length > current.size - received) {
+            // 最终大小正好是总长度，完整的帧不需要再复制
+            current = current.copyOf(minOf(total, maxOf(received + length, current.size * 2)))
+            buffer = current
+        }
+        msg.readBytes(current, received, length)
+        received += length
+        if (received < total) {
+            return Result.Pending
+        }
+        buffer = null
+        received = 0
+        return Result.Complete(current)
+    }
+
+    private fun fail(reason: String): Result {
+        reset()
+        return Result.Invalid(reason)
+    }
+}
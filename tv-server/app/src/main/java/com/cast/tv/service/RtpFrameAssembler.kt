@@ -0,0 +1,234 @@
+package com.cast.tv.service
+
+import io.netty.buffer.ByteBuf
+
+/**
+ * UDP 视频帧重组（RTP 风格分包 + XOR 校验包 + NACK 重传）
+ *
+ * 数据包格式: [0x80][标志|负载类型][2字节包序号][4字节帧序号][4字节会话标识]
+ *            [2字节帧内序号][2字节数据包数 n][2字节校验包数 k][4字节帧长度][负载]
+ * 帧内序号 0..n-1 为数据包，按顺序拼起来是去掉类型字节的 v2 帧体；n..n+k-1 为校验包，
+ * 第 j 个校验包是所有 (i mod k == j) 的数据包按最长长度补零后的 XOR。
+ *
+ * 数据包可能乱序、重复或丢失：每组只丢一个数据包时用校验包恢复，恢复不了时由 [nacks] 给出需要重传的包；
+ * 只有确认这一帧已经发完（收到它的最后一个包或后面的帧）后才请求，先让校验包有机会恢复。
+ * 帧按序号顺序交付（[drain]），前面的帧没到齐时后面的帧等待，等待超过 [FRAME_DEADLINE_MS] 后放弃，
+ * 之后的帧照常交付，序号不连续由视频帧处理发现并请求关键帧。
+ * 只在 UDP 事件循环线程上使用。
+ */
+class RtpFrameAssembler {
+
+    companion object {
+        const val HEADER_SIZE = 22
+        const val PT_MEDIA = 96
+        const val PT_FEC = 97
+        const val PT_NACK = 98
+        // 等待缺失帧的期限（毫秒），超过后跳过；与发送端的重传期限一致
+        const val FRAME_DEADLINE_MS = 150L
+        // 没收到帧的最后一个包、也没有后面的帧时，静默这么久才认为帧已发完、请求重传（毫秒）
+        private const val NACK_DELAY_MS = 15L
+        // 同一帧两次 NACK 的最小间隔（毫秒），大于局域网往返时间
+        private const val NACK_INTERVAL_MS = 30L
+        // 最多同时重组的帧数，超出这个范围的包视为过期数据丢弃
+        private const val MAX_PENDING_FRAMES = 64
+    }
+
+    /**
+     * 重传请求：indices 为需要重传的帧内序号，为空表示整帧都没收到
+     */
+    class Nack(val frameSequence: Int, val indices: IntArray)
+
+    private class PendingFrame(
+        val sequence: Int,
+        val dataCount: Int,
+        val fecCount: Int,
+        val length: Int,
+        val firstAt: Long
+    ) {
+        val packets = arrayOfNulls<ByteArray>(dataCount + fecCount)
+        var lastPacketAt = firstAt
+        var lastNackAt = 0L
+        // 已收到的最大帧内序号：发送端按序号顺序发出数据包和校验包
+        var highestIndex = -1
+
+        fun isComplete(): Boolean = (0 until dataCount).all { packets[it] != null }
+
+        /**
+         * 每组只缺一个数据包且该组校验包已到时，用校验包恢复
+         *
+         * @return 恢复的包数
+         */
+        fun recover(): Int {
+            if (fecCount == 0) return 0
+            var recovered = 0
+            for (group in 0 until fecCount) {
+                val parity = packets[dataCount + group] ?: continue
+                var missing = -1
+                var missingCount = 0
+                for (i in group until dataCount step fecCount) {
+                    if (packets[i] == null) {
+                        missing = i
+                        missingCount++
+                    }
+                }
+                if (missingCount != 1) continue
+                val rebuilt = parity.copyOf()
+                for (i in group until dataCount step fecCount) {
+                    val data = packets[i] ?: continue
+                    for (b in data.indices) {
+                        rebuilt[b] = (rebuilt[b].toInt() xor data[b].toInt()).toByte()
+                    }
+                }
+                // 除最后一个包外，数据包都与校验包等长
+                val size = if (missing == dataCount - 1) length - parity.size * (dataCount - 1) else parity.size
+                if (size <= 0 || size > rebuilt.size) continue
+                packets[missing] = if (size == rebuilt.size) rebuilt else rebuilt.copyOf(size)
+                recovered++
+            }
+            return recovered
+        }
+
+        /**
+         * 恢复不了的数据包：每组校验包已到时少请求一个，收到其余的就能恢复
+         */
+        fun missingIndices(): IntArray {
+            val result = ArrayList<Int>()
+            val groups = if (fecCount > 0) fecCount else 1
+            for (group in 0 until groups) {
+                val missing = (group until dataCount step groups).filter { packets[it] == null }
+                val parityPresent = fecCount > 0 && packets[dataCount + group] != null
+                result.addAll(if (parityPresent) missing.drop(1) else missing)
+            }
+            return result.toIntArray()
+        }
+
+        fun assemble(): ByteArray {
+            val frame = ByteArray(length)
+            var offset = 0
+            for (i in 0 until dataCount) {
+                val data = packets[i]!!
+                val size = minOf(data.size, length - offset)
+                System.arraycopy(data, 0, frame, offset, size)
+                offset += size
+            }
+            return frame
+        }
+    }
+
+    private val pending = HashMap<Int, PendingFrame>()
+    // 下一个要交付的帧序号，收到第一个包前为 null
+    private var nextSequence: Int? = null
+    // 整帧都没收到的帧上次请求重传的时间
+    private val lostFrameNackAt = HashMap<Int, Long>()
+
+    // 统计
+    var packetsReceived = 0L
+        private set
+    var packetsRecovered = 0L
+        private set
+    var nacksSent = 0L
+        private set
+    var framesSkipped = 0L
+        private set
+
+    /**
+     * 处理一个数据包或校验包
+     *
+     * @param now 当前时间（毫秒，单调时钟）
+     */
+    fun accept(msg: ByteBuf, now: Long) {
+        if (msg.readableBytes() < HEADER_SIZE) return
+        msg.skipBytes(1)
+        val payloadType = msg.readUnsignedByte().toInt() and 0x7F
+        msg.skipBytes(2)
+        val sequence = msg.readInt()
+        msg.skipBytes(4)
+        val index = msg.readUnsignedShort()
+        val dataCount = msg.readUnsignedShort()
+        val fecCount = msg.readUnsignedShort()
+        val length = msg.readInt()
+        if (payloadType != PT_MEDIA && payloadType != PT_FEC) return
+        if (dataCount == 0 || index >= dataCount + fecCount
+            || length <= 0 || length > FrameReassembler.MAX_FRAME_SIZE) return
+
+        val next = nextSequence ?: sequence.also { nextSequence = it }
+        val ahead = sequence - next
+        // 已交付或已放弃的帧、离当前位置太远的包（过期数据）丢弃
+        if (ahead < 0 || ahead >= MAX_PENDING_FRAMES) return
+        packetsReceived++
+
+        val frame = pending.getOrPut(sequence) {
+            lostFrameNackAt.remove(sequence)
+            PendingFrame(sequence, dataCount, fecCount, length, now)
+        }
+        if (frame.dataCount != dataCount || frame.fecCount != fecCount || frame.length != length) return
+        if (frame.packets[index] != null) return  // 重复（重传与恢复同时到达）
+        val payload = ByteArray(msg.readableBytes())
+        msg.readBytes(payload)
+        frame.packets[index] = payload
+        frame.lastPacketAt = now
+        frame.highestIndex = maxOf(frame.highestIndex, index)
+        if (!frame.isComplete()) {
+            packetsRecovered += frame.recover()
+        }
+    }
+
+    /**
+     * 取出按序号排好、已完整的帧（去掉类型字节的 v2 帧体），等待超过期限的缺帧跳过
+     */
+    fun drain(now: Long): List<ByteArray> {
+        val frames = ArrayList<ByteArray>()
+        while (true) {
+            val next = nextSequence ?: break
+            val frame = pending[next]
+            if (frame != null && frame.isComplete()) {
+                frames.add(frame.assemble())
+                pending.remove(next)
+                nextSequence = next + 1
+                continue
+            }
+            // 缺帧从它的第一个包（整帧没收到时从后面最早的帧）到达时开始计时
+            val waitingSince = frame?.firstAt ?: pending.values.minOfOrNull { it.firstAt } ?: break
+            if (now - waitingSince < FRAME_DEADLINE_MS) break
+            pending.remove(next)
+            lostFrameNackAt.remove(next)
+            nextSequence = next + 1
+            framesSkipped++
+        }
+        return frames
+    }
+
+    /**
+     * 需要发给发送端的重传请求（每帧按 [NACK_INTERVAL_MS] 限频，超过期限的帧不再请求）
+     */
+    fun nacks(now: Long): List<Nack> {
+        val next = nextSequence ?: return emptyList()
+        if (pending.isEmpty()) return emptyList()
+        val newest = pending.keys.maxByOrNull { it - next }!!
+        val result = ArrayList<Nack>()
+        for (sequence in next..newest) {
+            val frame = pending[sequence]
+            if (frame == null) {
+                // 整帧丢失：后面的帧已到，请求重传整帧
+                val firstLater = pending.values.filter { it.sequence - sequence > 0 }.minOfOrNull { it.firstAt }
+                    ?: continue
+                if (now - firstLater >= FRAME_DEADLINE_MS) continue
+                val lastNackAt = lostFrameNackAt[sequence] ?: 0L
+                if (now - lastNackAt < NACK_INTERVAL_MS) continue
+                lostFrameNackAt[sequence] = now
+                result.add(Nack(sequence, IntArray(0)))
+                continue
+            }
+            if (frame.isComplete() || now - frame.firstAt >= FRAME_DEADLINE_MS) continue
+            val sentCompletely = sequence != newest || frame.highestIndex == frame.packets.size - 1
+            if (!sentCompletely && now - frame.lastPacketAt < NACK_DELAY_MS) continue
+            if (now - frame.lastNackAt < NACK_INTERVAL_MS) continue
+            val missing = frame.missingIndices()
+            if (missing.isEmpty()) continue
+            frame.lastNackAt = now
+            result.add(Nack(sequence, missing))
+        }
+        nacksSent += result.size
+        return result
+    }
+}
@@ -0,0 +1,71 @@
+package com.cast.tv.service
+
+import io.netty.buffer.ByteBuf
+
+/**
+ * v2 视频帧解析
+ *
+ * 格式: [1字节标志][4字节序号][8字节采集时间（纳秒）][[4字节长度][NAL]...]（类型字节已被读取）
+ * 负载为 NAL 长度分帧，解析时还原为 Annex B 交给 MediaCodec。
+ * 数据来自网络，所有长度都要先校验，任何不一致都整帧丢弃而不是抛出越界异常。
+ */
+object VideoPacket {
+
+    const val FLAG_KEY_FRAME = 0x01   // 含 IDR 切片
+    const val FLAG_DROPPABLE = 0x02   // 不被参考，可丢弃
+    const val FLAG_CONFIG = 0x04      // 携带 SPS/PPS
+    const val FLAG_PRIMED = 0x08      // 加入时从 GOP 缓存补发，只解码不上屏
+
+    // 标志 + 序号 + 采集时间
+    private const val HEADER_SIZE = 1 + 4 + 8
+    private val START_CODE = byteArrayOf(0, 0, 0, 1)
+
+    class Frame(
+        val annexB: ByteArray,
+        val sequence: Int,
+        val captureNanos: Long,
+        val flags: Int
+    ) {
+        val isKeyFrame: Boolean get() = (flags and FLAG_KEY_FRAME) != 0
+        val isDroppable: Boolean get() = (flags and FLAG_DROPPABLE) != 0
+        val isPrimed: Boolean get() = (flags and FLAG_PRIMED) != 0
+    }
+
+    /**
+     * 解析一帧，格式错误时返回 null
+     */
+    fun parse(msg: ByteBuf): Frame? {
+        if (msg.readableBytes() < HEADER_SIZE) return null
+        val flags = msg.readUnsignedByte().toInt()
+        val sequence = msg.readInt()
+        val captureNanos = msg.readLong()
+
+        // 第一遍只校验长度并计算 Annex B 总长度
+        val payloadStart = msg.readerIndex()
+        val payloadEnd = msg.writerIndex()
+        var position = payloadStart
+        var annexBSize = 0L
+        var nalCount = 0
+        while (position < payloadEnd) {
+            if (payloadEnd - position < 4) return null
+            val length = msg.getInt(position)
+            if (length <= 0 || length > payloadEnd - position - 4) return null
+            position += 4 + length
+            annexBSize += START_CODE.size + length
+            nalCount++
+        }
+        if (nalCount == 0 || annexBSize > Int.MAX_VALUE) return null
+
+        // 第二遍复制为 Annex B
+        val annexB = ByteArray(annexBSize.toInt())
+        var offset = 0
+        while (msg.isReadable) {
+            val length = msg.readInt()
+            System.arraycopy(START_CODE, 0, annexB, offset, START_CODE.size)
+            offset += START_CODE.size
+            msg.readBytes(annexB, offset, length)
+            offset += length
+        }
+        return Frame(annexB, sequence, captureNanos, flags)
+    }
+}
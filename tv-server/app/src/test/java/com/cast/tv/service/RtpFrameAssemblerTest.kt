@@ -0,0 +1,148 @@
+package com.cast.tv.service
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * UDP 帧重组：校验包恢复、NACK 请求的帧内序号、缺帧等待超过期限后跳过
+ *
+ * 包按发送端（RtpSender）的格式构造，时间由测试直接给出。
+ */
+class RtpFrameAssemblerTest {
+
+    companion object {
+        private const val PAYLOAD_SIZE = 1000
+        private const val SESSION_ID = 0x5EED
+        // 单调时钟的起点（毫秒），不从 0 开始，否则首次 NACK 会被限频挡住
+        private const val T = 1000L
+    }
+
+    /**
+     * 把帧体切成数据包并按组生成 XOR 校验包，下标即帧内序号
+     */
+    private fun packetize(sequence: Int, body: ByteArray, fecCount: Int): List<ByteArray> {
+        val chunks = body.toList().chunked(PAYLOAD_SIZE).map { it.toByteArray() }
+        val dataCount = chunks.size
+        val parities = List(fecCount) { group ->
+            val parity = ByteArray(PAYLOAD_SIZE)
+            for (i in group until dataCount step fecCount) {
+                chunks[i].forEachIndexed { b, value -> parity[b] = (parity[b].toInt() xor value.toInt()).toByte() }
+            }
+            parity
+        }
+        return (chunks + parities).mapIndexed { index, payload ->
+            val buf = Unpooled.buffer(RtpFrameAssembler.HEADER_SIZE + payload.size)
+            buf.writeByte(0x80)
+            buf.writeByte(if (index < dataCount) RtpFrameAssembler.PT_MEDIA else RtpFrameAssembler.PT_FEC)
+            buf.writeShort(index)
+            buf.writeInt(sequence)
+            buf.writeInt(SESSION_ID)
+            buf.writeShort(index)
+            buf.writeShort(dataCount)
+            buf.writeShort(fecCount)
+            buf.writeInt(body.size)
+            buf.writeBytes(payload)
+            buf.array().copyOf(buf.writerIndex())
+        }
+    }
+
+    private fun RtpFrameAssembler.accept(packet: ByteArray, now: Long) {
+        val buf: ByteBuf = Unpooled.wrappedBuffer(packet)
+        accept(buf, now)
+    }
+
+    @Test
+    fun singleLossPerGroupRecoveredByParity() {
+        val random = Random(42)
+        // 4500 字节：4 个整包 + 1 个 500 字节的尾包，尾包丢失时按帧长度还原出较短的长度
+        val body = random.nextBytes(4500)
+        for (lost in 0 until 5) {
+            val assembler = RtpFrameAssembler()
+            packetize(7, body, 1).forEachIndexed { index, packet ->
+                if (index != lost) assembler.accept(packet, 0)
+            }
+            assertEquals(1L, assembler.packetsRecovered)
+            assertTrue("丢第 $lost 个包不应请求重传", assembler.nacks(0).isEmpty())
+            val frames = assembler.drain(0)
+            assertEquals(1, frames.size)
+            assertArrayEquals("丢第 $lost 个包", body, frames[0])
+        }
+    }
+
+    @Test
+    fun nackAsksOnlyForPacketsParityCannotRebuild() {
+        val body = Random(7).nextBytes(6 * PAYLOAD_SIZE)
+        // 6 个数据包、2 个校验包：组 0 = {0, 2, 4}，组 1 = {1, 3, 5}
+        val packets = packetize(20, body, 2)
+        val assembler = RtpFrameAssembler()
+        packets.forEachIndexed { index, packet ->
+            // 组 0 丢两个（校验包只能补一个），组 1 丢一个（校验包恢复）
+            if (index != 0 && index != 2 && index != 3) assembler.accept(packet, T)
+        }
+        assertEquals(1L, assembler.packetsRecovered)
+
+        // 最后一个校验包已到，帧已发完，立即请求；组 0 的校验包在，只请求一个
+        val nacks = assembler.nacks(T)
+        assertEquals(1, nacks.size)
+        assertEquals(20, nacks[0].frameSequence)
+        assertArrayEquals(intArrayOf(2), nacks[0].indices)
+        // 同一帧的重传请求限频
+        assertTrue(assembler.nacks(T + 10).isEmpty())
+        assertArrayEquals(intArrayOf(2), assembler.nacks(T + 40).single().indices)
+
+        // 重传的包到达后，组 0 再用校验包恢复剩下的一个
+        assembler.accept(packets[2], T + 45)
+        assertEquals(2L, assembler.packetsRecovered)
+        assertArrayEquals(body, assembler.drain(T + 45).single())
+        assertTrue(assembler.nacks(T + 80).isEmpty())
+    }
+
+    @Test
+    fun nackWithoutParityAndForWholeLostFrame() {
+        val random = Random(11)
+        val first = random.nextBytes(5 * PAYLOAD_SIZE)
+        val third = random.nextBytes(PAYLOAD_SIZE)
+        val assembler = RtpFrameAssembler()
+        // 帧 1 没有校验包，丢 1 和 3；帧 2 整帧丢失；帧 3 完整
+        packetize(1, first, 0).forEachIndexed { index, packet ->
+            if (index != 1 && index != 3) assembler.accept(packet, T)
+        }
+        packetize(3, third, 0).forEach { assembler.accept(it, T + 5) }
+
+        val nacks = assembler.nacks(T + 5).associateBy { it.frameSequence }
+        assertEquals(setOf(1, 2), nacks.keys)
+        assertArrayEquals(intArrayOf(1, 3), nacks.getValue(1).indices)
+        assertEquals(0, nacks.getValue(2).indices.size)
+    }
+
+    @Test
+    fun missingFrameSkippedAfterDeadline() {
+        val random = Random(3)
+        val bodies = List(3) { random.nextBytes(3 * PAYLOAD_SIZE) }
+        val assembler = RtpFrameAssembler()
+        packetize(10, bodies[0], 0).forEach { assembler.accept(it, 0) }
+        // 帧 11 丢了一个数据包、没有校验包，重传也没有到
+        packetize(11, bodies[1], 0).forEachIndexed { index, packet ->
+            if (index != 1) assembler.accept(packet, 0)
+        }
+        packetize(12, bodies[2], 0).forEach { assembler.accept(it, 0) }
+
+        assertArrayEquals(bodies[0], assembler.drain(0).single())
+        // 期限之前帧 12 等待帧 11
+        assertTrue(assembler.drain(RtpFrameAssembler.FRAME_DEADLINE_MS - 1).isEmpty())
+        assertEquals(0L, assembler.framesSkipped)
+        // 超过期限不再请求重传，跳过帧 11 交付帧 12
+        assertTrue(assembler.nacks(RtpFrameAssembler.FRAME_DEADLINE_MS).isEmpty())
+        assertArrayEquals(bodies[2], assembler.drain(RtpFrameAssembler.FRAME_DEADLINE_MS).single())
+        assertEquals(1L, assembler.framesSkipped)
+
+        // 跳过之后迟到的包丢弃
+        packetize(11, bodies[1], 0).forEach { assembler.accept(it, RtpFrameAssembler.FRAME_DEADLINE_MS + 1) }
+        assertTrue(assembler.drain(RtpFrameAssembler.FRAME_DEADLINE_MS + 1).isEmpty())
+    }
+}
@@ -0,0 +1,243 @@
+package com.cast.tv.service
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import kotlin.random.Random
+
+/**
+ * v2 视频帧与分片重组的模糊测试
+ *
+ * 数据来自网络：随机截断、翻转、拼接后的输入只能被丢弃（返回 null / Invalid），不能抛出异常；
+ * 合法输入无论怎样分片都必须原样还原。随机种子固定，失败可复现。
+ */
+class VideoPacketFuzzTest {
+
+    companion object {
+        private const val ITERATIONS = 20_000
+        private val START_CODE = byteArrayOf(0, 0, 0, 1)
+    }
+
+    private class SampleFrame(
+        val nals: List<ByteArray>,
+        val sequence: Int,
+        val captureNanos: Long,
+        val flags: Int
+    ) {
+        /** 去掉类型字节的 v2 帧体 */
+        fun encode(): ByteArray {
+            val bytes = ByteArrayOutputStream()
+            DataOutputStream(bytes).apply {
+                writeByte(flags)
+                writeInt(sequence)
+                writeLong(captureNanos)
+                nals.forEach {
+                    writeInt(it.size)
+                    write(it)
+                }
+            }
+            return bytes.toByteArray()
+        }
+
+        fun annexB(): ByteArray = nals.fold(ByteArray(0)) { acc, nal -> acc + START_CODE + nal }
+    }
+
+    private fun randomFrame(random: Random): SampleFrame {
+        val nals = List(random.nextInt(1, 6)) {
+            // 偶尔生成较大的 NAL，覆盖多分片的情况
+            val size = if (random.nextInt(10) == 0) random.nextInt(1, 200_000) else random.nextInt(1, 2_000)
+            random.nextBytes(size)
+        }
+        return SampleFrame(nals, random.nextInt(), random.nextLong(), random.nextInt(0, 8))
+    }
+
+    private fun fragment(sequence: Int, total: Int, offset: Int, data: ByteArray): ByteBuf {
+        val buf = Unpooled.buffer(12 + data.size)
+        buf.writeInt(sequence)
+        buf.writeInt(total)
+        buf.writeInt(offset)
+        buf.writeBytes(data)
+        return buf
+    }
+
+    /** 按随机长度切成分片，至少一片 */
+    private fun split(random: Random, sequence: Int, body: ByteArray): List<ByteBuf> {
+        val fragments = mutableListOf<ByteBuf>()
+        var offset = 0
+        do {
+            val length = minOf(body.size - offset, random.nextInt(1, 70_000))
+            fragments.add(fragment(sequence, body.size, offset, body.copyOfRange(offset, offset + length)))
+            offset += length
+        } while (offset < body.size)
+        return fragments
+    }
+
+    @Test
+    fun validFramesRoundTrip() {
+        val random = Random(20260101)
+        repeat(2_000) {
+            val sample = randomFrame(random)
+            val frame = VideoPacket.parse(Unpooled.wrappedBuffer(sample.encode()))
+            assertNotNull(frame)
+            assertArrayEquals(sample.annexB(), frame!!.annexB)
+            assertEquals(sample.sequence, frame.sequence)
+            assertEquals(sample.captureNanos, frame.captureNanos)
+            assertEquals(sample.flags, frame.flags)
+        }
+    }
+
+    @Test
+    fun mutatedFramesNeverThrow() {
+        val random = Random(34)
+        var rejected = 0
+        repeat(ITERATIONS) {
+            val body = mutate(random, randomFrame(random).encode())
+            val frame = VideoPacket.parse(Unpooled.wrappedBuffer(body))
+            if (frame == null) {
+                rejected++
+            } else {
+                // 接受的帧必须是自洽的 Annex B：每个 NAL 都以起始码开头，总长度不超过输入
+                assertTrue(frame.annexB.size <= body.size)
+                assertTrue(frame.annexB.copyOfRange(0, 4).contentEquals(START_CODE))
+            }
+        }
+        assertTrue("变异输入应有相当一部分被拒绝: $rejected", rejected > ITERATIONS / 10)
+    }
+
+    @Test
+    fun shortAndEmptyInputsRejected() {
+        for (size in 0..13) {
+            assertEquals(null, VideoPacket.parse(Unpooled.wrappedBuffer(ByteArray(size))))
+        }
+        // 长度字段为负或超出剩余字节
+        val header = ByteArray(13)
+        for (length in intArrayOf(-1, 0, Int.MIN_VALUE, Int.MAX_VALUE, 5)) {
+            val buf = Unpooled.buffer().writeBytes(header).writeInt(length).writeBytes(ByteArray(4))
+            assertEquals(null, VideoPacket.parse(buf))
+        }
+    }
+
+    @Test
+    fun fragmentedFramesReassemble() {
+        val random = Random(4)
+        val reassembler = FrameReassembler()
+        repeat(500) {
+            val body = randomFrame(random).encode()
+            val sequence = random.nextInt()
+            val fragments = split(random, sequence, body)
+            fragments.forEachIndexed { index, fragment ->
+                val result = reassembler.accept(fragment)
+                if (index < fragments.size - 1) {
+                    assertTrue(result is FrameReassembler.Result.Pending)
+                } else {
+                    assertTrue(result is FrameReassembler.Result.Complete)
+                    assertArrayEquals(body, (result as FrameReassembler.Result.Complete).data)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun corruptedFragmentStreamsNeverThrowAndRecover() {
+        val random = Random(6)
+        val reassembler = FrameReassembler()
+        repeat(ITERATIONS / 10) { i ->
+            val body = randomFrame(random).encode()
+            val sequence = random.nextInt()
+            // 对分片序列做随机破坏：丢片、重复、乱序、改写头部、插入垃圾分片
+            val fragments = split(random, sequence, body).map { it.array().copyOf(it.writerIndex()) }.toMutableList()
+            when (random.nextInt(5)) {
+                0 -> if (fragments.size > 1) fragments.removeAt(random.nextInt(fragments.size))
+                1 -> fragments.add(random.nextInt(fragments.size + 1), fragments[random.nextInt(fragments.size)])
+                2 -> fragments.shuffle(random)
+                3 -> fragments[random.nextInt(fragments.size)].let { it[random.nextInt(minOf(12, it.size))] = random.nextInt().toByte() }
+                else -> fragments.add(random.nextBytes(random.nextInt(0, 16)))
+            }
+            for (fragment in fragments) {
+                val result = reassembler.accept(Unpooled.wrappedBuffer(fragment))
+                if (result is FrameReassembler.Result.Complete) {
+                    // 拼出的帧不超过长度上限，内容交给 VideoPacket.parse 也不能抛出异常
+                    assertTrue(result.data.size <= FrameReassembler.MAX_FRAME_SIZE)
+                    VideoPacket.parse(Unpooled.wrappedBuffer(result.data))
+                }
+            }
+
+            // 破坏之后，下一帧完整的分片必须能正常重组
+            val next = randomFrame(random).encode()
+            val results = split(random, sequence + 1, next).map { reassembler.accept(it) }
+            val last = results.last()
+            assertTrue("第 $i 组之后未能恢复", last is FrameReassembler.Result.Complete)
+            assertArrayEquals(next, (last as FrameReassembler.Result.Complete).data)
+        }
+    }
+
+    @Test
+    fun largeFrameBufferGrowsWithFragments() {
+        val random = Random(16)
+        val reassembler = FrameReassembler()
+        // 缓冲区从较小的初始大小逐步增长，拼出的帧与原数据一致、长度正好
+        for (size in intArrayOf(1, 300_000, 3 * 1024 * 1024 + 7, FrameReassembler.MAX_FRAME_SIZE)) {
+            val body = random.nextBytes(size)
+            val fragments = split(random, size, body)
+            val last = fragments.map { reassembler.accept(it) }.last()
+            assertTrue(last is FrameReassembler.Result.Complete)
+            assertArrayEquals(body, (last as FrameReassembler.Result.Complete).data)
+        }
+        // 声明了最大长度、只发来一小段的帧被下一帧取代，不影响后续重组
+        assertTrue(reassembler.accept(fragment(1, FrameReassembler.MAX_FRAME_SIZE, 0, ByteArray(8)))
+                is FrameReassembler.Result.Pending)
+        val next = random.nextBytes(1000)
+        val result = reassembler.accept(fragment(2, next.size, 0, next))
+        assertArrayEquals(next, (result as FrameReassembler.Result.Complete).data)
+    }
+
+    @Test
+    fun oversizedOrNegativeTotalRejected() {
+        val reassembler = FrameReassembler()
+        for (total in intArrayOf(0, -1, Int.MIN_VALUE, FrameReassembler.MAX_FRAME_SIZE + 1, Int.MAX_VALUE)) {
+            val result = reassembler.accept(fragment(1, total, 0, ByteArray(8)))
+            assertTrue(result is FrameReassembler.Result.Invalid)
+        }
+        // 没有第一个分片的续写分片
+        assertTrue(reassembler.accept(fragment(1, 100, 50, ByteArray(8))) is FrameReassembler.Result.Invalid)
+        // 超出声明长度的分片
+        assertTrue(reassembler.accept(fragment(2, 4, 0, ByteArray(8))) is FrameReassembler.Result.Invalid)
+    }
+
+    /**
+     * 随机破坏一个合法帧体：翻转位、截断、追加、改写长度字段
+     */
+    private fun mutate(random: Random, body: ByteArray): ByteArray {
+        var result = body
+        repeat(random.nextInt(1, 4)) {
+            result = when (random.nextInt(5)) {
+                0 -> result.copyOf().also {
+                    if (it.isNotEmpty()) {
+                        val index = random.nextInt(it.size)
+                        it[index] = (it[index].toInt() xor (1 shl random.nextInt(8))).toByte()
+                    }
+                }
+                1 -> result.copyOf(random.nextInt(0, result.size + 1))
+                2 -> result + random.nextBytes(random.nextInt(1, 8))
+                3 -> result.copyOf().also {
+                    // 改写第一个 NAL 的长度字段
+                    if (it.size >= 17) {
+                        val length = random.nextInt()
+                        it[13] = (length ushr 24).toByte()
+                        it[14] = (length ushr 16).toByte()
+                        it[15] = (length ushr 8).toByte()
+                        it[16] = length.toByte()
+                    }
+                }
+                else -> random.nextBytes(random.nextInt(0, 64))
+            }
+        }
+        return result
+    }
+}